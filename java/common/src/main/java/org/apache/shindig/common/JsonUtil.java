@@ -95,6 +95,21 @@ public final class JsonUtil {
     return null;
   }
 
+  /**
+   * @return Whether serializing the value would produce a JSON object containing the property.
+   */
+  public static boolean hasProperty(Object value, String propertyName) {
+    Preconditions.checkNotNull(value);
+    Preconditions.checkNotNull(propertyName);
+
+    if (value instanceof JSONObject) {
+      return ((JSONObject) value).has(propertyName);
+    } else if (value instanceof Map<?, ?>) {
+      return ((Map<?, ?>) value).containsKey(propertyName);
+    }
+    return GETTERS.getUnchecked(value.getClass()).containsKey(propertyName);
+  }
+
   static Map<String, Method> getGetters(Object pojo) {
     return GETTERS.getUnchecked(pojo.getClass()) ;
   }
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.cache;
+
+/**
+ * A compact count-min sketch of 4-bit counters, used to estimate how often a key has been
+ * requested recently. All counters are halved once the number of increments reaches ten times
+ * the number of counters, so that the estimates favor recent popularity over all-time popularity.
+ *
+ * This class is not thread safe; callers must hold a lock.
+ */
+class FrequencySketch {
+  private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int MAX_COUNT = 15;
+
+  static final int MIN_COUNTERS = 64;
+  static final int MAX_COUNTERS = 1 << 16;
+
+  private final long[] table;
+  private final int counterMask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * @param expectedEntries The number of distinct keys the sketch should distinguish between.
+   */
+  FrequencySketch(long expectedEntries) {
+    int counters = MIN_COUNTERS;
+    while (counters < expectedEntries && counters < MAX_COUNTERS) {
+      counters <<= 1;
+    }
+    table = new long[counters / 16];
+    counterMask = counters - 1;
+    sampleSize = counters * 10;
+  }
+
+  /**
+   * Records one request for the key with the given hash.
+   */
+  void increment(int hash) {
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = indexOf(hash, i);
+      int slot = index >>> 4;
+      int shift = (index & 15) << 2;
+      if (((table[slot] >>> shift) & 0xfL) != MAX_COUNT) {
+        table[slot] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * @return The estimated number of recent requests for the key with the given hash, capped at 15.
+   */
+  int frequency(int hash) {
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions /= 2;
+  }
+
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> 32;
+    return (int) h & counterMask;
+  }
+}
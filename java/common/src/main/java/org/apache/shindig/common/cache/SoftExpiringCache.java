@@ -20,8 +20,10 @@ package org.apache.shindig.common.cache;
 
 import org.apache.shindig.common.util.TimeSource;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.MapMaker;
 
+import java.util.Random;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -34,14 +36,21 @@ import java.util.concurrent.ConcurrentMap;
  *
  * Note that this isn't actually a cache itself, but rather a wrapper for one. It differs in the
  * getElement method substantially, since the returned objects are not the same as the V parameter.
+ *
+ * Entries can optionally expire early: within the last fraction of their max age, each lookup
+ * reports the entry as expired with a probability that grows from 0 to 1 towards the deadline.
+ * Callers that refresh expired entries then do so at different times on different servers, rather
+ * than all at once when the deadline passes.
  */
 public class SoftExpiringCache<K, V> {
   private final Cache<K, V> cache;
 
   // We keep a weak reference to the value stored in the cache so that when the value in the actual
   // cache is removed, we should lose it here as well.
-  private final ConcurrentMap<V, Long> expirationTimes;
+  private final ConcurrentMap<V, Expiration> expirationTimes;
   private TimeSource timeSource;
+  private double earlyExpiryFraction = 0;
+  private Random random = new Random();
 
   /**
    * Create a new TtlCache with the given capacity and TTL values.
@@ -67,13 +76,25 @@ public class SoftExpiringCache<K, V> {
       return null;
     }
 
-    Long expiration = expirationTimes.get(value);
+    Expiration expiration = expirationTimes.get(value);
 
     if (expiration == null) {
       return null;
     }
 
-    return new CachedObject<V>(value, expiration < timeSource.currentTimeMillis());
+    return new CachedObject<V>(value, isExpired(expiration, timeSource.currentTimeMillis()),
+        expiration.expires);
+  }
+
+  private boolean isExpired(Expiration expiration, long now) {
+    if (expiration.expires < now) {
+      return true;
+    }
+    long earlyStart = expiration.expires - expiration.earlyWindow;
+    if (expiration.earlyWindow <= 0 || now < earlyStart) {
+      return false;
+    }
+    return random.nextDouble() * expiration.earlyWindow < now - earlyStart;
   }
 
   /**
@@ -87,7 +108,31 @@ public class SoftExpiringCache<K, V> {
   public void addElement(K key, V value, long maxAge) {
     long now = timeSource.currentTimeMillis();
     cache.addElement(key, value);
-    expirationTimes.put(value, now + maxAge);
+    expirationTimes.put(value, new Expiration(now + maxAge, (long) (maxAge * earlyExpiryFraction)));
+  }
+
+  /**
+   * Add an element to the cache that expires at the given time.
+   *
+   * @param key The key to store the entry for.
+   * @param value The value to store.
+   * @param expires The time at which this entry is deemed expired, as returned by
+   *     {@link CachedObject#expires}.
+   */
+  public void addElementUntil(K key, V value, long expires) {
+    addElement(key, value, expires - timeSource.currentTimeMillis());
+  }
+
+  /**
+   * Let entries expire early, at a random time within the given fraction of their max age before
+   * the deadline. Applies to entries added afterwards.
+   *
+   * @param earlyExpiryFraction Between 0, for no early expiry, and 1.
+   */
+  public void setEarlyExpiryFraction(double earlyExpiryFraction) {
+    Preconditions.checkArgument(earlyExpiryFraction >= 0 && earlyExpiryFraction <= 1,
+        "earlyExpiryFraction must be between 0 and 1");
+    this.earlyExpiryFraction = earlyExpiryFraction;
   }
 
   /**
@@ -99,13 +144,33 @@ public class SoftExpiringCache<K, V> {
     this.timeSource = timeSource;
   }
 
+  /**
+   * Set the source of randomness for early expiry. For use in testing.
+   */
+  public void setRandom(Random random) {
+    this.random = random;
+  }
+
+  private static class Expiration {
+    final long expires;
+    final long earlyWindow;
+
+    Expiration(long expires, long earlyWindow) {
+      this.expires = expires;
+      this.earlyWindow = earlyWindow;
+    }
+  }
+
   public static class CachedObject<V> {
     public final V obj;
     public final boolean isExpired;
+    /** The time at which the entry expires, in milliseconds since the epoch. */
+    public final long expires;
 
-    protected CachedObject(V obj, boolean isExpired) {
+    protected CachedObject(V obj, boolean isExpired, long expires) {
       this.obj = obj;
       this.isExpired = isExpired;
+      this.expires = expires;
     }
   }
 }
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Weigher;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache bounded by the total weight of its entries rather than by their number.
+ *
+ * Entries are spread over independently locked segments, so concurrent callers only contend when
+ * their keys land in the same segment. The capacity is shared by all segments. When an entry is
+ * added to a full cache, its segment evicts in LRU order, but the entry is only admitted if it has
+ * been requested at least as often recently as the entries it would evict. This keeps a scan of
+ * one-off keys from flushing out the entries that are actually hot. If the segment doesn't hold
+ * enough to make room, the least recently used entries of the other segments are evicted.
+ *
+ * Without a {@link Weigher} every entry weighs 1, and the capacity is a number of entries. With a
+ * weigher, the capacity is in whatever unit the weigher returns, typically bytes. Entries heavier
+ * than the whole capacity are never cached.
+ */
+public class WeightedCache<K, V> implements Cache<K, V> {
+  static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+  // Don't split small caches so finely that each segment only holds a handful of entries.
+  static final int MIN_SEGMENT_CAPACITY = 16;
+
+  private final long capacity;
+  private final Weigher<? super K, ? super V> weigher;
+  private final Segment<K, V>[] segments;
+  private final int segmentShift;
+  private final int segmentMask;
+  private final AtomicLong weight = new AtomicLong();
+  // The next segment to evict from when an entry's own segment couldn't make room for it.
+  private final AtomicInteger nextVictimSegment = new AtomicInteger();
+
+  public WeightedCache(long capacity) {
+    this(capacity, null);
+  }
+
+  public WeightedCache(long capacity, Weigher<? super K, ? super V> weigher) {
+    this(capacity, weigher, DEFAULT_CONCURRENCY_LEVEL);
+  }
+
+  @SuppressWarnings("unchecked")
+  public WeightedCache(long capacity, Weigher<? super K, ? super V> weigher,
+      int concurrencyLevel) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    Preconditions.checkArgument(concurrencyLevel > 0, "concurrencyLevel must be positive");
+    this.capacity = capacity;
+    this.weigher = weigher;
+
+    int segmentCount = 1;
+    int shift = 0;
+    while (segmentCount < concurrencyLevel
+        && capacity / (segmentCount << 1) >= MIN_SEGMENT_CAPACITY) {
+      segmentCount <<= 1;
+      shift++;
+    }
+    segmentShift = 32 - shift;
+    segmentMask = segmentCount - 1;
+    segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment<K, V>(capacity / segmentCount, weigher == null);
+    }
+  }
+
+  public V getElement(K key) {
+    int hash = hash(key);
+    Segment<K, V> segment = segmentFor(hash);
+    segment.lock.lock();
+    try {
+      segment.sketch.increment(hash);
+      Entry<V> entry = segment.map.get(key);
+      return entry == null ? null : entry.value;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  public void addElement(K key, V value) {
+    if (value == null) {
+      removeElement(key);
+      return;
+    }
+    int entryWeight = weigher == null ? 1 : weigher.weigh(key, value);
+    Preconditions.checkArgument(entryWeight >= 0, "Negative weight for key %s", key);
+    if (entryWeight > capacity) {
+      removeElement(key);
+      return;
+    }
+
+    int hash = hash(key);
+    Segment<K, V> segment = segmentFor(hash);
+    segment.lock.lock();
+    try {
+      segment.sketch.increment(hash);
+      Entry<V> existing = segment.map.get(key);
+      if (existing == null && !segment.admit(hash, weight.get() + entryWeight - capacity)) {
+        return;
+      }
+      segment.map.put(key, new Entry<V>(value, entryWeight));
+      weight.addAndGet(entryWeight - (existing == null ? 0 : existing.weight));
+      // The new entry is the most recently used, so this never evicts it.
+      evict(segment, 1);
+    } finally {
+      segment.lock.unlock();
+    }
+    if (weight.get() > capacity) {
+      evictOtherSegments(segment);
+    }
+  }
+
+  public V removeElement(K key) {
+    Segment<K, V> segment = segmentFor(hash(key));
+    segment.lock.lock();
+    try {
+      Entry<V> entry = segment.map.remove(key);
+      if (entry == null) {
+        return null;
+      }
+      weight.addAndGet(-entry.weight);
+      segment.count = segment.map.size();
+      return entry.value;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /**
+   * @return The maximum total weight of the cache. This is a number of entries if the cache was
+   *     created without a weigher.
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public long getSize() {
+    long size = 0;
+    for (Segment<K, V> segment : segments) {
+      size += segment.count;
+    }
+    return size;
+  }
+
+  /**
+   * @return The current total weight of the entries in the cache.
+   */
+  public long getWeight() {
+    return weight.get();
+  }
+
+  int getSegmentCount() {
+    return segments.length;
+  }
+
+  /**
+   * Evicts the segment's least recently used entries until the cache is within its capacity or
+   * the segment is down to the given number of entries. The caller must hold the segment's lock.
+   */
+  private void evict(Segment<K, V> segment, int keep) {
+    Iterator<Entry<V>> eldest = segment.map.values().iterator();
+    int remaining = segment.map.size();
+    while (weight.get() > capacity && remaining > keep) {
+      weight.addAndGet(-eldest.next().weight);
+      eldest.remove();
+      remaining--;
+    }
+    segment.count = remaining;
+  }
+
+  /**
+   * Makes room in the other segments, one at a time, when an entry's own segment didn't hold
+   * enough to stay within the capacity. Only one lock is ever held at a time.
+   */
+  private void evictOtherSegments(Segment<K, V> full) {
+    int start = nextVictimSegment.getAndIncrement();
+    for (int i = 0; i < segments.length && weight.get() > capacity; i++) {
+      Segment<K, V> segment = segments[(start + i) & segmentMask];
+      if (segment == full) {
+        continue;
+      }
+      segment.lock.lock();
+      try {
+        evict(segment, 0);
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  private Segment<K, V> segmentFor(int hash) {
+    return segments[(hash >>> segmentShift) & segmentMask];
+  }
+
+  private static int hash(Object key) {
+    int h = key == null ? 0 : key.hashCode();
+    h = (h ^ (h >>> 16)) * 0x45d9f3b;
+    h = (h ^ (h >>> 16)) * 0x45d9f3b;
+    return h ^ (h >>> 16);
+  }
+
+  private static final class Entry<V> {
+    final V value;
+    final int weight;
+
+    Entry(V value, int weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * One lock stripe of the cache. All fields except count are guarded by lock; count is volatile
+   * so that sizes can be reported without locking.
+   */
+  private static final class Segment<K, V> {
+    final ReentrantLock lock = new ReentrantLock();
+    final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    final FrequencySketch sketch;
+    volatile int count;
+
+    Segment(long expectedEntries, boolean unitWeights) {
+      this.sketch = new FrequencySketch(unitWeights ? expectedEntries
+          : FrequencySketch.MAX_COUNTERS);
+    }
+
+    /**
+     * Decides whether a new entry may displace the least recently used entries of this segment
+     * that are needed to bring the cache back under its capacity. It may only do so if none of
+     * them has been requested more often recently.
+     */
+    boolean admit(int hash, long excess) {
+      if (excess <= 0) {
+        return true;
+      }
+      int frequency = sketch.frequency(hash);
+      for (Map.Entry<K, Entry<V>> victim : map.entrySet()) {
+        if (sketch.frequency(hash(victim.getKey())) > frequency) {
+          return false;
+        }
+        excess -= victim.getValue().weight;
+        if (excess <= 0) {
+          break;
+        }
+      }
+      return true;
+    }
+  }
+}
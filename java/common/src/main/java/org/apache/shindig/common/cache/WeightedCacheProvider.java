@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.MapMaker;
+import com.google.inject.Binding;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache provider that produces concurrent {@link WeightedCache}s.
+ *
+ * Cache capacities can be configured by specifying property names in the form
+ *
+ * shindig.cache.weighted.<cache name>.capacity=foo
+ *
+ * The default value is expected under shindig.cache.weighted.default.capacity
+ *
+ * A cache is weighed by the {@link Weigher} bound under {@link #weigherKey(String)} for its name.
+ * When one is bound, the capacity is in the weigher's unit (usually bytes); otherwise it is a
+ * number of entries, as with the {@link LruCacheProvider}.
+ *
+ * Bind it with the {@link WeightedCacheModule}.
+ */
+public class WeightedCacheProvider implements CacheProvider {
+  private static final Logger LOG = Logger.getLogger(WeightedCacheProvider.class.getName());
+  private final long defaultCapacity;
+  private final Injector injector;
+  private final ConcurrentMap<String, Cache<?, ?>> caches = new MapMaker().makeMap();
+
+  @Inject
+  public WeightedCacheProvider(Injector injector,
+      @Named("shindig.cache.weighted.default.capacity") long defaultCapacity) {
+    this.injector = injector;
+    this.defaultCapacity = defaultCapacity;
+  }
+
+  public WeightedCacheProvider(long capacity) {
+    this(null, capacity);
+  }
+
+  /**
+   * @return The key under which to bind the {@link Weigher} for the named cache.
+   */
+  @SuppressWarnings("rawtypes")
+  public static Key<Weigher> weigherKey(String cacheName) {
+    return Key.get(Weigher.class, Names.named("shindig.cache.weigher." + cacheName));
+  }
+
+  private long getCapacity(String name) {
+    if (injector != null) {
+      Key<String> key = Key.get(String.class,
+          Names.named("shindig.cache.weighted." + name + ".capacity"));
+      try {
+        if (injector.getExistingBinding(key) != null) {
+          String value = injector.getInstance(key);
+          try {
+            return Long.parseLong(value);
+          } catch (NumberFormatException e) {
+            LOG.warning("Invalid capacity configured for cache " + name + ": " + value);
+          }
+        }
+      } catch (ConfigurationException e) {
+        return defaultCapacity;
+      }
+    }
+    return defaultCapacity;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private <K, V> Weigher<K, V> getWeigher(String name) {
+    if (injector != null) {
+      Binding<Weigher> binding = injector.getExistingBinding(weigherKey(name));
+      if (binding != null) {
+        return binding.getProvider().get();
+      }
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <K, V> Cache<K, V> createCache(String name) {
+    Preconditions.checkNotNull(name);
+    Cache<K, V> cache = (Cache<K, V>) caches.get(name);
+    if (cache == null) {
+      Weigher<K, V> weigher = getWeigher(name);
+      long capacity = getCapacity(name);
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.fine("Creating cache named " + name + " with capacity " + capacity
+            + (weigher == null ? " entries" : " weighed by " + weigher.getClass().getName()));
+      }
+      Cache<K, V> created = new WeightedCache<K, V>(capacity, weigher);
+      cache = (Cache<K, V>) caches.putIfAbsent(name, created);
+      if (cache == null) {
+        cache = created;
+      }
+    }
+    return cache;
+  }
+}
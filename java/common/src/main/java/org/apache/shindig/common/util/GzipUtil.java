@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Utilities for gzip compressing content ahead of time, so that it can be served to clients
+ * that accept gzip without being compressed again for every request.
+ */
+public final class GzipUtil {
+  private GzipUtil() {}
+
+  /**
+   * @param data The bytes to compress.
+   * @return The gzip compressed form of the data.
+   */
+  public static byte[] compress(byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 32);
+    try {
+      GZIPOutputStream gzip = new GZIPOutputStream(out);
+      gzip.write(data);
+      gzip.close();
+    } catch (IOException e) {
+      // Doesn't occur; the output is a ByteArrayOutputStream.
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param gzipped Gzip compressed bytes.
+   * @param length The length of the uncompressed data, or -1 if unknown.
+   * @return The uncompressed data.
+   * @throws IOException If the bytes are not valid gzip data, or don't have the given length.
+   */
+  public static byte[] decompress(byte[] gzipped, int length) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    try {
+      if (length < 0) {
+        return IOUtils.toByteArray(in);
+      }
+      byte[] data = new byte[length];
+      IOUtils.readFully(in, data);
+      if (in.read() != -1) {
+        throw new IOException("Gzipped data longer than expected " + length + " bytes");
+      }
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param acceptEncoding The value of a request's Accept-Encoding header, may be null.
+   * @return True if the header allows a gzip content coding in the response.
+   */
+  public static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      int semicolon = coding.indexOf(';');
+      String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+        return semicolon < 0 || !isZeroQuality(coding.substring(semicolon + 1));
+      }
+    }
+    return false;
+  }
+
+  private static boolean isZeroQuality(String params) {
+    for (String param : params.split(";")) {
+      param = param.trim();
+      if (param.startsWith("q=") || param.startsWith("Q=")) {
+        try {
+          return Float.parseFloat(param.substring(2).trim()) <= 0f;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+}
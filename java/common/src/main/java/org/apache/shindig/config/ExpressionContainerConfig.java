@@ -18,12 +18,17 @@
  */
 package org.apache.shindig.config;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.inject.Singleton;
 
 import org.apache.shindig.expressions.Expressions;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -44,17 +49,39 @@ import javax.el.ValueExpression;
  * "parent" property.
  *
  * get* can take either a simple property name (foo), or an EL expression
- * (${foo.bar}).
+ * (${foo.bar}). The values of expressions are kept for the containers of the
+ * configuration, up to a bound, until the configuration changes. Expressions
+ * read before a change are evaluated again when the change is committed.
  */
 @Singleton
 public class ExpressionContainerConfig extends BasicContainerConfig {
+  // Stands for null values, which caches don't hold.
+  private static final Object NULL_VALUE = new Object();
+
+  // The number of expression values kept per container. Callers read a small set of constant
+  // expressions, the bound keeps any others from growing the memo.
+  private static final int MAX_EXPRESSION_VALUES = 1000;
 
   protected Map<String, Map<String, Object>> rawConfig;
   private final Expressions expressions;
 
+  // Values of expressions, by container and expression. Replaced as a whole when the
+  // configuration changes, so that values computed from the old configuration are dropped.
+  private volatile Map<String, Cache<String, Object>> expressionValues = ImmutableMap.of();
+  private final ConfigObserver expressionValuesObserver = new ConfigObserver() {
+    public void containersChanged(
+        ContainerConfig config, Collection<String> changed, Collection<String> removed) {
+      // Expressions may refer to other containers through "parent", so replace them all.
+      if (!changed.isEmpty() || !removed.isEmpty()) {
+        expressionValues = evaluateExpressions(expressionValues);
+      }
+    }
+  };
+
   public ExpressionContainerConfig(Expressions expressions) {
     this.expressions = expressions;
     this.rawConfig = Maps.newHashMap();
+    addConfigObserver(expressionValuesObserver, false);
   }
 
   /**
@@ -71,17 +98,56 @@ public class ExpressionContainerConfig extends BasicContainerConfig {
   public Object getProperty(String container, String property) {
     if (property.startsWith("${")) {
       // An expression!
-      try {
-        ValueExpression expression = expressions.parse(property, Object.class);
-        return expression.getValue(createExpressionContext(container));
-      } catch (ELException e) {
-        return null;
+      Cache<String, Object> containerValues = expressionValues.get(container);
+      if (containerValues == null) {
+        // Not a container of the configuration
+        return evaluate(container, property);
       }
+
+      Object value = containerValues.getIfPresent(property);
+      if (value == null) {
+        value = evaluate(container, property);
+        containerValues.put(property, value == null ? NULL_VALUE : value);
+      }
+      return value == NULL_VALUE ? null : value;
     }
 
     return super.getProperty(container, property);
   }
 
+  /**
+   * @return New expression values for the containers of the configuration, with the expressions
+   *     read so far evaluated up front.
+   */
+  private Map<String, Cache<String, Object>> evaluateExpressions(
+      Map<String, Cache<String, Object>> oldValues) {
+    Set<String> readExpressions = Sets.newHashSet();
+    for (Cache<String, Object> containerValues : oldValues.values()) {
+      readExpressions.addAll(containerValues.asMap().keySet());
+    }
+
+    ImmutableMap.Builder<String, Cache<String, Object>> values = ImmutableMap.builder();
+    for (String container : getContainers()) {
+      Cache<String, Object> containerValues =
+          CacheBuilder.newBuilder().maximumSize(MAX_EXPRESSION_VALUES).build();
+      for (String expression : readExpressions) {
+        Object value = evaluate(container, expression);
+        containerValues.put(expression, value == null ? NULL_VALUE : value);
+      }
+      values.put(container, containerValues);
+    }
+    return values.build();
+  }
+
+  private Object evaluate(String container, String property) {
+    try {
+      ValueExpression expression = expressions.parse(property, Object.class);
+      return expression.getValue(createExpressionContext(container));
+    } catch (ELException e) {
+      return null;
+    }
+  }
+
   protected Expressions getExpressions() {
     return expressions;
   }
@@ -149,7 +149,7 @@ public class Expressions {
     resolver.add(new MapELResolver());
     resolver.add(new ListELResolver());
     resolver.add(new ArrayELResolver());
-    // TODO: bean el resolver?
+    resolver.add(new PojoELResolver());
 
     return resolver;
   }
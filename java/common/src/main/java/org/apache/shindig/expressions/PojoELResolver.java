@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.expressions;
+
+import org.apache.shindig.common.JsonUtil;
+
+import java.beans.FeatureDescriptor;
+import java.util.Iterator;
+
+import javax.el.ELContext;
+import javax.el.ELResolver;
+import javax.el.PropertyNotWritableException;
+
+/**
+ * ELResolver for the properties of other Java objects, such as the results of social API
+ * handlers, named as they are when the object is serialized to JSON. Properties the object
+ * doesn't have are left unresolved.
+ */
+class PojoELResolver extends ELResolver {
+
+  @Override
+  public Class<?> getCommonPropertyType(ELContext context, Object base) {
+    return isPojo(base) ? String.class : null;
+  }
+
+  @Override
+  public Iterator<FeatureDescriptor> getFeatureDescriptors(ELContext context,
+      Object base) {
+    return null;
+  }
+
+  @Override
+  public Class<?> getType(ELContext context, Object base, Object property) {
+    if (hasProperty(base, property)) {
+      context.setPropertyResolved(true);
+      Object value = JsonUtil.getProperty(base, String.valueOf(property));
+      return value == null ? null : value.getClass();
+    }
+
+    return null;
+  }
+
+  @Override
+  public Object getValue(ELContext context, Object base, Object property) {
+    if (hasProperty(base, property)) {
+      context.setPropertyResolved(true);
+      return JsonUtil.getProperty(base, String.valueOf(property));
+    }
+
+    return null;
+  }
+
+  @Override
+  public boolean isReadOnly(ELContext context, Object base, Object property) {
+    if (hasProperty(base, property)) {
+      context.setPropertyResolved(true);
+    }
+
+    return true;
+  }
+
+  @Override
+  public void setValue(ELContext context, Object base, Object property, Object value) {
+    if (hasProperty(base, property)) {
+      throw new PropertyNotWritableException("Property " + property + " is read-only");
+    }
+  }
+
+  private boolean hasProperty(Object base, Object property) {
+    return isPojo(base) && property != null
+        && JsonUtil.hasProperty(base, String.valueOf(property));
+  }
+
+  private boolean isPojo(Object base) {
+    return base != null && !(base instanceof CharSequence || base instanceof Number
+        || base instanceof Boolean);
+  }
+}
@@ -263,38 +263,49 @@ public class JsonRpcServlet extends ApiServlet {
     if (key != null) {
       result.put("id", key);
     }
-    if (responseItem.getErrorCode() < 200 ||
-        responseItem.getErrorCode() >= 400) {
+    if (isError(responseItem)) {
       result.put("error", getErrorJson(responseItem));
     } else {
-      Object response = responseItem.getResponse();
-      if (response instanceof DataCollection) {
-        addResult(result, ((DataCollection) response).getEntry());
-      } else if (response instanceof RestfulCollection) {
-        Map<String, Object> map = Maps.newHashMap();
-        RestfulCollection<?> collection = (RestfulCollection<?>) response;
-        // Return sublist info
-        if (collection.getTotalResults() != collection.getList().size()) {
-          map.put("startIndex", collection.getStartIndex());
-          map.put("itemsPerPage", collection.getItemsPerPage());
-        }
-        // always put in totalResults
-        map.put("totalResults", collection.getTotalResults());
+      addResult(result, getResult(responseItem.getResponse()));
+
+      // TODO: put "code" for != 200?
+    }
+    return result;
+  }
 
-        // always add metadata for collections
-        map.put("filtered", collection.isFiltered());
-        map.put("updatedSince", collection.isUpdatedSince());
-        map.put("sorted", collection.isSorted());
+  /**
+   * @return Whether the response item is returned as a JSON-RPC error.
+   */
+  public static boolean isError(ResponseItem responseItem) {
+    return responseItem.getErrorCode() < 200 || responseItem.getErrorCode() >= 400;
+  }
 
-        map.put("list", collection.getList());
-        addResult(result, map);
-      } else {
-        addResult(result, response);
+  /**
+   * Converts the response of a handler into the object returned as its JSON-RPC result.
+   */
+  public static Object getResult(Object response) {
+    if (response instanceof DataCollection) {
+      return ((DataCollection) response).getEntry();
+    } else if (response instanceof RestfulCollection) {
+      Map<String, Object> map = Maps.newHashMap();
+      RestfulCollection<?> collection = (RestfulCollection<?>) response;
+      // Return sublist info
+      if (collection.getTotalResults() != collection.getList().size()) {
+        map.put("startIndex", collection.getStartIndex());
+        map.put("itemsPerPage", collection.getItemsPerPage());
       }
+      // always put in totalResults
+      map.put("totalResults", collection.getTotalResults());
 
-      // TODO: put "code" for != 200?
+      // always add metadata for collections
+      map.put("filtered", collection.isFiltered());
+      map.put("updatedSince", collection.isUpdatedSince());
+      map.put("sorted", collection.isSorted());
+
+      map.put("list", collection.getList());
+      return map;
     }
-    return result;
+    return response;
   }
 
   /** Map of old-style error titles */
@@ -311,6 +322,13 @@ public class JsonRpcServlet extends ApiServlet {
   // Then we can use the general converter to output the response to the client and we won't
   // be harcoded to json.
   protected Object getErrorJson(ResponseItem responseItem) {
+    return getError(responseItem);
+  }
+
+  /**
+   * Converts an error response item into the object returned as its JSON-RPC error.
+   */
+  public static Map<String, Object> getError(ResponseItem responseItem) {
     Map<String, Object> error = new HashMap<String, Object>(2, 1);
     error.put("code", responseItem.getErrorCode());
 
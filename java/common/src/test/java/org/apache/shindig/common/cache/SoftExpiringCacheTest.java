@@ -24,6 +24,8 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Random;
+
 public class SoftExpiringCacheTest extends Assert {
   private FakeTimeSource timeSource;
   private Cache<String, String> cache;
@@ -61,4 +63,45 @@ public class SoftExpiringCacheTest extends Assert {
     SoftExpiringCache<String, String> expiringCache = makeSoftExpiringCache();
     assertNull(expiringCache.getElement("not set"));
   }
+
+  @Test
+  public void testEarlyExpiry() {
+    SoftExpiringCache<String, String> expiringCache = makeSoftExpiringCache();
+    expiringCache.setEarlyExpiryFraction(0.1);
+    expiringCache.setRandom(new FixedRandom(0.5));
+    expiringCache.addElement("key", "val", 1000);
+
+    // Before the last 100ms, never expired.
+    timeSource.setCurrentTimeMillis(900);
+    assertFalse(expiringCache.getElement("key").isExpired);
+
+    // Halfway through them, expired for random values below 0.5.
+    timeSource.setCurrentTimeMillis(949);
+    assertFalse(expiringCache.getElement("key").isExpired);
+    timeSource.setCurrentTimeMillis(951);
+    assertTrue(expiringCache.getElement("key").isExpired);
+
+    expiringCache.setRandom(new FixedRandom(0.99));
+    assertFalse(expiringCache.getElement("key").isExpired);
+    timeSource.setCurrentTimeMillis(1001);
+    assertTrue(expiringCache.getElement("key").isExpired);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidEarlyExpiryFraction() {
+    makeSoftExpiringCache().setEarlyExpiryFraction(1.5);
+  }
+
+  private static class FixedRandom extends Random {
+    private final double value;
+
+    FixedRandom(double value) {
+      this.value = value;
+    }
+
+    @Override
+    public double nextDouble() {
+      return value;
+    }
+  }
 }
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Weigher;
+
+import org.junit.Test;
+
+public class WeightedCacheTest {
+  private static final int TEST_CAPACITY = 2;
+
+  private static final Weigher<String, String> LENGTH_WEIGHER = new Weigher<String, String>() {
+    public int weigh(String key, String value) {
+      return value.length();
+    }
+  };
+
+  private final WeightedCache<String, String> cache
+      = new WeightedCache<String, String>(TEST_CAPACITY);
+
+  @Test
+  public void normalCapacityOk() {
+    for (int i = 0; i < TEST_CAPACITY; ++i) {
+      cache.addElement(Integer.toString(i), Integer.toString(i));
+    }
+    assertEquals(TEST_CAPACITY, cache.getSize());
+    assertEquals(TEST_CAPACITY, cache.getWeight());
+    assertEquals(TEST_CAPACITY, cache.getCapacity());
+    assertEquals("0", cache.getElement("0"));
+  }
+
+  @Test
+  public void exceededCapacityRemoved() {
+    for (int i = 0; i < TEST_CAPACITY + 1; ++i) {
+      cache.addElement(Integer.toString(i), Integer.toString(i));
+    }
+    assertEquals(TEST_CAPACITY, cache.getSize());
+    assertEquals(TEST_CAPACITY, cache.getCapacity());
+    assertNull(cache.getElement("0"));
+    assertEquals("2", cache.getElement("2"));
+  }
+
+  @Test
+  public void replaceKeepsSize() {
+    cache.addElement("foo", "bar");
+    cache.addElement("foo", "baz");
+    assertEquals(1, cache.getSize());
+    assertEquals("baz", cache.getElement("foo"));
+  }
+
+  @Test
+  public void removeElement() {
+    cache.addElement("foo", "bar");
+    assertEquals("bar", cache.removeElement("foo"));
+    assertNull(cache.getElement("foo"));
+    assertEquals(0, cache.getSize());
+    assertEquals(0, cache.getWeight());
+  }
+
+  @Test
+  public void hotEntriesSurviveScan() {
+    WeightedCache<String, String> scanned = new WeightedCache<String, String>(4);
+    scanned.addElement("hot1", "hot1");
+    scanned.addElement("hot2", "hot2");
+    for (int i = 0; i < 5; ++i) {
+      scanned.getElement("hot1");
+      scanned.getElement("hot2");
+    }
+    for (int i = 0; i < 100; ++i) {
+      scanned.addElement("scan" + i, "scan" + i);
+    }
+    assertEquals("hot1", scanned.getElement("hot1"));
+    assertEquals("hot2", scanned.getElement("hot2"));
+    assertEquals(4, scanned.getSize());
+  }
+
+  @Test
+  public void weigherBoundsTotalWeight() {
+    WeightedCache<String, String> weighted
+        = new WeightedCache<String, String>(10, LENGTH_WEIGHER);
+    weighted.addElement("a", "aaaa");
+    weighted.addElement("b", "bbbb");
+    weighted.addElement("c", "cccc");
+    assertEquals(2, weighted.getSize());
+    assertEquals(8, weighted.getWeight());
+    assertNull(weighted.getElement("a"));
+    assertEquals("cccc", weighted.getElement("c"));
+  }
+
+  @Test
+  public void overweightEntryNotCached() {
+    WeightedCache<String, String> weighted
+        = new WeightedCache<String, String>(10, LENGTH_WEIGHER);
+    weighted.addElement("a", "aaaa");
+    weighted.addElement("big", "bigbigbigbig");
+    assertNull(weighted.getElement("big"));
+    assertEquals("aaaa", weighted.getElement("a"));
+    assertEquals(4, weighted.getWeight());
+  }
+
+  @Test
+  public void entryHeavierThanSegmentShareCached() {
+    WeightedCache<String, String> weighted
+        = new WeightedCache<String, String>(1024, LENGTH_WEIGHER);
+    assertEquals(WeightedCache.DEFAULT_CONCURRENCY_LEVEL, weighted.getSegmentCount());
+    String big = Strings.repeat("x", 600);
+    weighted.addElement("big", big);
+    assertEquals(big, weighted.getElement("big"));
+    assertEquals(600, weighted.getWeight());
+  }
+
+  @Test
+  public void weightBoundedAcrossSegments() {
+    WeightedCache<String, String> weighted
+        = new WeightedCache<String, String>(1024, LENGTH_WEIGHER);
+    for (int i = 0; i < 100; ++i) {
+      weighted.addElement("key" + i, Strings.repeat("x", 100));
+      assertTrue(weighted.getWeight() <= 1024);
+    }
+    weighted.addElement("big", Strings.repeat("x", 1000));
+    assertEquals(1000, weighted.getElement("big").length());
+    assertTrue(weighted.getWeight() <= 1024);
+  }
+
+  @Test
+  public void largeCachesAreStriped() {
+    assertEquals(1, cache.getSegmentCount());
+    assertEquals(WeightedCache.DEFAULT_CONCURRENCY_LEVEL,
+        new WeightedCache<String, String>(1 << 20).getSegmentCount());
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests for GzipUtil.
+ */
+public class GzipUtilTest {
+  private static final byte[] DATA =
+      CharsetUtil.getUtf8Bytes("var a = 1; var b = 2; var a = 1; var b = 2; var a = 1; var b = 2;");
+
+  @Test
+  public void roundTrip() throws IOException {
+    byte[] gzipped = GzipUtil.compress(DATA);
+    assertTrue(gzipped.length < DATA.length);
+    assertArrayEquals(DATA, GzipUtil.decompress(gzipped, DATA.length));
+    assertArrayEquals(DATA, GzipUtil.decompress(gzipped, -1));
+  }
+
+  @Test
+  public void roundTripEmpty() throws IOException {
+    byte[] gzipped = GzipUtil.compress(new byte[0]);
+    assertArrayEquals(new byte[0], GzipUtil.decompress(gzipped, 0));
+  }
+
+  @Test(expected = IOException.class)
+  public void decompressShorterThanExpected() throws IOException {
+    GzipUtil.decompress(GzipUtil.compress(DATA), DATA.length + 1);
+  }
+
+  @Test(expected = IOException.class)
+  public void decompressLongerThanExpected() throws IOException {
+    GzipUtil.decompress(GzipUtil.compress(DATA), DATA.length - 1);
+  }
+
+  @Test(expected = IOException.class)
+  public void decompressTruncated() throws IOException {
+    byte[] gzipped = GzipUtil.compress(DATA);
+    GzipUtil.decompress(Arrays.copyOf(gzipped, gzipped.length / 2), DATA.length);
+  }
+
+  @Test
+  public void acceptsGzip() {
+    assertTrue(GzipUtil.acceptsGzip("gzip"));
+    assertTrue(GzipUtil.acceptsGzip("gzip, deflate, br"));
+    assertTrue(GzipUtil.acceptsGzip("deflate, GZIP"));
+    assertTrue(GzipUtil.acceptsGzip("x-gzip"));
+    assertTrue(GzipUtil.acceptsGzip("gzip;q=0.5, identity"));
+  }
+
+  @Test
+  public void doesNotAcceptGzip() {
+    assertFalse(GzipUtil.acceptsGzip(null));
+    assertFalse(GzipUtil.acceptsGzip(""));
+    assertFalse(GzipUtil.acceptsGzip("deflate, br"));
+    assertFalse(GzipUtil.acceptsGzip("gzip;q=0"));
+    assertFalse(GzipUtil.acceptsGzip("gzip; q=0.0, deflate"));
+    assertFalse(GzipUtil.acceptsGzip("gzipped"));
+  }
+}
@@ -26,6 +26,9 @@ import org.apache.shindig.expressions.Expressions;
 import org.junit.Test;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.el.ELContext;
 
 /**
  * Tests for ExpressionContainerConfig.
@@ -66,4 +69,44 @@ public class ExpressionContainerConfigTest extends BasicContainerConfigTest {
     assertEquals("si", config.getString("extra", "expr"));
     assertEquals("si", config.getString("extra", "expr"));
   }
+
+  @Test
+  public void testExpressionReads() throws Exception {
+    assertEquals("yes", config.getProperty("default", "${Cur.inherited}"));
+    assertNull(config.getProperty("default", "${Cur.missing}"));
+
+    // Values are read again once the configuration changes
+    config.newTransaction().addContainer(MODIFIED_DEFAULT_EXPR_CONTAINER).commit();
+    assertEquals("si", config.getProperty("default", "${Cur.inherited}"));
+    assertNull(config.getProperty("default", "${Cur.missing}"));
+  }
+
+  @Test
+  public void testExpressionsEvaluatedOnCommit() throws Exception {
+    final AtomicInteger evaluations = new AtomicInteger();
+    config = new ExpressionContainerConfig(Expressions.forTesting()) {
+      @Override
+      protected ELContext createExpressionContext(String container) {
+        evaluations.incrementAndGet();
+        return super.createExpressionContext(container);
+      }
+    };
+    config.newTransaction().addContainer(DEFAULT_EXPR_CONTAINER).commit();
+    assertEquals(0, evaluations.get());
+
+    assertEquals("yes", config.getProperty("default", "${Cur.inherited}"));
+    assertEquals("yes", config.getProperty("default", "${Cur.inherited}"));
+    assertEquals(1, evaluations.get());
+
+    // Expressions read so far are evaluated when the change is committed
+    config.newTransaction().addContainer(MODIFIED_DEFAULT_EXPR_CONTAINER).commit();
+    assertEquals(2, evaluations.get());
+    assertEquals("si", config.getProperty("default", "${Cur.inherited}"));
+    assertEquals(2, evaluations.get());
+
+    // Values are only kept for the containers of the configuration
+    assertNull(config.getProperty("unknown", "${Cur.inherited}"));
+    assertNull(config.getProperty("unknown", "${Cur.inherited}"));
+    assertEquals(4, evaluations.get());
+  }
 }
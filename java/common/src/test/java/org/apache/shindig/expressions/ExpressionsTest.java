@@ -25,6 +25,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.Map;
 
+import org.apache.shindig.common.JsonProperty;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
@@ -112,6 +113,19 @@ public class ExpressionsTest {
     assertNull(evaluate("${map.bar.baz}", Object.class));
   }
 
+  @Test
+  public void pojoSupport() throws Exception {
+    addVariable("person", new Person("John", "Doe"));
+    String result = evaluate("${person.name.givenName} ${person.familyName}", String.class);
+    assertEquals("John Doe", result);
+  }
+
+  @Test(expected = PropertyNotFoundException.class)
+  public void missingPojoProperty() throws Exception {
+    addVariable("person", new Person("John", "Doe"));
+    evaluate("${person.nickname}", Object.class);
+  }
+
   @Test(expected = PropertyNotFoundException.class)
   public void missingTopLevelVariable() throws Exception {
     // Top-level properties must throw a PropertyNotFoundException when
@@ -226,4 +240,23 @@ public class ExpressionsTest {
   public void addVariable(String key, Object value) {
     variables.put(key, value);
   }
+
+  public static class Person {
+    private final String givenName;
+    private final String familyName;
+
+    public Person(String givenName, String familyName) {
+      this.givenName = givenName;
+      this.familyName = familyName;
+    }
+
+    public Map<String, String> getName() {
+      return ImmutableMap.of("givenName", givenName);
+    }
+
+    @JsonProperty("familyName")
+    public String getLastName() {
+      return familyName;
+    }
+  }
 }
@@ -23,6 +23,9 @@ import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.SoftExpiringCache;
 import org.apache.shindig.common.logging.i18n.MessageKeys;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.HashUtil;
+import org.apache.shindig.common.util.TimeSource;
 import org.apache.shindig.common.xml.XmlException;
 import org.apache.shindig.config.ContainerConfig;
 import org.apache.shindig.gadgets.http.HttpRequest;
@@ -30,6 +33,29 @@ import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.RequestPipeline;
 import org.apache.shindig.gadgets.spec.SpecParserException;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,6 +64,14 @@ import java.util.logging.Logger;
  * Basis for implementing GadgetSpec and MessageBundle factories.
  *
  * Automatically updates objects as needed asynchronously to provide optimal throughput.
+ * Cached objects are refreshed at a random time shortly before they expire, so that servers don't
+ * all refresh a popular spec at once, and concurrent cache misses for the same spec share a single
+ * fetch and parse.
+ *
+ * Optionally, cached specs are written to snapshot files in a local directory as they are parsed,
+ * and reloaded from them at startup, so that a restarted server doesn't have to fetch and parse
+ * every spec again. Subclasses that support this call {@link #addToSnapshot} from {@link #parse}
+ * and implement {@link #decode}.
  */
 public abstract class AbstractSpecFactory<T> {
   //class name for logging purpose
@@ -48,6 +82,25 @@ public abstract class AbstractSpecFactory<T> {
   private final RequestPipeline pipeline;
   final SoftExpiringCache<String, Object> cache;
   private final long refresh;
+  private TimeSource timeSource = new TimeSource();
+
+  static final double DEFAULT_EARLY_REFRESH_FRACTION = 0.1;
+
+  static final int SNAPSHOT_MAGIC = 0x53534E50;
+  static final int SNAPSHOT_VERSION = 1;
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+  private static final String SNAPSHOT_TMP_SUFFIX = ".tmp";
+  // Number of keys to track for snapshots when the cache doesn't have a capacity.
+  private static final long DEFAULT_SNAPSHOT_CAPACITY = 10000;
+
+  private final long capacity;
+  private File snapshotDirectory;
+  // Keys of specs that may still be in the cache. The snapshot files of keys that drop out are
+  // deleted.
+  private com.google.common.cache.Cache<String, Boolean> snapshotKeys;
+
+  // Cache misses currently being loaded, by spec URI.
+  private final ConcurrentMap<String, SettableFuture<Object>> loading = Maps.newConcurrentMap();
 
   /**
    * @param clazz the class for spec objects.
@@ -61,10 +114,88 @@ public abstract class AbstractSpecFactory<T> {
     this.clazz = clazz;
     this.executor = executor;
     this.pipeline = pipeline;
+    this.capacity = cache.getCapacity();
     this.cache = new SoftExpiringCache<String, Object>(cache);
+    this.cache.setEarlyExpiryFraction(DEFAULT_EARLY_REFRESH_FRACTION);
     this.refresh = refresh;
   }
 
+  /**
+   * @param earlyRefreshFraction the fraction of the refresh interval before expiry within which
+   *     specs may be refreshed early, from 0 to 1
+   */
+  @Inject(optional = true)
+  public void setEarlyRefreshFraction(
+      @Named("shindig.cache.xml.early-refresh-fraction") double earlyRefreshFraction) {
+    cache.setEarlyExpiryFraction(earlyRefreshFraction);
+  }
+
+  /**
+   * @param directory the directory to keep a snapshot of cached specs in, or an empty string to
+   *     not keep one. An existing snapshot is loaded right away.
+   */
+  @Inject(optional = true)
+  public void setSnapshotDirectory(
+      @Named("shindig.cache.xml.snapshot.directory") String directory) {
+    if (directory.length() == 0) {
+      return;
+    }
+    File dir = new File(directory);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOG.warning("Unable to create spec snapshot directory " + dir);
+      return;
+    }
+    snapshotKeys = CacheBuilder.newBuilder()
+        .maximumSize(capacity > 0 ? capacity : DEFAULT_SNAPSHOT_CAPACITY)
+        .removalListener(new RemovalListener<String, Boolean>() {
+          public void onRemoval(RemovalNotification<String, Boolean> notification) {
+            if (notification.getCause() != RemovalCause.REPLACED) {
+              getSnapshotFile(notification.getKey()).delete();
+            }
+          }
+        })
+        .build();
+    snapshotDirectory = dir;
+    restoreSnapshot();
+  }
+
+  @Inject(optional = true)
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+    cache.setTimeSource(timeSource);
+  }
+
+  /**
+   * @return whether cached specs are written to snapshots, in which case {@link #parse} should
+   *     pass new specs to {@link #addToSnapshot}.
+   */
+  protected boolean isSnapshotEnabled() {
+    return snapshotDirectory != null;
+  }
+
+  /**
+   * Writes a spec that was just parsed to the snapshot, to be restored at startup for as long as
+   * it stays cached. The encoded form is not kept in memory.
+   *
+   * @param query the query the spec was parsed for
+   * @param encoded the encoded form of the spec, for {@link #decode}
+   */
+  protected void addToSnapshot(Query query, byte[] encoded) {
+    if (snapshotDirectory != null) {
+      writeSnapshotFile(query.specUri.toString(), encoded,
+          timeSource.currentTimeMillis() + refresh);
+    }
+  }
+
+  /**
+   * @param key the spec URI the spec was cached under
+   * @param encoded a spec passed to {@link #addToSnapshot}
+   * @return the decoded spec
+   */
+  protected T decode(String key, byte[] encoded) throws IOException, GadgetException {
+    throw new IOException("Decoding " + clazz.getSimpleName() + " is not supported");
+  }
+
   /**
    * Attempt to fetch a spec, either from cache or from the network.
    *
@@ -89,24 +220,7 @@ public abstract class AbstractSpecFactory<T> {
     }
 
     if (obj == null) {
-      boolean bypassCache = false;
-      try {
-        obj = fetchFromNetwork(query);
-      } catch (SpecRetrievalFailedException e) {
-        // Don't cache the resulting exception.
-        // The underlying RequestPipeline may (and should) cache non-OK HTTP responses
-        // independently, and may do so for the same spec in different ways depending
-        // on context. There's no computational benefit to caching this exception in
-        // the spec cache since we won't try to re-parse the data anyway, as we would
-        // an OK response with a faulty spec.
-        bypassCache = true;
-        obj = e;
-      } catch (GadgetException e) {
-        obj = e;
-      }
-      if (!bypassCache) {
-        cache.addElement(query.specUri.toString(), obj, refresh);
-      }
+      obj = query.ignoreCache ? fetchAndCache(query) : loadOnce(query);
     }
 
     if (obj instanceof GadgetException) {
@@ -117,6 +231,66 @@ public abstract class AbstractSpecFactory<T> {
     return clazz.cast(obj);
   }
 
+  /**
+   * Loads a spec that missed the cache, unless a load for the same spec is already running, in
+   * which case its result is used instead.
+   */
+  private Object loadOnce(Query query) {
+    String key = query.specUri.toString();
+    SettableFuture<Object> future = SettableFuture.create();
+    SettableFuture<Object> running = loading.putIfAbsent(key, future);
+    if (running != null) {
+      try {
+        return Uninterruptibles.getUninterruptibly(running);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+
+    try {
+      // A load may have finished between our cache miss and registering this one.
+      SoftExpiringCache.CachedObject<Object> cached = cache.getElement(key);
+      Object obj = cached != null ? cached.obj : fetchAndCache(query);
+      future.set(obj);
+      return obj;
+    } catch (RuntimeException e) {
+      future.setException(e);
+      throw e;
+    } catch (Error e) {
+      future.setException(e);
+      throw e;
+    } finally {
+      loading.remove(key, future);
+    }
+  }
+
+  /**
+   * @return the spec, or the exception that retrieving it threw
+   */
+  private Object fetchAndCache(Query query) {
+    Object obj;
+    boolean bypassCache = false;
+    try {
+      obj = fetchFromNetwork(query);
+    } catch (SpecRetrievalFailedException e) {
+      // Don't cache the resulting exception.
+      // The underlying RequestPipeline may (and should) cache non-OK HTTP responses
+      // independently, and may do so for the same spec in different ways depending
+      // on context. There's no computational benefit to caching this exception in
+      // the spec cache since we won't try to re-parse the data anyway, as we would
+      // an OK response with a faulty spec.
+      bypassCache = true;
+      obj = e;
+    } catch (GadgetException e) {
+      obj = e;
+    }
+    if (!bypassCache) {
+      cache.addElement(query.specUri.toString(), obj, refresh);
+      trackForSnapshot(query.specUri.toString(), obj);
+    }
+    return obj;
+  }
+
   /**
    * Retrieves a spec from the network, parses, and adds it to the cache.
    */
@@ -157,6 +331,121 @@ public abstract class AbstractSpecFactory<T> {
    */
   protected abstract T parse(String content, Query query) throws XmlException, GadgetException;
 
+  private void trackForSnapshot(String key, Object obj) {
+    if (snapshotKeys != null) {
+      if (clazz.isInstance(obj)) {
+        snapshotKeys.put(key, Boolean.TRUE);
+      } else {
+        // An error replaced the spec.
+        snapshotKeys.invalidate(key);
+      }
+    }
+  }
+
+  private File getSnapshotFile(String key) {
+    return new File(snapshotDirectory, getSnapshotPrefix()
+        + HashUtil.checksum(CharsetUtil.getUtf8Bytes(key)) + SNAPSHOT_SUFFIX);
+  }
+
+  private String getSnapshotPrefix() {
+    return clazz.getSimpleName() + '-';
+  }
+
+  /**
+   * Writes a spec to its snapshot file, replacing any previous one.
+   *
+   * Layout: int magic, int version, the key, a long expiration time and an int length followed by
+   * the encoded spec.
+   */
+  private void writeSnapshotFile(String key, byte[] encoded, long expires) {
+    File file = getSnapshotFile(key);
+    File tmp = null;
+    DataOutputStream out = null;
+    try {
+      tmp = File.createTempFile(getSnapshotPrefix(), SNAPSHOT_TMP_SUFFIX, snapshotDirectory);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeUTF(key);
+      out.writeLong(expires);
+      out.writeInt(encoded.length);
+      out.write(encoded);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+        throw new IOException("Unable to replace " + file);
+      }
+      tmp = null;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to write spec snapshot for " + key, e);
+    } finally {
+      IOUtils.closeQuietly(out);
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Adds the specs in the snapshot files to the cache, keeping their expiration times but no more
+   * than the refresh interval. Specs that have expired are refreshed when they are next requested.
+   * Unreadable snapshot files are deleted.
+   */
+  private void restoreSnapshot() {
+    File[] files = snapshotDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    String prefix = getSnapshotPrefix();
+    long now = timeSource.currentTimeMillis();
+    int count = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(prefix)) {
+        continue;
+      }
+      if (name.endsWith(SNAPSHOT_TMP_SUFFIX)) {
+        // Left over from a write that didn't finish.
+        file.delete();
+      } else if (name.endsWith(SNAPSHOT_SUFFIX) && restoreSnapshotFile(file, now)) {
+        count++;
+      }
+    }
+    LOG.info("Restored " + count + " cached specs from " + snapshotDirectory);
+  }
+
+  private boolean restoreSnapshotFile(File file, long now) {
+    DataInputStream in = null;
+    String key = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        throw new IOException("Not a spec snapshot in a supported version");
+      }
+      key = in.readUTF();
+      long expires = in.readLong();
+      int length = in.readInt();
+      if (length < 0) {
+        throw new IOException("Invalid length in spec snapshot: " + length);
+      }
+      byte[] encoded = new byte[length];
+      in.readFully(encoded);
+      if (cache.getElement(key) == null) {
+        cache.addElement(key, decode(key, encoded), Math.min(expires - now, refresh));
+      }
+      snapshotKeys.put(key, Boolean.TRUE);
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Skipping unreadable spec snapshot " + file, e);
+    } catch (GadgetException e) {
+      LOG.log(Level.FINE, "Skipping invalid snapshot entry for " + key, e);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    file.delete();
+    return false;
+  }
+
   /**
    * Holds information used to fetch a spec.
    */
@@ -220,6 +509,7 @@ public abstract class AbstractSpecFactory<T> {
       try {
         T newSpec = fetchFromNetwork(query);
         cache.addElement(query.specUri.toString(), newSpec, refresh);
+        trackForSnapshot(query.specUri.toString(), newSpec);
       } catch (SpecRetrievalFailedException se) {
         if (LOG.isLoggable(Level.WARNING)) {
           LOG.logp(Level.WARNING, classname, "SpecUpdater", MessageKeys.UPDATE_SPEC_FAILURE_APPLY_NEG_CACHE, new Object[] {
@@ -29,9 +29,12 @@ import org.apache.shindig.common.xml.XmlException;
 import org.apache.shindig.common.xml.XmlUtil;
 import org.apache.shindig.gadgets.http.RequestPipeline;
 import org.apache.shindig.gadgets.spec.GadgetSpec;
+import org.apache.shindig.gadgets.spec.SpecCodec;
 import org.apache.shindig.gadgets.spec.SpecParserException;
+import org.apache.shindig.gadgets.spec.StreamingGadgetSpecParser;
 import org.w3c.dom.Element;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -44,6 +47,8 @@ public class DefaultGadgetSpecFactory extends AbstractSpecFactory<GadgetSpec>
   public static final String RAW_GADGETSPEC_XML_PARAM_NAME = "rawxml";
   public static final Uri RAW_GADGET_URI = Uri.parse("http://localhost/raw.xml");
 
+  private boolean streamingParser = true;
+
   @Inject
   public DefaultGadgetSpecFactory(ExecutorService executor,
                                   RequestPipeline pipeline,
@@ -52,6 +57,16 @@ public class DefaultGadgetSpecFactory extends AbstractSpecFactory<GadgetSpec>
     super(GadgetSpec.class, executor, pipeline, makeCache(cacheProvider), refresh);
   }
 
+  /**
+   * @param streamingParser Whether to parse specs with the {@link StreamingGadgetSpecParser}
+   *     rather than into a full DOM.
+   */
+  @Inject(optional = true)
+  public void setStreamingParser(
+      @Named("shindig.gadgets.spec.streaming-parser") boolean streamingParser) {
+    this.streamingParser = streamingParser;
+  }
+
   public static Cache<String, Object> makeCache(CacheProvider cacheProvider) {
     return cacheProvider.createCache(CACHE_NAME);
   }
@@ -61,7 +76,7 @@ public class DefaultGadgetSpecFactory extends AbstractSpecFactory<GadgetSpec>
     if (RAW_GADGET_URI.equals(gadgetUri)) {
       try {
         String rawxml = context.getParameter(RAW_GADGETSPEC_XML_PARAM_NAME);
-        return new GadgetSpec(gadgetUri, XmlUtil.parse(rawxml), rawxml);
+        return new GadgetSpec(gadgetUri, parseXml(rawxml), rawxml);
       } catch (XmlException e) {
         throw new SpecParserException(e);
       }
@@ -95,7 +110,20 @@ public class DefaultGadgetSpecFactory extends AbstractSpecFactory<GadgetSpec>
         content.substring(0, BOM_ENTITY.length()).equalsIgnoreCase(BOM_ENTITY)) {
       content = content.substring(BOM_ENTITY.length());
     }
-    Element element = XmlUtil.parse(content);
-    return new GadgetSpec(query.getSpecUri(), element, content);
+    Element element = parseXml(content);
+    GadgetSpec spec = new GadgetSpec(query.getSpecUri(), element, content);
+    if (isSnapshotEnabled()) {
+      addToSnapshot(query, SpecCodec.encode(element, spec.getChecksum()));
+    }
+    return spec;
+  }
+
+  @Override
+  protected GadgetSpec decode(String key, byte[] encoded) throws IOException, GadgetException {
+    return SpecCodec.decodeGadgetSpec(Uri.parse(key), encoded);
+  }
+
+  private Element parseXml(String xml) throws XmlException {
+    return streamingParser ? StreamingGadgetSpecParser.parse(xml) : XmlUtil.parse(xml);
   }
 }
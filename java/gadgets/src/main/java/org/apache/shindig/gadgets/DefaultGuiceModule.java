@@ -28,6 +28,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.shindig.common.cache.WeightedCacheProvider;
 import org.apache.shindig.common.crypto.BasicBlobCrypter;
 import org.apache.shindig.common.servlet.Authority;
 import org.apache.shindig.common.servlet.BasicAuthority;
@@ -35,7 +36,9 @@ import org.apache.shindig.common.servlet.GuiceServletContextListener;
 import org.apache.shindig.common.util.GenericDigestUtils;
 import org.apache.shindig.gadgets.config.DefaultConfigContributorModule;
 import org.apache.shindig.gadgets.http.AbstractHttpCache;
+import org.apache.shindig.gadgets.http.DefaultHttpCache;
 import org.apache.shindig.gadgets.http.HttpResponse;
+import org.apache.shindig.gadgets.http.HttpResponseWeigher;
 import org.apache.shindig.gadgets.http.InvalidationHandler;
 import org.apache.shindig.gadgets.js.JsCompilerModule;
 import org.apache.shindig.gadgets.js.JsServingPipelineModule;
@@ -43,8 +46,10 @@ import org.apache.shindig.gadgets.parse.ParseModule;
 import org.apache.shindig.gadgets.preload.PreloadModule;
 import org.apache.shindig.gadgets.render.RenderModule;
 import org.apache.shindig.gadgets.rewrite.RewriteModule;
+import org.apache.shindig.gadgets.servlet.CachedJsResponseWeigher;
 import org.apache.shindig.gadgets.servlet.GadgetsHandler;
 import org.apache.shindig.gadgets.servlet.HttpRequestHandler;
+import org.apache.shindig.gadgets.servlet.JsServlet;
 import org.apache.shindig.gadgets.templates.TemplateModule;
 import org.apache.shindig.gadgets.uri.ProxyUriBase;
 import org.apache.shindig.gadgets.uri.UriModule;
@@ -77,6 +82,11 @@ public class DefaultGuiceModule extends AbstractModule {
 
     bind(Authority.class).to(BasicAuthority.class);
 
+    bind(WeightedCacheProvider.weigherKey(DefaultHttpCache.CACHE_NAME))
+        .to(HttpResponseWeigher.class);
+    bind(WeightedCacheProvider.weigherKey(JsServlet.RESPONSE_CACHE))
+        .to(CachedJsResponseWeigher.class);
+
     bindConstant().annotatedWith(Names.named("shindig.jsload.ttl-secs")).to(60 * 60); // 1 hour
     bindConstant().annotatedWith(Names.named("shindig.jsload.require-onload-with-jsload")).to(true);
 
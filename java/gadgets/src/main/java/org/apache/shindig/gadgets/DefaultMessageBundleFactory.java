@@ -20,27 +20,42 @@ package org.apache.shindig.gadgets;
 
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
+import org.apache.shindig.common.cache.SoftExpiringCache;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.http.RequestPipeline;
 import org.apache.shindig.gadgets.spec.GadgetSpec;
 import org.apache.shindig.gadgets.spec.LocaleSpec;
 import org.apache.shindig.gadgets.spec.MessageBundle;
+import org.apache.shindig.gadgets.spec.ModulePrefs;
+import org.apache.shindig.gadgets.spec.SpecCodec;
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 
 /**
  * Default implementation of a message bundle factory.
+ *
+ * Besides the bundles for each locale, the cache holds the bundle merged from the locale fallbacks
+ * for each spec and set of Locale sections, with its JSON form computed ahead of time. A merged
+ * bundle expires with the first of the fetched bundles it was merged from, so it picks up their
+ * refreshes, and isn't cached while one of them is being refreshed.
  */
 @Singleton
 public class DefaultMessageBundleFactory extends AbstractSpecFactory<MessageBundle>
     implements MessageBundleFactory {
   private static final Locale ALL_ALL = new Locale("all", "ALL");
   public static final String CACHE_NAME = "messageBundles";
+  // Fetched bundles are cached by their URL, so this can't clash with their keys.
+  private static final String MERGED_KEY_PREFIX = "merged:";
+
+  private final long refresh;
 
   @Inject
   public DefaultMessageBundleFactory(ExecutorService executor,
@@ -48,6 +63,7 @@ public class DefaultMessageBundleFactory extends AbstractSpecFactory<MessageBund
                                      CacheProvider cacheProvider,
                                      @Named("shindig.cache.xml.refreshInterval") long refresh) {
     super(MessageBundle.class, executor, pipeline, makeCache(cacheProvider), refresh);
+    this.refresh = refresh;
   }
 
   private static Cache<String, Object> makeCache(CacheProvider cacheProvider) {
@@ -56,49 +72,106 @@ public class DefaultMessageBundleFactory extends AbstractSpecFactory<MessageBund
 
   @Override
   protected MessageBundle parse(String content, Query query) throws GadgetException {
-    return new MessageBundle(((LocaleQuery) query).locale, content);
+    MessageBundle bundle = new MessageBundle(((LocaleQuery) query).locale, content);
+    if (isSnapshotEnabled()) {
+      addToSnapshot(query, SpecCodec.encode(bundle));
+    }
+    return bundle;
+  }
+
+  @Override
+  protected MessageBundle decode(String key, byte[] encoded) throws IOException {
+    return SpecCodec.decodeMessageBundle(encoded);
   }
 
   public MessageBundle getBundle(GadgetSpec spec, Locale locale, boolean ignoreCache, String container, String view)
       throws GadgetException {
-    MessageBundle exact = getBundleFor(spec, locale, ignoreCache, container, view);
+    List<LocaleSpec> localeSpecs = getLocaleSpecs(spec, locale, view);
+    if (ignoreCache) {
+      return mergeBundles(spec, localeSpecs, true, container, null);
+    }
 
-    // We don't want to fetch the same bundle multiple times, so we verify that the exact match
-    // has not already been fetched.
-    MessageBundle lang, country, all;
+    String key = getMergedKey(spec, localeSpecs, view);
+    SoftExpiringCache.CachedObject<Object> cached = cache.getElement(key);
+    if (cached != null && !cached.isExpired) {
+      return (MessageBundle) cached.obj;
+    }
 
+    MergeExpiration expiration = new MergeExpiration();
+    MessageBundle merged = mergeBundles(spec, localeSpecs, false, container, expiration);
+    // Renders emit the JSON form, so compute it once for everyone.
+    merged.toJSONString();
+    if (expiration.cacheable) {
+      if (expiration.expires == Long.MAX_VALUE) {
+        // Merged only from bundles inside the spec, which is part of the key.
+        cache.addElement(key, merged, refresh);
+      } else {
+        cache.addElementUntil(key, merged, expiration.expires);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @return The locale sections of the spec that the bundle for the locale and view is merged
+   *     from, from the least to the most specific.
+   */
+  private static List<LocaleSpec> getLocaleSpecs(GadgetSpec spec, Locale locale, String view) {
+    ModulePrefs prefs = spec.getModulePrefs();
     boolean isAllLanguage = locale.getLanguage().equalsIgnoreCase("all");
     boolean isAllCountry = locale.getCountry().equalsIgnoreCase("ALL");
 
-    if (isAllCountry) {
-      lang = MessageBundle.EMPTY;
-    } else {
-      lang = getBundleFor(spec, new Locale(locale.getLanguage(), "ALL"), ignoreCache, container, view);
+    // We don't want to fetch the same bundle multiple times, so we skip the fallbacks that are
+    // the exact locale.
+    List<LocaleSpec> localeSpecs = Lists.newArrayListWithCapacity(4);
+    if (!isAllCountry && !isAllLanguage) {
+      addIfPresent(localeSpecs, prefs.getLocale(ALL_ALL, view));
     }
-
-    if (isAllLanguage) {
-      country = MessageBundle.EMPTY;
-    } else {
-      country = getBundleFor(spec, new Locale("all", locale.getCountry()), ignoreCache, container, view);
+    if (!isAllLanguage) {
+      addIfPresent(localeSpecs, prefs.getLocale(new Locale("all", locale.getCountry()), view));
+    }
+    if (!isAllCountry) {
+      addIfPresent(localeSpecs, prefs.getLocale(new Locale(locale.getLanguage(), "ALL"), view));
     }
+    addIfPresent(localeSpecs, prefs.getLocale(locale, view));
+    return localeSpecs;
+  }
 
-    if (isAllCountry || isAllLanguage) {
-      // If either of these is true, we already picked up both anyway.
-      all = MessageBundle.EMPTY;
-    } else {
-      all = getBundleFor(spec, ALL_ALL, ignoreCache, container, view);
+  private static void addIfPresent(List<LocaleSpec> localeSpecs, LocaleSpec localeSpec) {
+    if (localeSpec != null) {
+      localeSpecs.add(localeSpec);
     }
+  }
 
-    return new MessageBundle(all, country, lang, exact);
+  /**
+   * The merged bundle only depends on the locale sections it is merged from, so it is keyed by
+   * those rather than by the requested locale, container and view, which could be anything.
+   * Fetched bundles are cached by their URL alone, so the container doesn't change them.
+   */
+  private static String getMergedKey(GadgetSpec spec, List<LocaleSpec> localeSpecs, String view) {
+    StringBuilder key = new StringBuilder(MERGED_KEY_PREFIX)
+        .append(spec.getUrl()).append('#').append(spec.getChecksum());
+    for (LocaleSpec localeSpec : localeSpecs) {
+      key.append('|').append(localeSpec.getLocale());
+      if (!localeSpec.getViews().isEmpty()) {
+        // A section of this view, so the view is one the spec names.
+        key.append('@').append(view);
+      }
+    }
+    return key.toString();
   }
 
-  private MessageBundle getBundleFor(GadgetSpec spec, Locale locale, boolean ignoreCache, String container, String view)
-      throws GadgetException {
-    LocaleSpec localeSpec = spec.getModulePrefs().getLocale(locale, view);
-    if (localeSpec == null) {
-      return MessageBundle.EMPTY;
+  private MessageBundle mergeBundles(GadgetSpec spec, List<LocaleSpec> localeSpecs,
+      boolean ignoreCache, String container, MergeExpiration expiration) throws GadgetException {
+    MessageBundle[] bundles = new MessageBundle[localeSpecs.size()];
+    for (int i = 0; i < bundles.length; i++) {
+      bundles[i] = getBundleFor(spec, localeSpecs.get(i), ignoreCache, container, expiration);
     }
+    return new MessageBundle(bundles);
+  }
 
+  private MessageBundle getBundleFor(GadgetSpec spec, LocaleSpec localeSpec, boolean ignoreCache,
+      String container, MergeExpiration expiration) throws GadgetException {
     if (localeSpec.getMessages().toString().length() == 0) {
       return localeSpec.getMessageBundle();
     }
@@ -110,7 +183,35 @@ public class DefaultMessageBundleFactory extends AbstractSpecFactory<MessageBund
          .setIgnoreCache(ignoreCache);
     query.locale = localeSpec;
 
-    return super.getSpec(query);
+    if (expiration == null) {
+      return super.getSpec(query);
+    }
+
+    String key = localeSpec.getMessages().toString();
+    SoftExpiringCache.CachedObject<Object> cached = cache.getElement(key);
+    if (cached != null && cached.isExpired) {
+      // It is refreshed in the background, after which the merged bundle should be rebuilt.
+      expiration.cacheable = false;
+    }
+    MessageBundle bundle = super.getSpec(query);
+    if (cached == null) {
+      // Just fetched.
+      cached = cache.getElement(key);
+    }
+    if (cached == null) {
+      expiration.cacheable = false;
+    } else {
+      expiration.expires = Math.min(expiration.expires, cached.expires);
+    }
+    return bundle;
+  }
+
+  /**
+   * When a merged bundle should expire, given the fetched bundles it was merged from so far.
+   */
+  private static class MergeExpiration {
+    long expires = Long.MAX_VALUE;
+    boolean cacheable = true;
   }
 
   private static class LocaleQuery extends Query {
@@ -47,6 +47,7 @@ public class Gadget {
   private Collection<PreloadedData> preloads;
   private View currentView;
   private Set<String> directFeatureDeps;
+  private boolean headFlushed;
 
   /**
    * @param context The request that the gadget is being processed for.
@@ -120,6 +121,19 @@ public class Gadget {
     return preloads;
   }
 
+  /**
+   * @param headFlushed Whether the start of the gadget's document, through its feature libraries,
+   *     was already sent to the client ahead of the rest of the rendered output.
+   */
+  public Gadget setHeadFlushed(boolean headFlushed) {
+    this.headFlushed = headFlushed;
+    return this;
+  }
+
+  public boolean isHeadFlushed() {
+    return headFlushed;
+  }
+
   /**
    * List of all features this spec depends on (including all transitive
    * dependencies).
@@ -25,12 +25,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.shindig.common.Pair;
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
@@ -42,6 +40,8 @@ import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.RenderingContext;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -78,6 +78,8 @@ public class FeatureRegistry {
   private final FeatureParser parser;
   private final FeatureResourceLoader resourceLoader;
   private final ImmutableMap<String, FeatureNode> featureMap;
+  // All features, indexed by their ids.
+  private final FeatureNode[] features;
   private final FeatureFileSystem fileSystem;
   private final String repository;
 
@@ -114,6 +116,7 @@ public class FeatureRegistry {
     // Connect the dependency graph made up of all features and validate there
     // are no circular deps.
     connectDependencyGraph();
+    this.features = indexFeatures();
 
     this.cache = cacheProvider.createCache(CACHE_NAME);
   }
@@ -213,18 +216,24 @@ public class FeatureRegistry {
   public LookupResult getFeatureResources(
       GadgetContext ctx, Collection<String> needed, List<String> unsupported, boolean transitive) {
     boolean useCache = (transitive && !ctx.getIgnoreCache());
-    String cacheKey = makeCacheKey(needed, ctx, unsupported);
-
-    if (useCache) {
-      LookupResult lookup = cache.getElement(cacheKey);
-      if (lookup != null) {
-        return lookup;
+    List<FeatureNode> featureNodes;
+    String cacheKey = null;
+    if (transitive) {
+      BitSet included = new BitSet(features.length);
+      featureNodes = getTransitiveDeps(needed, unsupported, included);
+      if (useCache) {
+        // Keyed by the features included rather than those requested, so that every request that
+        // resolves to the same features shares an entry.
+        cacheKey = makeCacheKey(included, ctx, unsupported);
+        LookupResult lookup = cache.getElement(cacheKey);
+        if (lookup != null) {
+          return lookup;
+        }
       }
+    } else {
+      featureNodes = getRequestedNodes(needed, unsupported);
     }
 
-    List<FeatureNode> featureNodes = transitive ?
-        getTransitiveDeps(needed, unsupported) : getRequestedNodes(needed, unsupported);
-
     ImmutableList.Builder<FeatureBundle> bundlesBuilder =
         new ImmutableList.Builder<FeatureBundle>();
 
@@ -251,7 +260,7 @@ public class FeatureRegistry {
     }
 
     LookupResult result = new LookupResult(bundlesBuilder.build());
-    if (useCache && (unsupported == null || unsupported.isEmpty())) {
+    if (useCache) {
       cache.addElement(cacheKey, result);
     }
 
@@ -288,7 +297,8 @@ public class FeatureRegistry {
    * @return Ordered list of feature names, as described.
    */
   public List<String> getFeatures(Collection<String> needed) {
-    List<FeatureNode> fullTree = getTransitiveDeps(needed, Lists.<String>newLinkedList());
+    List<FeatureNode> fullTree =
+        getTransitiveDeps(needed, null, new BitSet(features.length));
     List<String> allFeatures = Lists.newLinkedList();
     for (FeatureNode node : fullTree) {
       allFeatures.add(node.name);
@@ -313,20 +323,13 @@ public class FeatureRegistry {
       Uri.parse(str);
   }
 
+  /**
+   * @param included Set to the ids of the features returned.
+   */
   private List<FeatureNode> getTransitiveDeps(
-      Collection<String> needed, List<String> unsupported) {
-    final List<FeatureNode> requested = getRequestedNodes(needed, unsupported);
-
-    Comparator<FeatureNode> nodeDepthComparator = new Comparator<FeatureNode>() {
-      public int compare(FeatureNode one, FeatureNode two) {
-        if (one.nodeDepth > two.nodeDepth ||
-            (one.nodeDepth == two.nodeDepth &&
-             requested.indexOf(one) < requested.indexOf(two))) {
-          return -1;
-        }
-        return 1;
-      }
-    };
+      Collection<String> needed, List<String> unsupported, BitSet included) {
+    List<FeatureNode> requested = getRequestedNodes(needed, unsupported);
+
     // Before getTransitiveDeps() is called, all nodes and their graphs have been validated
     // to have no circular dependencies, with their tree depth calculated. The requested
     // features here may overlap in the tree, so we need to be sure not to double-include
@@ -334,18 +337,22 @@ public class FeatureRegistry {
     // If the requested features list is [A, C], we want to include A's tree in the appropriate
     // order, and avoid double-including C (and its dependency D). Thus we sort by node depth
     // first - A's tree is deeper than that of C, so *if* A's tree contains C, traversing
-    // it first guarantees that C is eventually included.
-    Collections.sort(requested, nodeDepthComparator);
+    // it first guarantees that C is eventually included. The sort is stable, so features of the
+    // same depth stay in the requested order.
+    Collections.sort(requested, NODE_DEPTH_ORDER);
 
-    Set<String> alreadySeen = Sets.newHashSet();
-    List<FeatureNode> fullDeps = Lists.newLinkedList();
+    List<FeatureNode> fullDeps = Lists.newArrayList();
     for (FeatureNode requestedFeature : requested) {
-      for (FeatureNode toAdd : requestedFeature.getTransitiveDeps()) {
-        if (!alreadySeen.contains(toAdd.name)) {
-          alreadySeen.add(toAdd.name);
-          fullDeps.add(toAdd);
+      if (included.get(requestedFeature.id)) {
+        // Included along with an earlier feature, and so are all of its deps.
+        continue;
+      }
+      for (int id : requestedFeature.transitiveIds) {
+        if (!included.get(id)) {
+          fullDeps.add(features[id]);
         }
       }
+      included.or(requestedFeature.transitiveIdSet);
     }
 
     return fullDeps;
@@ -364,6 +371,12 @@ public class FeatureRegistry {
     return requested;
   }
 
+  private static final Comparator<FeatureNode> NODE_DEPTH_ORDER = new Comparator<FeatureNode>() {
+    public int compare(FeatureNode one, FeatureNode two) {
+      return two.nodeDepth - one.nodeDepth;
+    }
+  };
+
   private boolean containerMatch(String containerAttrib, String container) {
     for (String attr : Splitter.on(',').trimResults().split(containerAttrib)) {
       if (attr.equals(container)) return true;
@@ -412,6 +425,21 @@ public class FeatureRegistry {
     }
   }
 
+  /**
+   * Numbers the features, and works out for each one the ids of its transitive deps in the order
+   * they are included, so that lookups don't walk the dependency graph.
+   */
+  private FeatureNode[] indexFeatures() {
+    FeatureNode[] nodes = featureMap.values().toArray(new FeatureNode[featureMap.size()]);
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i].id = i;
+    }
+    for (FeatureNode node : nodes) {
+      node.indexTransitiveDeps(nodes.length);
+    }
+    return nodes;
+  }
+
   private void loadResources(List<String> resources, Map<String,FeatureNode> featureMapBuilder)
       throws GadgetException {
     try {
@@ -495,11 +523,15 @@ public class FeatureRegistry {
         new FeatureNode(parsed.getName(), bundles, parsed.getDeps()));
   }
 
-  protected String makeCacheKey(Collection<String> needed, GadgetContext ctx, List<String> unsupported) {
-    List<String> neededList = Lists.newArrayList(needed);
-    Collections.sort(neededList);
-    return new StringBuilder().append(StringUtils.join(neededList, ":"))
-        .append('|').append(ctx.getRenderingContext())
+  /**
+   * @param included The ids of the features included in the lookup.
+   */
+  protected String makeCacheKey(BitSet included, GadgetContext ctx, List<String> unsupported) {
+    StringBuilder key = new StringBuilder();
+    for (int id = included.nextSetBit(0); id >= 0; id = included.nextSetBit(id + 1)) {
+      key.append(id).append(':');
+    }
+    return key.append('|').append(ctx.getRenderingContext())
         .append('|').append(ctx.getContainer())
         .append('|').append(unsupported != null)
         .append('|').append(Strings.nullToEmpty(repository))
@@ -613,6 +645,11 @@ public class FeatureRegistry {
     private List<FeatureNode> transitiveDeps;
     private boolean calculatedDepsStale;
     private int nodeDepth = 0;
+    // Index of the feature in its registry.
+    private int id;
+    // Ids of the transitive deps, in inclusion order, and as a set.
+    private int[] transitiveIds;
+    private BitSet transitiveIdSet;
 
     private FeatureNode(String name, List<FeatureBundle> bundles, List<String> rawDeps) {
       this.name = name;
@@ -725,6 +762,19 @@ public class FeatureRegistry {
       return this.transitiveDeps;
     }
 
+    private void indexTransitiveDeps(int featureCount) {
+      int[] ids = new int[transitiveDeps.size()];
+      int count = 0;
+      transitiveIdSet = new BitSet(featureCount);
+      for (FeatureNode dep : transitiveDeps) {
+        if (!transitiveIdSet.get(dep.id)) {
+          transitiveIdSet.set(dep.id);
+          ids[count++] = dep.id;
+        }
+      }
+      transitiveIds = Arrays.copyOf(ids, count);
+    }
+
     /**
      * Check whether current feature node has dependency loop
      * @param featureNode
@@ -25,6 +25,7 @@ import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
 import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.util.GzipUtil;
 import org.apache.shindig.gadgets.AuthType;
 import org.apache.shindig.gadgets.uri.UriCommon;
 
@@ -69,10 +70,21 @@ import org.apache.shindig.gadgets.uri.UriCommon;
  *
  * Note that error cases are handled differently. (Even for strict no cache)
  *
+ * When gzipping of bodies is enabled, successful text responses (HTML, CSS, JavaScript, JSON, XML)
+ * of at least the configured size are stored with only the gzipped form of their body, which
+ * servlets can send as is to clients that accept gzip instead of compressing it on every request.
+ * The plain body is inflated only when it is read. Caches that decode every hit anyway, because
+ * they store responses in {@link HttpResponseCodec} form, keep the plain body instead; see
+ * {@link #storesResponseObjects()}.
+ *
+ * Responses are stored under the fixed size {@link HttpCacheKey} of the text that
+ * {@link #createKey} returns, which is hashed without building it. Caches written against the
+ * older String keyed {@code *Impl} methods should extend {@link StringKeyedHttpCache} instead.
+ *
  * Implementations that override this are discouraged from using custom cache keys unless there is
  * actually customization in the request object itself. It is highly recommended that you still
- * use {@link #createKey} in the base class and append any custom data to the end of the key instead
- * of building your own keys from scratch.
+ * use {@link #createKeyBuilder} in the base class and add any custom data to it as parameters
+ * instead of building your own keys from scratch.
  */
 public abstract class AbstractHttpCache implements HttpCache {
   private static final String RESIZE_HEIGHT = UriCommon.Param.RESIZE_HEIGHT.getKey();
@@ -87,15 +99,19 @@ public abstract class AbstractHttpCache implements HttpCache {
 
   private long refetchStrictNoCacheAfterMs = REFETCH_STRICT_NO_CACHE_AFTER_MS_DEFAULT;
 
+  private boolean gzipBodies = false;
+  private int gzipMinBytes = DEFAULT_GZIP_MIN_BYTES;
+
+  static final int DEFAULT_GZIP_MIN_BYTES = 1024;
+
   // Implement these methods to create a concrete HttpCache class.
-  protected abstract HttpResponse getResponseImpl(String key);
-  protected abstract void addResponseImpl(String key, HttpResponse response);
-  protected abstract void removeResponseImpl(String key);
+  protected abstract HttpResponse getResponseImpl(HttpCacheKey key);
+  protected abstract void addResponseImpl(HttpCacheKey key, HttpResponse response);
+  protected abstract void removeResponseImpl(HttpCacheKey key);
 
   public HttpResponse getResponse(HttpRequest request) {
     if (isCacheable(request)) {
-      String keyString = createKey(request);
-      HttpResponse cached = getResponseImpl(keyString);
+      HttpResponse cached = getResponseImpl(createCacheKey(request));
       if (responseStillUsable(cached) &&
           (!cached.isStrictNoCache() || refetchStrictNoCacheAfterMs >= 0)) {
         return cached;
@@ -120,12 +136,64 @@ public abstract class AbstractHttpCache implements HttpCache {
     if (forcedTtl != -1 && !response.isError()) {
       responseBuilder.setCacheTtl(forcedTtl);
     }
+    if (gzipBodies && storesResponseObjects()) {
+      maybeGzipBody(responseBuilder);
+    }
     response = responseBuilder.create();
-    String keyString = createKey(request);
-    addResponseImpl(keyString, response);
+    addResponseImpl(createCacheKey(request), response.withGzippedBodyOnly());
     return response; // cached and possibly modified
   }
 
+  /**
+   * @return Whether the cache keeps the added responses as objects. Only then are bodies stored
+   * in gzipped form when that is enabled. Caches that encode responses should return false, so
+   * that their hits don't have to inflate the body.
+   */
+  protected boolean storesResponseObjects() {
+    return true;
+  }
+
+  @Inject(optional = true)
+  public void setGzipBodies(@Named("shindig.cache.http.gzip-bodies") boolean gzipBodies) {
+    this.gzipBodies = gzipBodies;
+  }
+
+  @Inject(optional = true)
+  public void setGzipMinBytes(@Named("shindig.cache.http.gzip-bodies.min-bytes") int gzipMinBytes) {
+    this.gzipMinBytes = gzipMinBytes;
+  }
+
+  /**
+   * Attaches a gzipped form of the body to successful, compressible responses, unless gzipping
+   * wouldn't make it smaller.
+   */
+  private void maybeGzipBody(HttpResponseBuilder responseBuilder) {
+    if (responseBuilder.getHttpStatusCode() != HttpResponse.SC_OK
+        || !isGzippable(responseBuilder.getHeader("Content-Type"))
+        || responseBuilder.getHeader("Content-Encoding") != null) {
+      return;
+    }
+    byte[] body = responseBuilder.getResponse();
+    if (body.length < gzipMinBytes || responseBuilder.getGzippedResponse(body) != null) {
+      return;
+    }
+    byte[] gzipped = GzipUtil.compress(body);
+    if (gzipped.length < body.length) {
+      responseBuilder.setGzippedResponse(gzipped);
+    }
+  }
+
+  private static boolean isGzippable(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    int semicolon = contentType.indexOf(';');
+    String mimeType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+        .trim().toLowerCase();
+    return mimeType.startsWith("text/") || mimeType.endsWith("javascript")
+        || mimeType.endsWith("json") || mimeType.endsWith("xml");
+  }
+
   @VisibleForTesting
   public void setRefetchStrictNoCacheAfterMs(long refetchStrictNoCacheAfterMs) {
     this.refetchStrictNoCacheAfterMs = refetchStrictNoCacheAfterMs;
@@ -153,9 +221,9 @@ public abstract class AbstractHttpCache implements HttpCache {
   }
 
   public HttpResponse removeResponse(HttpRequest request) {
-    String keyString = createKey(request);
-    HttpResponse response = getResponseImpl(keyString);
-    removeResponseImpl(keyString);
+    HttpCacheKey key = createCacheKey(request);
+    HttpResponse response = getResponseImpl(key);
+    removeResponseImpl(key);
     if (responseStillUsable(response)) {
       return response;
     }
@@ -215,6 +283,23 @@ public abstract class AbstractHttpCache implements HttpCache {
    * should always be inserted using {@code CacheKeyBuilder#setParam(String, Object)}.
    */
   public String createKey(HttpRequest request) {
+    return createKeyBuilder(request).build();
+  }
+
+  /**
+   * Produce the fixed size key of the text that {@link #createKey} returns, by hashing the pieces
+   * of {@link #createKeyBuilder} without building the text. Subclasses that override
+   * {@link #createKey} must override this as well, e.g. by extending {@link StringKeyedHttpCache}.
+   */
+  public HttpCacheKey createCacheKey(HttpRequest request) {
+    return createKeyBuilder(request).buildKey();
+  }
+
+  /**
+   * @return A builder holding the pieces of the key for the given request, as listed for
+   *     {@link #createKey}.
+   */
+  protected CacheKeyBuilder createKeyBuilder(HttpRequest request) {
     if ((request.getAuthType() != AuthType.NONE) &&
         (request.getSecurityToken() == null)) {
       throw new IllegalArgumentException(
@@ -237,7 +322,7 @@ public abstract class AbstractHttpCache implements HttpCache {
         .setParam("ne", request.getParam(NO_EXPAND))
         .setParam("rm", request.getRewriteMimeType())
         .setParam("ua", request.getHeader("User-Agent"));
-    return keyBuilder.build();
+    return keyBuilder;
   }
 
   protected static String getOwnerId(HttpRequest request) {
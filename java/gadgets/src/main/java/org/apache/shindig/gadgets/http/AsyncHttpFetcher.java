@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link HttpFetcher} that can also fetch without blocking the calling thread.
+ *
+ * When the {@link HttpFetcher} bound for the request pipeline implements this interface,
+ * {@link AsyncRequestPipeline#executeAsync(HttpRequest)} uses it for unauthenticated fetches, so that
+ * many concurrent fetches don't each hold a thread while waiting for the remote server.
+ */
+public interface AsyncHttpFetcher extends HttpFetcher {
+
+  /**
+   * Start fetching HTTP content.
+   *
+   * @param request The request to fetch.
+   * @return A future for the HTTP response from the relevant resource, including error
+   *     conditions. The future fails with a GadgetException in the event of a failure that can't
+   *     be mapped to an HTTP result code. Cancelling the future aborts the fetch.
+   */
+  ListenableFuture<HttpResponse> fetchAsync(HttpRequest request);
+}
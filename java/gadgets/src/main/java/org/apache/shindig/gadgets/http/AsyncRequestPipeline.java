@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.ImplementedBy;
+
+/**
+ * A {@link RequestPipeline} that can execute requests without blocking the calling thread on the
+ * network. Callers that are handed a plain RequestPipeline should check for this interface and
+ * fall back to {@link #execute(HttpRequest)} otherwise.
+ */
+@ImplementedBy(DefaultRequestPipeline.class)
+public interface AsyncRequestPipeline extends RequestPipeline {
+
+  /**
+   * Execute the given request without blocking the calling thread on the network where
+   * possible. Caching, signing and rewriting behave as in {@link #execute(HttpRequest)}.
+   * Cancelling the future abandons the caller's interest in the response; the fetch itself is
+   * aborted only when no other caller is waiting on it.
+   *
+   * @return a future for the response. The future fails with a GadgetException where
+   *     {@link #execute(HttpRequest)} would have thrown one.
+   */
+  ListenableFuture<HttpResponse> executeAsync(HttpRequest request);
+}
@@ -0,0 +1,453 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.ContentBufferEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.shindig.common.Nullable;
+import org.apache.shindig.common.logging.i18n.MessageKeys;
+import org.apache.shindig.common.servlet.GuiceServletContextListener;
+import org.apache.shindig.gadgets.GadgetException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ProxySelector;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An {@link AsyncHttpFetcher} based on the non-blocking Apache httpasyncclient. A small, fixed
+ * number of I/O threads services every open connection, so callers of
+ * {@link #fetchAsync(HttpRequest)} never wait on the network.
+ *
+ * This fetcher follows the same rules as {@link BasicHttpFetcher} for proxies, timeouts,
+ * compression, redirects and cookies. To use it, bind {@link HttpFetcher} to this class.
+ * Response bodies are buffered in memory before the future completes. The maximum object size
+ * is enforced while the body is read, so a response without a Content-Length is dropped as soon
+ * as it grows past the limit.
+ */
+@Singleton
+public class BasicAsyncHttpFetcher implements AsyncHttpFetcher,
+    GuiceServletContextListener.CleanupCapable {
+  private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_MAX_OBJECT_SIZE = 0;  // no limit
+  private static final long DEFAULT_SLOW_RESPONSE_WARNING = 10000;
+
+  private final CloseableHttpAsyncClient client;
+
+  // mutable fields must be volatile
+  private volatile RequestConfig requestConfig;
+  private volatile int maxObjSize;
+  private volatile long slowResponseWarning;
+
+  //class name for logging purpose
+  private static final String classname = BasicAsyncHttpFetcher.class.getName();
+  private static final Logger LOG = Logger.getLogger(classname, MessageKeys.MESSAGES);
+
+  private static final Set<Class<?>> TIMEOUT_EXCEPTIONS = ImmutableSet.<Class<?>>of(
+      ConnectionPoolTimeoutException.class, ConnectTimeoutException.class,
+      SocketTimeoutException.class, SocketException.class, ConnectException.class,
+      HttpHostConnectException.class, NoHttpResponseException.class, InterruptedException.class,
+      UnknownHostException.class);
+
+  /**
+   * Creates a new fetcher using the default maximum object size and timeout --
+   * no limit and 5 seconds.
+   * @param basicHttpFetcherProxy The http proxy to use.
+   */
+  @Inject
+  public BasicAsyncHttpFetcher(
+      @Nullable @Named("org.apache.shindig.gadgets.http.basicHttpFetcherProxy")
+      String basicHttpFetcherProxy) {
+    this(DEFAULT_MAX_OBJECT_SIZE, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS,
+         basicHttpFetcherProxy);
+  }
+
+  /**
+   * Creates a new non-blocking fetcher.
+   *
+   * @param maxObjSize          Maximum size, in bytes, of the object we will fetch, 0 if no limit..
+   * @param connectionTimeoutMs timeout, in milliseconds, for connecting to hosts.
+   * @param readTimeoutMs       timeout, in millseconds, for unresponsive connections
+   * @param basicHttpFetcherProxy The http proxy to use.
+   */
+  public BasicAsyncHttpFetcher(int maxObjSize, int connectionTimeoutMs, int readTimeoutMs,
+                               String basicHttpFetcherProxy) {
+    setMaxObjectSizeBytes(maxObjSize);
+    setSlowResponseWarning(DEFAULT_SLOW_RESPONSE_WARNING);
+
+    requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectionTimeoutMs)
+        .setSocketTimeout(readTimeoutMs)
+        .setRedirectsEnabled(true)
+        .setAuthenticationEnabled(false)
+        .build();
+
+    HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+        .setDefaultIOReactorConfig(IOReactorConfig.custom()
+            .setConnectTimeout(connectionTimeoutMs)
+            .setSoTimeout(readTimeoutMs)
+            .setSoReuseAddress(true)
+            .build())
+        .setDefaultRequestConfig(requestConfig)
+        .setUserAgent("Apache Shindig")
+        // These are probably overkill for most sites.
+        .setMaxConnTotal(1152)
+        .setMaxConnPerRoute(256)
+        // Disable automatic storage and sending of cookies (see SHINDIG-1382)
+        .disableCookieManagement();
+
+    if (!Strings.isNullOrEmpty(basicHttpFetcherProxy)) {
+      // Set proxy if set via guice.
+      String[] splits = StringUtils.split(basicHttpFetcherProxy, ':');
+      builder.setProxy(new HttpHost(splits[0], Integer.parseInt(splits[1]), "http"));
+    } else {
+      // Use Java's built-in proxy logic in case no proxy set via guice.
+      builder.setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()));
+    }
+
+    client = builder.build();
+    client.start();
+  }
+
+  @Inject(optional = true)
+  public void setCleanupHandler(GuiceServletContextListener.CleanupHandler cleanupHandler) {
+    cleanupHandler.register(this);
+  }
+
+  public void cleanup() {
+    try {
+      client.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Error shutting down async http client", e);
+    }
+  }
+
+  public HttpResponse fetch(HttpRequest request) throws GadgetException {
+    try {
+      return fetchAsync(request).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return HttpResponse.timeout();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GadgetException) {
+        throw (GadgetException) e.getCause();
+      }
+      throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, e.getCause(),
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  public ListenableFuture<HttpResponse> fetchAsync(final HttpRequest request) {
+    Preconditions.checkNotNull(request);
+    final SettableFuture<HttpResponse> result = SettableFuture.create();
+    final long started = System.currentTimeMillis();
+
+    HttpRequestBase httpMethod;
+    HttpHost host;
+    try {
+      host = BasicHttpFetcher.getHttpHost(request.getUri());
+      httpMethod = BasicHttpFetcher.newHttpMethod(request);
+    } catch (GadgetException e) {
+      result.setException(e);
+      return result;
+    }
+    if (httpMethod == null) {
+      result.setException(new GadgetException(GadgetException.Code.INVALID_PARAMETER,
+          "Unsupported method: " + request.getMethod(), HttpServletResponse.SC_BAD_REQUEST));
+      return result;
+    }
+
+    if (!httpMethod.containsHeader("Accept-Encoding")) {
+      httpMethod.addHeader("Accept-Encoding", "gzip, deflate");
+    }
+    RequestConfig config = requestConfig;
+    if (!request.getFollowRedirects()) {
+      config = RequestConfig.copy(config).setRedirectsEnabled(false).build();
+    }
+    httpMethod.setConfig(config);
+
+    HttpAsyncRequestProducer producer = HttpAsyncMethods.create(host, httpMethod);
+    SizeLimitedResponseConsumer consumer = new SizeLimitedResponseConsumer(maxObjSize);
+    final Future<org.apache.http.HttpResponse> exchange =
+        client.execute(producer, consumer, new FutureCallback<org.apache.http.HttpResponse>() {
+          public void completed(org.apache.http.HttpResponse response) {
+            long now = System.currentTimeMillis();
+            if (now - started > slowResponseWarning) {
+              slowResponseWarning(request, started, now);
+            }
+            try {
+              result.set(makeResponse(response));
+            } catch (IOException e) {
+              failed(e);
+            }
+          }
+
+          public void failed(Exception e) {
+            long now = System.currentTimeMillis();
+
+            if (e instanceof ResponseTooLargeException) {
+              result.set(HttpResponse.badrequest(e.getMessage()));
+              return;
+            }
+
+            // Find timeout exceptions, respond accordingly
+            if (TIMEOUT_EXCEPTIONS.contains(e.getClass())) {
+              if (LOG.isLoggable(Level.INFO)) {
+                LOG.logp(Level.INFO, classname, "fetchAsync", MessageKeys.TIMEOUT_EXCEPTION,
+                    new Object[] {request.getUri(), classname, e.getMessage(), now - started});
+              }
+              result.set(HttpResponse.timeout());
+              return;
+            }
+            if (LOG.isLoggable(Level.INFO)) {
+              LOG.logp(Level.INFO, classname, "fetchAsync", MessageKeys.EXCEPTION_OCCURRED,
+                  new Object[] {request.getUri(), now - started});
+              LOG.logp(Level.INFO, classname, "fetchAsync", "", e);
+            }
+            // Separate shindig error from external error
+            result.setException(new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, e,
+                HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+          }
+
+          public void cancelled() {
+            result.cancel(false);
+          }
+        });
+    // Abort the exchange, and free its connection, when the caller loses interest.
+    result.addListener(new Runnable() {
+      public void run() {
+        if (result.isCancelled()) {
+          exchange.cancel(true);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    return result;
+  }
+
+  /**
+   * Called when a request takes too long.   Consider subclassing this if you want to do something other than logging
+   * a warning .
+   *
+   * @param request the request that generated the slowrequest
+   * @param started  the time the request started, in milliseconds.
+   * @param finished the time the request finished, in milliseconds.
+   */
+  protected void slowResponseWarning(HttpRequest request, long started, long finished) {
+    if (LOG.isLoggable(Level.WARNING)) {
+      LOG.logp(Level.WARNING, classname, "slowResponseWarning", MessageKeys.SLOW_RESPONSE, new Object[] {request.getUri(),finished-started});
+    }
+  }
+
+  /**
+   * Change the global maximum fetch size (in bytes) for all fetches.
+   *
+   * @param maxObjectSizeBytes value for maximum number of bytes, or 0 for no limit
+   */
+  @Inject(optional = true)
+  public void setMaxObjectSizeBytes(@Named("shindig.http.client.max-object-size-bytes") int maxObjectSizeBytes) {
+    this.maxObjSize = maxObjectSizeBytes;
+  }
+
+  /**
+   * Change the global threshold for warning about slow responses
+   *
+   * @param slowResponseWarning time in milliseconds after we issue a warning
+   */
+  @Inject(optional = true)
+  public void setSlowResponseWarning(@Named("shindig.http.client.slow-response-warning") long slowResponseWarning) {
+    this.slowResponseWarning = slowResponseWarning;
+  }
+
+  /**
+   * Change the global connection timeout for all new fetchs.
+   *
+   * @param connectionTimeoutMs new connection timeout in milliseconds
+   */
+  @Inject(optional = true)
+  public void setConnectionTimeoutMs(@Named("shindig.http.client.connection-timeout-ms") int connectionTimeoutMs) {
+    Preconditions.checkArgument(connectionTimeoutMs > 0, "connection-timeout-ms must be greater than 0");
+    requestConfig = RequestConfig.copy(requestConfig).setConnectTimeout(connectionTimeoutMs).build();
+  }
+
+  /**
+   * Change the global read timeout for all new fetchs.
+   *
+   * @param readTimeoutMs new connection timeout in milliseconds
+   */
+  @Inject(optional = true)
+  public void setReadTimeoutMs(@Named("shindig.http.client.read-timeout-ms") int readTimeoutMs) {
+    Preconditions.checkArgument(readTimeoutMs > 0, "read-timeout-ms must be greater than 0");
+    requestConfig = RequestConfig.copy(requestConfig).setSocketTimeout(readTimeoutMs).build();
+  }
+
+  /**
+   * @param response The response to parse
+   * @return A HttpResponse object made by consuming the buffered response.
+   * @throws IOException when problems occur processing the body content
+   */
+  private HttpResponse makeResponse(org.apache.http.HttpResponse response) throws IOException {
+    HttpResponseBuilder builder = new HttpResponseBuilder();
+
+    if (response.getAllHeaders() != null) {
+      for (Header h : response.getAllHeaders()) {
+        if (h.getName() != null)
+          builder.addHeader(h.getName(), h.getValue());
+      }
+    }
+
+    HttpEntity entity = response.getEntity();
+    byte[] responseBytes = (entity == null) ? null : BasicHttpFetcher.readEntity(decode(entity));
+
+    return builder
+        .setHttpStatusCode(response.getStatusLine().getStatusCode())
+        .setResponse(responseBytes)
+        .create();
+  }
+
+  /**
+   * The async client does not decompress responses, so handle gzip and deflate here.
+   */
+  private static HttpEntity decode(HttpEntity entity) {
+    Header ceheader = entity.getContentEncoding();
+    if (ceheader != null) {
+      for (HeaderElement codec : ceheader.getElements()) {
+        String codecname = codec.getName();
+        if ("gzip".equalsIgnoreCase(codecname)) {
+          return new BasicHttpFetcher.GzipDecompressingEntity(entity);
+        } else if ("deflate".equals(codecname)) {
+          return new BasicHttpFetcher.DeflateDecompressingEntity(entity);
+        }
+      }
+    }
+    return entity;
+  }
+
+  /**
+   * Thrown while a response body is read once it grows past the maximum object size.
+   */
+  private static class ResponseTooLargeException extends IOException {
+    public ResponseTooLargeException(int maxObjSize) {
+      super("Exceeded maximum number of bytes - " + maxObjSize);
+    }
+  }
+
+  /**
+   * Buffers the response body in memory, like the client's default consumer, but fails the
+   * exchange as soon as the body is larger than the maximum object size. The declared
+   * Content-Length is checked up front, and the bytes read so far after every read, so chunked
+   * responses and responses of unknown length are bounded too.
+   */
+  private static class SizeLimitedResponseConsumer
+      extends AbstractAsyncResponseConsumer<org.apache.http.HttpResponse> {
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+    // The buffer grows as the body is read, so a large declared length isn't allocated up front.
+    private static final int MAX_INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final int maxObjSize;
+    private volatile org.apache.http.HttpResponse response;
+    private volatile SimpleInputBuffer buffer;
+
+    public SizeLimitedResponseConsumer(int maxObjSize) {
+      this.maxObjSize = maxObjSize;
+    }
+
+    @Override
+    protected void onResponseReceived(org.apache.http.HttpResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType)
+        throws IOException {
+      long length = entity.getContentLength();
+      if (maxObjSize > 0 && length > maxObjSize) {
+        throw new ResponseTooLargeException(maxObjSize);
+      }
+      int bufferSize = length >= 0 ? (int) Math.min(length, MAX_INITIAL_BUFFER_SIZE)
+          : DEFAULT_BUFFER_SIZE;
+      buffer = new SimpleInputBuffer(bufferSize, new HeapByteBufferAllocator());
+      response.setEntity(new ContentBufferEntity(entity, buffer));
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl)
+        throws IOException {
+      buffer.consumeContent(decoder);
+      if (maxObjSize > 0 && buffer.length() > maxObjSize) {
+        throw new ResponseTooLargeException(maxObjSize);
+      }
+    }
+
+    @Override
+    protected org.apache.http.HttpResponse buildResult(HttpContext context) {
+      return response;
+    }
+
+    @Override
+    protected void releaseResources() {
+      response = null;
+      buffer = null;
+    }
+  }
+}
@@ -44,6 +44,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.HttpClientParams;
@@ -282,72 +283,16 @@ public class BasicHttpFetcher implements HttpFetcher {
       throws GadgetException {
     HttpUriRequest httpMethod = null;
     Preconditions.checkNotNull(request);
-    final String methodType = request.getMethod();
 
     final org.apache.http.HttpResponse response;
     final long started = System.currentTimeMillis();
 
-    // Break the request Uri to its components:
-    Uri uri = request.getUri();
-    if (Strings.isNullOrEmpty(uri.getAuthority())) {
-      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
-          "Missing domain name for request: " + uri,
-          HttpServletResponse.SC_BAD_REQUEST);
-    }
-    if (Strings.isNullOrEmpty(uri.getScheme())) {
-      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
-          "Missing schema for request: " + uri,
-          HttpServletResponse.SC_BAD_REQUEST);
-    }
-    String[] hostparts = StringUtils.splitPreserveAllTokens(uri.getAuthority(),':');
-    int port = -1; // default port
-    if (hostparts.length > 2) {
-      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
-          "Bad host name in request: " + uri.getAuthority(),
-          HttpServletResponse.SC_BAD_REQUEST);
-    }
-    if (hostparts.length == 2) {
-      try {
-        port = Integer.parseInt(hostparts[1]);
-      } catch (NumberFormatException e) {
-        throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
-            "Bad port number in request: " + uri.getAuthority(),
-            HttpServletResponse.SC_BAD_REQUEST);
-      }
-    }
-
-    String requestUri = uri.getPath();
-    // Treat path as / if set as null.
-    if (uri.getPath() == null) {
-      requestUri = "/";
-    }
-    if (uri.getQuery() != null) {
-      requestUri += '?' + uri.getQuery();
-    }
-
     // Get the http host to connect to.
-    HttpHost host = new HttpHost(hostparts[0], port, uri.getScheme());
+    Uri uri = request.getUri();
+    HttpHost host = getHttpHost(uri);
 
     try {
-      if ("POST".equals(methodType) || "PUT".equals(methodType)) {
-        HttpEntityEnclosingRequestBase enclosingMethod = ("POST".equals(methodType))
-          ? new HttpPost(requestUri)
-          : new HttpPut(requestUri);
-
-        if (request.getPostBodyLength() > 0) {
-          enclosingMethod.setEntity(new InputStreamEntity(request.getPostBody(), request.getPostBodyLength()));
-        }
-        httpMethod = enclosingMethod;
-      } else if ("GET".equals(methodType)) {
-        httpMethod = new HttpGet(requestUri);
-      } else if ("HEAD".equals(methodType)) {
-        httpMethod = new HttpHead(requestUri);
-      } else if ("DELETE".equals(methodType)) {
-        httpMethod = new HttpDelete(requestUri);
-      }
-      for (Map.Entry<String, List<String>> entry : request.getHeaders().entrySet()) {
-        httpMethod.addHeader(entry.getKey(), Joiner.on(',').join(entry.getValue()));
-      }
+      httpMethod = newHttpMethod(request);
 
       // Disable following redirects.
       if (!request.getFollowRedirects()) {
@@ -396,6 +341,88 @@ public class BasicHttpFetcher implements HttpFetcher {
     }
   }
 
+  /**
+   * Break the request Uri into the host to connect to. HttpClient doesn't handle all cases when
+   * breaking url (specifically '_' in domain), so the host is parsed here.
+   *
+   * @param uri the request uri
+   * @return the host, port and scheme to connect to
+   * @throws GadgetException if the uri has no usable authority or scheme
+   */
+  static HttpHost getHttpHost(Uri uri) throws GadgetException {
+    if (Strings.isNullOrEmpty(uri.getAuthority())) {
+      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+          "Missing domain name for request: " + uri,
+          HttpServletResponse.SC_BAD_REQUEST);
+    }
+    if (Strings.isNullOrEmpty(uri.getScheme())) {
+      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+          "Missing schema for request: " + uri,
+          HttpServletResponse.SC_BAD_REQUEST);
+    }
+    String[] hostparts = StringUtils.splitPreserveAllTokens(uri.getAuthority(),':');
+    int port = -1; // default port
+    if (hostparts.length > 2) {
+      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+          "Bad host name in request: " + uri.getAuthority(),
+          HttpServletResponse.SC_BAD_REQUEST);
+    }
+    if (hostparts.length == 2) {
+      try {
+        port = Integer.parseInt(hostparts[1]);
+      } catch (NumberFormatException e) {
+        throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+            "Bad port number in request: " + uri.getAuthority(),
+            HttpServletResponse.SC_BAD_REQUEST);
+      }
+    }
+    return new HttpHost(hostparts[0], port, uri.getScheme());
+  }
+
+  /**
+   * Create the httpclient method for a request, relative to the host returned by
+   * {@link #getHttpHost(Uri)}, with the request body and headers copied over.
+   *
+   * @param request the request to convert
+   * @return the httpclient method, or null if the request method is not supported
+   */
+  static HttpRequestBase newHttpMethod(org.apache.shindig.gadgets.http.HttpRequest request) {
+    final String methodType = request.getMethod();
+    Uri uri = request.getUri();
+    String requestUri = uri.getPath();
+    // Treat path as / if set as null.
+    if (uri.getPath() == null) {
+      requestUri = "/";
+    }
+    if (uri.getQuery() != null) {
+      requestUri += '?' + uri.getQuery();
+    }
+
+    HttpRequestBase httpMethod = null;
+    if ("POST".equals(methodType) || "PUT".equals(methodType)) {
+      HttpEntityEnclosingRequestBase enclosingMethod = ("POST".equals(methodType))
+        ? new HttpPost(requestUri)
+        : new HttpPut(requestUri);
+
+      if (request.getPostBodyLength() > 0) {
+        enclosingMethod.setEntity(new InputStreamEntity(request.getPostBody(), request.getPostBodyLength()));
+      }
+      httpMethod = enclosingMethod;
+    } else if ("GET".equals(methodType)) {
+      httpMethod = new HttpGet(requestUri);
+    } else if ("HEAD".equals(methodType)) {
+      httpMethod = new HttpHead(requestUri);
+    } else if ("DELETE".equals(methodType)) {
+      httpMethod = new HttpDelete(requestUri);
+    }
+    if (httpMethod != null) {
+      for (Map.Entry<String, List<String>> entry : request.getHeaders().entrySet()) {
+        httpMethod.addHeader(entry.getKey(), Joiner.on(',').join(entry.getValue()));
+      }
+    }
+    return httpMethod;
+  }
+
   /**
    * Called when a request takes too long.   Consider subclassing this if you want to do something other than logging
    * a warning .
@@ -494,6 +521,13 @@ public class BasicHttpFetcher implements HttpFetcher {
    * @throws IOException if an error occurs reading the input stream
    */
   public byte[] toByteArraySafe(final HttpEntity entity) throws IOException {
+    return readEntity(entity);
+  }
+
+  /**
+   * Static form of {@link #toByteArraySafe(HttpEntity)}, shared with other fetchers.
+   */
+  static byte[] readEntity(final HttpEntity entity) throws IOException {
     if (entity == null) {
       return null;
     }
@@ -18,30 +18,36 @@
  */
 package org.apache.shindig.gadgets.http;
 
-import java.util.Map;
-import java.util.SortedMap;
-
-import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Builds the cache key object.
  *
  * <p>Takes extra care to build the cache keys that don't thrash persistent caches.
+ *
+ * <p>The key can be built either as text, or, without building the text, as the fixed size
+ * {@link HttpCacheKey} of that text.
  */
 public class CacheKeyBuilder {
   private static final int NUM_LEGACY_PARAMS = 9;
+  private static final int INITIAL_PARAMS = 8;
   private static final String DEFAULT_KEY_VALUE = "0";
   private static final char KEY_SEPARATOR = ':';
+  private static final char PARAM_SEPARATOR = '=';
 
   /** The legacy parameters that need to appear in the cache key in a particular order. */
   private Object[] legacyParams;
 
-  /** A sorted parameter map ensures an unique ordering of the hash keys */
-  private SortedMap<String, Object> paramMap;
+  /** Parameter names kept sorted, which ensures an unique ordering of the hash keys */
+  private String[] paramNames;
+  private String[] paramValues;
+  private int paramCount;
 
   public CacheKeyBuilder() {
-    this.paramMap = Maps.newTreeMap();
     this.legacyParams = new Object[NUM_LEGACY_PARAMS];
+    this.paramNames = new String[INITIAL_PARAMS];
+    this.paramValues = new String[INITIAL_PARAMS];
   }
 
   private String getValueOrDefault(Object value) {
@@ -76,9 +82,24 @@ public class CacheKeyBuilder {
    * @param value the object that determines the value of the parameter
    */
   public CacheKeyBuilder setParam(String name, Object value) {
-    if (value != null) {
-      paramMap.put(name, String.valueOf(value));
+    if (name == null || value == null) {
+      return this;
+    }
+    int index = Arrays.binarySearch(paramNames, 0, paramCount, name);
+    if (index >= 0) {
+      paramValues[index] = String.valueOf(value);
+      return this;
     }
+    index = -index - 1;
+    if (paramCount == paramNames.length) {
+      paramNames = Arrays.copyOf(paramNames, paramCount * 2);
+      paramValues = Arrays.copyOf(paramValues, paramCount * 2);
+    }
+    System.arraycopy(paramNames, index, paramNames, index + 1, paramCount - index);
+    System.arraycopy(paramValues, index, paramValues, index + 1, paramCount - index);
+    paramNames[index] = name;
+    paramValues[index] = String.valueOf(value);
+    paramCount++;
     return this;
   }
 
@@ -94,18 +115,34 @@ public class CacheKeyBuilder {
    */
   public String build() {
     StringBuilder keyBuilder = new StringBuilder(2 * String.valueOf(legacyParams[0]).length());
-    appendLegacyKeys(keyBuilder);
+    appendKey(keyBuilder);
+    return keyBuilder.toString();
+  }
 
-    if (!paramMap.isEmpty()) {
-      for (Map.Entry<String, Object> mapEntry : paramMap.entrySet()) {
-        keyBuilder.append(KEY_SEPARATOR);
-        keyBuilder.append(String.format("%s=%s", mapEntry.getKey(), mapEntry.getValue()));
+  /**
+   * @return The {@link HttpCacheKey} of the text returned by {@link #build()}, hashed as it is
+   *     produced rather than built.
+   */
+  public HttpCacheKey buildKey() {
+    HttpCacheKey.Builder keyBuilder = new HttpCacheKey.Builder();
+    appendKey(keyBuilder);
+    return keyBuilder.build();
+  }
+
+  private void appendKey(Appendable key) {
+    try {
+      appendLegacyKeys(key);
+      for (int i = 0; i < paramCount; i++) {
+        key.append(KEY_SEPARATOR).append(paramNames[i]).append(PARAM_SEPARATOR)
+            .append(paramValues[i]);
       }
+    } catch (IOException e) {
+      // Neither sink throws.
+      throw new IllegalStateException(e);
     }
-    return keyBuilder.toString();
   }
 
-  private void appendLegacyKeys(StringBuilder key) {
+  private void appendLegacyKeys(Appendable key) throws IOException {
     boolean first = true;
     for (Object legacyParam : legacyParams) {
       if (!first) {
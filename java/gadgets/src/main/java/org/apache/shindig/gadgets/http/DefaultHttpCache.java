@@ -23,6 +23,7 @@ import org.apache.shindig.common.cache.CacheProvider;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 /**
  * Simple cache of HttpResponses. It is recommended that this cache be configured with a shared
@@ -32,25 +33,49 @@ import com.google.inject.Singleton;
 public class DefaultHttpCache extends AbstractHttpCache {
   public static final String CACHE_NAME = "httpResponses";
 
-  private final Cache<String, HttpResponse> cache;
+  private final CacheProvider cacheProvider;
+  private Cache<HttpCacheKey, HttpResponse> cache;
+  private boolean encodeResponses;
 
   @Inject
   public DefaultHttpCache(CacheProvider cacheProvider) {
+    this.cacheProvider = cacheProvider;
     cache = cacheProvider.createCache(CACHE_NAME);
   }
 
+  /**
+   * Store responses in the underlying cache in their {@link HttpResponseCodec} form rather than
+   * as objects. Worth enabling when the cache serializes its values, e.g. an EhCache disk store.
+   */
+  @Inject(optional = true)
+  public void setEncodeResponses(
+      @Named("shindig.cache.http.encode-responses") boolean encodeResponses) {
+    this.encodeResponses = encodeResponses;
+    if (encodeResponses) {
+      Cache<HttpCacheKey, byte[]> encodedCache = cacheProvider.createCache(CACHE_NAME);
+      cache = new EncodedHttpResponseCache<HttpCacheKey>(encodedCache);
+    } else {
+      cache = cacheProvider.createCache(CACHE_NAME);
+    }
+  }
+
+  @Override
+  protected boolean storesResponseObjects() {
+    return !encodeResponses;
+  }
+
   @Override
-  protected HttpResponse getResponseImpl(String key) {
+  protected HttpResponse getResponseImpl(HttpCacheKey key) {
     return cache.getElement(key);
   }
 
   @Override
-  protected void addResponseImpl(String key, HttpResponse response) {
+  protected void addResponseImpl(HttpCacheKey key, HttpResponse response) {
     cache.addElement(key, response);
   }
 
   @Override
-  protected void removeResponseImpl(String key) {
+  protected void removeResponseImpl(HttpCacheKey key) {
     cache.removeElement(key);
   }
 }
@@ -53,7 +53,7 @@ public class DefaultInvalidationService implements InvalidationService {
   public static final String CACHE_NAME = "invalidatedUsers";
 
   private final HttpCache httpCache;
-  protected final Cache<String,Long> invalidationEntries;
+  private final Cache<HttpCacheKey,Long> invalidationEntries;
   private final AtomicLong marker;
 
   private static final String TOKEN_PREFIX = "INV_TOK:";
@@ -70,6 +70,14 @@ public class DefaultInvalidationService implements InvalidationService {
     this.marker = marker;
   }
 
+  /**
+   * @return The marks of the users whose content was invalidated, keyed by the hash of the user
+   *     and application.
+   */
+  protected Cache<HttpCacheKey,Long> getInvalidationEntries() {
+    return invalidationEntries;
+  }
+
   public void invalidateApplicationResources(Set<Uri> uris, SecurityToken token) {
     // TODO Add checks on content
     for (Uri uri : uris) {
@@ -117,19 +125,20 @@ public class DefaultInvalidationService implements InvalidationService {
    * Get the invalidation entry key for a user in the scope of a given
    * application
    */
-  private String getKey(String userId, SecurityToken token) {
-    // Convert the id to the container relative form
-    int colonIndex = userId.lastIndexOf(':');
-    if (colonIndex != -1) {
-      userId = userId.substring(colonIndex + 1);
-    }
+  private HttpCacheKey getKey(String userId, SecurityToken token) {
+    HttpCacheKey.Builder key = new HttpCacheKey.Builder().append(TOKEN_PREFIX);
 
     // Assume the container is consistent in its use of either appId or appUrl.
     // Use appId
     if (!Strings.isNullOrEmpty(token.getAppId())) {
-      return TOKEN_PREFIX + token.getAppId() + ':' + userId;
+      key.append(token.getAppId());
+    } else {
+      key.append(String.valueOf(token.getAppUrl()));
     }
-    return TOKEN_PREFIX + token.getAppUrl() + ':' + userId;
+
+    // Convert the id to the container relative form
+    int colonIndex = userId.lastIndexOf(':');
+    return key.append(':').append(userId, colonIndex + 1, userId.length()).build();
   }
 
   /**
@@ -140,7 +149,7 @@ public class DefaultInvalidationService implements InvalidationService {
 
     Long ownerStamp = null;
     if (request.getOAuthArguments() != null && request.getOAuthArguments().getSignOwner()) {
-      String ownerKey = getKey(request.getSecurityToken().getOwnerId(), request.getSecurityToken());
+      HttpCacheKey ownerKey = getKey(request.getSecurityToken().getOwnerId(), request.getSecurityToken());
       ownerStamp = invalidationEntries.getElement(ownerKey);
     }
     Long viewerStamp = null;
@@ -150,7 +159,7 @@ public class DefaultInvalidationService implements InvalidationService {
               request.getSecurityToken().getViewerId())) {
         viewerStamp = ownerStamp;
       } else {
-        String viewerKey = getKey(request.getSecurityToken().getViewerId(),
+        HttpCacheKey viewerKey = getKey(request.getSecurityToken().getViewerId(),
             request.getSecurityToken());
         viewerStamp = invalidationEntries.getElement(viewerKey);
       }
@@ -18,8 +18,18 @@
  */
 package org.apache.shindig.gadgets.http;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -27,9 +37,12 @@ import com.google.inject.name.Named;
 
 import org.apache.shindig.common.Nullable;
 import org.apache.shindig.common.logging.i18n.MessageKeys;
+import org.apache.shindig.common.servlet.GuiceServletContextListener;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.util.DateUtil;
 import org.apache.shindig.common.util.Utf8UrlCoder;
+import org.apache.shindig.gadgets.AuthType;
+import org.apache.shindig.gadgets.DefaultGuiceModule;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.oauth.OAuthRequest;
 import org.apache.shindig.gadgets.oauth2.OAuth2Request;
@@ -40,6 +53,16 @@ import org.apache.shindig.gadgets.rewrite.RewritingException;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,7 +71,8 @@ import java.util.logging.Logger;
  * signing on top of standard HTTP requests.
  */
 @Singleton
-public class DefaultRequestPipeline implements RequestPipeline {
+public class DefaultRequestPipeline implements AsyncRequestPipeline,
+    GuiceServletContextListener.CleanupCapable {
   private final HttpFetcher httpFetcher;
   private final HttpCache httpCache;
   private final Provider<OAuthRequest> oauthRequestProvider;
@@ -64,6 +88,35 @@ public class DefaultRequestPipeline implements RequestPipeline {
   @Inject(optional = true) @Named("shindig.http.date-drift-limit-ms")
   private static long responseDateDriftLimit = DEFAULT_DRIFT_LIMIT_MS;
 
+  // How long a caller waits for an identical in-flight fetch before fetching on its own.
+  static final long DEFAULT_COALESCING_TIMEOUT_MS = 10L * 1000L;
+
+  // Fetches currently running, keyed by HttpCache.createCacheKey(). Callers that miss the cache while
+  // a fetch for the same key is running wait for its result instead of hitting the origin again.
+  private final ConcurrentMap<HttpCacheKey, InFlightFetch> inFlightRequests =
+      Maps.newConcurrentMap();
+  private final AtomicLong coalescedRequestCount = new AtomicLong();
+  private final AtomicLong coalescingTimeoutCount = new AtomicLong();
+  private boolean coalescingEnabled = true;
+  private long coalescingTimeoutMs = DEFAULT_COALESCING_TIMEOUT_MS;
+
+  static final int DEFAULT_REVALIDATION_THREADS = 2;
+  static final int DEFAULT_REVALIDATION_QUEUE_SIZE = 100;
+
+  // How long after expiration a good cached response may still be served while it is refreshed
+  // in the background. 0 disables stale-while-revalidate.
+  private long staleWhileRevalidateMs = 0;
+  private int revalidationThreads = DEFAULT_REVALIDATION_THREADS;
+  private int revalidationQueueSize = DEFAULT_REVALIDATION_QUEUE_SIZE;
+  private ExecutorService revalidationExecutor;
+
+  // Runs blocking fetches and rewriting for executeAsync().
+  private ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+
+  // Keys with a background refresh queued or running, so each key is refreshed at most once.
+  private final ConcurrentMap<HttpCacheKey, Boolean> revalidatingKeys = Maps.newConcurrentMap();
+  private final AtomicLong staleWhileRevalidateCount = new AtomicLong();
+
   //class name for logging purpose
   private static final String classname = DefaultRequestPipeline.class.getName();
   private static final Logger LOG = Logger.getLogger(classname,MessageKeys.MESSAGES);
@@ -86,10 +139,175 @@ public class DefaultRequestPipeline implements RequestPipeline {
     this.metadataHelper = metadataHelper;
   }
 
+  /**
+   * Enable or disable coalescing of concurrent identical fetches.
+   *
+   * @param coalescingEnabled true to let concurrent cache misses for the same key share one fetch
+   */
+  @Inject(optional = true)
+  public void setCoalescingEnabled(
+      @Named("shindig.http.request-coalescing.enabled") boolean coalescingEnabled) {
+    this.coalescingEnabled = coalescingEnabled;
+  }
+
+  /**
+   * Change how long a coalesced caller waits for the in-flight fetch it joined. When the wait
+   * times out the caller performs its own fetch.
+   *
+   * @param coalescingTimeoutMs wait timeout in milliseconds
+   */
+  @Inject(optional = true)
+  public void setCoalescingTimeoutMs(
+      @Named("shindig.http.request-coalescing.timeout-ms") long coalescingTimeoutMs) {
+    Preconditions.checkArgument(coalescingTimeoutMs > 0,
+        "request-coalescing.timeout-ms must be greater than 0");
+    this.coalescingTimeoutMs = coalescingTimeoutMs;
+  }
+
+  /**
+   * @return the number of callers that were served by another caller's in-flight fetch.
+   */
+  public long getCoalescedRequestCount() {
+    return coalescedRequestCount.get();
+  }
+
+  /**
+   * @return the number of coalesced callers that gave up waiting and fetched on their own.
+   */
+  public long getCoalescingTimeoutCount() {
+    return coalescingTimeoutCount.get();
+  }
+
+  /**
+   * Change how long after expiration a cached response may be served while it is refreshed in
+   * the background. Stale responses outside this window are revalidated synchronously.
+   *
+   * @param staleWhileRevalidateMs grace window in milliseconds, or 0 to disable
+   */
+  @Inject(optional = true)
+  public void setStaleWhileRevalidateMs(
+      @Named("shindig.http.stale-while-revalidate-ms") long staleWhileRevalidateMs) {
+    Preconditions.checkArgument(staleWhileRevalidateMs >= 0,
+        "stale-while-revalidate-ms must not be negative");
+    this.staleWhileRevalidateMs = staleWhileRevalidateMs;
+  }
+
+  /**
+   * Change the number of threads used for background refreshes.
+   *
+   * @param revalidationThreads number of threads
+   */
+  @Inject(optional = true)
+  public synchronized void setRevalidationThreads(
+      @Named("shindig.http.stale-while-revalidate.threads") int revalidationThreads) {
+    Preconditions.checkArgument(revalidationThreads > 0,
+        "stale-while-revalidate.threads must be greater than 0");
+    this.revalidationThreads = revalidationThreads;
+  }
+
+  /**
+   * Change how many background refreshes may wait for a thread. When the queue is full, stale
+   * responses are revalidated synchronously instead.
+   *
+   * @param revalidationQueueSize maximum number of queued refreshes
+   */
+  @Inject(optional = true)
+  public synchronized void setRevalidationQueueSize(
+      @Named("shindig.http.stale-while-revalidate.queue-size") int revalidationQueueSize) {
+    Preconditions.checkArgument(revalidationQueueSize > 0,
+        "stale-while-revalidate.queue-size must be greater than 0");
+    this.revalidationQueueSize = revalidationQueueSize;
+  }
+
+  /**
+   * Override the executor used for background refreshes.
+   */
+  @VisibleForTesting
+  synchronized void setRevalidationExecutor(ExecutorService revalidationExecutor) {
+    this.revalidationExecutor = revalidationExecutor;
+  }
+
+  @Inject(optional = true)
+  public void setCleanupHandler(GuiceServletContextListener.CleanupHandler cleanupHandler) {
+    cleanupHandler.register(this);
+  }
+
+  public synchronized void cleanup() {
+    if (revalidationExecutor != null) {
+      revalidationExecutor.shutdown();
+    }
+  }
+
+  /**
+   * @return the number of stale responses served while a background refresh was scheduled.
+   */
+  public long getStaleWhileRevalidateCount() {
+    return staleWhileRevalidateCount.get();
+  }
+
   public HttpResponse execute(HttpRequest request) throws GadgetException {
-    final String method = "execute";
     normalizeProtocol(request);
 
+    CacheLookup lookup = lookupCachedResponse(request);
+    if (lookup.servableResponse != null) {
+      return lookup.servableResponse;
+    }
+    return fetchCoalesced(request, lookup.invalidatedResponse, lookup.staleResponse);
+  }
+
+  /**
+   * Asynchronous form of {@link #execute(HttpRequest)} with the same caching, signing and
+   * rewriting. Cache hits complete immediately. Unauthenticated fetches use
+   * {@link AsyncHttpFetcher#fetchAsync(HttpRequest)} when the fetcher supports it; all other
+   * fetches, and all response rewriting, run on the executor set through
+   * {@link #setExecutor(ExecutorService)}, which defaults to the calling thread.
+   *
+   * Callers that join an identical in-flight fetch share its future directly, so the coalescing
+   * wait timeout does not apply here; use a timed get on the returned future instead.
+   */
+  public ListenableFuture<HttpResponse> executeAsync(HttpRequest request) {
+    CacheLookup lookup;
+    try {
+      normalizeProtocol(request);
+      lookup = lookupCachedResponse(request);
+    } catch (GadgetException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    if (lookup.servableResponse != null) {
+      return Futures.immediateFuture(lookup.servableResponse);
+    }
+    return fetchCoalescedAsync(request, lookup.invalidatedResponse, lookup.staleResponse);
+  }
+
+  /**
+   * Change the executor used by {@link #executeAsync(HttpRequest)} to run blocking fetches and
+   * response rewriting.
+   *
+   * @param executor executor for asynchronous work
+   */
+  @Inject(optional = true)
+  public void setExecutor(ExecutorService executor) {
+    this.executor = MoreExecutors.listeningDecorator(executor);
+  }
+
+  /**
+   * The result of consulting the cache before a fetch.
+   */
+  private static final class CacheLookup {
+    // Response that can be returned without fetching.
+    private HttpResponse servableResponse;
+    private HttpResponse invalidatedResponse;
+    private HttpResponse staleResponse;
+  }
+
+  /**
+   * Consult the cache for the request. If nothing usable is found, the request is prepared for
+   * a fetch: a conditional GET is set up when there is a stale response to revalidate.
+   */
+  private CacheLookup lookupCachedResponse(HttpRequest request) {
+    final String method = "execute";
+    CacheLookup lookup = new CacheLookup();
+
     HttpResponse cachedResponse = checkCachedResponse(request);
 
     HttpResponse invalidatedResponse = null;
@@ -105,7 +323,8 @@ public class DefaultRequestPipeline implements RequestPipeline {
             LOG.logp(Level.FINEST, classname, method, MessageKeys.CACHED_RESPONSE,
                     new Object[]{request.getUri().toString()});
           }
-          return cachedResponse;
+          lookup.servableResponse = cachedResponse;
+          return lookup;
         } else {
           invalidatedResponse = cachedResponse;
         }
@@ -117,27 +336,355 @@ public class DefaultRequestPipeline implements RequestPipeline {
       }
     }
 
+    // If the stale response is still within the grace window, serve it right away and refresh
+    // it in the background.
+    if (staleResponse != null && isRevalidatableInBackground(request, staleResponse)
+        && scheduleRevalidation(request, staleResponse)) {
+      staleWhileRevalidateCount.incrementAndGet();
+      if (LOG.isLoggable(Level.FINEST)) {
+        LOG.logp(Level.FINEST, classname, method, MessageKeys.STALE_RESPONSE,
+            new Object[]{request.getUri().toString()});
+      }
+      lookup.servableResponse = staleResponse;
+      return lookup;
+    }
+
     // If we have a stale response, perform a conditional GET.
-    // Note: Fixing up the request with these headers will not affect http response caching. See
-    // org.apache.shindig.gadgets.http.AbstractHttpCache.createKey(HttpRequest)
     if (staleResponse != null) {
-      final String lastModified = staleResponse.getHeader(HttpHeaders.LAST_MODIFIED);
-      if (lastModified != null) {
-        request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+      addConditionalHeaders(request, staleResponse);
+    }
+
+    lookup.invalidatedResponse = invalidatedResponse;
+    lookup.staleResponse = staleResponse;
+    return lookup;
+  }
+
+  /**
+   * Fetch the request, sharing the fetch with concurrent callers that have the same cache key.
+   */
+  private HttpResponse fetchCoalesced(HttpRequest request,
+      @Nullable HttpResponse invalidatedResponse, @Nullable HttpResponse staleResponse)
+      throws GadgetException {
+    HttpCacheKey coalescingKey = getCoalescingKey(request);
+    if (coalescingKey == null) {
+      return fetchAndFixResponse(request, invalidatedResponse, staleResponse);
+    }
+
+    InFlightFetch fetch = new InFlightFetch();
+    InFlightFetch inFlight = inFlightRequests.putIfAbsent(coalescingKey, fetch);
+    if (inFlight != null) {
+      if (!inFlight.join()) {
+        // The other fetch is being aborted, go to the network ourselves.
+        return fetchAndFixResponse(request, invalidatedResponse, staleResponse);
       }
+      HttpResponse coalescedResponse = awaitInFlightResponse(request, inFlight.response);
+      if (coalescedResponse != null) {
+        return coalescedResponse;
+      }
+      // Waited too long for the other fetch, go to the network ourselves.
+      return fetchAndFixResponse(request, invalidatedResponse, staleResponse);
+    }
+
+    try {
+      HttpResponse fetchedResponse = fetchAndFixResponse(request, invalidatedResponse,
+          staleResponse);
+      fetch.response.set(fetchedResponse);
+      return fetchedResponse;
+    } catch (GadgetException e) {
+      fetch.response.setException(e);
+      throw e;
+    } catch (RuntimeException e) {
+      fetch.response.setException(e);
+      throw e;
+    } finally {
+      inFlightRequests.remove(coalescingKey, fetch);
+    }
+  }
+
+  /**
+   * Asynchronous form of {@link #fetchCoalesced}. Callers with the same cache key share the
+   * fetch of the first caller. Each caller gets its own view of the shared future, so a caller
+   * that cancels its future doesn't cancel the others. The fetch is cancelled once every caller
+   * waiting on it has cancelled.
+   */
+  private ListenableFuture<HttpResponse> fetchCoalescedAsync(HttpRequest request,
+      @Nullable HttpResponse invalidatedResponse, @Nullable HttpResponse staleResponse) {
+    final HttpCacheKey coalescingKey = getCoalescingKey(request);
+    if (coalescingKey == null) {
+      return fetchAndFixResponseAsync(request, invalidatedResponse, staleResponse);
+    }
+
+    final InFlightFetch fetch = new InFlightFetch();
+    InFlightFetch inFlight = inFlightRequests.putIfAbsent(coalescingKey, fetch);
+    if (inFlight != null) {
+      if (!inFlight.join()) {
+        // The other fetch is being aborted, go to the network ourselves.
+        return fetchAndFixResponseAsync(request, invalidatedResponse, staleResponse);
+      }
+      coalescedRequestCount.incrementAndGet();
+      return inFlight.newCallerFuture(coalescingKey);
+    }
+
+    fetch.fetch = fetchAndFixResponseAsync(request, invalidatedResponse, staleResponse);
+    Futures.addCallback(fetch.fetch, new FutureCallback<HttpResponse>() {
+      public void onSuccess(HttpResponse response) {
+        inFlightRequests.remove(coalescingKey, fetch);
+        fetch.response.set(response);
+      }
+
+      public void onFailure(Throwable t) {
+        inFlightRequests.remove(coalescingKey, fetch);
+        fetch.response.setException(t);
+      }
+    }, MoreExecutors.directExecutor());
+    return fetch.newCallerFuture(coalescingKey);
+  }
+
+  /**
+   * A fetch shared by the callers that missed the cache with the same key. Blocking callers wait
+   * on it until it completes; asynchronous callers may cancel, and when the last caller has
+   * cancelled an asynchronous fetch, it is aborted.
+   */
+  private final class InFlightFetch {
+    private final SettableFuture<HttpResponse> response = SettableFuture.create();
+    // The asynchronous fetch that completes the response, or null for a blocking one.
+    private volatile ListenableFuture<HttpResponse> fetch;
+    private int callers = 1;
+    private boolean aborted;
+
+    /**
+     * @return Whether the caller may wait on the response; false once the fetch is being aborted.
+     */
+    synchronized boolean join() {
+      if (aborted) {
+        return false;
+      }
+      callers++;
+      return true;
+    }
+
+    /**
+     * @return A future for the response that only the caller can cancel.
+     */
+    ListenableFuture<HttpResponse> newCallerFuture(final HttpCacheKey key) {
+      final ListenableFuture<HttpResponse> callerFuture =
+          Futures.nonCancellationPropagating(response);
+      callerFuture.addListener(new Runnable() {
+        public void run() {
+          if (callerFuture.isCancelled()) {
+            leave(key);
+          }
+        }
+      }, MoreExecutors.directExecutor());
+      return callerFuture;
+    }
 
-      final String etag = staleResponse.getHeader(HttpHeaders.ETAG);
-      if (etag != null) {
-        request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    private void leave(HttpCacheKey key) {
+      synchronized (this) {
+        if (--callers > 0 || response.isDone() || fetch == null) {
+          return;
+        }
+        aborted = true;
       }
+      inFlightRequests.remove(key, this);
+      fetch.cancel(true);
     }
+  }
+
+  private ListenableFuture<HttpResponse> fetchAndFixResponseAsync(final HttpRequest request,
+      @Nullable final HttpResponse invalidatedResponse,
+      @Nullable final HttpResponse staleResponse) {
+    return Futures.transform(fetchResponseAsync(request),
+        new AsyncFunction<HttpResponse, HttpResponse>() {
+          public ListenableFuture<HttpResponse> apply(HttpResponse fetchedResponse)
+              throws GadgetException {
+            return Futures.immediateFuture(fixFetchedResponse(request, fetchedResponse,
+                invalidatedResponse, staleResponse));
+          }
+        }, executor);
+  }
 
+  /**
+   * Fetch the response from the network without blocking the caller when possible.
+   * Unauthenticated requests go straight to an {@link AsyncHttpFetcher}; everything else runs
+   * {@link #fetchResponse(HttpRequest)} on the executor.
+   * Override this if you need to extend the current behavior of supported auth type.
+   *
+   * @param request
+   * @return future HttpResponse object fetched from network
+   */
+  protected ListenableFuture<HttpResponse> fetchResponseAsync(final HttpRequest request) {
+    if (request.getAuthType() == AuthType.NONE && httpFetcher instanceof AsyncHttpFetcher) {
+      return ((AsyncHttpFetcher) httpFetcher).fetchAsync(request);
+    }
+    try {
+      return executor.submit(new Callable<HttpResponse>() {
+        public HttpResponse call() throws GadgetException {
+          return fetchResponse(request);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      return Futures.immediateFailedFuture(new GadgetException(
+          GadgetException.Code.INTERNAL_SERVER_ERROR, e, HttpResponse.SC_INTERNAL_SERVER_ERROR));
+    }
+  }
+
+  /**
+   * Turn the request into a conditional GET against the given stale response.
+   * Note: Fixing up the request with these headers will not affect http response caching. See
+   * org.apache.shindig.gadgets.http.AbstractHttpCache.createKey(HttpRequest)
+   */
+  private static void addConditionalHeaders(HttpRequest request, HttpResponse staleResponse) {
+    final String lastModified = staleResponse.getHeader(HttpHeaders.LAST_MODIFIED);
+    if (lastModified != null) {
+      request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    }
+
+    final String etag = staleResponse.getHeader(HttpHeaders.ETAG);
+    if (etag != null) {
+      request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    }
+  }
+
+  /**
+   * Check whether a stale cached response may be served while it is refreshed in the background.
+   * Responses that demand revalidation (max-age=0) or that have been invalidated are never served
+   * stale, and only unauthenticated requests are refreshed in the background.
+   * Override this to change which stale responses are served.
+   *
+   * @param request
+   * @param staleResponse
+   * @return true if the stale response can be served as is
+   */
+  protected boolean isRevalidatableInBackground(HttpRequest request, HttpResponse staleResponse) {
+    // Authenticated fetches stay on the caller's thread.
+    if (staleWhileRevalidateMs <= 0 || request.getIgnoreCache()
+        || request.getAuthType() != AuthType.NONE || !"GET".equals(request.getMethod())) {
+      return false;
+    }
+    long expiration = staleResponse.getCacheExpiration();
+    if (expiration == -1 || staleResponse.getCacheControlMaxAge() == 0) {
+      return false;
+    }
+    long now = HttpUtil.getTimeSource().currentTimeMillis();
+    return now - expiration <= staleWhileRevalidateMs
+        && invalidationService.isValid(request, staleResponse);
+  }
+
+  /**
+   * Queue a conditional refetch of the stale response, unless one is already pending for its key.
+   *
+   * @return false if the refresh could not be queued and the caller should revalidate itself
+   */
+  private boolean scheduleRevalidation(HttpRequest request, final HttpResponse staleResponse) {
+    final HttpCacheKey key = httpCache.createCacheKey(request);
+    if (key == null) {
+      return false;
+    }
+    if (revalidatingKeys.putIfAbsent(key, Boolean.TRUE) != null) {
+      // Someone else is already refreshing this entry.
+      return true;
+    }
+
+    // Work on a copy, the caller still owns the original request.
+    final HttpRequest refreshRequest = new HttpRequest(request);
+    try {
+      getRevalidationExecutor().execute(new Runnable() {
+        public void run() {
+          try {
+            addConditionalHeaders(refreshRequest, staleResponse);
+            fetchCoalesced(refreshRequest, null, staleResponse);
+          } catch (GadgetException e) {
+            LOG.log(Level.INFO, "Background refresh failed for " + refreshRequest.getUri(), e);
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Background refresh failed for " + refreshRequest.getUri(), e);
+          } finally {
+            revalidatingKeys.remove(key);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      revalidatingKeys.remove(key);
+      return false;
+    }
+    return true;
+  }
+
+  private synchronized ExecutorService getRevalidationExecutor() {
+    if (revalidationExecutor == null) {
+      revalidationExecutor = new ThreadPoolExecutor(revalidationThreads, revalidationThreads,
+          60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(revalidationQueueSize),
+          DefaultGuiceModule.DAEMON_THREAD_FACTORY);
+    }
+    return revalidationExecutor;
+  }
+
+  private HttpResponse fetchAndFixResponse(HttpRequest request,
+      @Nullable HttpResponse invalidatedResponse, @Nullable HttpResponse staleResponse)
+      throws GadgetException {
     HttpResponse fetchedResponse = fetchResponse(request);
     fetchedResponse = fixFetchedResponse(request, fetchedResponse, invalidatedResponse,
         staleResponse);
     return fetchedResponse;
   }
 
+  /**
+   * Returns the key under which concurrent fetches for this request may be coalesced, or null if
+   * the request must always be fetched on its own. Only requests that are eligible for the
+   * shared cache are coalesced, since the cache key is what makes two responses interchangeable.
+   * Override this to change which requests share a fetch.
+   *
+   * @param request
+   * @return the coalescing key, or null
+   */
+  protected HttpCacheKey getCoalescingKey(HttpRequest request) {
+    if (!coalescingEnabled || request.getIgnoreCache() || !"GET".equals(request.getMethod())) {
+      return null;
+    }
+    return httpCache.createCacheKey(request);
+  }
+
+  /**
+   * Wait for the result of a fetch started by another caller.
+   *
+   * @return the shared response, or null if the wait timed out
+   * @throws GadgetException if the shared fetch failed or the wait was interrupted
+   */
+  private HttpResponse awaitInFlightResponse(HttpRequest request,
+      SettableFuture<HttpResponse> inFlight) throws GadgetException {
+    final String method = "awaitInFlightResponse";
+    coalescedRequestCount.incrementAndGet();
+    try {
+      return inFlight.get(coalescingTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      coalescingTimeoutCount.incrementAndGet();
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.logp(Level.FINE, classname, method, "Timed out waiting for in-flight fetch of "
+            + request.getUri());
+      }
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, e,
+          HttpResponse.SC_INTERNAL_SERVER_ERROR);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof GadgetException) {
+        throw (GadgetException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, cause,
+          HttpResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  @VisibleForTesting
+  int getInFlightRequestCount() {
+    return inFlightRequests.size();
+  }
+
   /**
    * Normalizing the HttpRequest object to verify the validity of the request.
    *
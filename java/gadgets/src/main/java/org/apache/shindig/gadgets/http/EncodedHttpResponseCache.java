@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import org.apache.shindig.common.cache.Cache;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapts a cache of bytes into a cache of HttpResponses, storing each response in the form
+ * produced by {@link HttpResponseCodec}. This makes entries much smaller and cheaper to
+ * deserialize than Java serialization for caches that copy or serialize their values, such as a
+ * disk store or a distributed cache.
+ */
+public class EncodedHttpResponseCache<K> implements Cache<K, HttpResponse> {
+  private static final Logger LOG = Logger.getLogger(EncodedHttpResponseCache.class.getName());
+
+  private final Cache<K, byte[]> cache;
+
+  public EncodedHttpResponseCache(Cache<K, byte[]> cache) {
+    this.cache = cache;
+  }
+
+  public HttpResponse getElement(K key) {
+    return decode(key, cache.getElement(key));
+  }
+
+  public void addElement(K key, HttpResponse value) {
+    cache.addElement(key, HttpResponseCodec.encode(value));
+  }
+
+  public HttpResponse removeElement(K key) {
+    return decode(key, cache.removeElement(key));
+  }
+
+  public long getCapacity() {
+    return cache.getCapacity();
+  }
+
+  public long getSize() {
+    return cache.getSize();
+  }
+
+  private HttpResponse decode(K key, byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    try {
+      return HttpResponseCodec.decode(bytes);
+    } catch (IOException e) {
+      // Most likely written by an incompatible version. Treat it as a miss.
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.log(Level.FINE, "Unable to decode cached response for " + key, e);
+      }
+      return null;
+    }
+  }
+}
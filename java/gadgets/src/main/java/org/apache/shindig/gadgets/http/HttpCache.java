@@ -47,4 +47,10 @@ public interface HttpCache {
    * Identical keys do not guarantee that two requests are cache equivalent.
    */
   String createKey(HttpRequest request);
+
+  /**
+   * Create the fixed size cache key of the request: the {@link HttpCacheKey} of the string that
+   * {@link #createKey} returns for it, with the same guarantees.
+   */
+  HttpCacheKey createCacheKey(HttpRequest request);
 }
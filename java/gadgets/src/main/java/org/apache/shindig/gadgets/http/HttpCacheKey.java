@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fixed size key for cached HTTP responses and other per-request cache entries.
+ *
+ * The key is a 128-bit murmur3 hash of the key text, plus a 64-bit SipHash of the same text that
+ * guards against the (already remote) chance of two texts sharing the 128-bit hash. Keys are hashed
+ * as their text is appended to a {@link Builder}, so the text itself never has to be built.
+ *
+ * A key built from text that is appended in pieces is equal to the key of the whole text.
+ */
+public final class HttpCacheKey implements Serializable {
+  private static final long serialVersionUID = 6150243574011637839L;
+
+  /** The length of the binary form of a key. */
+  public static final int SIZE = 24;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+  private static final HashFunction CHECK = Hashing.sipHash24();
+
+  private final long hash1;
+  private final long hash2;
+  private final long check;
+
+  HttpCacheKey(long hash1, long hash2, long check) {
+    this.hash1 = hash1;
+    this.hash2 = hash2;
+    this.check = check;
+  }
+
+  /**
+   * @return The key for the given text.
+   */
+  public static HttpCacheKey of(CharSequence text) {
+    return new Builder().append(text).build();
+  }
+
+  /**
+   * @return The key whose binary form starts at the given offset.
+   */
+  public static HttpCacheKey fromBytes(byte[] bytes, int offset) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, SIZE);
+    return new HttpCacheKey(buffer.getLong(), buffer.getLong(), buffer.getLong());
+  }
+
+  /**
+   * @return The binary form of the key, {@link #SIZE} bytes long.
+   */
+  public byte[] toBytes() {
+    return ByteBuffer.allocate(SIZE).putLong(hash1).putLong(hash2).putLong(check).array();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (!(obj instanceof HttpCacheKey)) {
+      return false;
+    }
+    HttpCacheKey other = (HttpCacheKey) obj;
+    return hash1 == other.hash1 && hash2 == other.hash2 && check == other.check;
+  }
+
+  @Override
+  public int hashCode() {
+    // The bits are already well mixed.
+    return (int) hash1;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%016x%016x-%016x", hash1, hash2, check);
+  }
+
+  /**
+   * Hashes key text as it is appended.
+   */
+  public static final class Builder implements Appendable {
+    private final Hasher hasher = HASH.newHasher();
+    private final Hasher checker = CHECK.newHasher();
+
+    public Builder append(CharSequence text) {
+      hasher.putUnencodedChars(text);
+      checker.putUnencodedChars(text);
+      return this;
+    }
+
+    public Builder append(CharSequence text, int start, int end) {
+      for (int i = start; i < end; i++) {
+        append(text.charAt(i));
+      }
+      return this;
+    }
+
+    public Builder append(char c) {
+      hasher.putChar(c);
+      checker.putChar(c);
+      return this;
+    }
+
+    /**
+     * @return The key of the appended text. The builder can't be used any more afterwards.
+     */
+    public HttpCacheKey build() {
+      HashCode hash = hasher.hash();
+      ByteBuffer bytes = ByteBuffer.wrap(hash.asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+      return new HttpCacheKey(bytes.getLong(), bytes.getLong(), checker.hash().asLong());
+    }
+  }
+}
@@ -38,6 +38,7 @@ import com.google.inject.name.Named;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.util.DateUtil;
+import org.apache.shindig.common.util.GzipUtil;
 import org.apache.shindig.common.util.TimeSource;
 import org.apache.shindig.gadgets.encoding.EncodingDetector;
 
@@ -185,7 +186,12 @@ public final class HttpResponse implements Externalizable {
 
   private int httpStatusCode;
   private Multimap<String, String> headers;
+  // Null if the body is only held in gzipped form, see withGzippedBodyOnly().
   private byte[] responseBytes;
+  // The gzipped form of responseBytes, if it was compressed ahead of time. Null otherwise.
+  private byte[] gzippedBytes;
+  // The length of the plain body when only the gzipped form is held.
+  private int gzippedOnlyLength;
 
   private long refetchStrictNoCacheAfterMs;
 
@@ -204,6 +210,7 @@ public final class HttpResponse implements Externalizable {
 
     // Always safe, HttpResponseBuilder won't modify the body.
     responseBytes = builder.getResponse();
+    gzippedBytes = builder.getGzippedResponse(responseBytes);
 
     // Copy headers after builder.getResponse(), since that can modify Content-Type.
     headerCopy.putAll(builder.getHeaders());
@@ -218,6 +225,29 @@ public final class HttpResponse implements Externalizable {
     refetchStrictNoCacheAfterMs = builder.getRefetchStrictNoCacheAfterMs();
   }
 
+  /**
+   * Reconstruct a response from its already normalized state (called by HttpResponseCodec).
+   * Unlike the builder constructor, this doesn't parse the Date header or detect the encoding.
+   */
+  HttpResponse(int httpStatusCode, Multimap<String, String> headers, byte[] responseBytes,
+      byte[] gzippedBytes, long date, String encoding, Map<String, String> metadata,
+      long refetchStrictNoCacheAfterMs) {
+    this.httpStatusCode = httpStatusCode;
+    this.headers = Multimaps.unmodifiableMultimap(headers);
+    this.responseBytes = responseBytes;
+    this.gzippedBytes = gzippedBytes;
+    this.date = date;
+    Charset charset;
+    try {
+      charset = encodingToCharset.get(encoding);
+    } catch (ExecutionException e) {
+      charset = DEFAULT_ENCODING;
+    }
+    this.encoding = charset;
+    this.metadata = metadata;
+    this.refetchStrictNoCacheAfterMs = refetchStrictNoCacheAfterMs;
+  }
+
   private HttpResponse(int httpStatusCode, String body) {
     this(new HttpResponseBuilder()
       .setHttpStatusCode(httpStatusCode)
@@ -273,14 +303,37 @@ public final class HttpResponse implements Externalizable {
    * @return the content length
    */
   public int getContentLength() {
-    return responseBytes.length;
+    return responseBytes != null ? responseBytes.length : gzippedOnlyLength;
   }
 
   /**
    * @return An input stream suitable for reading the entirety of the response.
    */
   public InputStream getResponse() {
-    return new ByteArrayInputStream(responseBytes);
+    return new ByteArrayInputStream(getBody());
+  }
+
+  /**
+   * @return True if the response carries a gzipped form of its body, which can be served as is
+   * to clients that accept gzip.
+   */
+  public boolean hasGzippedResponse() {
+    return gzippedBytes != null;
+  }
+
+  /**
+   * @return The length of the gzipped body, or -1 if the response doesn't carry one.
+   */
+  public int getGzippedContentLength() {
+    return gzippedBytes != null ? gzippedBytes.length : -1;
+  }
+
+  /**
+   * @return An input stream for reading the gzipped body, or null if the response doesn't carry
+   * one.
+   */
+  public InputStream getGzippedResponse() {
+    return gzippedBytes != null ? new ByteArrayInputStream(gzippedBytes) : null;
   }
 
   /**
@@ -292,12 +345,17 @@ public final class HttpResponse implements Externalizable {
    */
   public String getResponseAsString() {
     if (responseString == null) {
-      responseString = encoding.decode(ByteBuffer.wrap(responseBytes)).toString();
+      String string = encoding.decode(ByteBuffer.wrap(getBody())).toString();
 
       // Strip BOM if present.
-      if (responseString.length() > 0 && responseString.codePointAt(0) == 0xFEFF) {
-        responseString = responseString.substring(1);
+      if (string.length() > 0 && string.codePointAt(0) == 0xFEFF) {
+        string = string.substring(1);
+      }
+      if (responseBytes == null) {
+        // Keeping the string would defeat holding the body in gzipped form only.
+        return string;
       }
+      responseString = string;
     }
     return responseString;
   }
@@ -587,7 +645,7 @@ public final class HttpResponse implements Externalizable {
   public int hashCode() {
     return httpStatusCode
       ^ headers.hashCode()
-      ^ Arrays.hashCode(responseBytes);
+      ^ Arrays.hashCode(getBody());
   }
 
   @Override
@@ -599,7 +657,7 @@ public final class HttpResponse implements Externalizable {
 
     return httpStatusCode == response.httpStatusCode &&
            headers.equals(response.headers) &&
-           Arrays.equals(responseBytes, response.responseBytes);
+           Arrays.equals(getBody(), response.getBody());
   }
 
   @Override
@@ -617,7 +675,55 @@ public final class HttpResponse implements Externalizable {
    * making a new HttpResponseBuilder.
    */
   byte[] getResponseAsBytes() {
-    return responseBytes;
+    return getBody();
+  }
+
+  /**
+   * @return The gzipped body, or null. Only visible to the package to avoid copying.
+   */
+  byte[] getGzippedResponseAsBytes() {
+    return gzippedBytes;
+  }
+
+  /**
+   * @return True if the body is only held in gzipped form, and inflated whenever it is read.
+   */
+  boolean isGzippedOnly() {
+    return responseBytes == null;
+  }
+
+  /**
+   * @return A copy of this response that only holds the gzipped form of its body, for caches
+   * that keep responses as objects. The plain body is inflated again whenever it is read.
+   * Returns this response if it has no gzipped form.
+   */
+  HttpResponse withGzippedBodyOnly() {
+    if (gzippedBytes == null || responseBytes == null) {
+      return this;
+    }
+    HttpResponse response = new HttpResponse(httpStatusCode, headers, null, gzippedBytes, date,
+        encoding.name(), metadata, refetchStrictNoCacheAfterMs);
+    response.gzippedOnlyLength = responseBytes.length;
+    return response;
+  }
+
+  private byte[] getBody() {
+    if (responseBytes != null) {
+      return responseBytes;
+    }
+    try {
+      return GzipUtil.decompress(gzippedBytes, gzippedOnlyLength);
+    } catch (IOException e) {
+      // Doesn't occur; the gzipped form was compressed from the body in this process.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return The response date in milliseconds, as derived from the Date header.
+   */
+  long getDate() {
+    return date;
   }
 
   /**
@@ -667,8 +773,9 @@ public final class HttpResponse implements Externalizable {
       map.put(key, Lists.newArrayList(headers.get(key)));
     }
     out.writeObject(Maps.newHashMap(map));
-    out.writeInt(responseBytes.length);
-    out.write(responseBytes);
+    byte[] body = getBody();
+    out.writeInt(body.length);
+    out.write(body);
   }
 
 
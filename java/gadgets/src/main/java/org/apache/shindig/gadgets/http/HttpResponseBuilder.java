@@ -35,6 +35,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -57,6 +58,10 @@ public class HttpResponseBuilder extends MutableContent {
   private long refetchStrictNoCacheAfterMs =
       AbstractHttpCache.REFETCH_STRICT_NO_CACHE_AFTER_MS_DEFAULT;
 
+  // The gzipped form of gzippedBody. Created responses only carry it while their body is unchanged.
+  private byte[] gzippedBody;
+  private byte[] gzippedResponse;
+
   public HttpResponseBuilder(GadgetHtmlParser parser, HttpResponse response) {
     super(parser, response);
     if (response != null) {
@@ -64,6 +69,10 @@ public class HttpResponseBuilder extends MutableContent {
       headers.putAll(response.getHeaders());
       metadata.putAll(response.getMetadata());
       refetchStrictNoCacheAfterMs = response.getRefetchStrictNoCacheAfterMs();
+      if (response.hasGzippedResponse()) {
+        gzippedBody = response.getResponseAsBytes();
+        gzippedResponse = response.getGzippedResponseAsBytes();
+      }
     } else {
       setResponse(null);
     }
@@ -301,6 +310,27 @@ public class HttpResponseBuilder extends MutableContent {
     return getResponse().length;
   }
 
+  /**
+   * Attaches the gzipped form of the current response body, to be served as is to clients that
+   * accept gzip. It is dropped from created responses if the body changes afterwards.
+   */
+  HttpResponseBuilder setGzippedResponse(byte[] gzippedResponse) {
+    this.gzippedBody = getResponse();
+    this.gzippedResponse = gzippedResponse;
+    incrementNumChanges();
+    return this;
+  }
+
+  /**
+   * @return The gzipped form of the given body, if one was attached for the same body.
+   */
+  byte[] getGzippedResponse(byte[] body) {
+    if (gzippedResponse != null && Arrays.equals(body, gzippedBody)) {
+      return gzippedResponse;
+    }
+    return null;
+  }
+
   Multimap<String, String> getHeaders() {
     return headers;
   }
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Compact, versioned binary form of an HttpResponse, for caches that store responses as bytes.
+ *
+ * Unlike {@link HttpResponse#writeExternal}, this doesn't go through Java serialization, keeps the
+ * response metadata, and stores the already normalized date and encoding so that decoding doesn't
+ * have to parse headers or detect the encoding again. Only the plain body is stored, since every
+ * cache hit decodes the response; a gzipped form attached to the response is dropped.
+ *
+ * Layout, in network byte order:
+ *
+ * short - magic
+ * byte - format version
+ * int - status code
+ * long - date
+ * long - refetch strict no-cache after ms
+ * string - encoding
+ * int - header count, followed by a name string and value string for each header
+ * int - metadata count, followed by a key string and value string for each entry
+ * int - body length, followed by the body
+ *
+ * Strings are an int byte length followed by UTF-8 bytes.
+ */
+public final class HttpResponseCodec {
+  static final short MAGIC = 0x5352;
+  static final byte VERSION = 1;
+
+  private HttpResponseCodec() {}
+
+  /**
+   * @return The encoded form of the response.
+   */
+  public static byte[] encode(HttpResponse response) {
+    Multimap<String, String> headers = response.getHeaders();
+    Map<String, String> metadata = response.getMetadata();
+    byte[] encoding = utf8(response.getEncoding());
+    byte[] body = response.getResponseAsBytes();
+
+    byte[][] headerStrings = new byte[headers.size() * 2][];
+    int length = 2 + 1 + 4 + 8 + 8 + 4 + encoding.length + 4 + 4 + 4 + body.length;
+    int i = 0;
+    for (Map.Entry<String, String> header : headers.entries()) {
+      length += 8 + add(headerStrings, i++, header.getKey())
+          + add(headerStrings, i++, header.getValue());
+    }
+    byte[][] metadataStrings = new byte[metadata.size() * 2][];
+    i = 0;
+    for (Map.Entry<String, String> entry : metadata.entrySet()) {
+      length += 8 + add(metadataStrings, i++, entry.getKey())
+          + add(metadataStrings, i++, entry.getValue());
+    }
+
+    ByteBuffer out = ByteBuffer.allocate(length);
+    out.putShort(MAGIC);
+    out.put(VERSION);
+    out.putInt(response.getHttpStatusCode());
+    out.putLong(response.getDate());
+    out.putLong(response.getRefetchStrictNoCacheAfterMs());
+    putBytes(out, encoding);
+    putStrings(out, headerStrings);
+    putStrings(out, metadataStrings);
+    putBytes(out, body);
+    return out.array();
+  }
+
+  /**
+   * @return The response encoded in the given bytes.
+   * @throws IOException If the bytes aren't an encoded response in a supported version.
+   */
+  public static HttpResponse decode(byte[] bytes) throws IOException {
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Decodes a response from the buffer's position onwards, reading strings directly from the
+   * buffer's backing array when it has one. Only the body is copied.
+   *
+   * @return The response encoded in the buffer.
+   * @throws IOException If the buffer doesn't hold an encoded response in a supported version.
+   */
+  public static HttpResponse decode(ByteBuffer in) throws IOException {
+    try {
+      if (in.getShort() != MAGIC) {
+        throw new IOException("Not an encoded HttpResponse");
+      }
+      byte version = in.get();
+      if (version != VERSION) {
+        throw new IOException("Unsupported HttpResponse encoding version " + version);
+      }
+      int httpStatusCode = in.getInt();
+      long date = in.getLong();
+      long refetchStrictNoCacheAfterMs = in.getLong();
+      String encoding = getString(in);
+
+      int headerCount = checkCount(in, in.getInt());
+      Multimap<String, String> headers = HttpResponse.newHeaderMultimap();
+      for (int i = 0; i < headerCount; i++) {
+        headers.put(getString(in), getString(in));
+      }
+
+      int metadataCount = checkCount(in, in.getInt());
+      Map<String, String> metadata;
+      if (metadataCount == 0) {
+        metadata = ImmutableMap.of();
+      } else {
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (int i = 0; i < metadataCount; i++) {
+          builder.put(getString(in), getString(in));
+        }
+        metadata = builder.build();
+      }
+
+      byte[] body = new byte[checkLength(in, in.getInt())];
+      in.get(body);
+
+      return new HttpResponse(httpStatusCode, headers, body, null, date, encoding, metadata,
+          refetchStrictNoCacheAfterMs);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated HttpResponse encoding");
+    } catch (IllegalArgumentException e) {
+      // Duplicate metadata keys.
+      throw new IOException("Invalid HttpResponse encoding: " + e.getMessage());
+    }
+  }
+
+  private static int add(byte[][] strings, int index, String value) {
+    strings[index] = utf8(value);
+    return strings[index].length;
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(Charsets.UTF_8);
+  }
+
+  private static void putBytes(ByteBuffer out, byte[] bytes) {
+    out.putInt(bytes.length);
+    out.put(bytes);
+  }
+
+  private static void putStrings(ByteBuffer out, byte[][] strings) {
+    out.putInt(strings.length / 2);
+    for (byte[] string : strings) {
+      putBytes(out, string);
+    }
+  }
+
+  private static String getString(ByteBuffer in) throws IOException {
+    int length = checkLength(in, in.getInt());
+    String value;
+    if (in.hasArray()) {
+      value = new String(in.array(), in.arrayOffset() + in.position(), length, Charsets.UTF_8);
+      in.position(in.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      value = new String(bytes, Charsets.UTF_8);
+    }
+    return value;
+  }
+
+  private static int checkLength(ByteBuffer in, int length) throws IOException {
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException("Invalid length in HttpResponse encoding: " + length);
+    }
+    return length;
+  }
+
+  private static int checkCount(ByteBuffer in, int count) throws IOException {
+    // Every entry takes at least two length prefixes.
+    if (count < 0 || count > in.remaining() / 8) {
+      throw new IOException("Invalid count in HttpResponse encoding: " + count);
+    }
+    return count;
+  }
+}
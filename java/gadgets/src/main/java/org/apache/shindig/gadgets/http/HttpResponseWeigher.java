@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.cache.Weigher;
+
+import java.util.Map;
+
+/**
+ * Estimates the memory held by a cached HttpResponse, in bytes, so that the response cache can be
+ * bounded by size rather than by number of responses. Responses stored in their
+ * {@link HttpResponseCodec} form are weighed by their encoded length.
+ */
+public class HttpResponseWeigher implements Weigher<Object, Object> {
+  // Rough cost of the response object, its header multimap and metadata map.
+  static final int RESPONSE_OVERHEAD = 512;
+  static final int HEADER_OVERHEAD = 64;
+
+  static final int ARRAY_OVERHEAD = 16;
+  static final int KEY_WEIGHT = 40;
+
+  public int weigh(Object key, Object value) {
+    long weight = key instanceof String ? 2L * ((String) key).length() : KEY_WEIGHT;
+    if (value instanceof byte[]) {
+      weight += ARRAY_OVERHEAD + ((byte[]) value).length;
+      return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+    HttpResponse response = (HttpResponse) value;
+    weight += RESPONSE_OVERHEAD;
+    if (!response.isGzippedOnly()) {
+      weight += response.getContentLength();
+    }
+    if (response.hasGzippedResponse()) {
+      weight += ARRAY_OVERHEAD + response.getGzippedContentLength();
+    }
+    for (Map.Entry<String, String> header : response.getHeaders().entries()) {
+      weight += HEADER_OVERHEAD + 2L * (header.getKey().length() + header.getValue().length());
+    }
+    for (Map.Entry<String, String> entry : response.getMetadata().entrySet()) {
+      weight += HEADER_OVERHEAD + 2L * (entry.getKey().length() + entry.getValue().length());
+    }
+    return (int) Math.min(weight, Integer.MAX_VALUE);
+  }
+}
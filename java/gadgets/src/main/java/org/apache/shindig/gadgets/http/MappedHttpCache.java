@@ -0,0 +1,461 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.apache.shindig.common.servlet.GuiceServletContextListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An HttpCache that keeps serialized responses in memory-mapped segment files instead of on the
+ * Java heap, so that large cached bodies don't add to GC pressure and a restarted server comes
+ * back with a warm cache.
+ *
+ * Each segment file is written as a ring: records are appended at a write position that wraps
+ * around to the start of the file once it reaches the end. Records in the way of a new record are
+ * evicted with the clock (second chance) algorithm: a record that has been read since the write
+ * position last passed it is kept once, and the write position skips over it.
+ *
+ * Only a small index of keys to record offsets lives on the heap. Every record carries a
+ * sequence number and a CRC, so on startup the index is rebuilt by scanning the segment files.
+ * Records that were only partially written, or partially overwritten, fail the CRC and are
+ * ignored.
+ *
+ * Responses are stored in their {@link HttpResponseCodec} form.
+ *
+ * To use this cache, bind HttpCache to MappedHttpCache and configure a directory for it. The
+ * directory is locked while the cache is open, and opening a cache on a directory that another
+ * cache holds fails.
+ */
+@Singleton
+public class MappedHttpCache extends AbstractHttpCache
+    implements GuiceServletContextListener.CleanupCapable {
+  private static final Logger LOG = Logger.getLogger(MappedHttpCache.class.getName());
+
+  // "SHC1"
+  static final int MAGIC = 0x53484331;
+  // magic, record length, sequence, key length, payload length
+  static final int HEADER_SIZE = 24;
+  static final int TRAILER_SIZE = 4;
+  static final int ALIGNMENT = 8;
+  static final String LOCK_FILE = "cache.lock";
+
+  private final FileLock lock;
+  private final Segment[] segments;
+  private final AtomicLong sequence = new AtomicLong();
+
+  @Inject
+  public MappedHttpCache(@Named("shindig.cache.http.mapped.directory") String directory,
+                         @Named("shindig.cache.http.mapped.segments") int segmentCount,
+                         @Named("shindig.cache.http.mapped.segment-size-bytes") int segmentSize)
+      throws IOException {
+    Preconditions.checkArgument(segmentCount > 0, "segmentCount must be positive");
+    Preconditions.checkArgument(segmentSize >= 4096, "segmentSize must be at least 4096 bytes");
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(directory),
+        "shindig.cache.http.mapped.directory must be set");
+    File dir = new File(directory);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create HTTP cache directory " + dir);
+    }
+
+    lock = lockDirectory(dir);
+    try {
+      segments = new Segment[segmentCount];
+      long maxSequence = 0;
+      for (int i = 0; i < segmentCount; i++) {
+        segments[i] = new Segment(new File(dir, "segment-" + i + ".dat"),
+            segmentSize & ~(ALIGNMENT - 1));
+        maxSequence = Math.max(maxSequence, segments[i].recover());
+      }
+      sequence.set(maxSequence);
+    } catch (IOException e) {
+      lock.channel().close();
+      throw e;
+    }
+    if (LOG.isLoggable(Level.INFO)) {
+      LOG.info("Opened HTTP cache in " + dir + " with " + getEntryCount() + " entries");
+    }
+  }
+
+  @Inject(optional = true)
+  public void setCleanupHandler(GuiceServletContextListener.CleanupHandler cleanupHandler) {
+    cleanupHandler.register(this);
+  }
+
+  /**
+   * Flushes all segments to disk and releases the directory.
+   */
+  public void cleanup() {
+    for (Segment segment : segments) {
+      segment.flush();
+    }
+    try {
+      lock.channel().close();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to release HTTP cache directory lock", e);
+    }
+  }
+
+  /**
+   * Takes an exclusive lock on the directory, held until {@link #cleanup}, so that no other
+   * process or cache writes to the same segment files.
+   */
+  private static FileLock lockDirectory(File dir) throws IOException {
+    FileChannel channel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+    FileLock lock = null;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Held by another cache in this process.
+    } finally {
+      if (lock == null) {
+        channel.close();
+      }
+    }
+    if (lock == null) {
+      throw new IOException("HTTP cache directory " + dir + " is in use by another cache");
+    }
+    return lock;
+  }
+
+  @Override
+  protected HttpResponse getResponseImpl(HttpCacheKey key) {
+    try {
+      return segmentFor(key).get(key);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Discarding unreadable cached response for " + key, e);
+      segmentFor(key).remove(key);
+      return null;
+    }
+  }
+
+  @Override
+  protected boolean storesResponseObjects() {
+    return false;
+  }
+
+  @Override
+  protected void addResponseImpl(HttpCacheKey key, HttpResponse response) {
+    segmentFor(key).put(key, HttpResponseCodec.encode(response), sequence.incrementAndGet());
+  }
+
+  @Override
+  protected void removeResponseImpl(HttpCacheKey key) {
+    segmentFor(key).remove(key);
+  }
+
+  @VisibleForTesting
+  int getEntryCount() {
+    int count = 0;
+    for (Segment segment : segments) {
+      count += segment.getEntryCount();
+    }
+    return count;
+  }
+
+  private Segment segmentFor(HttpCacheKey key) {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[(h & Integer.MAX_VALUE) % segments.length];
+  }
+
+  private static int align(int length) {
+    return (length + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+  }
+
+  /**
+   * Location of a live record in a segment file.
+   */
+  private static final class Entry {
+    final HttpCacheKey key;
+    final int offset;
+    final int length;
+    final long sequence;
+    volatile boolean referenced;
+
+    Entry(HttpCacheKey key, int offset, int length, long sequence) {
+      this.key = key;
+      this.offset = offset;
+      this.length = length;
+      this.sequence = sequence;
+    }
+
+    int end() {
+      return offset + length;
+    }
+  }
+
+  /**
+   * One memory-mapped file, with its index. Reads share the read lock; writes, including
+   * evictions, take the write lock.
+   */
+  private static final class Segment {
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<HttpCacheKey, Entry> index = Maps.newHashMap();
+    private final TreeMap<Integer, Entry> byOffset = new TreeMap<Integer, Entry>();
+    private int writePosition;
+
+    Segment(File file, int capacity) throws IOException {
+      this.capacity = capacity;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(capacity);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } finally {
+        // The mapping stays valid after the channel is closed.
+        raf.close();
+      }
+    }
+
+    /**
+     * Rebuilds the index from the records in the file.
+     *
+     * @return The highest sequence number found.
+     */
+    long recover() {
+      lock.writeLock().lock();
+      try {
+        ByteBuffer view = buffer.duplicate();
+        Entry newest = null;
+        int position = 0;
+        while (position + HEADER_SIZE + TRAILER_SIZE <= capacity) {
+          Entry entry = readEntry(view, position);
+          if (entry == null) {
+            position += ALIGNMENT;
+            continue;
+          }
+          Entry previous = index.get(entry.key);
+          if (previous == null || previous.sequence < entry.sequence) {
+            if (previous != null) {
+              evict(previous);
+            }
+            index.put(entry.key, entry);
+            byOffset.put(entry.offset, entry);
+          } else {
+            // A stale copy must not come back if the newer one is removed later.
+            view.putInt(entry.offset, 0);
+          }
+          if (newest == null || newest.sequence < entry.sequence) {
+            newest = entry;
+          }
+          position = entry.end();
+        }
+        writePosition = newest == null ? 0 : newest.end();
+        return newest == null ? 0 : newest.sequence;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /**
+     * @return The record at the given position, or null if there is no intact record there.
+     */
+    private Entry readEntry(ByteBuffer view, int position) {
+      if (view.getInt(position) != MAGIC) {
+        return null;
+      }
+      int length = view.getInt(position + 4);
+      if (length % ALIGNMENT != 0 || length < HEADER_SIZE + TRAILER_SIZE
+          || length > capacity - position) {
+        return null;
+      }
+      int keyLength = view.getInt(position + 16);
+      int payloadLength = view.getInt(position + 20);
+      if (keyLength != HttpCacheKey.SIZE || payloadLength < 0
+          || HEADER_SIZE + keyLength + payloadLength + TRAILER_SIZE > length) {
+        return null;
+      }
+      int checkedLength = HEADER_SIZE - 4 + keyLength + payloadLength;
+      byte[] checked = new byte[checkedLength];
+      view.position(position + 4);
+      view.get(checked);
+      CRC32 crc = new CRC32();
+      crc.update(checked);
+      if ((int) crc.getValue() != view.getInt()) {
+        return null;
+      }
+      HttpCacheKey key = HttpCacheKey.fromBytes(checked, HEADER_SIZE - 4);
+      return new Entry(key, position, length, view.getLong(position + 8));
+    }
+
+    /**
+     * Decodes the response straight out of the mapped file. This has to happen under the lock,
+     * since the record may be overwritten as soon as it is released.
+     */
+    HttpResponse get(HttpCacheKey key) throws IOException {
+      lock.readLock().lock();
+      try {
+        Entry entry = index.get(key);
+        if (entry == null) {
+          return null;
+        }
+        entry.referenced = true;
+        ByteBuffer view = buffer.duplicate();
+        int start = entry.offset + HEADER_SIZE + view.getInt(entry.offset + 16);
+        view.limit(start + view.getInt(entry.offset + 20));
+        view.position(start);
+        return HttpResponseCodec.decode(view);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    void put(HttpCacheKey key, byte[] payload, long sequence) {
+      byte[] keyBytes = key.toBytes();
+      int length = align(HEADER_SIZE + keyBytes.length + payload.length + TRAILER_SIZE);
+      if (length > capacity / 4) {
+        // Too large to be worth displacing a quarter of the segment.
+        remove(key);
+        return;
+      }
+
+      byte[] record = new byte[HEADER_SIZE + keyBytes.length + payload.length];
+      ByteBuffer header = ByteBuffer.wrap(record);
+      header.putInt(0);
+      header.putInt(length);
+      header.putLong(sequence);
+      header.putInt(keyBytes.length);
+      header.putInt(payload.length);
+      header.put(keyBytes);
+      header.put(payload);
+      CRC32 crc = new CRC32();
+      crc.update(record, 4, record.length - 4);
+
+      lock.writeLock().lock();
+      try {
+        Entry previous = index.get(key);
+        if (previous != null) {
+          evict(previous);
+        }
+        int offset = allocate(length);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(record);
+        view.putInt((int) crc.getValue());
+        // Write the magic number last, so that a record is never valid before it is complete.
+        view.putInt(offset, MAGIC);
+        Entry entry = new Entry(key, offset, length, sequence);
+        index.put(key, entry);
+        byOffset.put(offset, entry);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    void remove(HttpCacheKey key) {
+      lock.writeLock().lock();
+      try {
+        Entry entry = index.get(key);
+        if (entry != null) {
+          evict(entry);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    int getEntryCount() {
+      lock.readLock().lock();
+      try {
+        return index.size();
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    void flush() {
+      lock.writeLock().lock();
+      try {
+        buffer.force();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /**
+     * Finds room for a record of the given length at the write position, evicting the records in
+     * the way that haven't been read since the write position last passed them.
+     */
+    private int allocate(int length) {
+      // Each record gets at most one second chance per pass over the segment.
+      int skipped = 0;
+      while (true) {
+        if (writePosition + length > capacity) {
+          writePosition = 0;
+        }
+        Map.Entry<Integer, Entry> floor = byOffset.floorEntry(writePosition);
+        if (floor != null && floor.getValue().end() > writePosition) {
+          evict(floor.getValue());
+        }
+        Map.Entry<Integer, Entry> next = byOffset.ceilingEntry(writePosition);
+        if (next == null || next.getKey() >= writePosition + length) {
+          int offset = writePosition;
+          writePosition += length;
+          return offset;
+        }
+        Entry entry = next.getValue();
+        if (entry.referenced && skipped < capacity) {
+          entry.referenced = false;
+          skipped += entry.end() - writePosition;
+          writePosition = entry.end();
+        } else {
+          evict(entry);
+        }
+      }
+    }
+
+    /**
+     * Drops a record from the index and clears its magic number, so that it isn't recovered on
+     * the next startup.
+     */
+    private void evict(Entry entry) {
+      byOffset.remove(entry.offset);
+      if (index.get(entry.key) == entry) {
+        index.remove(entry.key);
+      }
+      buffer.duplicate().putInt(entry.offset, 0);
+    }
+  }
+}
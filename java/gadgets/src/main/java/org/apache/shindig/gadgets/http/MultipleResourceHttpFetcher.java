@@ -20,6 +20,10 @@ package org.apache.shindig.gadgets.http;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.Pair;
@@ -27,6 +31,7 @@ import org.apache.shindig.gadgets.GadgetException;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.List;
 import java.util.Map;
@@ -34,12 +39,20 @@ import java.util.Map;
 
 /**
  * This class provides simple way for doing parallel fetches for multiple
- * resources using FutureTask's.
+ * resources. When the pipeline is an {@link AsyncRequestPipeline}, all requests are started at
+ * once through {@link AsyncRequestPipeline#executeAsync(HttpRequest)}, so with a non-blocking
+ * fetcher no thread is held per outstanding fetch. Other pipelines execute each request on the
+ * executor.
  */
 public class MultipleResourceHttpFetcher {
   private final RequestPipeline requestPipeline;
   private final Executor executor;
 
+  /**
+   * @param requestPipeline pipeline used to execute the requests
+   * @param executor executor on which each request is executed, or with an
+   *     {@link AsyncRequestPipeline}, on which each fetch result is turned into its RequestContext
+   */
   public MultipleResourceHttpFetcher(RequestPipeline requestPipeline, Executor executor) {
     this.requestPipeline = requestPipeline;
     this.executor = executor;
@@ -49,16 +62,16 @@ public class MultipleResourceHttpFetcher {
    * Issue parallel requests to all resources that are needed.
    *
    * @param requests list of requests for which we want the resourses
-   * @return futureTasks List of Pairs of url,futureTask for all the requests
+   * @return futures List of Pairs of url,future for all the requests
    *    in same order as specified.
    */
-  public List<Pair<Uri, FutureTask<RequestContext>>> fetchAll(List<HttpRequest> requests) {
-    List<Pair<Uri, FutureTask<RequestContext>>> futureTasks = Lists.newArrayList();
+  public List<Pair<Uri, Future<RequestContext>>> fetchAll(List<HttpRequest> requests) {
+    List<Pair<Uri, Future<RequestContext>>> futures = Lists.newArrayList();
     for (HttpRequest request : requests) {
-      futureTasks.add(Pair.of(request.getUri(), createHttpFetcher(request)));
+      futures.add(Pair.of(request.getUri(), createHttpFetcher(request)));
     }
 
-    return futureTasks;
+    return futures;
   }
 
   /**
@@ -66,27 +79,45 @@ public class MultipleResourceHttpFetcher {
    * duplicates.
    *
    * @param requests list of urls for which we want the image resourses
-   * @return futureTasks map of url -> futureTask for all the requests sent.
+   * @return futures map of url -> future for all the requests sent.
    */
-  public Map<Uri, FutureTask<RequestContext>> fetchUnique(List<HttpRequest> requests) {
-    Map<Uri, FutureTask<RequestContext>> futureTasks = Maps.newHashMap();
+  public Map<Uri, Future<RequestContext>> fetchUnique(List<HttpRequest> requests) {
+    Map<Uri, Future<RequestContext>> futures = Maps.newHashMap();
     for (HttpRequest request : requests) {
       Uri uri = request.getUri();
-      if (!futureTasks.containsKey(uri)) {
-        futureTasks.put(uri, createHttpFetcher(request));
+      if (!futures.containsKey(uri)) {
+        futures.put(uri, createHttpFetcher(request));
       }
     }
 
-    return futureTasks;
+    return futures;
   }
 
   // Fetch the content of the requested uri.
-  private FutureTask<RequestContext> createHttpFetcher(HttpRequest request) {
-    // Fetch the content of the requested uri.
-    FutureTask<RequestContext> httpFetcher =
-        new FutureTask<RequestContext>(new HttpFetchCallable(request, requestPipeline));
-    executor.execute(httpFetcher);
-    return httpFetcher;
+  private Future<RequestContext> createHttpFetcher(final HttpRequest request) {
+    if (!(requestPipeline instanceof AsyncRequestPipeline)) {
+      FutureTask<RequestContext> httpFetcher =
+          new FutureTask<RequestContext>(new HttpFetchCallable(request, requestPipeline));
+      executor.execute(httpFetcher);
+      return httpFetcher;
+    }
+    final SettableFuture<RequestContext> context = SettableFuture.create();
+    ListenableFuture<HttpResponse> response =
+        ((AsyncRequestPipeline) requestPipeline).executeAsync(request);
+    Futures.addCallback(response, new FutureCallback<HttpResponse>() {
+      public void onSuccess(HttpResponse response) {
+        context.set(new RequestContext(request, response, null));
+      }
+
+      public void onFailure(Throwable t) {
+        if (t instanceof GadgetException) {
+          context.set(new RequestContext(request, null, (GadgetException) t));
+        } else {
+          context.setException(t);
+        }
+      }
+    }, executor);
+    return context;
   }
 
   private static class HttpFetchCallable implements Callable<RequestContext> {
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+/**
+ * Adapts caches written against the String keyed {@code *Impl} methods that
+ * {@link AbstractHttpCache} used to declare.
+ *
+ * Entries are stored under the text form of the request's {@link HttpCacheKey}, a fixed size hash,
+ * rather than under the text of {@link #createKey}. The cache key is the hash of
+ * {@link #createKey}, so subclasses that override it to customize their keys keep working.
+ */
+public abstract class StringKeyedHttpCache extends AbstractHttpCache {
+  protected abstract HttpResponse getResponseImpl(String key);
+  protected abstract void addResponseImpl(String key, HttpResponse response);
+  protected abstract void removeResponseImpl(String key);
+
+  @Override
+  protected final HttpResponse getResponseImpl(HttpCacheKey key) {
+    return getResponseImpl(key.toString());
+  }
+
+  @Override
+  protected final void addResponseImpl(HttpCacheKey key, HttpResponse response) {
+    addResponseImpl(key.toString(), response);
+  }
+
+  @Override
+  protected final void removeResponseImpl(HttpCacheKey key) {
+    removeResponseImpl(key.toString());
+  }
+
+  @Override
+  public HttpCacheKey createCacheKey(HttpRequest request) {
+    return HttpCacheKey.of(createKey(request));
+  }
+}
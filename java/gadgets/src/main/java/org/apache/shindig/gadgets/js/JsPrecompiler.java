@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.js;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.apache.shindig.config.ContainerConfig;
+import org.apache.shindig.gadgets.RenderingContext;
+import org.apache.shindig.gadgets.uri.JsUriManager.JsUri;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compiles commonly requested feature sets for every container ahead of time, by running them
+ * through the serving pipeline in the background at startup. The compiled JS lands in the
+ * compiler's cache, and in its store when one is configured, so that live requests for these sets
+ * don't wait on compilation.
+ *
+ * To use this, install {@link JsPrecompilerModule} and list the feature sets in
+ * shindig.js.precompile.features.
+ */
+@Singleton
+public class JsPrecompiler implements Runnable {
+  private static final Logger LOG = Logger.getLogger(JsPrecompiler.class.getName());
+
+  private static final List<RenderingContext> CONTEXTS =
+      ImmutableList.of(RenderingContext.GADGET, RenderingContext.CONTAINER);
+
+  private final JsServingPipeline pipeline;
+  private final JsRequestBuilder requestBuilder;
+  private final ContainerConfig containerConfig;
+  private final List<List<String>> featureSets;
+
+  /**
+   * @param featureSets Feature sets to compile, separated by commas, each a list of features
+   *     separated by colons as in /js URLs.
+   */
+  @Inject
+  public JsPrecompiler(JsServingPipeline pipeline, JsRequestBuilder requestBuilder,
+      ContainerConfig containerConfig,
+      @Named("shindig.js.precompile.features") String featureSets,
+      ExecutorService executor) {
+    this.pipeline = pipeline;
+    this.requestBuilder = requestBuilder;
+    this.containerConfig = containerConfig;
+    ImmutableList.Builder<List<String>> sets = ImmutableList.builder();
+    for (String set : Splitter.on(',').trimResults().omitEmptyStrings().split(featureSets)) {
+      sets.add(ImmutableList.copyOf(
+          Splitter.on(':').trimResults().omitEmptyStrings().split(set)));
+    }
+    this.featureSets = sets.build();
+    if (!this.featureSets.isEmpty()) {
+      executor.execute(this);
+    }
+  }
+
+  public List<List<String>> getFeatureSets() {
+    return featureSets;
+  }
+
+  public void run() {
+    precompile();
+  }
+
+  /**
+   * Runs every feature set through the pipeline for every container, in both gadget and container
+   * context.
+   *
+   * @return The number of requests that were served successfully.
+   */
+  public int precompile() {
+    int served = 0;
+    int failed = 0;
+    for (String container : containerConfig.getContainers()) {
+      for (List<String> features : featureSets) {
+        for (RenderingContext context : CONTEXTS) {
+          JsUri jsUri = new JsUri(null, false, false, container, null, features, null, null,
+              false, false, context, null, null);
+          try {
+            JsResponse response = pipeline.execute(requestBuilder.build(jsUri, null));
+            if (response.getStatusCode() == HttpServletResponse.SC_OK) {
+              served++;
+              continue;
+            }
+            if (LOG.isLoggable(Level.FINE)) {
+              LOG.fine("Unable to precompile " + features + " for " + container + " in " + context
+                  + ": " + response.getErrors());
+            }
+          } catch (JsException e) {
+            if (LOG.isLoggable(Level.FINE)) {
+              LOG.log(Level.FINE, "Unable to precompile " + features + " for " + container
+                  + " in " + context, e);
+            }
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to precompile " + features + " for " + container
+                + " in " + context, e);
+          }
+          failed++;
+        }
+      }
+    }
+    if (LOG.isLoggable(Level.INFO)) {
+      LOG.info("Precompiled " + served + " JS feature sets, " + failed + " failed");
+    }
+    return served;
+  }
+}
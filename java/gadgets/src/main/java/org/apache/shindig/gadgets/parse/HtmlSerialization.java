@@ -66,6 +66,17 @@ public class HtmlSerialization {
     }
   }
 
+  /**
+   * Attach a serializer instance to the document, along with the length of the content it was
+   * parsed from, or -1 if unknown
+   */
+  static void attach(Document doc, HtmlSerializer serializer, int originalLength) {
+    doc.setUserData(KEY, serializer, null);
+    if (originalLength >= 0) {
+      doc.setUserData(ORIGINAL_LENGTH, originalLength, null);
+    }
+  }
+
   /**
    * Copy serializer from one document to another. Note this requires that
    * serializers are thread safe
@@ -81,7 +92,7 @@ public class HtmlSerialization {
    * @param doc
    * @return
    */
-  private static int getOriginalLength(Document doc) {
+  static int getOriginalLength(Document doc) {
     Integer length = (Integer)doc.getUserData(ORIGINAL_LENGTH);
     if (length == null) return -1;
     return length;
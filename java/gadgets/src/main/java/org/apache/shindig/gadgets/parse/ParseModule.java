@@ -20,6 +20,7 @@ package org.apache.shindig.gadgets.parse;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provider;
+import org.apache.shindig.common.cache.WeightedCacheProvider;
 import org.apache.shindig.gadgets.parse.nekohtml.NekoSimplifiedHtmlParser;
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.bootstrap.DOMImplementationRegistry;
@@ -37,6 +38,10 @@ public class ParseModule extends AbstractModule {
   protected void configure() {
     bind(GadgetHtmlParser.class).to(NekoSimplifiedHtmlParser.class);
     bind(DOMImplementation.class).toProvider(DOMImplementationProvider.class);
+    bind(WeightedCacheProvider.weigherKey(GadgetHtmlParser.PARSED_DOCUMENTS))
+        .to(ParsedDocumentWeigher.class);
+    bind(WeightedCacheProvider.weigherKey(GadgetHtmlParser.PARSED_FRAGMENTS))
+        .to(ParsedDocumentWeigher.class);
   }
 
   /**
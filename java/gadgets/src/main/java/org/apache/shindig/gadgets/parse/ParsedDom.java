@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.parse;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An immutable, compact copy of a parsed Document or DocumentFragment, for caching parse results.
+ *
+ * Rewriters mutate the DOM they are given, so a cached DOM can't be handed out as is. Rather than
+ * keeping a DOM around and deep-cloning it on every hit, the nodes are recorded in document order
+ * in flat arrays, which take a fraction of the memory of a DOM and can be read concurrently. Each
+ * hit then builds a fresh DOM from them in a single pass.
+ *
+ * Only elements, text, comments and CDATA sections, plus the doctype of a Document, are recorded;
+ * {@link #of(Document)} and {@link #of(DocumentFragment)} return null for trees holding other
+ * nodes, which shouldn't be cached.
+ */
+public final class ParsedDom {
+  private static final byte ELEMENT = 0;
+  private static final byte ELEMENT_NS = 1;
+  private static final byte TEXT = 2;
+  private static final byte COMMENT = 3;
+  private static final byte CDATA_SECTION = 4;
+
+  // Rough sizes of an array slot plus a String object and of this object, for weighing.
+  private static final int STRING_OVERHEAD = 48;
+  private static final int OVERHEAD = 256;
+
+  private final DOMImplementation implementation;
+  private final String[] docType;
+  private final int originalLength;
+  private final int maxDepth;
+  private final int weight;
+
+  // Per node, in document order. Values are tag names or character data.
+  private final byte[] types;
+  private final int[] depths;
+  private final String[] values;
+  private final String[] namespaces;
+  private final int[] attributeStarts;
+
+  // Per attribute, in node order.
+  private final String[] attributeNames;
+  private final String[] attributeValues;
+  private final String[] attributeNamespaces;
+  private final BitSet namespacedAttributes;
+
+  private ParsedDom(Builder builder, DOMImplementation implementation, String[] docType,
+      int originalLength) {
+    this.implementation = implementation;
+    this.docType = docType;
+    this.originalLength = originalLength;
+    this.maxDepth = builder.maxDepth;
+    this.types = Arrays.copyOf(builder.types, builder.nodes);
+    this.depths = Arrays.copyOf(builder.depths, builder.nodes);
+    this.values = Arrays.copyOf(builder.values, builder.nodes);
+    this.namespaces = builder.namespaces == null ? null : Arrays.copyOf(builder.namespaces,
+        builder.nodes);
+    this.attributeStarts = Arrays.copyOf(builder.attributeStarts, builder.nodes + 1);
+    this.attributeStarts[builder.nodes] = builder.attributes;
+    this.attributeNames = Arrays.copyOf(builder.attributeNames, builder.attributes);
+    this.attributeValues = Arrays.copyOf(builder.attributeValues, builder.attributes);
+    this.attributeNamespaces = Arrays.copyOf(builder.attributeNamespaces, builder.attributes);
+    this.namespacedAttributes = builder.namespacedAttributes;
+    this.weight = (int) Math.min(OVERHEAD + builder.chars * 2L
+        + (long) (builder.nodes + builder.attributes * 2) * STRING_OVERHEAD, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return A copy of the document, or null if it holds nodes that can't be recorded.
+   */
+  public static ParsedDom of(Document document) {
+    Builder builder = new Builder();
+    if (!builder.add(document)) {
+      return null;
+    }
+    DocumentType type = document.getDoctype();
+    String[] docType = type == null ? null
+        : new String[] { type.getName(), type.getPublicId(), type.getSystemId() };
+    return new ParsedDom(builder, document.getImplementation(), docType,
+        HtmlSerialization.getOriginalLength(document));
+  }
+
+  /**
+   * @return A copy of the fragment, or null if it holds nodes that can't be recorded.
+   */
+  public static ParsedDom of(DocumentFragment fragment) {
+    Builder builder = new Builder();
+    if (!builder.add(fragment)) {
+      return null;
+    }
+    return new ParsedDom(builder, null, null, -1);
+  }
+
+  /**
+   * Builds a new Document from a copy of a Document, with the serializer attached.
+   */
+  public Document toDocument(HtmlSerializer serializer) {
+    DocumentType type = docType == null ? null
+        : implementation.createDocumentType(docType[0], docType[1], docType[2]);
+    Document document = implementation.createDocument(null, null, type);
+    appendTo(document);
+    HtmlSerialization.attach(document, serializer, originalLength);
+    return document;
+  }
+
+  /**
+   * Builds the copied nodes in the document of the given node, and appends them to it.
+   */
+  public void appendTo(Node parent) {
+    Document document = parent.getNodeType() == Node.DOCUMENT_NODE
+        ? (Document) parent : parent.getOwnerDocument();
+    Node[] parents = new Node[maxDepth + 2];
+    parents[0] = parent;
+    for (int i = 0; i < types.length; i++) {
+      Node node;
+      switch (types[i]) {
+        case ELEMENT:
+        case ELEMENT_NS:
+          Element element = types[i] == ELEMENT ? document.createElement(values[i])
+              : document.createElementNS(namespaces[i], values[i]);
+          for (int j = attributeStarts[i]; j < attributeStarts[i + 1]; j++) {
+            if (namespacedAttributes.get(j)) {
+              element.setAttributeNS(attributeNamespaces[j], attributeNames[j],
+                  attributeValues[j]);
+            } else {
+              element.setAttribute(attributeNames[j], attributeValues[j]);
+            }
+          }
+          parents[depths[i] + 1] = element;
+          node = element;
+          break;
+        case TEXT:
+          node = document.createTextNode(values[i]);
+          break;
+        case COMMENT:
+          node = document.createComment(values[i]);
+          break;
+        default:
+          node = document.createCDATASection(values[i]);
+          break;
+      }
+      parents[depths[i]].appendChild(node);
+    }
+  }
+
+  /**
+   * @return The estimated memory held by this copy, in bytes.
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * Records the nodes under a root in document order, along with their depth below it.
+   */
+  private static final class Builder {
+    private int nodes;
+    private int attributes;
+    private int maxDepth;
+    private long chars;
+    private byte[] types = new byte[64];
+    private int[] depths = new int[64];
+    private String[] values = new String[64];
+    private String[] namespaces;
+    private int[] attributeStarts = new int[64];
+    private String[] attributeNames = new String[32];
+    private String[] attributeValues = new String[32];
+    private String[] attributeNamespaces = new String[32];
+    private final BitSet namespacedAttributes = new BitSet();
+
+    boolean add(Node root) {
+      // Walks without recursion, since parsed markup can nest arbitrarily deep.
+      Node node = root.getFirstChild();
+      int depth = 0;
+      while (node != null) {
+        if (node.getNodeType() != Node.DOCUMENT_TYPE_NODE && !addNode(node, depth)) {
+          return false;
+        }
+        Node child = node.getFirstChild();
+        if (child != null) {
+          node = child;
+          depth++;
+          continue;
+        }
+        while (depth > 0 && node.getNextSibling() == null) {
+          node = node.getParentNode();
+          depth--;
+        }
+        node = node.getNextSibling();
+      }
+      return true;
+    }
+
+    private boolean addNode(Node node, int depth) {
+      byte type;
+      switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          // Elements created without a namespace have no local name.
+          type = node.getLocalName() == null ? ELEMENT : ELEMENT_NS;
+          break;
+        case Node.TEXT_NODE:
+          type = TEXT;
+          break;
+        case Node.COMMENT_NODE:
+          type = COMMENT;
+          break;
+        case Node.CDATA_SECTION_NODE:
+          type = CDATA_SECTION;
+          break;
+        default:
+          return false;
+      }
+
+      if (nodes == types.length) {
+        int length = nodes * 2;
+        types = Arrays.copyOf(types, length);
+        depths = Arrays.copyOf(depths, length);
+        values = Arrays.copyOf(values, length);
+        attributeStarts = Arrays.copyOf(attributeStarts, length + 1);
+        if (namespaces != null) {
+          namespaces = Arrays.copyOf(namespaces, length);
+        }
+      }
+      types[nodes] = type;
+      depths[nodes] = depth;
+      attributeStarts[nodes] = attributes;
+      maxDepth = Math.max(maxDepth, depth);
+
+      if (type == ELEMENT || type == ELEMENT_NS) {
+        values[nodes] = node.getNodeName();
+        if (type == ELEMENT_NS) {
+          if (namespaces == null) {
+            namespaces = new String[types.length];
+          }
+          namespaces[nodes] = node.getNamespaceURI();
+        }
+        addAttributes(node.getAttributes());
+      } else {
+        values[nodes] = node.getNodeValue();
+      }
+      chars += values[nodes].length();
+      nodes++;
+      return true;
+    }
+
+    private void addAttributes(NamedNodeMap map) {
+      int count = map.getLength();
+      if (attributes + count > attributeNames.length) {
+        int length = Math.max(attributeNames.length * 2, attributes + count);
+        attributeNames = Arrays.copyOf(attributeNames, length);
+        attributeValues = Arrays.copyOf(attributeValues, length);
+        attributeNamespaces = Arrays.copyOf(attributeNamespaces, length);
+      }
+      for (int i = 0; i < count; i++) {
+        Attr attr = (Attr) map.item(i);
+        attributeNames[attributes] = attr.getName();
+        attributeValues[attributes] = attr.getValue();
+        if (attr.getLocalName() != null) {
+          attributeNamespaces[attributes] = attr.getNamespaceURI();
+          namespacedAttributes.set(attributes);
+        }
+        chars += attr.getName().length() + attr.getValue().length();
+        attributes++;
+      }
+    }
+  }
+}
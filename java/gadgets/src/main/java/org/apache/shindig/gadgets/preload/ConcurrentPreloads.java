@@ -54,6 +54,15 @@ class ConcurrentPreloads extends ForwardingCollection<PreloadedData> {
     return this;
   }
 
+  /**
+   * Cancels the preloads that haven't completed, interrupting those that are running.
+   */
+  void cancel() {
+    for (Future<PreloadedData> task : tasks) {
+      task.cancel(true);
+    }
+  }
+
   @Override
   protected Collection<PreloadedData> delegate() {
     if (loaded == null) {
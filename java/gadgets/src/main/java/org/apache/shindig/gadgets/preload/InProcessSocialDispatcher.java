@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.preload;
+
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.JsonUtil;
+import org.apache.shindig.protocol.HandlerRegistry;
+import org.apache.shindig.protocol.JsonRpcServlet;
+import org.apache.shindig.protocol.ProtocolException;
+import org.apache.shindig.protocol.ResponseItem;
+import org.apache.shindig.protocol.conversion.BeanConverter;
+import org.apache.shindig.protocol.conversion.BeanJsonConverter;
+import org.apache.shindig.protocol.multipart.FormDataItem;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Executes the social requests of pipelined data with the RPC handlers bound in this webapp,
+ * rather than posting them to the JSON-RPC endpoint. Responses are returned in the same form as
+ * the endpoint's, but hold the handlers' results as Java objects instead of parsed JSON.
+ */
+@Singleton
+public class InProcessSocialDispatcher {
+  private static final Map<String, FormDataItem> NO_FORM_ITEMS = ImmutableMap.of();
+
+  private final HandlerRegistry registry;
+  private final BeanConverter converter;
+
+  @Inject
+  public InProcessSocialDispatcher(HandlerRegistry registry, BeanJsonConverter converter) {
+    this.registry = registry;
+    this.converter = converter;
+  }
+
+  /**
+   * @return Whether the methods of all the requests are handled in this webapp. The handlers are
+   *     registered by the API servlets when they start, so this is false until then.
+   */
+  public boolean canDispatch(Collection<? extends Object> requests) {
+    Set<String> methods = registry.getSupportedRpcServices();
+    for (Object request : requests) {
+      Object method = JsonUtil.getProperty(request, "method");
+      if (method == null || !methods.contains(method.toString())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Executes JSON-RPC requests on behalf of the token's viewer.
+   *
+   * @return A JSON-RPC response for each request, in order.
+   */
+  public List<Object> dispatch(Collection<? extends Object> requests, SecurityToken token) {
+    // Start every request before waiting on any, so that handlers can batch them.
+    List<Future<?>> futures = Lists.newArrayListWithCapacity(requests.size());
+    for (Object request : requests) {
+      futures.add(registry.getRpcHandler((JSONObject) request)
+          .execute(NO_FORM_ITEMS, token, converter));
+    }
+
+    List<Object> responses = Lists.newArrayListWithCapacity(requests.size());
+    int i = 0;
+    for (Object request : requests) {
+      Map<String, Object> response = Maps.newHashMap();
+      Object id = JsonUtil.getProperty(request, "id");
+      if (id != null) {
+        response.put("id", id);
+      }
+
+      ResponseItem item = getResponseItem(futures.get(i++));
+      if (JsonRpcServlet.isError(item)) {
+        response.put("error", JsonRpcServlet.getError(item));
+      } else {
+        response.put("result", JsonRpcServlet.getResult(item.getResponse()));
+      }
+      responses.add(response);
+    }
+    return responses;
+  }
+
+  private ResponseItem getResponseItem(Future<?> future) {
+    try {
+      Object result = future.get();
+      return new ResponseItem(result != null ? result : Collections.emptyMap());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new ResponseItem(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ProtocolException) {
+        ProtocolException pe = (ProtocolException) cause;
+        return new ResponseItem(pe.getCode(), pe.getMessage(), pe.getResponse());
+      }
+      return new ResponseItem(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, cause.getMessage());
+    }
+  }
+}
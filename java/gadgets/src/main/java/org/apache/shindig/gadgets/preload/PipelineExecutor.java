@@ -30,7 +30,10 @@ import org.apache.shindig.gadgets.spec.PipelinedData.Batch;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,21 +42,41 @@ import javax.el.CompositeELResolver;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 /**
  * Runs data pipelining, chaining dependencies among batches as needed.
+ *
+ * Requests are started as soon as the results they reference are available, rather than in
+ * waves: whenever a result arrives, the pending requests of every pipeline are evaluated again,
+ * and those that now evaluate are started right away. A request's depth is one more than that of
+ * the result whose arrival let it be evaluated; requests deeper than the maximum depth aren't
+ * started. Results that haven't arrived by the deadline are left out, and the pipelines waiting on
+ * them are reported as remaining.
  */
 public class PipelineExecutor {
-  // TODO: support configuration
-  private static final int MAX_BATCH_COUNT = 3;
+  static final int DEFAULT_MAX_DEPTH = 3;
+  static final long DEFAULT_DEADLINE_MS = 10000;
+
   //class name for logging purpose
   private static final String classname = PipelineExecutor.class.getName();
   private static final Logger LOG = Logger.getLogger(classname,MessageKeys.MESSAGES);
 
+  /**
+   * Submitted after the tasks of each batch. Preloader services may run the last task of a
+   * submission on the calling thread, which has to stay free to start requests as results arrive.
+   */
+  private static final Callable<PreloadedData> NO_OP = new Callable<PreloadedData>() {
+    public PreloadedData call() {
+      return null;
+    }
+  };
 
   private final PipelinedDataPreloader preloader;
   private final PreloaderService preloaderService;
   private final Expressions expressions;
+  private int maxDepth = DEFAULT_MAX_DEPTH;
+  private long deadlineMs = DEFAULT_DEADLINE_MS;
 
   @Inject
   public PipelineExecutor(PipelinedDataPreloader preloader,
@@ -64,6 +87,19 @@ public class PipelineExecutor {
     this.expressions = expressions;
   }
 
+  @Inject(optional = true)
+  public void setMaxDepth(@Named("shindig.gadgets.pipeline.max-depth") int maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * @param deadlineMs How long to wait for all results, or 0 to wait for as long as they take.
+   */
+  @Inject(optional = true)
+  public void setDeadlineMs(@Named("shindig.gadgets.pipeline.deadline-ms") long deadlineMs) {
+    this.deadlineMs = deadlineMs;
+  }
+
   /**
    * Results from a full pipeline execution.
    */
@@ -112,66 +148,52 @@ public class PipelineExecutor {
       pipelineStates.add(new PipelineState(pipeline, batch));
     }
 
-    int batchCount = 0;
-    while (true) {
-      List<Callable<PreloadedData>> tasks = Lists.newArrayList();
-      for (PipelineState pipeline : pipelineStates) {
-        if (pipeline.batch != null) {
-          tasks.addAll(preloader.createPreloadTasks(context, pipeline.batch));
-        }
-      }
+    long deadline = deadlineMs > 0 ? System.currentTimeMillis() + deadlineMs : Long.MAX_VALUE;
+    BlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+    List<Collection<PreloadedData>> submitted = Lists.newArrayList();
+    int running = 0;
+    for (PipelineState pipeline : pipelineStates) {
+      running += start(context, pipeline, 1, completions, submitted);
+    }
 
-      if (tasks.isEmpty()) {
+    while (running > 0) {
+      Completion completion;
+      try {
+        long remaining = deadline - System.currentTimeMillis();
+        completion = remaining > 0 ? completions.poll(remaining, TimeUnit.MILLISECONDS) : null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
         break;
       }
-
-      Collection<PreloadedData> preloads = preloaderService.preload(tasks);
-      for (PreloadedData preloaded : preloads) {
-        try {
-          for (Object entry : preloaded.toJson()) {
-            results.add(entry);
-
-            String id = (String) JsonUtil.getProperty(entry, "id");
-
-            Object data = JsonUtil.getProperty(entry, "result");
-            if (data == null) {
-              // For backward compatiblity, check maybe return old 'data' field:
-              data = JsonUtil.getProperty(entry, "data");
-            }
-            if (data != null) {
-              elResults.put(id, data);
-            } else {
-              Object error = JsonUtil.getProperty(entry, "error");
-              if (error != null) {
-                elResults.put(id, error);
-              }
-            }
-          }
-        } catch (PreloadException pe) {
-          // This will be thrown in the event of some unexpected exception. We can move on.
-          if (LOG.isLoggable(Level.WARNING)) {
-            LOG.logp(Level.WARNING, classname, "execute", MessageKeys.ERROR_PRELOADING);
-            LOG.log(Level.WARNING, "", pe);
-          }
+      if (completion == null) {
+        if (LOG.isLoggable(Level.INFO)) {
+          LOG.logp(Level.INFO, classname, "execute", running
+              + " pipelined data requests didn't complete within " + deadlineMs + "ms");
         }
+        break;
       }
 
-      // Advance to the next batch
+      running--;
+      completion.pipeline.running--;
+      addResults(completion.data, results, elResults);
+
+      // The new result may let pending requests of any pipeline be evaluated.
       for (PipelineState pipeline : pipelineStates) {
-        if (pipeline.batch != null) {
+        if (pipeline.batch != null && !pipeline.stopped) {
           pipeline.batch = pipeline.batch.getNextBatch(rootObjects);
+          running += start(context, pipeline, completion.depth + 1, completions, submitted);
         }
       }
+    }
 
-      batchCount++;
-      if (batchCount == MAX_BATCH_COUNT) {
-        break;
-      }
+    if (running > 0) {
+      // Nobody waits for the outstanding requests any more.
+      cancel(submitted);
     }
 
     List<PipelinedData> remainingPipelines = Lists.newArrayList();
     for (PipelineState pipeline : pipelineStates) {
-      if (pipeline.batch != null) {
+      if (pipeline.batch != null || pipeline.running > 0) {
         remainingPipelines.add(pipeline.pipeline);
       }
     }
@@ -179,6 +201,81 @@ public class PipelineExecutor {
     return new Results(remainingPipelines, results, elResults);
   }
 
+  /**
+   * Starts the requests of a pipeline's current batch.
+   *
+   * @return The number of tasks started.
+   */
+  private int start(GadgetContext context, PipelineState pipeline, int depth,
+      BlockingQueue<Completion> completions, List<Collection<PreloadedData>> submitted) {
+    if (pipeline.batch == null) {
+      return 0;
+    }
+    if (depth > maxDepth && !pipeline.batch.getPreloads().isEmpty()) {
+      // Leave this pipeline, including its pending requests, to the client.
+      pipeline.stopped = true;
+      return 0;
+    }
+
+    Collection<Callable<PreloadedData>> tasks = preloader.createPreloadTasks(context,
+        pipeline.batch);
+    if (tasks.isEmpty()) {
+      return 0;
+    }
+
+    List<Callable<PreloadedData>> scheduled = Lists.newArrayListWithCapacity(tasks.size() + 1);
+    for (Callable<PreloadedData> task : tasks) {
+      scheduled.add(new ScheduledTask(task, pipeline, depth, completions));
+    }
+    scheduled.add(NO_OP);
+    submitted.add(preloaderService.preload(scheduled));
+    pipeline.running += tasks.size();
+    return tasks.size();
+  }
+
+  /**
+   * Cancels the preloads that haven't completed. Only preloads started by
+   * {@link ConcurrentPreloaderService} can be cancelled; those of other services run to completion.
+   */
+  private static void cancel(List<Collection<PreloadedData>> submitted) {
+    for (Collection<PreloadedData> preloads : submitted) {
+      if (preloads instanceof ConcurrentPreloads) {
+        ((ConcurrentPreloads) preloads).cancel();
+      }
+    }
+  }
+
+  private void addResults(PreloadedData preloaded, List<Object> results,
+      Map<String, Object> elResults) {
+    try {
+      for (Object entry : preloaded.toJson()) {
+        results.add(entry);
+
+        String id = (String) JsonUtil.getProperty(entry, "id");
+
+        Object data = JsonUtil.getProperty(entry, "result");
+        if (data == null) {
+          // For backward compatiblity, check maybe return old 'data' field:
+          data = JsonUtil.getProperty(entry, "data");
+        }
+        if (data != null) {
+          elResults.put(id, data);
+        } else {
+          Object error = JsonUtil.getProperty(entry, "error");
+          if (error != null) {
+            elResults.put(id, error);
+          }
+        }
+      }
+    } catch (PreloadException pe) {
+      // This will be thrown in the event of some unexpected exception. We can move on.
+      if (LOG.isLoggable(Level.WARNING)) {
+        LOG.logp(Level.WARNING, classname, "execute", MessageKeys.ERROR_PRELOADING);
+        LOG.log(Level.WARNING, "", pe);
+      }
+    }
+  }
+
   /** State of one of the pipelines */
   static class PipelineState {
     public PipelineState(PipelinedData pipeline, Batch batch) {
@@ -188,5 +285,74 @@ public class PipelineExecutor {
 
     public final PipelinedData pipeline;
     public PipelinedData.Batch batch;
+    /** Number of started tasks that haven't completed. */
+    public int running;
+    /** Whether the pipeline reached the maximum depth. */
+    public boolean stopped;
+  }
+
+  /** A task that reports its result to the executing pipeline when it completes */
+  private static class ScheduledTask implements Callable<PreloadedData> {
+    private final Callable<PreloadedData> task;
+    private final PipelineState pipeline;
+    private final int depth;
+    private final BlockingQueue<Completion> completions;
+
+    public ScheduledTask(Callable<PreloadedData> task, PipelineState pipeline, int depth,
+        BlockingQueue<Completion> completions) {
+      this.task = task;
+      this.pipeline = pipeline;
+      this.depth = depth;
+      this.completions = completions;
+    }
+
+    public PreloadedData call() throws Exception {
+      PreloadedData data = null;
+      Throwable failure = null;
+      try {
+        data = task.call();
+        return data;
+      } catch (Exception e) {
+        failure = e;
+        throw e;
+      } finally {
+        completions.add(new Completion(pipeline, depth,
+            data != null ? data : new FailedPreload(failure)));
+      }
+    }
+  }
+
+  /** The result of a task, handed from the thread that ran it to the executing pipeline */
+  private static class Completion {
+    public final PipelineState pipeline;
+    public final int depth;
+    public final PreloadedData data;
+
+    public Completion(PipelineState pipeline, int depth, PreloadedData data) {
+      this.pipeline = pipeline;
+      this.depth = depth;
+      this.data = data;
+    }
+  }
+
+  /** PreloadedData implementation that reports a failed task */
+  private static class FailedPreload implements PreloadedData {
+    private final Throwable t;
+
+    public FailedPreload(Throwable t) {
+      this.t = t;
+    }
+
+    public Collection<Object> toJson() throws PreloadException {
+      if (t instanceof PreloadException) {
+        throw (PreloadException) t;
+      }
+
+      if (t == null) {
+        throw new PreloadException("Preload task returned no data");
+      }
+
+      throw new PreloadException(t);
+    }
   }
 }
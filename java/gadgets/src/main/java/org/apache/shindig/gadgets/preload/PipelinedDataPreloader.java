@@ -53,6 +53,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
 
 /**
  * Processes a single batch of pipeline data into tasks.
@@ -60,6 +62,7 @@ import com.google.inject.Inject;
 public class PipelinedDataPreloader {
   private final RequestPipeline requestPipeline;
   private final ContainerConfig config;
+  private InProcessSocialDispatcher socialDispatcher;
 
   private static final Set<String> HTTP_RESPONSE_HEADERS =
     ImmutableSet.of("content-type", "location", "set-cookie");
@@ -70,6 +73,17 @@ public class PipelinedDataPreloader {
     this.config = config;
   }
 
+  /**
+   * Executes social requests with the handlers bound in this webapp when it handles all of their
+   * methods and gadgets.osDataUri points at this server, instead of posting them to it.
+   */
+  @Inject(optional = true)
+  public void setInProcessSocialDispatch(
+      @Named("shindig.gadgets.pipeline.social.in-process") boolean inProcess,
+      Provider<InProcessSocialDispatcher> socialDispatcherProvider) {
+    this.socialDispatcher = inProcess ? socialDispatcherProvider.get() : null;
+  }
+
   /** Create preload tasks from a batch of social and http preloads */
   public Collection<Callable<PreloadedData>> createPreloadTasks(GadgetContext context,
       PipelinedData.Batch batch) {
@@ -148,6 +162,16 @@ public class PipelinedDataPreloader {
     }
 
     public PreloadedData call() throws Exception {
+      if (socialDispatcher != null && context.getToken() != null && isSocialUriLocal(context)
+          && socialDispatcher.canDispatch(socialRequests)) {
+        final List<Object> data = socialDispatcher.dispatch(socialRequests, context.getToken());
+        return new PreloadedData() {
+          public Collection<Object> toJson() {
+            return data;
+          }
+        };
+      }
+
       HttpResponse response;
 
       String token = context.getParameter("st");
@@ -382,6 +406,19 @@ public class PipelinedDataPreloader {
     return error;
   }
 
+  /**
+   * @return Whether gadgets.osDataUri is on the host the gadget is rendered from, so that the
+   *     social requests would be served by this server anyway.
+   */
+  private boolean isSocialUriLocal(GadgetContext context) {
+    String jsonUri = config.getString(context.getContainer(), "gadgets.osDataUri");
+    String host = context.getHost();
+    if (jsonUri == null || host == null) {
+      return false;
+    }
+    return host.equalsIgnoreCase(Uri.parse(jsonUri.replace("%host%", host)).getAuthority());
+  }
+
   private Uri getSocialUri(GadgetContext context, String token) {
     String jsonUri = config.getString(context.getContainer(), "gadgets.osDataUri");
     Preconditions.checkNotNull(jsonUri, "No JSON URI available for social preloads");
@@ -18,6 +18,9 @@
  */
 package org.apache.shindig.gadgets.process;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +51,8 @@ public class Processor {
   //class name for logging purpose
   private static final String classname = Processor.class.getName();
   private static final Logger LOG = Logger.getLogger(classname,MessageKeys.MESSAGES);
+  private static final String VIEWS_PROPERTY = "${Cur['gadgets.features'].views}";
+
   private final GadgetSpecFactory gadgetSpecFactory;
   private final VariableSubstituter substituter;
   private final ContainerConfig containerConfig;
@@ -130,9 +135,11 @@ public class Processor {
     String viewName = context.getView();
     View view = spec.getView(viewName);
     if (view == null) {
-      String container = context.getContainer();
-      String property = "${Cur['gadgets.features'].views['" + viewName + "'].aliases}";
-      for (Object alias : containerConfig.getList(container, property)) {
+      // The view name comes from the request, so it is looked up in the views rather than in
+      // an expression of its own
+      Map<String, Object> views =
+          containerConfig.getMap(context.getContainer(), VIEWS_PROPERTY);
+      for (Object alias : getAliases(views.get(viewName))) {
         viewName = alias.toString();
         view = spec.getView(viewName);
         if (view != null) {
@@ -145,4 +152,14 @@ public class Processor {
     }
     return view;
   }
+
+  private static List<?> getAliases(Object viewConfig) {
+    if (viewConfig instanceof Map<?, ?>) {
+      Object aliases = ((Map<?, ?>) viewConfig).get("aliases");
+      if (aliases instanceof List<?>) {
+        return (List<?>) aliases;
+      }
+    }
+    return Collections.emptyList();
+  }
 }
@@ -23,13 +23,17 @@ import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.parse.GadgetHtmlParser;
 import org.apache.shindig.gadgets.preload.PreloadedData;
 import org.apache.shindig.gadgets.preload.PreloaderService;
+import org.apache.shindig.gadgets.rewrite.DomWalker;
 import org.apache.shindig.gadgets.rewrite.GadgetRewriter;
 import org.apache.shindig.gadgets.rewrite.MutableContent;
 import org.apache.shindig.gadgets.rewrite.RewritingException;
 import org.apache.shindig.gadgets.spec.View;
 
+import java.io.IOException;
 import java.util.Collection;
 
+import javax.servlet.http.HttpServletResponse;
+
 import com.google.inject.Inject;
 
 /**
@@ -37,6 +41,17 @@ import com.google.inject.Inject;
  */
 public class HtmlRenderer {
   public static final String PATH_PARAM = "path";
+
+  /**
+   * Receives the start of a gadget's document before the rest of it is rendered.
+   */
+  public interface HeadFlusher {
+    /**
+     * Sends the start of the document to the client.
+     */
+    void flush(String head) throws IOException;
+  }
+
   private final PreloaderService preloader;
   private final ProxyRenderer proxyRenderer;
   private final GadgetRewritersProvider gadgetRewritersProvider;
@@ -63,7 +78,8 @@ public class HtmlRenderer {
    * - Perform rewriting operations on the output content, handled by Rewriter.
    *
    * @param gadget The gadget for the rendering operation.
-   * @return The rendered gadget content
+   * @return The rendered gadget content, or the rest of it after the head start if
+   *     {@link Gadget#isHeadFlushed()}.
    * @throws RenderingException if any issues arise that prevent rendering.
    */
   public String render(Gadget gadget) throws RenderingException {
@@ -83,12 +99,17 @@ public class HtmlRenderer {
       }
 
       MutableContent mc = new MutableContent(htmlParser, content);
-      for (GadgetRewriter rewriter :
-          gadgetRewritersProvider.getRewriters(gadget.getContext())) {
-        rewriter.rewrite(gadget, mc);
-      }
+      DomWalker.rewrite(gadgetRewritersProvider.getRewriters(gadget.getContext()), gadget, mc);
 
-      return mc.getContent();
+      String rendered = mc.getContent();
+      if (gadget.isHeadFlushed()) {
+        // The doctype, html and head start tags went out with the flushed head.
+        int headStart = rendered.indexOf("<head>");
+        if (headStart != -1) {
+          rendered = rendered.substring(headStart + "<head>".length());
+        }
+      }
+      return rendered;
     } catch (GadgetException e) {
       throw new RenderingException(e.getMessage(), e, e.getHttpStatusCode());
     } catch (RewritingException e) {
@@ -96,6 +117,47 @@ public class HtmlRenderer {
     }
   }
 
+  /**
+   * Renders the gadget like {@link #render(Gadget)}, but first hands the start of its document,
+   * through the head's feature libraries, to the given flusher when the gadget allows it. That
+   * lets the browser start on the libraries while preloads are fetched and the content rewritten.
+   *
+   * @return The rest of the rendered gadget content, or all of it if nothing was flushed.
+   */
+  public String render(Gadget gadget, HeadFlusher headFlusher) throws RenderingException {
+    flushHead(gadget, headFlusher);
+    return render(gadget);
+  }
+
+  private void flushHead(Gadget gadget, HeadFlusher headFlusher) throws RenderingException {
+    RenderingGadgetRewriter renderingRewriter = null;
+    for (GadgetRewriter rewriter : gadgetRewritersProvider.getRewriters(gadget.getContext())) {
+      if (rewriter instanceof RenderingGadgetRewriter) {
+        renderingRewriter = (RenderingGadgetRewriter) rewriter;
+        break;
+      }
+    }
+    if (renderingRewriter == null || !renderingRewriter.canFlushHead(gadget)) {
+      return;
+    }
+
+    try {
+      MutableContent mc = new MutableContent(htmlParser, "");
+      renderingRewriter.rewriteFlushableHead(gadget, mc);
+      String content = mc.getContent();
+      int headEnd = content.lastIndexOf("</head>");
+      if (headEnd != -1) {
+        headFlusher.flush(content.substring(0, headEnd));
+        gadget.setHeadFlushed(true);
+      }
+    } catch (RewritingException e) {
+      throw new RenderingException(e.getMessage(), e, e.getHttpStatusCode());
+    } catch (IOException e) {
+      throw new RenderingException(e.getMessage(), e,
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
   protected String getViewContent(Gadget gadget) {
     View currentView = gadget.getCurrentView();
     return currentView.getContent();
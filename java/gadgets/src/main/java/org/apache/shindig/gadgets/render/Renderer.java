@@ -18,39 +18,68 @@
  */
 package org.apache.shindig.gadgets.render;
 
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.cache.Cache;
+import org.apache.shindig.common.cache.CacheProvider;
 import org.apache.shindig.common.logging.i18n.MessageKeys;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.TimeSource;
 import org.apache.shindig.config.ContainerConfig;
+import org.apache.shindig.gadgets.AuthType;
 import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.LockedDomainService;
 import org.apache.shindig.gadgets.process.ProcessingException;
 import org.apache.shindig.gadgets.process.Processor;
+import org.apache.shindig.gadgets.rewrite.ContentRewriterFeature;
+import org.apache.shindig.gadgets.rewrite.TemplateRewriter;
 import org.apache.shindig.gadgets.spec.GadgetSpec;
+import org.apache.shindig.gadgets.spec.Preload;
 import org.apache.shindig.gadgets.spec.View;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import javax.servlet.http.HttpServletResponse;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 /**
  * Validates a rendering request parameters before calling an appropriate renderer.
+ *
+ * When a rendered output cache is configured, the output of gadgets that render the same for every
+ * viewer is cached, and a cache hit skips the {@link HtmlRenderer} entirely. See
+ * {@link #isPersonalized(Gadget)} for what makes a gadget personalized.
  */
 public class Renderer {
   //class name for logging purpose
   private static final String classname = Renderer.class.getName();
   private static final Logger LOG = Logger.getLogger(classname,MessageKeys.MESSAGES);
 
+  public static final String RENDERED_CACHE = "renderedGadgets";
+
+  // Features whose server side processing may fetch data on behalf of the viewer.
+  private static final Set<String> PERSONALIZING_FEATURES = ImmutableSet.of(
+      "opensocial-data", TemplateRewriter.TEMPLATES_FEATURE_NAME,
+      TemplateRewriter.OSML_FEATURE_NAME);
+
   private final Processor processor;
   private final HtmlRenderer renderer;
   private final ContainerConfig containerConfig;
   private final LockedDomainService lockedDomainService;
 
+  private Cache<String, CachedRendering> renderedCache;
+  private ContentRewriterFeature.Factory rewriterFeatureFactory;
+  private long renderedTtl = 0;
+  private TimeSource timeSource = new TimeSource();
+
   @Inject
   public Renderer(Processor processor,
                   HtmlRenderer renderer,
@@ -62,6 +91,27 @@ public class Renderer {
     this.lockedDomainService = lockedDomainService;
   }
 
+  @Inject(optional = true)
+  public void setRenderedCache(CacheProvider cacheProvider,
+      ContentRewriterFeature.Factory rewriterFeatureFactory) {
+    this.renderedCache = cacheProvider.createCache(RENDERED_CACHE);
+    this.rewriterFeatureFactory = rewriterFeatureFactory;
+  }
+
+  /**
+   * @param renderedTtl How long rendered output is served from the cache, in milliseconds. Zero
+   *     or less disables the cache.
+   */
+  @Inject(optional = true)
+  public void setRenderedTtl(@Named("shindig.cache.rendered.ttl-ms") long renderedTtl) {
+    this.renderedTtl = renderedTtl;
+  }
+
+  @Inject(optional = true)
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+  }
+
   /**
    * Attempts to render the requested gadget.
    *
@@ -70,6 +120,17 @@ public class Renderer {
    * TODO: Localize error messages.
    */
   public RenderingResults render(GadgetContext context) {
+    return render(context, null);
+  }
+
+  /**
+   * Attempts to render the requested gadget, handing the start of its document to the given
+   * flusher ahead of the rest when the gadget allows it. If anything was flushed, the content of
+   * OK results is the rest of the document. Gadgets whose output is cached are never flushed early.
+   *
+   * @return The results of the rendering attempt.
+   */
+  public RenderingResults render(GadgetContext context, HtmlRenderer.HeadFlusher headFlusher) {
     if (!validateParent(context)) {
       return RenderingResults.error("Unsupported parent parameter. Check your container code.",
           HttpServletResponse.SC_BAD_REQUEST);
@@ -102,7 +163,19 @@ public class Renderer {
                 HttpServletResponse.SC_BAD_REQUEST);
       }
 
-      return RenderingResults.ok(renderer.render(gadget));
+      String key = getRenderedKey(gadget);
+      if (key == null) {
+        return RenderingResults.ok(headFlusher == null
+            ? renderer.render(gadget) : renderer.render(gadget, headFlusher));
+      }
+      CachedRendering cached = renderedCache.getElement(key);
+      long now = timeSource.currentTimeMillis();
+      if (cached != null && cached.expires > now) {
+        return RenderingResults.ok(cached.content);
+      }
+      String content = renderer.render(gadget);
+      renderedCache.addElement(key, new CachedRendering(content, now + renderedTtl));
+      return RenderingResults.ok(content);
     } catch (RenderingException e) {
       return logError("render", context.getUrl(), e.getHttpStatusCode(), e);
     } catch (ProcessingException e) {
@@ -116,6 +189,67 @@ public class Renderer {
     }
   }
 
+  /**
+   * @return The key under which the gadget's rendered output is cached, or null if the output
+   *     can't be cached.
+   */
+  private String getRenderedKey(Gadget gadget) {
+    GadgetContext context = gadget.getContext();
+    if (renderedCache == null || renderedTtl <= 0 || context.getIgnoreCache()
+        || isPersonalized(gadget)) {
+      return null;
+    }
+    GadgetSpec spec = gadget.getSpec();
+    Map<String, String> prefs = new TreeMap<String, String>(context.getUserPrefs().getPrefs());
+    StringBuilder key = new StringBuilder(256)
+        .append(spec.getUrl()).append('#').append(spec.getChecksum())
+        .append('|').append(gadget.getCurrentView().getName())
+        .append('|').append(context.getContainer())
+        .append('|').append(context.getLocale())
+        .append('|').append(context.getDebug() ? 'd' : '-')
+        .append(gadget.sanitizeOutput() ? 's' : '-')
+        .append(gadget.requiresCaja() ? 'c' : '-')
+        .append('|').append(rewriterFeatureFactory.get(spec).getFingerprint())
+        .append('|').append(context.getModuleId())
+        .append('|').append(context.getHostSchema()).append("://").append(context.getHost())
+        .append('|').append(context.getRepository())
+        .append('|').append(context.getParameter("libs"));
+    for (Map.Entry<String, String> pref : prefs.entrySet()) {
+      key.append('|').append(pref.getKey()).append('=').append(pref.getValue());
+    }
+    return key.toString();
+  }
+
+  /**
+   * A gadget is personalized, and its output not cacheable, if rendering its current view may
+   * depend on who is viewing it: proxied content, pipelined data, authenticated preloads and the
+   * features that process data or templates on the server (opensocial-data, opensocial-templates
+   * and osml) all use the viewer's security token. Any request with a token that isn't anonymous
+   * is personalized too, because the shindig.auth config that core brings in writes the token and
+   * its trusted JSON into the page.
+   */
+  static boolean isPersonalized(Gadget gadget) {
+    SecurityToken token = gadget.getContext().getToken();
+    if (token != null && !token.isAnonymous()) {
+      return true;
+    }
+    View view = gadget.getCurrentView();
+    if (view.getHref() != null || view.getPipelinedData() != null) {
+      return true;
+    }
+    for (String feature : gadget.getViewFeatures().keySet()) {
+      if (PERSONALIZING_FEATURES.contains(feature)) {
+        return true;
+      }
+    }
+    for (Preload preload : gadget.getSpec().getModulePrefs().getPreloads()) {
+      if (preload.getAuthType() != AuthType.NONE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private RenderingResults logError(String methodname, Uri gadgetUrl, int statusCode, Throwable t) {
     if (LOG.isLoggable(Level.INFO)) {
       LOG.logp(Level.INFO, classname, methodname, MessageKeys.FAILED_TO_RENDER, new Object[] {gadgetUrl,t.getMessage()});
@@ -153,4 +287,14 @@ public class Renderer {
 
     return false;
   }
+
+  private static final class CachedRendering {
+    final String content;
+    final long expires;
+
+    CachedRendering(String content, long expires) {
+      this.content = content;
+      this.expires = expires;
+    }
+  }
 }
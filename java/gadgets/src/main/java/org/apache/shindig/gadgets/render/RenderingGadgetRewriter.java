@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.el.ELContext;
 import javax.el.PropertyNotFoundException;
@@ -112,6 +113,9 @@ public class RenderingGadgetRewriter implements GadgetRewriter {
   protected static final String SCROLLING_CSS =
       "html,body{height:100%;width:100%;overflow:auto;}";
   static final String IS_GADGET_BEACON = "window['__isgadget']=true;";
+
+  private static final Pattern DOCUMENT_START_PATTERN =
+      Pattern.compile("<(!doctype|html|head)\\b", Pattern.CASE_INSENSITIVE);
   static final String INSERT_BASE_ELEMENT_KEY = "gadgets.insertBaseElement";
   static final String REWRITE_DOCTYPE_QNAME = "gadgets.doctype_qname";
   static final String REWRITE_DOCTYPE_PUBID = "gadgets.doctype_pubid";
@@ -238,75 +242,12 @@ public class RenderingGadgetRewriter implements GadgetRewriter {
       processChildNodes(document);
       Element head = (Element) DomUtil.getFirstNamedChildNode(document.getDocumentElement(), "head");
 
-      Element title = document.createElement("title");
-      ModulePrefs mps = gadget.getSpec().getModulePrefs();
-      String titleValue = "default title";
-      if (mps != null && mps.getTitle() != null && !mps.getTitle().isEmpty()){
-        titleValue = mps.getTitle();
-      }
-      title.appendChild(title.getOwnerDocument().createTextNode(titleValue));
-
       // Insert new content before any of the existing children of the head element
       Node firstHeadChild = head.getFirstChild();
 
-      head.insertBefore(title, firstHeadChild);
-
-      Element injectedStyle = document.createElement("style");
-      injectedStyle.setAttribute("type", "text/css");
-      head.insertBefore(injectedStyle, firstHeadChild);
-
-      // Inject default scrolling to the body
-      this.injectDefaultScrolling(injectedStyle);
-
-      // Only inject default styles if no doctype was specified.
-      if (document.getDoctype() == null) {
-        injectedStyle.appendChild(injectedStyle.getOwnerDocument().
-            createTextNode(DEFAULT_CSS));
+      if (!gadget.isHeadFlushed()) {
+        injectHeadStart(gadget, document, head, firstHeadChild);
       }
-      // Override & insert DocType if Gadget is written for OpenSocial 2.0 or greater,
-      // if quirksmode is not set
-      if(gadget.getSpecificationVersion().isEqualOrGreaterThan("2.0.0")
-          && !gadget.useQuirksMode()){
-        String container = gadget.getContext().getContainer();
-        String doctype_qname = defaultDoctypeQName;
-        String doctype_sysid = defaultDoctypeSysId;
-        String doctype_pubid = defaultDoctypePubId;
-        String value = containerConfig.getString(container, REWRITE_DOCTYPE_QNAME);
-        if(value != null){
-          doctype_qname = value;
-        }
-        value = containerConfig.getString(container, REWRITE_DOCTYPE_SYSID);
-        if(value != null){
-          doctype_sysid = value;
-        }
-        value = containerConfig.getString(container, REWRITE_DOCTYPE_PUBID);
-        if(value != null){
-          doctype_pubid = value;
-        }
-        //Don't inject DOCTYPE if QName is null
-        if(doctype_qname != null){
-          DocumentType docTypeNode = document.getImplementation()
-              .createDocumentType(doctype_qname, doctype_pubid, doctype_sysid);
-          if(document.getDoctype() != null){
-            document.removeChild(document.getDoctype());
-          }
-          document.insertBefore(docTypeNode, document.getFirstChild());
-        }
-      }
-
-      Element html= (Element)document.getElementsByTagName("html").item(0);
-      if(html != null){
-        Locale locale = gadget.getContext().getLocale();
-        if (locale != null) {
-          String locStr = locale.toString();
-          String locValue = locStr.replace("_", "-");
-          html.setAttribute("lang", locValue);
-          html.setAttribute("xml:lang", locValue);
-        }
-      }
-
-      injectBaseTag(gadget, head);
-      injectGadgetBeacon(gadget, head, firstHeadChild);
       injectFeatureLibraries(gadget, head, firstHeadChild);
 
       // This can be one script block.
@@ -333,6 +274,80 @@ public class RenderingGadgetRewriter implements GadgetRewriter {
     }
   }
 
+  /**
+   * Injects what goes ahead of the feature libraries: the doctype, the html element's language,
+   * and the title, default styles, base tag and gadget beacon at the start of the head.
+   */
+  protected void injectHeadStart(Gadget gadget, Document document, Element head,
+      Node firstHeadChild) throws GadgetException {
+    Element title = document.createElement("title");
+    ModulePrefs mps = gadget.getSpec().getModulePrefs();
+    String titleValue = "default title";
+    if (mps != null && mps.getTitle() != null && !mps.getTitle().isEmpty()){
+      titleValue = mps.getTitle();
+    }
+    title.appendChild(title.getOwnerDocument().createTextNode(titleValue));
+
+    head.insertBefore(title, firstHeadChild);
+
+    Element injectedStyle = document.createElement("style");
+    injectedStyle.setAttribute("type", "text/css");
+    head.insertBefore(injectedStyle, firstHeadChild);
+
+    // Inject default scrolling to the body
+    this.injectDefaultScrolling(injectedStyle);
+
+    // Only inject default styles if no doctype was specified.
+    if (document.getDoctype() == null) {
+      injectedStyle.appendChild(injectedStyle.getOwnerDocument().
+          createTextNode(DEFAULT_CSS));
+    }
+    // Override & insert DocType if Gadget is written for OpenSocial 2.0 or greater,
+    // if quirksmode is not set
+    if(gadget.getSpecificationVersion().isEqualOrGreaterThan("2.0.0")
+        && !gadget.useQuirksMode()){
+      String container = gadget.getContext().getContainer();
+      String doctype_qname = defaultDoctypeQName;
+      String doctype_sysid = defaultDoctypeSysId;
+      String doctype_pubid = defaultDoctypePubId;
+      String value = containerConfig.getString(container, REWRITE_DOCTYPE_QNAME);
+      if(value != null){
+        doctype_qname = value;
+      }
+      value = containerConfig.getString(container, REWRITE_DOCTYPE_SYSID);
+      if(value != null){
+        doctype_sysid = value;
+      }
+      value = containerConfig.getString(container, REWRITE_DOCTYPE_PUBID);
+      if(value != null){
+        doctype_pubid = value;
+      }
+      //Don't inject DOCTYPE if QName is null
+      if(doctype_qname != null){
+        DocumentType docTypeNode = document.getImplementation()
+            .createDocumentType(doctype_qname, doctype_pubid, doctype_sysid);
+        if(document.getDoctype() != null){
+          document.removeChild(document.getDoctype());
+        }
+        document.insertBefore(docTypeNode, document.getFirstChild());
+      }
+    }
+
+    Element html= (Element)document.getElementsByTagName("html").item(0);
+    if(html != null){
+      Locale locale = gadget.getContext().getLocale();
+      if (locale != null) {
+        String locStr = locale.toString();
+        String locValue = locStr.replace("_", "-");
+        html.setAttribute("lang", locValue);
+        html.setAttribute("xml:lang", locValue);
+      }
+    }
+
+    injectBaseTag(gadget, head);
+    injectGadgetBeacon(gadget, head, firstHeadChild);
+  }
+
   protected void injectDefaultScrolling(Element injectedStyle) {
     injectedStyle.appendChild(injectedStyle.getOwnerDocument().
         createTextNode(SCROLLING_CSS));
@@ -382,23 +397,29 @@ public class RenderingGadgetRewriter implements GadgetRewriter {
           throws GadgetException {
     // TODO: If there isn't any js in the document, we can skip this. Unfortunately, that means
     // both script tags (easy to detect) and event handlers (much more complex).
-    GadgetContext context = gadget.getContext();
-    String repository = getFeatureRepositoryId(gadget);
-    FeatureRegistry featureRegistry = featureRegistryProvider.get(repository);
-
-    checkRequiredFeatures(gadget, featureRegistry);
-    //Check to make sure all the required features that are about to be injected are allowed
-    if(!gadgetAdminStore.checkFeatureAdminInfo(gadget)) {
-      throw new GadgetException(Code.GADGET_ADMIN_FEATURE_NOT_ALLOWED);
+    FeatureRegistry featureRegistry = featureRegistryProvider.get(getFeatureRepositoryId(gadget));
+    if (!gadget.isHeadFlushed()) {
+      checkFeatures(gadget, featureRegistry);
     }
 
     // Set of extern libraries requested by the container
-    Set<String> externForcedLibs = defaultExternLibs;
+    Set<String> externForcedLibs = getExternForcedLibs(gadget);
+    Collection<String> gadgetLibs = getGadgetLibs(gadget);
 
-    // gather the libraries we'll need to generate the extern script for
-    String externParam = context.getParameter("libs");
-    if (StringUtils.isNotBlank(externParam)) {
-      externForcedLibs = Sets.newTreeSet(Splitter.on(':').split(externParam));
+    // Get config for all features
+    Set<String> allLibs = ImmutableSet.<String>builder()
+        .addAll(externForcedLibs).addAll(gadgetLibs).build();
+    String libraryConfig =
+      getLibraryConfig(gadget, featureRegistry.getFeatures(allLibs));
+
+    if (gadget.isHeadFlushed()) {
+      // The libraries went out with the flushed head, only their config is left.
+      if (libraryConfig.length() > 0) {
+        Element inlineTag = headTag.getOwnerDocument().createElement("script");
+        headTag.insertBefore(inlineTag, firstHeadChild);
+        inlineTag.appendChild(headTag.getOwnerDocument().createTextNode(libraryConfig));
+      }
+      return;
     }
 
     // Inject extern script
@@ -406,6 +427,71 @@ public class RenderingGadgetRewriter implements GadgetRewriter {
       injectScript(externForcedLibs, null, false, gadget, headTag, firstHeadChild, "");
     }
 
+    // Inject internal script
+    injectScript(gadgetLibs, externForcedLibs, !externalizeFeatures,
+        gadget, headTag, firstHeadChild, libraryConfig);
+  }
+
+  /**
+   * @return Whether the start of the gadget's document, through its feature libraries, can be
+   *     sent to the client before the rest of the gadget is rendered. That is the case when the
+   *     gadget's own content leaves the doctype and the html and head tags to this rewriter, and
+   *     nothing rewrites the document as a whole.
+   */
+  public boolean canFlushHead(Gadget gadget) {
+    View view = gadget.getCurrentView();
+    if (view == null || view.getHref() != null || gadget.sanitizeOutput()
+        || gadget.requiresCaja()) {
+      return false;
+    }
+    return !DOCUMENT_START_PATTERN.matcher(view.getContent()).find();
+  }
+
+  /**
+   * Renders the start of the gadget's document into the given empty content: what
+   * {@link #injectHeadStart} adds, followed by a single external script for all of the gadget's
+   * feature libraries, so that the browser can fetch them while the gadget is rendered. Once that
+   * is sent, mark the gadget with {@link Gadget#setHeadFlushed} so that {@link #rewrite} leaves it
+   * out of the rest of the document.
+   */
+  public void rewriteFlushableHead(Gadget gadget, MutableContent mutableContent)
+      throws RewritingException {
+    try {
+      FeatureRegistry featureRegistry = featureRegistryProvider.get(getFeatureRepositoryId(gadget));
+      checkFeatures(gadget, featureRegistry);
+
+      Document document = mutableContent.getDocument();
+      Element head = (Element) DomUtil.getFirstNamedChildNode(document.getDocumentElement(), "head");
+      injectHeadStart(gadget, document, head, head.getFirstChild());
+
+      Set<String> libs = ImmutableSet.<String>builder()
+          .addAll(getExternForcedLibs(gadget)).addAll(getGadgetLibs(gadget)).build();
+      injectScript(libs, null, false, gadget, head, null, "");
+      mutableContent.documentChanged();
+    } catch (GadgetException e) {
+      throw new RewritingException(e.getLocalizedMessage(), e, e.getHttpStatusCode());
+    }
+  }
+
+  private void checkFeatures(Gadget gadget, FeatureRegistry featureRegistry)
+      throws GadgetException {
+    checkRequiredFeatures(gadget, featureRegistry);
+    //Check to make sure all the required features that are about to be injected are allowed
+    if(!gadgetAdminStore.checkFeatureAdminInfo(gadget)) {
+      throw new GadgetException(Code.GADGET_ADMIN_FEATURE_NOT_ALLOWED);
+    }
+  }
+
+  private Set<String> getExternForcedLibs(Gadget gadget) {
+    // gather the libraries we'll need to generate the extern script for
+    String externParam = gadget.getContext().getParameter("libs");
+    if (StringUtils.isNotBlank(externParam)) {
+      return Sets.newTreeSet(Splitter.on(':').split(externParam));
+    }
+    return defaultExternLibs;
+  }
+
+  private Collection<String> getGadgetLibs(Gadget gadget) {
     Collection<String> gadgetLibs = Lists.newArrayList(gadget.getDirectFeatureDeps());
     List<Feature> gadgetFeatures = gadget.getSpec().getModulePrefs().getAllFeatures();
     for(Feature feature : gadgetFeatures) {
@@ -415,16 +501,7 @@ public class RenderingGadgetRewriter implements GadgetRewriter {
         gadgetLibs.remove(feature.getName());
       }
     }
-
-    // Get config for all features
-    Set<String> allLibs = ImmutableSet.<String>builder()
-        .addAll(externForcedLibs).addAll(gadgetLibs).build();
-    String libraryConfig =
-      getLibraryConfig(gadget, featureRegistry.getFeatures(allLibs));
-
-    // Inject internal script
-    injectScript(gadgetLibs, externForcedLibs, !externalizeFeatures,
-        gadget, headTag, firstHeadChild, libraryConfig);
+    return gadgetLibs;
   }
 
   /**
@@ -533,11 +610,11 @@ public class RenderingGadgetRewriter implements GadgetRewriter {
    * @throws GadgetException If we are unable to retrieve the message bundle.
    */
   protected void injectMessageBundles(MessageBundle bundle, Node scriptTag) throws GadgetException {
+    // The JSON form is computed once per cached bundle.
     String msgs = bundle.toJSONString();
 
-    Text text = scriptTag.getOwnerDocument().createTextNode("gadgets.Prefs.setMessages_(");
-    text.appendData(msgs);
-    text.appendData(");");
+    Text text = scriptTag.getOwnerDocument().createTextNode(
+        "gadgets.Prefs.setMessages_(" + msgs + ");");
     scriptTag.appendChild(text);
   }
 
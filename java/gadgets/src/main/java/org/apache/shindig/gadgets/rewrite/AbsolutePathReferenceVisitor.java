@@ -25,7 +25,6 @@ import com.google.inject.Inject;
 
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.Gadget;
-import org.apache.shindig.gadgets.rewrite.DomWalker.Visitor;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
@@ -36,6 +35,7 @@ import org.w3c.dom.Element;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Visitor that resolves relative paths relative to the
@@ -43,7 +43,7 @@ import java.util.Map;
  *
  * @since 2.0.0
  */
-public class AbsolutePathReferenceVisitor implements Visitor {
+public class AbsolutePathReferenceVisitor implements StreamingHtmlRewriter.LocalVisitor {
   public enum Tags {
     // Resources which would be fetched by the browser when rendering the page.
     //TODO: Document the second parameter for clarity
@@ -88,6 +88,17 @@ public class AbsolutePathReferenceVisitor implements Visitor {
     this.tagsToMakeAbsolute = tagsToMakeAbsolute;
   }
 
+  // @Override
+  public Set<String> getElementNames() {
+    return tagsToMakeAbsolute.keySet();
+  }
+
+  // @Override
+  public boolean isLocal() {
+    // Only looks elsewhere for a base tag, and documents with one are not streamed.
+    return true;
+  }
+
   // @Override
   public VisitStatus visit(Gadget gadget, Node node) throws RewritingException {
     Attr nodeAttr = getUriAttributeFromNode(node, tagsToMakeAbsolute);
@@ -25,6 +25,7 @@ import org.apache.shindig.gadgets.uri.ConcatUriManager;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
@@ -39,7 +40,7 @@ import java.util.Set;
  * DOM mutator that concatenates resources using the concat servlet
  * @since 2.0.0
  */
-public class ConcatVisitor implements DomWalker.Visitor {
+public class ConcatVisitor implements StreamingHtmlRewriter.LocalVisitor {
   public static class Js extends ConcatVisitor {
     public Js(ContentRewriterFeature.Config config,
               ConcatUriManager uriManager) {
@@ -56,6 +57,7 @@ public class ConcatVisitor implements DomWalker.Visitor {
 
   private final ConcatUriManager uriManager;
   private final ConcatUriManager.Type type;
+  private final Set<String> elementNames;
   private final ContentRewriterFeature.Config config;
   private final boolean split;
   private final boolean singleResourceConcat;
@@ -64,11 +66,21 @@ public class ConcatVisitor implements DomWalker.Visitor {
       ConcatUriManager uriManager, ConcatUriManager.Type type) {
     this.uriManager = uriManager;
     this.type = type;
+    this.elementNames = ImmutableSet.of(type.getTagName().toLowerCase());
     this.config = config;
     this.split = (type == ConcatUriManager.Type.JS && config.isSplitJsEnabled());
     this.singleResourceConcat = config.isSingleResourceConcatEnabled();
   }
 
+  public Set<String> getElementNames() {
+    return elementNames;
+  }
+
+  public boolean isLocal() {
+    // Split resources are concatenated across the whole document.
+    return !split;
+  }
+
   public VisitStatus visit(Gadget gadget, Node node) throws RewritingException {
     // Reserve JS nodes; always if there's an adjacent rewritable JS node and also when
     // directed to support split-resource concatenation
@@ -76,9 +76,7 @@ public class ContextAwareRegistry implements ResponseRewriterRegistry {
   public HttpResponse rewriteHttpResponse(HttpRequest req, HttpResponse resp,
           Gadget gadget) throws RewritingException {
     HttpResponseBuilder builder = new HttpResponseBuilder(htmlParser, resp);
-    for (ResponseRewriter rewriter : getResponseRewriters(req.getContainer())) {
-      rewriter.rewrite(req, builder, gadget);
-    }
+    DomWalker.rewrite(getResponseRewriters(req.getContainer()), req, builder, gadget);
 
     // Returns the original HttpResponse if no changes have been made.
     return builder.create();
@@ -54,9 +54,7 @@ public class DefaultResponseRewriterRegistry implements ResponseRewriterRegistry
           throws RewritingException {
     HttpResponseBuilder builder = new HttpResponseBuilder(htmlParser, resp);
 
-    for (ResponseRewriter rewriter : rewriters) {
-      rewriter.rewrite(req, builder, gadget);
-    }
+    DomWalker.rewrite(rewriters, req, builder, gadget);
 
     // Returns the original HttpResponse if no changes have been made.
     return builder.create();
@@ -19,7 +19,11 @@
 package org.apache.shindig.gadgets.rewrite;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.Gadget;
@@ -34,10 +38,14 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Framework-in-a-framework facilitating the common Visitor case
@@ -48,6 +56,12 @@ import java.util.Map;
  * @since 2.0.0
  */
 public final class DomWalker {
+  // Whether a Rewriter subclass still walks the DOM the default way, by rewriter class.
+  private static final ConcurrentMap<Class<?>, Boolean> GADGET_WALKING =
+      new MapMaker().weakKeys().makeMap();
+  private static final ConcurrentMap<Class<?>, Boolean> RESPONSE_WALKING =
+      new MapMaker().weakKeys().makeMap();
+
   private DomWalker() {}
 
   /**
@@ -104,6 +118,263 @@ public final class DomWalker {
     boolean revisit(Gadget gadget, List<Node> nodes) throws RewritingException;
   }
 
+  /**
+   * A {@code Visitor} that only ever acts on elements with particular names.
+   * {@link DomWalker#rewrite(List, Gadget, MutableContent)} doesn't call it
+   * for any other node, which is treated as {@code VisitStatus.BYPASS}.
+   */
+  public interface ElementVisitor extends Visitor {
+    /**
+     * @return Lower case names of the elements this visitor may act on.
+     */
+    Set<String> getElementNames();
+  }
+
+  /**
+   * Runs the given rewriters over the gadget's content, in order.
+   *
+   * Consecutive {@code Rewriter}s that walk the DOM the default way share a
+   * single traversal: the document's nodes are indexed once, in depth-first
+   * order and by element name, and each rewriter then only visits the nodes
+   * its visitors can act on. A rewriter still finishes all its visits and
+   * revisits before the next one starts, so the results are the same as
+   * running the rewriters one after the other. The document is only walked
+   * again once a revisit or another kind of rewriter has changed it.
+   *
+   * While the content hasn't been parsed, rewriters set up to stream are run
+   * as in {@link #rewrite(List, HttpRequest, HttpResponseBuilder, Gadget)}.
+   */
+  public static void rewrite(List<? extends GadgetRewriter> rewriters, Gadget gadget,
+      MutableContent content) throws RewritingException {
+    NodeIndex index = null;
+    for (int i = 0; i < rewriters.size(); i++) {
+      GadgetRewriter rewriter = rewriters.get(i);
+      if (!walksByDefault(rewriter, GADGET_WALKING, Gadget.class, MutableContent.class)) {
+        // Could change the document in any way.
+        index = null;
+        rewriter.rewrite(gadget, content);
+        continue;
+      }
+      if (!content.hasDocument()) {
+        List<Rewriter> streaming = getStreamingRewriters(rewriters, i, GADGET_WALKING,
+            Gadget.class, MutableContent.class);
+        int streamed = stream(streaming, gadget, gadget.getSpec().getUrl(), content);
+        if (streamed > 0) {
+          i += streamed - 1;
+          continue;
+        }
+      }
+      Rewriter domRewriter = (Rewriter) rewriter;
+      Document doc = getDocument(content);
+      if (index == null || index.document != doc) {
+        index = new NodeIndex(doc);
+      }
+      List<Visitor> visitors = domRewriter.makeVisitors(gadget, gadget.getSpec().getUrl());
+      if (Rewriter.walk(visitors, gadget, content, index)) {
+        // Visits only modify the visited node, but revisits may move nodes around.
+        index = null;
+      }
+    }
+  }
+
+  /**
+   * Runs the given rewriters over the response, in order.
+   *
+   * Consecutive {@code Rewriter}s set up to stream rewrite HTML that hasn't
+   * been parsed yet in a single pass of a {@link StreamingHtmlRewriter}, as
+   * long as their visitors allow it, so that no DOM is built for them. Other
+   * rewriters, which may need the DOM, are run as usual.
+   */
+  public static void rewrite(List<? extends ResponseRewriter> rewriters, HttpRequest request,
+      HttpResponseBuilder builder, Gadget gadget) throws RewritingException {
+    for (int i = 0; i < rewriters.size(); i++) {
+      List<Rewriter> streaming = getStreamingRewriters(rewriters, i, RESPONSE_WALKING,
+          HttpRequest.class, HttpResponseBuilder.class, Gadget.class);
+      if (!streaming.isEmpty() && !builder.hasDocument() &&
+          RewriterUtils.isHtml(request, builder)) {
+        Gadget context = gadget != null ? gadget : makeGadget(request);
+        int streamed = stream(streaming, context, request.getGadget(), builder);
+        if (streamed > 0) {
+          i += streamed - 1;
+          continue;
+        }
+      }
+      rewriters.get(i).rewrite(request, builder, gadget);
+    }
+  }
+
+  /**
+   * @return Whether the object is a {@code Rewriter} that doesn't override the rewrite method
+   *     with the given parameter types.
+   */
+  private static boolean walksByDefault(Object rewriter, ConcurrentMap<Class<?>, Boolean> cache,
+      Class<?>... parameterTypes) {
+    if (!(rewriter instanceof Rewriter)) {
+      return false;
+    }
+    Class<?> type = rewriter.getClass();
+    Boolean walks = cache.get(type);
+    if (walks == null) {
+      try {
+        walks = type.getMethod("rewrite", parameterTypes).getDeclaringClass() == Rewriter.class;
+      } catch (NoSuchMethodException e) {
+        walks = false;
+      }
+      cache.put(type, walks);
+    }
+    return walks;
+  }
+
+  /**
+   * @return The consecutive rewriters from the given position on that are set up to stream.
+   */
+  private static List<Rewriter> getStreamingRewriters(List<?> rewriters, int from,
+      ConcurrentMap<Class<?>, Boolean> cache, Class<?>... parameterTypes) {
+    List<Rewriter> streaming = Lists.newArrayList();
+    for (Object rewriter : rewriters.subList(from, rewriters.size())) {
+      if (!walksByDefault(rewriter, cache, parameterTypes) || !((Rewriter) rewriter).streaming) {
+        break;
+      }
+      streaming.add((Rewriter) rewriter);
+    }
+    return streaming;
+  }
+
+  /**
+   * Rewrites the content without parsing it, with as many of the rewriters,
+   * from the first on, as have visitors that can stream.
+   *
+   * @return The number of rewriters that were run.
+   */
+  private static int stream(List<Rewriter> rewriters, Gadget gadget, Uri gadgetUri,
+      MutableContent content) throws RewritingException {
+    List<List<Visitor>> visitorLists = Lists.newArrayList();
+    for (Rewriter rewriter : rewriters) {
+      List<Visitor> visitors = rewriter.makeVisitors(gadget, gadgetUri);
+      if (!StreamingHtmlRewriter.canStream(visitors)) {
+        break;
+      }
+      visitorLists.add(visitors);
+    }
+    if (visitorLists.isEmpty()) {
+      return 0;
+    }
+
+    String rewritten = StreamingHtmlRewriter.rewrite(content.getContent(), visitorLists, gadget);
+    if (rewritten == null) {
+      return 0;
+    }
+    content.setContent(rewritten);
+    return visitorLists.size();
+  }
+
+  private static Document getDocument(MutableContent content) throws RewritingException {
+    Document doc = content.getDocument();
+    if (doc == null) {
+      throw new RewritingException("content.getDocument is null. Content: "
+                                   + content.getContent(),
+                                   HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    return doc;
+  }
+
+  /**
+   * The nodes of a document in depth-first order, with the position of the
+   * last node in each one's subtree and the positions of each element name.
+   */
+  static final class NodeIndex {
+    private final Document document;
+    private final List<Node> nodes = Lists.newArrayList();
+    private final List<String> names = Lists.newArrayList();
+    private final Map<String, List<Integer>> positions = Maps.newHashMap();
+    private int[] ends = new int[64];
+
+    NodeIndex(Document document) {
+      this.document = document;
+      Node root = document.getDocumentElement();
+      if (root == null) {
+        return;
+      }
+      Deque<Integer> open = new ArrayDeque<Integer>();
+      Node node = root;
+      walk:
+      while (true) {
+        open.push(add(node));
+        Node next = node.getFirstChild();
+        while (next == null) {
+          ends[open.pop()] = nodes.size() - 1;
+          if (node == root) {
+            break walk;
+          }
+          next = node.getNextSibling();
+          if (next == null) {
+            node = node.getParentNode();
+          }
+        }
+        node = next;
+      }
+    }
+
+    private int add(Node node) {
+      int position = nodes.size();
+      String name = null;
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        name = node.getNodeName().toLowerCase();
+        List<Integer> named = positions.get(name);
+        if (named == null) {
+          named = Lists.newArrayList();
+          positions.put(name, named);
+        }
+        named.add(position);
+      }
+      nodes.add(node);
+      names.add(name);
+      if (position == ends.length) {
+        ends = Arrays.copyOf(ends, position * 2);
+      }
+      return position;
+    }
+
+    int size() {
+      return nodes.size();
+    }
+
+    Node getNode(int position) {
+      return nodes.get(position);
+    }
+
+    String getName(int position) {
+      return names.get(position);
+    }
+
+    int getEnd(int position) {
+      return ends[position];
+    }
+
+    /**
+     * @return The positions of elements with any of the given names, in document order.
+     */
+    int[] getPositions(Set<String> elementNames) {
+      int count = 0;
+      for (String name : elementNames) {
+        List<Integer> named = positions.get(name);
+        count += named == null ? 0 : named.size();
+      }
+      int[] result = new int[count];
+      int i = 0;
+      for (String name : elementNames) {
+        List<Integer> named = positions.get(name);
+        if (named != null) {
+          for (Integer position : named) {
+            result[i++] = position;
+          }
+        }
+      }
+      Arrays.sort(result);
+      return result;
+    }
+  }
+
   /**
    * Rewriter that traverses the DOM, passing each node to its
    * list of {@code Visitor} instances in order. Each visitor
@@ -112,7 +383,12 @@ public final class DomWalker {
    * The DOM tree is walked in depth-first order.
    */
   public static class Rewriter implements GadgetRewriter, ResponseRewriter {
+    // Flags returned by visit(...).
+    private static final int MODIFIED = 1;
+    private static final int TREE_RESERVED = 2;
+
     private final List<Visitor> visitors;
+    private boolean streaming;
 
     public Rewriter(List<Visitor> visitors) {
       this.visitors = visitors;
@@ -126,6 +402,16 @@ public final class DomWalker {
       this.visitors = null;
     }
 
+    /**
+     * Sets whether to rewrite HTML that hasn't been parsed yet with a
+     * {@link StreamingHtmlRewriter} rather than as a DOM, when run through
+     * {@link DomWalker#rewrite} and the visitors allow it.
+     */
+    @Inject(optional = true)
+    public void setStreaming(@Named("shindig.gadgets.rewriter.streaming") boolean streaming) {
+      this.streaming = streaming;
+    }
+
     // Override this to supply a list of Visitors generated using request context
     // rather than supplied at construction time.
     protected List<Visitor> makeVisitors(Gadget context, Uri gadgetUri) {
@@ -155,48 +441,19 @@ public final class DomWalker {
       Map<Visitor, List<Node>> reservations = Maps.newHashMap();
 
       LinkedList<Node> toVisit = Lists.newLinkedList();
-      Document doc = content.getDocument();
-      if (doc == null) {
-        throw new RewritingException("content.getDocument is null. Content: "
-                                     + content.getContent(),
-                                     HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-      }
+      Document doc = getDocument(content);
       toVisit.add(doc.getDocumentElement());
       boolean mutated = false;
       while (!toVisit.isEmpty()) {
         Node visiting = toVisit.removeFirst();
 
-        // Iterate through all visitors evaluating their visitation status.
-        boolean treeReserved = false;
-        boolean nodeReserved = false;
-        for (Visitor visitor : visitors) {
-          switch(visitor.visit(gadget, visiting)) {
-          case MODIFY:
-            content.documentChanged();
-            mutated = true;
-            break;
-          case RESERVE_NODE:
-            nodeReserved = true;
-            break;
-          case RESERVE_TREE:
-            treeReserved = true;
-            break;
-          default:
-            // Aka BYPASS - do nothing.
-            break;
-          }
-
-          if (nodeReserved || treeReserved) {
-            // Reservation was made.
-            if (!reservations.containsKey(visitor)) {
-              reservations.put(visitor, Lists.<Node>newLinkedList());
-            }
-            reservations.get(visitor).add(visiting);
-            break;
-          }
+        int result = visit(visitors, null, gadget, visiting, null, reservations);
+        if ((result & MODIFIED) != 0) {
+          content.documentChanged();
+          mutated = true;
         }
 
-        if (!treeReserved && visiting.hasChildNodes()) {
+        if ((result & TREE_RESERVED) == 0 && visiting.hasChildNodes()) {
           // Tree wasn't reserved - walk children.
           // In order to preserve DFS order, walk children in reverse.
           for (Node child = visiting.getLastChild(); child != null;
@@ -206,7 +463,115 @@ public final class DomWalker {
         }
       }
 
-      // Run through all reservations, revisiting as needed.
+      return revisit(visitors, gadget, content, reservations) || mutated;
+    }
+
+    /**
+     * Same as {@code rewrite(List, Gadget, MutableContent)}, but walks the
+     * already indexed nodes, only visiting elements the visitors can act on.
+     *
+     * @return True if a revisit changed the document, so the index may be stale.
+     */
+    static boolean walk(List<Visitor> visitors, Gadget gadget, MutableContent content,
+        NodeIndex index) throws RewritingException {
+      Map<Visitor, List<Node>> reservations = Maps.newHashMap();
+
+      // The names each visitor acts on, and all of them if every visitor says.
+      List<Set<String>> elementNames = Lists.newArrayListWithCapacity(visitors.size());
+      Set<String> allNames = Sets.newHashSet();
+      for (Visitor visitor : visitors) {
+        Set<String> names = null;
+        if (visitor instanceof ElementVisitor) {
+          names = ((ElementVisitor) visitor).getElementNames();
+        }
+        elementNames.add(names);
+        if (names == null) {
+          allNames = null;
+        } else if (allNames != null) {
+          allNames.addAll(names);
+        }
+      }
+
+      int[] positions = allNames == null ? null : index.getPositions(allNames);
+      int count = positions == null ? index.size() : positions.length;
+      int skipUntil = -1;
+      for (int i = 0; i < count; i++) {
+        int position = positions == null ? i : positions[i];
+        if (position <= skipUntil) {
+          // Inside a reserved tree.
+          continue;
+        }
+
+        int result = visit(visitors, elementNames, gadget, index.getNode(position),
+            index.getName(position), reservations);
+        if ((result & MODIFIED) != 0) {
+          content.documentChanged();
+        }
+        if ((result & TREE_RESERVED) != 0) {
+          skipUntil = index.getEnd(position);
+        }
+      }
+
+      return revisit(visitors, gadget, content, reservations);
+    }
+
+    /**
+     * Passes the node to each visitor in turn, until one reserves it.
+     *
+     * @param elementNames The names each visitor acts on, or null to pass it to every visitor.
+     * @return MODIFIED and TREE_RESERVED flags.
+     */
+    private static int visit(List<Visitor> visitors, List<Set<String>> elementNames,
+        Gadget gadget, Node visiting, String name, Map<Visitor, List<Node>> reservations)
+        throws RewritingException {
+      int result = 0;
+      for (int i = 0; i < visitors.size(); i++) {
+        Visitor visitor = visitors.get(i);
+        if (elementNames != null) {
+          Set<String> names = elementNames.get(i);
+          if (names != null && (name == null || !names.contains(name))) {
+            continue;
+          }
+        }
+
+        boolean reserved = false;
+        switch(visitor.visit(gadget, visiting)) {
+        case MODIFY:
+          result |= MODIFIED;
+          break;
+        case RESERVE_NODE:
+          reserved = true;
+          break;
+        case RESERVE_TREE:
+          reserved = true;
+          result |= TREE_RESERVED;
+          break;
+        default:
+          // Aka BYPASS - do nothing.
+          break;
+        }
+
+        if (reserved) {
+          // Reservation was made.
+          if (!reservations.containsKey(visitor)) {
+            reservations.put(visitor, Lists.<Node>newLinkedList());
+          }
+          reservations.get(visitor).add(visiting);
+          break;
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Runs through all reservations, revisiting as needed.
+     *
+     * @return True if any revisit modified the document.
+     */
+    private static boolean revisit(List<Visitor> visitors, Gadget gadget,
+        MutableContent content, Map<Visitor, List<Node>> reservations)
+        throws RewritingException {
+      boolean mutated = false;
       for (Visitor visitor : visitors) {
         List<Node> nodesReserved = reservations.get(visitor);
         if (nodesReserved != null && visitor.revisit(gadget, nodesReserved)) {
@@ -214,7 +579,6 @@ public final class DomWalker {
           mutated = true;
         }
       }
-
       return mutated;
     }
   }
@@ -45,7 +45,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
 
 import java.util.List;
 import java.util.Map;
@@ -125,7 +125,7 @@ public class ImageAttributeRewriter extends DomWalker.Rewriter {
 
       MultipleResourceHttpFetcher fetcher =
           new MultipleResourceHttpFetcher(requestPipeline, executor);
-      Map<Uri, FutureTask<RequestContext>> futureTasks = fetcher.fetchUnique(resourceRequests);
+      Map<Uri, Future<RequestContext>> futureTasks = fetcher.fetchUnique(resourceRequests);
       String cssContent = processAllImgResources(nodes, futureTasks);
 
       if (cssContent.length() > 0) {
@@ -148,7 +148,7 @@ public class ImageAttributeRewriter extends DomWalker.Rewriter {
      * @return string contianing the css styles that needs to be injected.
      */
     private String processAllImgResources(List<Node> nodes,
-                                          Map<Uri, FutureTask<RequestContext>> futureTasks) {
+                                          Map<Uri, Future<RequestContext>> futureTasks) {
       StringBuilder cssContent = new StringBuilder("");
 
       for (int i = 0; i < nodes.size(); i++) {
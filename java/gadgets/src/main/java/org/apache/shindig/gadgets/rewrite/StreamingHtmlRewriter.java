@@ -0,0 +1,550 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.shindig.gadgets.Gadget;
+import org.apache.shindig.gadgets.parse.DefaultHtmlSerializer;
+import org.apache.shindig.gadgets.parse.HtmlSerialization;
+import org.apache.shindig.gadgets.parse.ParseModule;
+import org.apache.shindig.gadgets.rewrite.DomWalker.Visitor;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites HTML with {@link LocalVisitor}s as it is lexed, without parsing it into a DOM.
+ *
+ * The input is split into tags, comments and text. Elements the visitors name are collected,
+ * together with the whitespace and comments between adjacent ones, into a run; anything else
+ * ends the run and is copied to the output as is. Each run is built into a small scratch DOM
+ * and walked by each list of visitors in turn, as {@link DomWalker} would walk the whole
+ * document, then written out again if any visitor changed it. Memory used beyond the input and
+ * output is bounded by the longest run rather than by the size of the document.
+ *
+ * Unlike the DOM path, the output keeps the original markup, apart from rewritten runs. Even in
+ * those, attributes that keep the value they were read with are written as they were in the
+ * source, so character references in them are never escaped again.
+ */
+public final class StreamingHtmlRewriter {
+  /**
+   * A {@code Visitor} that can be run on runs of adjacent elements instead of a whole document.
+   */
+  public interface LocalVisitor extends DomWalker.ElementVisitor {
+    /**
+     * @return Whether the visitor only looks at and changes the elements it names, their
+     *     contents and their adjacent siblings. Visitors that look elsewhere in the document,
+     *     or that relate elements that aren't adjacent, return false.
+     */
+    boolean isLocal();
+  }
+
+  private static final DOMImplementation DOCUMENT_FACTORY =
+      new ParseModule.DOMImplementationProvider().get();
+
+  private static final DefaultHtmlSerializer SERIALIZER = new DefaultHtmlSerializer();
+
+  // Elements without content.
+  private static final Set<String> VOID_ELEMENTS = ImmutableSet.of("area", "base", "br", "col",
+      "command", "embed", "hr", "img", "input", "keygen", "link", "meta", "param", "source",
+      "track", "wbr");
+
+  // Elements whose content is text up to their end tag.
+  private static final Set<String> RAW_TEXT_ELEMENTS = ImmutableSet.of("script", "style",
+      "textarea", "title", "xmp", "iframe", "noembed", "noframes");
+
+  private final String html;
+  private final List<List<Visitor>> visitorLists;
+  private final Gadget gadget;
+  private final Set<String> elementNames = Sets.newHashSet();
+  private final StringBuilder output;
+  private final Document scratch;
+  private final Element container;
+  // Start tags in the source of the elements in the current run.
+  private final Map<Element, SourceTag> sourceTags = Maps.newIdentityHashMap();
+
+  // Source range and start tag of the non-empty element, if any, in the current run.
+  private int runStart = -1;
+  private int runEnd;
+  private boolean runHasElement;
+  private Element openElement;
+
+  private StreamingHtmlRewriter(String html, List<List<Visitor>> visitorLists, Gadget gadget) {
+    this.html = html;
+    this.visitorLists = visitorLists;
+    this.gadget = gadget;
+    for (List<Visitor> visitors : visitorLists) {
+      for (Visitor visitor : visitors) {
+        elementNames.addAll(((LocalVisitor) visitor).getElementNames());
+      }
+    }
+    output = new StringBuilder((html.length() * 11) / 10);
+    scratch = DOCUMENT_FACTORY.createDocument(null, null, null);
+    container = scratch.createElement("html");
+    scratch.appendChild(container);
+  }
+
+  /**
+   * @return Whether all the visitors can be run by this rewriter.
+   */
+  public static boolean canStream(List<Visitor> visitors) {
+    for (Visitor visitor : visitors) {
+      if (!(visitor instanceof LocalVisitor) || !((LocalVisitor) visitor).isLocal()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Rewrites the html with each list of visitors in turn, in a single pass.
+   *
+   * @param visitorLists Lists of visitors, for which {@link #canStream} must hold.
+   * @return The rewritten html, or null if it has to be rewritten as a DOM instead because
+   *     it sets a base url.
+   */
+  public static String rewrite(String html, List<List<Visitor>> visitorLists, Gadget gadget)
+      throws RewritingException {
+    return new StreamingHtmlRewriter(html, visitorLists, gadget).rewrite();
+  }
+
+  private String rewrite() throws RewritingException {
+    int length = html.length();
+    int pos = 0;
+    while (pos < length) {
+      int next = html.indexOf('<', pos);
+      if (next == -1) {
+        next = length;
+      }
+      if (next > pos) {
+        text(pos, next);
+        pos = next;
+        continue;
+      }
+
+      char c = pos + 1 < length ? html.charAt(pos + 1) : ' ';
+      if (html.startsWith("<!--", pos)) {
+        int end = html.indexOf("-->", pos + 4);
+        int valueEnd = end == -1 ? length : end;
+        end = end == -1 ? length : end + 3;
+        comment(pos, end, html.substring(pos + 4, valueEnd));
+        pos = end;
+      } else if (c == '/' && pos + 2 < length && Character.isLetter(html.charAt(pos + 2))) {
+        pos = copy(pos, tagEnd(pos + 2));
+      } else if (c == '!' || c == '?') {
+        pos = copy(pos, tagEnd(pos + 2));
+      } else if (Character.isLetter(c)) {
+        pos = startTag(pos);
+        if (pos == -1) {
+          return null;
+        }
+      } else {
+        // A lone '<' is text.
+        text(pos, pos + 1);
+        pos++;
+      }
+    }
+    flush();
+    return output.toString();
+  }
+
+  /**
+   * Handles the start tag at the position, along with the content of raw text elements.
+   *
+   * @return The position after the element's start tag or content, or -1 to give up.
+   */
+  private int startTag(int start) throws RewritingException {
+    int pos = start + 1;
+    int length = html.length();
+    while (pos < length && !isTagNameEnd(html.charAt(pos))) {
+      pos++;
+    }
+    String rawName = html.substring(start + 1, pos);
+    String name = rawName.toLowerCase();
+
+    // Attribute names, values and source text, in order.
+    List<String> attributes = Lists.newArrayList();
+    while (true) {
+      while (pos < length && (Character.isWhitespace(html.charAt(pos)) || html.charAt(pos) == '/')) {
+        pos++;
+      }
+      if (pos >= length) {
+        // Unterminated tag, leave it as text.
+        return copy(start, length);
+      }
+      if (html.charAt(pos) == '>') {
+        pos++;
+        break;
+      }
+      int nameStart = pos;
+      while (pos < length && !isAttributeNameEnd(html.charAt(pos))) {
+        pos++;
+      }
+      String attrName = html.substring(nameStart, pos).toLowerCase();
+      int attrEnd = pos;
+      while (pos < length && Character.isWhitespace(html.charAt(pos))) {
+        pos++;
+      }
+      String value = null;
+      if (pos < length && html.charAt(pos) == '=') {
+        pos++;
+        while (pos < length && Character.isWhitespace(html.charAt(pos))) {
+          pos++;
+        }
+        int valueStart;
+        int valueEnd;
+        if (pos < length && (html.charAt(pos) == '"' || html.charAt(pos) == '\'')) {
+          valueStart = pos + 1;
+          valueEnd = html.indexOf(html.charAt(pos), valueStart);
+          if (valueEnd == -1) {
+            return copy(start, length);
+          }
+          pos = valueEnd + 1;
+        } else {
+          valueStart = pos;
+          while (pos < length && !Character.isWhitespace(html.charAt(pos)) &&
+                 html.charAt(pos) != '>') {
+            pos++;
+          }
+          valueEnd = pos;
+        }
+        value = decode(html.substring(valueStart, valueEnd));
+        attrEnd = pos;
+      }
+      attributes.add(attrName);
+      attributes.add(value);
+      attributes.add(html.substring(nameStart, attrEnd));
+    }
+
+    int tagEnd = pos;
+    int contentEnd = tagEnd;
+    int end = tagEnd;
+    if (RAW_TEXT_ELEMENTS.contains(name)) {
+      contentEnd = findEndTag(name, tagEnd);
+      end = contentEnd == length ? length : tagEnd(contentEnd + 2);
+    }
+
+    if ("base".equals(name)) {
+      // Changes how every url in the document resolves.
+      return -1;
+    }
+    if (!elementNames.contains(name)) {
+      return copy(start, end);
+    }
+
+    Element element;
+    try {
+      element = scratch.createElement(name);
+      for (int i = 0; i < attributes.size(); i += 3) {
+        if (!element.hasAttribute(attributes.get(i))) {
+          String value = attributes.get(i + 1);
+          element.setAttribute(attributes.get(i), value != null ? value : "");
+        }
+      }
+    } catch (DOMException e) {
+      // Names that aren't valid in a DOM.
+      return copy(start, end);
+    }
+    sourceTags.put(element, new SourceTag(rawName, attributes));
+
+    if (VOID_ELEMENTS.contains(name) || RAW_TEXT_ELEMENTS.contains(name)) {
+      if (contentEnd > tagEnd) {
+        element.appendChild(scratch.createTextNode(html.substring(tagEnd, contentEnd)));
+      }
+      add(element, start, end);
+    } else {
+      // The element's content follows, so it is a run of its own.
+      flush();
+      add(element, start, end);
+      openElement = element;
+      flush();
+    }
+    return end;
+  }
+
+  private void text(int start, int end) throws RewritingException {
+    if (runStart == -1 || !isWhitespace(start, end)) {
+      copy(start, end);
+    } else {
+      container.appendChild(scratch.createTextNode(html.substring(start, end)));
+      runEnd = end;
+    }
+  }
+
+  private void comment(int start, int end, String value) throws RewritingException {
+    if (runStart == -1) {
+      copy(start, end);
+    } else {
+      container.appendChild(scratch.createComment(value));
+      runEnd = end;
+    }
+  }
+
+  private void add(Element element, int start, int end) {
+    if (runStart == -1) {
+      runStart = start;
+    }
+    container.appendChild(element);
+    runEnd = end;
+    runHasElement = true;
+  }
+
+  /**
+   * Ends the current run and copies the source range to the output.
+   *
+   * @return The end of the range.
+   */
+  private int copy(int start, int end) throws RewritingException {
+    flush();
+    output.append(html, start, end);
+    return end;
+  }
+
+  /**
+   * Runs the visitors over the current run and writes it out.
+   */
+  private void flush() throws RewritingException {
+    if (runStart == -1) {
+      return;
+    }
+
+    ScratchContent content = new ScratchContent();
+    if (runHasElement) {
+      for (List<Visitor> visitors : visitorLists) {
+        DomWalker.Rewriter.walk(visitors, gadget, content, new DomWalker.NodeIndex(scratch));
+      }
+    }
+
+    if (content.changed) {
+      try {
+        for (Node child = container.getFirstChild(); child != null;
+             child = child.getNextSibling()) {
+          serialize(child);
+        }
+      } catch (IOException e) {
+        // Doesn't occur, StringBuilder doesn't throw.
+      }
+    } else {
+      output.append(html, runStart, runEnd);
+    }
+
+    while (container.getFirstChild() != null) {
+      container.removeChild(container.getFirstChild());
+    }
+    sourceTags.clear();
+    runStart = -1;
+    runHasElement = false;
+    openElement = null;
+  }
+
+  /**
+   * Writes out a node of the current run. Elements read from the source keep the source text of
+   * their unchanged attributes.
+   */
+  private void serialize(Node node) throws IOException {
+    SourceTag tag = sourceTags.get(node);
+    if (tag == null) {
+      SERIALIZER.serialize(node, output);
+      return;
+    }
+
+    Element element = (Element) node;
+    printStartTag(element, tag);
+    if (element == openElement) {
+      // Its content and end tag are copied from the source.
+      return;
+    }
+    for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+      SERIALIZER.serialize(child, output);
+    }
+    if (!VOID_ELEMENTS.contains(element.getTagName())) {
+      output.append("</").append(tag.name).append('>');
+    }
+  }
+
+  private void printStartTag(Element element, SourceTag tag) throws IOException {
+    output.append('<').append(tag.name);
+    Set<String> printed = Sets.newHashSet();
+    for (int i = 0; i < tag.attributes.size(); i += 3) {
+      String name = tag.attributes.get(i);
+      if (!printed.add(name) || !element.hasAttribute(name)) {
+        // Removed, or a repeat that the DOM ignored.
+        continue;
+      }
+      String value = tag.attributes.get(i + 1);
+      if (element.getAttribute(name).equals(value != null ? value : "")) {
+        output.append(' ').append(tag.attributes.get(i + 2));
+      } else {
+        printAttribute(name, element.getAttribute(name));
+      }
+    }
+    NamedNodeMap attributes = element.getAttributes();
+    for (int i = 0; i < attributes.getLength(); i++) {
+      Attr attribute = (Attr) attributes.item(i);
+      if (!printed.contains(attribute.getName())) {
+        printAttribute(attribute.getName(), attribute.getValue());
+      }
+    }
+    output.append('>');
+  }
+
+  private void printAttribute(String name, String value) throws IOException {
+    output.append(' ').append(name).append("=\"");
+    HtmlSerialization.printEscapedText(value, output);
+    output.append('"');
+  }
+
+  /**
+   * @return The position after the '>' ending the tag that the position is in.
+   */
+  private int tagEnd(int pos) {
+    int end = html.indexOf('>', pos);
+    return end == -1 ? html.length() : end + 1;
+  }
+
+  /**
+   * @return The position of the end tag of the named raw text element, or the end of the input.
+   */
+  private int findEndTag(String name, int pos) {
+    int length = html.length();
+    while ((pos = html.indexOf("</", pos)) != -1) {
+      int nameEnd = pos + 2 + name.length();
+      if (html.regionMatches(true, pos + 2, name, 0, name.length()) &&
+          (nameEnd == length || isTagNameEnd(html.charAt(nameEnd)))) {
+        return pos;
+      }
+      pos += 2;
+    }
+    return length;
+  }
+
+  private boolean isWhitespace(int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (!Character.isWhitespace(html.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isTagNameEnd(char c) {
+    return Character.isWhitespace(c) || c == '>' || c == '/';
+  }
+
+  private static boolean isAttributeNameEnd(char c) {
+    return Character.isWhitespace(c) || c == '>' || c == '/' || c == '=';
+  }
+
+  /**
+   * Decodes the character references that commonly occur in attribute values.
+   */
+  static String decode(String value) {
+    int amp = value.indexOf('&');
+    if (amp == -1) {
+      return value;
+    }
+    StringBuilder decoded = new StringBuilder(value.length());
+    int pos = 0;
+    while (amp != -1) {
+      decoded.append(value, pos, amp);
+      int semi = value.indexOf(';', amp);
+      String ref = semi == -1 ? null : value.substring(amp + 1, semi);
+      String replacement = ref == null ? null : decodeReference(ref);
+      if (replacement == null) {
+        decoded.append('&');
+        pos = amp + 1;
+      } else {
+        decoded.append(replacement);
+        pos = semi + 1;
+      }
+      amp = value.indexOf('&', pos);
+    }
+    decoded.append(value, pos, value.length());
+    return decoded.toString();
+  }
+
+  private static String decodeReference(String ref) {
+    if ("amp".equals(ref)) {
+      return "&";
+    } else if ("lt".equals(ref)) {
+      return "<";
+    } else if ("gt".equals(ref)) {
+      return ">";
+    } else if ("quot".equals(ref)) {
+      return "\"";
+    } else if ("apos".equals(ref)) {
+      return "'";
+    } else if (ref.startsWith("#")) {
+      try {
+        int codePoint = ref.startsWith("#x") || ref.startsWith("#X")
+            ? Integer.parseInt(ref.substring(2), 16)
+            : Integer.parseInt(ref.substring(1));
+        return new String(Character.toChars(codePoint));
+      } catch (IllegalArgumentException e) {
+        // Not a number or not a valid code point.
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * An element's tag name as written in the source, and its attributes' names, decoded values
+   * and source text, in order.
+   */
+  private static class SourceTag {
+    final String name;
+    final List<String> attributes;
+
+    SourceTag(String name, List<String> attributes) {
+      this.name = name;
+      this.attributes = attributes;
+    }
+  }
+
+  /**
+   * Stands in for the document's content while walking a run, noting whether it changed.
+   */
+  private static class ScratchContent extends MutableContent {
+    private boolean changed;
+
+    ScratchContent() {
+      super(null, "");
+    }
+
+    @Override
+    public void documentChanged() {
+      changed = true;
+    }
+  }
+}
@@ -28,8 +28,12 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 
 import org.apache.shindig.common.JsonSerializer;
+import org.apache.shindig.common.cache.Cache;
+import org.apache.shindig.common.cache.CacheProvider;
 import org.apache.shindig.common.logging.i18n.MessageKeys;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.HashUtil;
 import org.apache.shindig.common.xml.DomUtil;
 import org.apache.shindig.expressions.Expressions;
 import org.apache.shindig.gadgets.Gadget;
@@ -40,9 +44,11 @@ import org.apache.shindig.gadgets.parse.SocialDataTags;
 import org.apache.shindig.gadgets.render.SanitizingGadgetRewriter;
 import org.apache.shindig.gadgets.spec.Feature;
 import org.apache.shindig.gadgets.spec.MessageBundle;
+import org.apache.shindig.gadgets.templates.CompiledTemplates;
 import org.apache.shindig.gadgets.templates.ContainerTagLibraryFactory;
 import org.apache.shindig.gadgets.templates.MessageELResolver;
 import org.apache.shindig.gadgets.templates.TagRegistry;
+import org.apache.shindig.gadgets.templates.TemplateCompiler;
 import org.apache.shindig.gadgets.templates.TemplateContext;
 import org.apache.shindig.gadgets.templates.TemplateLibrary;
 import org.apache.shindig.gadgets.templates.TemplateLibraryFactory;
@@ -53,8 +59,11 @@ import org.apache.shindig.gadgets.templates.tags.CompositeTagRegistry;
 import org.apache.shindig.gadgets.templates.tags.DefaultTagRegistry;
 import org.apache.shindig.gadgets.templates.tags.TagHandler;
 import org.apache.shindig.gadgets.templates.tags.TemplateBasedTagHandler;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
 import java.io.IOException;
@@ -72,6 +81,10 @@ import java.util.logging.Logger;
  *
  * Only templates without the @name and @tag attributes are processed
  * automatically.
+ *
+ * Templates are compiled along with the custom tags they use. When a cache is configured, the
+ * compiled templates are cached by container and a checksum of the template markup, and
+ * compiled from a copy of the templates so that the cache holds on to no gadget document.
  */
 public class TemplateRewriter implements GadgetRewriter {
 
@@ -88,6 +101,8 @@ public class TemplateRewriter implements GadgetRewriter {
   /** Enable client support? **/
   static final String CLIENT_SUPPORT_PARAM = "client";
 
+  public static final String COMPILED_TEMPLATES_CACHE = "compiledTemplates";
+
   //class name for logging purpose
   private static final String classname = TemplateRewriter.class.getName();
   private static final Logger LOG = Logger.getLogger(classname,MessageKeys.MESSAGES);
@@ -103,18 +118,34 @@ public class TemplateRewriter implements GadgetRewriter {
   private final TagRegistry baseTagRegistry;
   private final TemplateLibraryFactory libraryFactory;
   private final ContainerTagLibraryFactory containerTagLibraryFactory;
+  private final TemplateCompiler compiler;
+  private Cache<String, CachedTemplates> compiledTemplatesCache;
 
   @Inject
   public TemplateRewriter(Provider<TemplateProcessor> processor,
       MessageBundleFactory messageBundleFactory, Expressions expressions,
       TagRegistry baseTagRegistry, TemplateLibraryFactory libraryFactory,
-      ContainerTagLibraryFactory containerTagLibraryFactory) {
+      ContainerTagLibraryFactory containerTagLibraryFactory, TemplateCompiler compiler) {
     this.processor = processor;
     this.messageBundleFactory = messageBundleFactory;
     this.expressions = expressions;
     this.baseTagRegistry = baseTagRegistry;
     this.libraryFactory = libraryFactory;
     this.containerTagLibraryFactory = containerTagLibraryFactory;
+    this.compiler = compiler;
+  }
+
+  public TemplateRewriter(Provider<TemplateProcessor> processor,
+      MessageBundleFactory messageBundleFactory, Expressions expressions,
+      TagRegistry baseTagRegistry, TemplateLibraryFactory libraryFactory,
+      ContainerTagLibraryFactory containerTagLibraryFactory) {
+    this(processor, messageBundleFactory, expressions, baseTagRegistry, libraryFactory,
+        containerTagLibraryFactory, new TemplateCompiler(expressions));
+  }
+
+  @Inject(optional = true)
+  public void setCompiledTemplatesCache(CacheProvider cacheProvider) {
+    this.compiledTemplatesCache = cacheProvider.createCache(COMPILED_TEMPLATES_CACHE);
   }
 
   public void rewrite(Gadget gadget, MutableContent content) throws RewritingException {
@@ -146,36 +177,29 @@ public class TemplateRewriter implements GadgetRewriter {
 
   private void rewriteImpl(Gadget gadget, Feature feature, MutableContent content)
       throws GadgetException {
-    List<TagRegistry> registries = Lists.newArrayList();
     List<TemplateLibrary> libraries = Lists.newArrayList();
+    String container = gadget.getContext().getContainer();
 
-    // TODO: Add View-specific library as Priority 0
-
-    // Built-in Java-based tags - Priority 1
-    registries.add(baseTagRegistry);
-
-    TemplateLibrary osmlLibrary = containerTagLibraryFactory.getLibrary(gadget.getContext().getContainer());
-
-    // OSML Built-in tags - Priority 2
-    registries.add(osmlLibrary.getTagRegistry());
-    libraries.add(osmlLibrary);
+    // OSML Built-in tags
+    libraries.add(containerTagLibraryFactory.getLibrary(container));
 
     List<Element> templateElements = SocialDataTags.getTags(content.getDocument(),
         SocialDataTags.OSML_TEMPLATE_TAG);
     List<Element> templates = ImmutableList.copyOf(templateElements);
 
-    if (!OSML_FEATURE_NAME.equals(feature.getName())) {
-      // User-defined custom tags - Priority 3
-      registries.add(registerCustomTags(templates));
-
-      // User-defined libraries - Priority 4
-      loadTemplateLibraries(gadget.getContext(), feature, registries, libraries);
+    boolean customTags = !OSML_FEATURE_NAME.equals(feature.getName());
+    if (customTags) {
+      // User-defined libraries
+      loadTemplateLibraries(gadget.getContext(), feature, libraries);
     }
 
-    TagRegistry registry = new CompositeTagRegistry(registries);
+    CompiledTemplates compiledTemplates =
+        getCompiledTemplates(container, customTags, templates, libraries);
 
     TemplateContext templateContext = new TemplateContext(gadget, content.getPipelinedData());
-    boolean needsFeature = executeTemplates(templateContext, content, templates, registry);
+    templateContext.setCompiledTemplates(compiledTemplates);
+    boolean needsFeature = executeTemplates(templateContext, content, templates,
+        compiledTemplates.getTagRegistry());
 
     // Check if a feature param overrides  our guess at whether the client-side
     // feature is needed.
@@ -230,8 +254,133 @@ public class TemplateRewriter implements GadgetRewriter {
     }
   }
 
+  /**
+   * @return The templates compiled with tags from the libraries, for rendering the templates.
+   */
+  private CompiledTemplates getCompiledTemplates(String container, boolean customTags,
+      List<Element> templates, List<TemplateLibrary> libraries) {
+    if (compiledTemplatesCache == null) {
+      return compileTemplates(customTags, templates, templates, libraries);
+    }
+
+    String key = getCompiledTemplatesKey(container, customTags, templates);
+    CachedTemplates cached = compiledTemplatesCache.getElement(key);
+    // Libraries are refreshed from their own cache, and templates compiled with tags from an old
+    // copy of a library are compiled again
+    if (cached == null || !cached.isCompiledWith(libraries)) {
+      cached = new CachedTemplates(libraries,
+          compileTemplates(customTags, templates, copyTemplates(templates), libraries));
+      compiledTemplatesCache.addElement(key, cached);
+    }
+    return cached.compiledTemplates.bind(templates);
+  }
+
+  /**
+   * Compiles templates against the registry of their tags, by priority: built-in Java-based
+   * tags, OSML built-in tags, the templates' custom tags, then user-defined libraries.
+   *
+   * @param templates the templates as found in the gadget
+   * @param copies the templates to compile, either the templates themselves or copies of them
+   * @param libraries the container's OSML library, then user-defined libraries
+   */
+  private CompiledTemplates compileTemplates(boolean customTags, List<Element> templates,
+      List<Element> copies, List<TemplateLibrary> libraries) {
+    List<TagRegistry> registries = Lists.newArrayList();
+
+    // TODO: Add View-specific library as Priority 0
+
+    // Built-in Java-based tags - Priority 1
+    registries.add(baseTagRegistry);
+
+    // OSML Built-in tags - Priority 2
+    registries.add(libraries.get(0).getTagRegistry());
+
+    if (customTags) {
+      // User-defined custom tags - Priority 3
+      registries.add(registerCustomTags(templates, copies));
+
+      // User-defined libraries - Priority 4
+      for (TemplateLibrary library : libraries.subList(1, libraries.size())) {
+        registries.add(library.getTagRegistry());
+      }
+    }
+
+    return compiler.compileTemplates(copies, new CompositeTagRegistry(registries));
+  }
+
+  /**
+   * @return Copies of the templates in a document of their own.
+   */
+  private static List<Element> copyTemplates(List<Element> templates) {
+    if (templates.isEmpty()) {
+      return templates;
+    }
+
+    Document document = templates.get(0).getOwnerDocument().getImplementation()
+        .createDocument(null, null, null);
+    List<Element> copies = Lists.newArrayListWithCapacity(templates.size());
+    for (Element template : templates) {
+      copies.add((Element) document.importNode(template, true));
+    }
+    return copies;
+  }
+
+  /**
+   * @return A key for the compiled form of the templates: whatever the compiled form depends
+   *     on, other than the libraries. The markup is keyed by its checksum.
+   */
+  private static String getCompiledTemplatesKey(String container, boolean customTags,
+      List<Element> templates) {
+    StringBuilder markup = new StringBuilder();
+    for (Element template : templates) {
+      // The namespace of a custom tag may be declared outside of its template
+      markup.append('|');
+      appendKeyPart(markup, getTagNamespaceUri(template));
+      appendMarkup(markup, template);
+    }
+    StringBuilder key = new StringBuilder();
+    appendKeyPart(key, container);
+    key.append(customTags).append(':')
+        .append(HashUtil.checksum(CharsetUtil.getUtf8Bytes(markup.toString())));
+    return key.toString();
+  }
+
+  private static void appendMarkup(StringBuilder key, Node node) {
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+        key.append('<');
+        appendKeyPart(key, node.getNamespaceURI());
+        appendKeyPart(key, node.getNodeName());
+        NamedNodeMap attributes = node.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+          Attr attribute = (Attr) attributes.item(i);
+          appendKeyPart(key, attribute.getName());
+          appendKeyPart(key, attribute.getValue());
+        }
+        key.append('>');
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+          appendMarkup(key, child);
+        }
+        key.append('/');
+        break;
+      case Node.TEXT_NODE:
+        key.append('"');
+        appendKeyPart(key, node.getNodeValue());
+        break;
+    }
+  }
+
+  /** Appends a length-prefixed part, so that no two different sets of parts make the same key. */
+  private static void appendKeyPart(StringBuilder key, String part) {
+    if (part == null) {
+      key.append('-');
+    } else {
+      key.append(part.length()).append(':').append(part);
+    }
+  }
+
   private void loadTemplateLibraries(GadgetContext context, Feature feature,
-      List<TagRegistry> registries, List<TemplateLibrary> libraries)  throws GadgetException {
+      List<TemplateLibrary> libraries)  throws GadgetException {
     Collection<String> urls = feature.getParams().get(REQUIRE_LIBRARY_PARAM);
     if (urls != null) {
       for (String url : urls) {
@@ -239,9 +388,7 @@ public class TemplateRewriter implements GadgetRewriter {
         uri = context.getUrl().resolve(uri);
 
         try {
-          TemplateLibrary library = libraryFactory.loadTemplateLibrary(context, uri);
-          registries.add(library.getTagRegistry());
-          libraries.add(library);
+          libraries.add(libraryFactory.loadTemplateLibrary(context, uri));
         } catch (TemplateParserException te) {
           // Suppress exceptions due to malformed template libraries
           if (LOG.isLoggable(Level.WARNING)) {
@@ -299,29 +446,44 @@ public class TemplateRewriter implements GadgetRewriter {
 
   /**
    * Register templates with a "tag" attribute.
+   *
+   * @param allTemplates the templates as found in the gadget
+   * @param definitions the templates defining the tags, either the templates themselves or
+   *     copies of them
    */
-  private TagRegistry registerCustomTags(List<Element> allTemplates) {
+  private TagRegistry registerCustomTags(List<Element> allTemplates, List<Element> definitions) {
     ImmutableSet.Builder<TagHandler> handlers = ImmutableSet.builder();
-    for (Element template : allTemplates) {
-      // Only process templates with a tag attribute
-      if (template.getAttribute("tag").length() == 0) {
-        continue;
-      }
-
-      Iterable<String> nameParts = Splitter.on(':').split(template.getAttribute("tag"));
-      // At this time, we only support
-      if (Iterables.size(nameParts) != 2) {
-        continue;
-      }
-      String namespaceUri = template.lookupNamespaceURI(Iterables.get(nameParts, 0));
+    for (int i = 0; i < allTemplates.size(); i++) {
+      Element template = allTemplates.get(i);
+      String namespaceUri = getTagNamespaceUri(template);
       if (namespaceUri != null) {
-        handlers.add(new TemplateBasedTagHandler(template, namespaceUri, Iterables.get(nameParts, 1)));
+        Iterable<String> nameParts = Splitter.on(':').split(template.getAttribute("tag"));
+        handlers.add(new TemplateBasedTagHandler(definitions.get(i), namespaceUri,
+            Iterables.get(nameParts, 1)));
       }
     }
 
     return new DefaultTagRegistry(handlers.build());
   }
 
+  /**
+   * @return The namespace of the tag a template defines, or null if it doesn't define one.
+   */
+  private static String getTagNamespaceUri(Element template) {
+    // Only process templates with a tag attribute
+    if (template.getAttribute("tag").length() == 0) {
+      return null;
+    }
+
+    Iterable<String> nameParts = Splitter.on(':').split(template.getAttribute("tag"));
+    // At this time, we only support
+    if (Iterables.size(nameParts) != 2) {
+      return null;
+    }
+    // Looked up in the gadget, as the namespace may be declared on an ancestor of the template
+    return template.lookupNamespaceURI(Iterables.get(nameParts, 0));
+  }
+
   /**
    * Processes and renders inline templates.
    * @return Do we think the templates feature is still needed on the client?
@@ -395,4 +557,29 @@ public class TemplateRewriter implements GadgetRewriter {
     }
     return true;
   }
+
+  /**
+   * Compiled templates, along with the libraries they were compiled with.
+   */
+  private static final class CachedTemplates {
+    private final List<TemplateLibrary> libraries;
+    private final CompiledTemplates compiledTemplates;
+
+    CachedTemplates(List<TemplateLibrary> libraries, CompiledTemplates compiledTemplates) {
+      this.libraries = ImmutableList.copyOf(libraries);
+      this.compiledTemplates = compiledTemplates;
+    }
+
+    boolean isCompiledWith(List<TemplateLibrary> currentLibraries) {
+      if (currentLibraries.size() != libraries.size()) {
+        return false;
+      }
+      for (int i = 0; i < libraries.size(); i++) {
+        if (currentLibraries.get(i) != libraries.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
 }
@@ -18,6 +18,7 @@
  */
 package org.apache.shindig.gadgets.rewrite.js;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -82,6 +83,8 @@ public class ClosureJsCompiler implements JsCompiler {
   @VisibleForTesting
   static final String CACHE_NAME = "CompiledJs";
 
+  private static final String COMPILER_VERSION = Compiler.getReleaseVersion();
+
   private final DefaultJsCompiler defaultCompiler;
   private final Cache<String, CompileResult> cache;
   private final List<SourceFile> defaultExterns;
@@ -91,6 +94,7 @@ public class ClosureJsCompiler implements JsCompiler {
   private int threadPoolSize = 5;
   private long compilerStackSize = DEFAULT_COMPILER_STACK_SIZE;
   private ExecutorService compilerPool;
+  private CompiledJsStore store;
 
   @Inject
   public ClosureJsCompiler(DefaultJsCompiler defaultCompiler, CacheProvider cacheProvider,
@@ -144,6 +148,26 @@ public class ClosureJsCompiler implements JsCompiler {
     }
   }
 
+  /**
+   * Keeps compiled JS in a local directory as well as in the cache, so that it survives restarts.
+   *
+   * @param directory The directory to store compiled JS in, or an empty string to not store it.
+   */
+  @Inject(optional = true)
+  public void setStoreDirectory(
+      @Named("shindig.closure.compile.store.directory") String directory) {
+    if (directory.length() == 0) {
+      return;
+    }
+    try {
+      store = new CompiledJsStore(new File(directory));
+    } catch (IOException e) {
+      if (LOG.isLoggable(Level.WARNING)) {
+        LOG.log(Level.WARNING, e.getMessage(), e);
+      }
+    }
+  }
+
   /**
    * Override this to provide your own {@link ExecutorService}
    *
@@ -274,8 +298,14 @@ public class ClosureJsCompiler implements JsCompiler {
     return compilerPool.submit(new Callable<CompileResult>() {
       @Override
       public CompileResult call() throws Exception {
-        // Create the options anew. Passing in the parent options, even cloning it, is not thread safe.
-        CompileResult result = doCompileContent(content, getCompilerOptions(jsUri), buildExterns(externs));
+        CompileResult result = store != null ? store.get(cacheKey) : null;
+        if (result == null) {
+          // Create the options anew. Passing in the parent options, even cloning it, is not thread safe.
+          result = doCompileContent(content, getCompilerOptions(jsUri), buildExterns(externs));
+          if (store != null) {
+            store.put(cacheKey, result);
+          }
+        }
         synchronized (compiling) {
           // Other threads should pick this up in the cache now.
           cache.addElement(cacheKey, result);
@@ -349,14 +379,20 @@ public class ClosureJsCompiler implements JsCompiler {
     return builder;
   }
 
+  /**
+   * The key also names results in the store, so it covers everything the output depends on: the
+   * compilation level and compiler version stand for the options. Subclasses that change other
+   * options in {@link #getCompilerOptions} should add them to the key.
+   */
   protected String makeCacheKey(String code, String externs, JsUri uri, CompilerOptions options) {
-    // TODO: include compilation options in the cache key
     return Joiner.on(":").join(
         HashUtil.checksum(code.getBytes()),
         HashUtil.checksum(externs.getBytes()),
         uri.getCompileMode(),
         uri.isDebug(),
-        options.isExternExportsEnabled());
+        options.isExternExportsEnabled(),
+        compileLevel,
+        COMPILER_VERSION);
   }
 
   private static ErrorManager getErrorManager() {
@@ -38,8 +38,12 @@ public class CompileResult implements Serializable {
   }
 
   public CompileResult(String content) {
+    this(content, null);
+  }
+
+  public CompileResult(String content, String externExport) {
     this.content = content;
-    externExport = null;
+    this.externExport = externExport;
   }
 
   public String getContent() {
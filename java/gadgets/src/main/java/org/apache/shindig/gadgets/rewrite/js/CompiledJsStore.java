@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite.js;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.HashUtil;
+
+/**
+ * Content-addressed store of compiler results in a local directory, so that compiled JS
+ * outlives the process. Each result is kept in a file named after the checksum of its cache key,
+ * which already holds the checksums of the source and externs and the compiler settings, so
+ * entries never go stale and a directory can be shared by servers or filled ahead of time.
+ *
+ * Layout of a file: int magic, int version, the key, then the compiled content and the extern
+ * export, each as an int length (-1 for null) followed by UTF-8 bytes.
+ */
+public class CompiledJsStore {
+  private static final Logger LOG = Logger.getLogger(CompiledJsStore.class.getName());
+
+  static final int MAGIC = 0x534A5343;
+  static final int VERSION = 1;
+
+  private final File directory;
+
+  /**
+   * @param directory The directory to keep compiled JS in. It is created if it doesn't exist.
+   * @throws IOException If the directory can't be created.
+   */
+  public CompiledJsStore(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create compiled JS directory " + directory);
+    }
+    this.directory = directory;
+  }
+
+  /**
+   * @return The stored result for the key, or null if there is none or it can't be read.
+   */
+  public CompileResult get(String key) {
+    File file = fileFor(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not compiled JS in a supported version");
+      }
+      long maxLength = file.length();
+      if (!key.equals(readString(in, maxLength))) {
+        // A checksum collision; leave the entry to its own key.
+        return null;
+      }
+      String content = readString(in, maxLength);
+      if (content == null) {
+        throw new IOException("Missing compiled content");
+      }
+      return new CompileResult(content, readString(in, maxLength));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Ignoring unreadable compiled JS " + file, e);
+      return null;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Stores a result under the key, replacing any previous one. Failures are logged, since the
+   * result can always be compiled again.
+   */
+  public void put(String key, CompileResult result) {
+    File file = fileFor(key);
+    File tmp = null;
+    DataOutputStream out = null;
+    try {
+      // A new file, so that threads and servers sharing the directory don't write to the same one
+      tmp = File.createTempFile(file.getName() + '.', ".tmp", directory);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeString(out, key);
+      writeString(out, result.getContent());
+      writeString(out, result.getExternExport());
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+        throw new IOException("Unable to replace " + file);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to write compiled JS " + file, e);
+      if (tmp != null) {
+        tmp.delete();
+      }
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+  }
+
+  private File fileFor(String key) {
+    return new File(directory, HashUtil.checksum(CharsetUtil.getUtf8Bytes(key)) + ".js.bin");
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = CharsetUtil.getUtf8Bytes(value);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in, long maxLength) throws IOException {
+    int length = in.readInt();
+    if (length < -1 || length > maxLength) {
+      throw new IOException("Invalid length in compiled JS: " + length);
+    }
+    if (length == -1) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return CharsetUtil.newUtf8String(bytes);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.servlet;
+
+import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.GzipUtil;
+import org.apache.shindig.common.util.HashUtil;
+import org.apache.shindig.gadgets.js.JsResponse;
+
+/**
+ * The final output of a JS response as served by the {@link JsServlet}: its UTF-8 bytes, their
+ * gzipped form when that is smaller, and a strong ETag computed from the bytes.
+ */
+public final class CachedJsResponse {
+  private final int statusCode;
+  private final int cacheTtlSecs;
+  private final boolean proxyCacheable;
+  private final byte[] body;
+  private final byte[] gzippedBody;
+  private final String etag;
+
+  private CachedJsResponse(JsResponse response, byte[] body) {
+    statusCode = response.getStatusCode();
+    cacheTtlSecs = response.getCacheTtlSecs();
+    proxyCacheable = response.isProxyCacheable();
+    this.body = body;
+    byte[] gzipped = GzipUtil.compress(body);
+    gzippedBody = gzipped.length < body.length ? gzipped : null;
+    etag = '"' + HashUtil.checksum(body) + '"';
+  }
+
+  /**
+   * @return The final output of the response.
+   */
+  public static CachedJsResponse of(JsResponse response) {
+    return of(response, response.toJsString());
+  }
+
+  /**
+   * @return The final output of the response, whose code the caller already has.
+   */
+  public static CachedJsResponse of(JsResponse response, String js) {
+    return new CachedJsResponse(response, CharsetUtil.getUtf8Bytes(js));
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public int getCacheTtlSecs() {
+    return cacheTtlSecs;
+  }
+
+  public boolean isProxyCacheable() {
+    return proxyCacheable;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * @return The gzipped body, or null if gzipping doesn't make it smaller.
+   */
+  public byte[] getGzippedBody() {
+    return gzippedBody;
+  }
+
+  /**
+   * @return The length of the body plus that of the gzipped body, if any.
+   */
+  public int getSize() {
+    return body.length + (gzippedBody != null ? gzippedBody.length : 0);
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+}
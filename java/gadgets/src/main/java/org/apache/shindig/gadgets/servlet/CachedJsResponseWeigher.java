@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.servlet;
+
+import com.google.common.cache.Weigher;
+
+/**
+ * Estimates the memory held by a {@link CachedJsResponse}, in bytes, so that the JS response cache
+ * can be bounded by size rather than by number of responses.
+ */
+public class CachedJsResponseWeigher implements Weigher<Object, Object> {
+  // Rough cost of the response object and its ETag.
+  static final int RESPONSE_OVERHEAD = 160;
+
+  public int weigh(Object key, Object value) {
+    long weight = 2L * key.toString().length() + RESPONSE_OVERHEAD
+        + ((CachedJsResponse) value).getSize();
+    return (int) Math.min(weight, Integer.MAX_VALUE);
+  }
+}
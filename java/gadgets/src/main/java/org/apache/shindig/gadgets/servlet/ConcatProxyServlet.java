@@ -32,6 +32,7 @@ import org.apache.shindig.common.Pair;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.uri.UriBuilder;
 import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.GzipUtil;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
@@ -50,7 +51,7 @@ import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -61,6 +62,10 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet which concatenates the content of several proxied HTTP responses
+ *
+ * In standard concat mode, when a resource was cached with a gzipped body and the request accepts
+ * gzip, that body is sent as is, as one member of a multi-member gzip response. Only the text in
+ * between is compressed per request.
  */
 public class ConcatProxyServlet extends InjectedServlet {
 
@@ -146,7 +151,7 @@ public class ConcatProxyServlet extends InjectedServlet {
     response.setHeader("Content-Type", concatType.getMimeType() + "; charset=UTF8");
     response.setHeader("Content-Disposition", "attachment;filename=p.txt");
 
-    ConcatOutputStream cos = createConcatOutputStream(response, concatUri);
+    ConcatOutputStream cos = createConcatOutputStream(request, response, concatUri);
     if(cos == null) {
       response.setStatus(HttpResponse.SC_BAD_REQUEST);
       response.getOutputStream().println(
@@ -165,13 +170,14 @@ public class ConcatProxyServlet extends InjectedServlet {
   /**
    * Creates the correct ConcatOutputStream to use.  Will return null if there
    * is a bad JSON varibale name.
+   * @param request HTTP request object.
    * @param response HTTP response object.
    * @param concatUri The concat URI.
    * @return The correct ConcatOutputStream to use.
    * @throws IOException thrown when the ConcatOutputStream cannot be created.
    */
-  private ConcatOutputStream createConcatOutputStream(HttpServletResponse response,
-          ConcatUriManager.ConcatUri concatUri) throws IOException {
+  private ConcatOutputStream createConcatOutputStream(HttpServletRequest request,
+          HttpServletResponse response, ConcatUriManager.ConcatUri concatUri) throws IOException {
     ConcatOutputStream cos;
     String jsonVar = concatUri.getSplitParam();
     if (jsonVar != null) {
@@ -183,7 +189,7 @@ public class ConcatProxyServlet extends InjectedServlet {
       }
     } else {
       // Standard concat output mode.
-      cos = new VerbatimConcatOutputStream(response.getOutputStream());
+      cos = new VerbatimConcatOutputStream(response.getOutputStream(), request, response);
     }
     return cos;
   }
@@ -217,9 +223,9 @@ public class ConcatProxyServlet extends InjectedServlet {
 
       MultipleResourceHttpFetcher parallelFetcher =
           new MultipleResourceHttpFetcher(requestPipeline, executor);
-      List<Pair<Uri, FutureTask<RequestContext>>> futureTasks = parallelFetcher.fetchAll(requests);
+      List<Pair<Uri, Future<RequestContext>>> futureTasks = parallelFetcher.fetchAll(requests);
 
-      for (Pair<Uri, FutureTask<RequestContext>> futureTask : futureTasks) {
+      for (Pair<Uri, Future<RequestContext>> futureTask : futureTasks) {
         RequestContext requestCxt;
         try {
           try {
@@ -302,7 +308,7 @@ public class ConcatProxyServlet extends InjectedServlet {
 
   private static abstract class ConcatOutputStream extends ServletOutputStream {
     private final ServletOutputStream wrapped;
-    private final StringBuilder stringBuilder;
+    protected final StringBuilder stringBuilder;
 
     protected ConcatOutputStream(ServletOutputStream wrapped) {
       this.wrapped = wrapped;
@@ -342,10 +348,14 @@ public class ConcatProxyServlet extends InjectedServlet {
 
     @Override
     public void close() throws IOException {
-      wrapped.write(CharsetUtil.getUtf8Bytes(stringBuilder.toString()));
+      writeContent();
       wrapped.close();
     }
 
+    protected void writeContent() throws IOException {
+      wrapped.write(CharsetUtil.getUtf8Bytes(stringBuilder.toString()));
+    }
+
     @Override
     public void print(String data) throws IOException {
       stringBuilder.append(data);
@@ -360,8 +370,31 @@ public class ConcatProxyServlet extends InjectedServlet {
   }
 
   private static class VerbatimConcatOutputStream extends ConcatOutputStream {
-    public VerbatimConcatOutputStream(ServletOutputStream wrapped) {
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+
+    // Whether the request accepts gzip, looked up when the first gzipped body is output.
+    private Boolean acceptsGzip;
+
+    // Gzipped bodies to send as is, with their position in the buffered output.
+    private final List<Pair<Integer, HttpResponse>> gzippedBodies = Lists.newArrayList();
+
+    public VerbatimConcatOutputStream(ServletOutputStream wrapped, HttpServletRequest request,
+        HttpServletResponse response) {
       super(wrapped);
+      this.request = request;
+      this.response = response;
+    }
+
+    @Override
+    public void output(Uri uri, HttpResponse resp) throws IOException {
+      if (resp.getHttpStatusCode() == HttpServletResponse.SC_OK && canSendGzipped(resp)) {
+        println("/* ---- Start " + uri.toString() + " ---- */");
+        gzippedBodies.add(Pair.of(stringBuilder.length(), resp));
+        println("/* ---- End " + uri.toString() + " ---- */");
+      } else {
+        super.output(uri, resp);
+      }
     }
 
     @Override
@@ -370,6 +403,45 @@ public class ConcatProxyServlet extends InjectedServlet {
       print(data);
       println("/* ---- End " + uri.toString() + " ---- */");
     }
+
+    /**
+     * The gzipped body can stand in for the text output only if that text would be the same
+     * bytes: UTF-8 without a byte order mark, which is stripped when decoding.
+     */
+    private boolean canSendGzipped(HttpResponse resp) throws IOException {
+      if (!resp.hasGzippedResponse()) {
+        return false;
+      }
+      if (acceptsGzip == null) {
+        acceptsGzip = GzipUtil.acceptsGzip(request.getHeader("Accept-Encoding"));
+      }
+      if (!acceptsGzip || !"UTF-8".equals(resp.getEncoding())) {
+        return false;
+      }
+      byte[] start = new byte[3];
+      return IOUtils.read(resp.getResponse(), start) < 3 || start[0] != (byte) 0xEF
+          || start[1] != (byte) 0xBB || start[2] != (byte) 0xBF;
+    }
+
+    @Override
+    protected void writeContent() throws IOException {
+      if (acceptsGzip != null) {
+        response.addHeader("Vary", "Accept-Encoding");
+      }
+      if (gzippedBodies.isEmpty()) {
+        super.writeContent();
+        return;
+      }
+      response.setHeader("Content-Encoding", "gzip");
+      String content = stringBuilder.toString();
+      int start = 0;
+      for (Pair<Integer, HttpResponse> body : gzippedBodies) {
+        write(GzipUtil.compress(CharsetUtil.getUtf8Bytes(content.substring(start, body.one))));
+        IOUtils.copy(body.two.getGzippedResponse(), this);
+        start = body.one;
+      }
+      write(GzipUtil.compress(CharsetUtil.getUtf8Bytes(content.substring(start))));
+    }
   }
 
   private static class JsonConcatOutputStream extends ConcatOutputStream {
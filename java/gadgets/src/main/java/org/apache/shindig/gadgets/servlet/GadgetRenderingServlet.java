@@ -24,6 +24,7 @@ import org.apache.shindig.common.servlet.InjectedServlet;
 import org.apache.shindig.common.uri.UriBuilder;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.http.HttpRequest;
+import org.apache.shindig.gadgets.render.HtmlRenderer;
 import org.apache.shindig.gadgets.render.Renderer;
 import org.apache.shindig.gadgets.render.RenderingResults;
 import org.apache.shindig.gadgets.uri.IframeUriManager;
@@ -32,6 +33,7 @@ import org.apache.shindig.gadgets.uri.UriCommon.Param;
 
 import com.google.common.base.Strings;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 
@@ -44,6 +46,13 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet for rendering Gadgets.
+ *
+ * With shindig.gadgets.rendering.streaming enabled, the start of the gadget's document, through
+ * its feature libraries, is flushed to the client as soon as the gadget is validated, and the rest
+ * follows once preloads are fetched and the content is rewritten. An error after that point can't
+ * change the response status or caching headers any more, so it is only reported in the response
+ * body. For that reason responses flushed early are never cached, and versioned requests, whose
+ * responses are cached indefinitely, aren't flushed early.
  */
 public class GadgetRenderingServlet extends InjectedServlet {
 
@@ -57,6 +66,7 @@ public class GadgetRenderingServlet extends InjectedServlet {
 
   protected transient Renderer renderer;
   protected transient IframeUriManager iframeUriManager;
+  protected transient boolean streaming;
 
   @Inject
   public void setRenderer(Renderer renderer) {
@@ -70,6 +80,12 @@ public class GadgetRenderingServlet extends InjectedServlet {
     this.iframeUriManager = iframeUriManager;
   }
 
+  @Inject(optional = true)
+  public void setStreaming(@Named("shindig.gadgets.rendering.streaming") boolean streaming) {
+    checkInitialized();
+    this.streaming = streaming;
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     // If an If-Modified-Since header is ever provided, we always say
@@ -104,12 +120,38 @@ public class GadgetRenderingServlet extends InjectedServlet {
     resp.setCharacterEncoding("UTF-8");
 
     GadgetContext context = new HttpGadgetContext(req);
+    if (streaming && urlstatus != UriStatus.VALID_VERSIONED) {
+      renderStreaming(req, resp, urlstatus, context);
+      return;
+    }
     RenderingResults results = renderer.render(context);
 
     // process the rendering results
     postGadgetRendering(new PostGadgetRenderingParams(req, resp, urlstatus, context, results));
   }
 
+  private void renderStreaming(final HttpServletRequest req, final HttpServletResponse resp,
+      final UriStatus urlStatus, final GadgetContext context) throws IOException {
+    final boolean[] flushed = new boolean[1];
+    RenderingResults results = renderer.render(context, new HtmlRenderer.HeadFlusher() {
+      public void flush(String head) throws IOException {
+        // A later error would be sent with these headers, so don't let it be cached.
+        HttpUtil.setCachingHeaders(resp, 0);
+        resp.getWriter().print(head);
+        resp.flushBuffer();
+        flushed[0] = true;
+      }
+    });
+
+    if (!flushed[0]) {
+      postGadgetRendering(new PostGadgetRenderingParams(req, resp, urlStatus, context, results));
+    } else if (results.getStatus() == RenderingResults.Status.OK) {
+      resp.getWriter().print(results.getContent());
+    } else {
+      resp.getWriter().print(StringEscapeUtils.escapeHtml4(results.getErrorMessage()));
+    }
+  }
+
   /**
    * Implementations that extend this class are strongly discouraged from overriding this method.
    * To customize the behavior please override the hook methods for each of the
@@ -131,9 +173,26 @@ public class GadgetRenderingServlet extends InjectedServlet {
 
   protected void onOkRenderingResultsStatus(PostGadgetRenderingParams params)
       throws IOException {
-    UriStatus urlStatus = params.getUrlStatus();
     HttpServletResponse resp = params.getResponse();
-    if (params.getContext().getIgnoreCache() ||
+    setCachingHeaders(params.getRequest(), resp, params.getUrlStatus(), params.getContext());
+    resp.getWriter().print(params.getResults().getContent());
+  }
+
+  protected void onErrorRenderingResultsStatus(PostGadgetRenderingParams params)
+      throws IOException {
+    HttpServletResponse resp = params.getResponse();
+    resp.setStatus(params.getResults().getHttpStatusCode());
+    resp.getWriter().print(StringEscapeUtils.escapeHtml4(params.getResults().getErrorMessage()));
+  }
+
+  protected void onMustRedirectRenderingResultsStatus(PostGadgetRenderingParams params)
+      throws IOException {
+     params.getResponse().sendRedirect(params.getResults().getRedirect().toString());
+  }
+
+  private void setCachingHeaders(HttpServletRequest req, HttpServletResponse resp,
+      UriStatus urlStatus, GadgetContext context) {
+    if (context.getIgnoreCache() ||
         urlStatus == UriStatus.INVALID_VERSION) {
       HttpUtil.setCachingHeaders(resp, 0);
     } else if (urlStatus == UriStatus.VALID_VERSIONED) {
@@ -143,32 +202,19 @@ public class GadgetRenderingServlet extends InjectedServlet {
       // Unversioned files get cached for 5 minutes by default, but this can be overridden
       // with a query parameter.
       int ttl = DEFAULT_CACHE_TTL;
-      String ttlStr = params.getRequest().getParameter(Param.REFRESH.getKey());
+      String ttlStr = req.getParameter(Param.REFRESH.getKey());
       if (!Strings.isNullOrEmpty(ttlStr)) {
         try {
           ttl = Integer.parseInt(ttlStr);
         } catch (NumberFormatException e) {
           // Ignore malformed TTL value
           if (LOG.isLoggable(Level.INFO)) {
-            LOG.logp(Level.INFO, classname, "onOkRenderingResultsStatus", MessageKeys.MALFORMED_TTL_VALUE, new Object[] {ttlStr});
+            LOG.logp(Level.INFO, classname, "setCachingHeaders", MessageKeys.MALFORMED_TTL_VALUE, new Object[] {ttlStr});
           }
         }
       }
       HttpUtil.setCachingHeaders(resp, ttl, true);
     }
-    resp.getWriter().print(params.getResults().getContent());
-  }
-
-  protected void onErrorRenderingResultsStatus(PostGadgetRenderingParams params)
-      throws IOException {
-    HttpServletResponse resp = params.getResponse();
-    resp.setStatus(params.getResults().getHttpStatusCode());
-    resp.getWriter().print(StringEscapeUtils.escapeHtml4(params.getResults().getErrorMessage()));
-  }
-
-  protected void onMustRedirectRenderingResultsStatus(PostGadgetRenderingParams params)
-      throws IOException {
-     params.getResponse().sendRedirect(params.getResults().getRedirect().toString());
   }
 
   private UriStatus getUrlStatus(HttpServletRequest req) {
@@ -21,17 +21,29 @@ package org.apache.shindig.gadgets.servlet;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Inject;
 
+import org.apache.shindig.common.cache.Cache;
+import org.apache.shindig.common.cache.CacheProvider;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.servlet.InjectedServlet;
+import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.GzipUtil;
+import org.apache.shindig.config.ContainerConfig;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.js.JsException;
 import org.apache.shindig.gadgets.js.JsRequest;
 import org.apache.shindig.gadgets.js.JsRequestBuilder;
 import org.apache.shindig.gadgets.js.JsResponse;
 import org.apache.shindig.gadgets.js.JsServingPipeline;
+import org.apache.shindig.gadgets.uri.JsUriManager.JsUri;
+import org.apache.shindig.gadgets.uri.UriCommon;
+import org.apache.shindig.gadgets.uri.UriStatus;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -43,11 +55,27 @@ import javax.servlet.http.HttpServletResponse;
 public class JsServlet extends InjectedServlet {
   private static final long serialVersionUID = 6255917470412008175L;
 
+  public static final String RESPONSE_CACHE = "jsResponses";
+
+  private static final String VERSION_PARAM = UriCommon.Param.VERSION.getKey();
+
   private JsServingPipeline jsServingPipeline;
   private CachingSetter cachingSetter;
 
   private JsRequestBuilder jsRequestBuilder;
 
+  private Cache<String, CachedJsResponse> responseCache;
+  // Part of every response cache key, so that responses built from replaced container config
+  // are no longer served.
+  private final AtomicInteger configVersion = new AtomicInteger();
+  private final ContainerConfig.ConfigObserver configObserver =
+      new ContainerConfig.ConfigObserver() {
+        public void containersChanged(
+            ContainerConfig config, Collection<String> changed, Collection<String> removed) {
+          configVersion.incrementAndGet();
+        }
+      };
+
   @VisibleForTesting
   static class CachingSetter {
     public void setCachingHeaders(HttpServletResponse resp, int ttl, boolean noProxy) {
@@ -77,6 +105,15 @@ public class JsServlet extends InjectedServlet {
     this.jsServingPipeline = jsServingPipeline;
   }
 
+  /**
+   * Enables caching of the final output of versioned JS requests.
+   */
+  @Inject(optional = true)
+  public void setResponseCache(CacheProvider cacheProvider, ContainerConfig containerConfig) {
+    this.responseCache = cacheProvider.createCache(RESPONSE_CACHE);
+    containerConfig.addConfigObserver(configObserver, false);
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
@@ -89,6 +126,15 @@ public class JsServlet extends InjectedServlet {
       return;
     }
 
+    String key = getResponseKey(jsRequest);
+    if (key != null) {
+      CachedJsResponse cached = responseCache.getElement(key);
+      if (cached != null) {
+        emitCachedResponse(cached, req, resp);
+        return;
+      }
+    }
+
     JsResponse jsResponse;
     try {
       jsResponse = jsServingPipeline.execute(jsRequest);
@@ -97,9 +143,88 @@ public class JsServlet extends InjectedServlet {
       return;
     }
 
+    if (key != null && jsResponse.getStatusCode() == HttpServletResponse.SC_OK) {
+      String js = jsResponse.toJsString();
+      if (js.length() > 0) {
+        CachedJsResponse cached = CachedJsResponse.of(jsResponse, js);
+        responseCache.addElement(key, cached);
+        emitCachedResponse(cached, req, resp);
+        return;
+      }
+    }
+
     emitJsResponse(jsResponse, req, resp);
   }
 
+  /**
+   * Only versioned requests are cached: their output is fixed for a given version of the
+   * features, whereas unversioned and stale ones are served with short TTLs. Requests from clients
+   * that already have the code are left to the pipeline, which answers them with a 304.
+   *
+   * @return The key of the request's output in the response cache, or null if it isn't cached.
+   */
+  private String getResponseKey(JsRequest jsRequest) {
+    JsUri jsUri = jsRequest.getJsUri();
+    if (responseCache == null || jsRequest.isInCache() || jsUri.isNoCache()
+        || jsUri.getStatus() != UriStatus.VALID_VERSIONED) {
+      return null;
+    }
+    Uri origUri = jsUri.getOrigUri();
+    StringBuilder key = new StringBuilder(256)
+        .append(jsUri.getContainer())
+        .append('|').append(jsUri.getContext())
+        .append('|').append(jsUri.getCompileMode())
+        .append('|').append(jsUri.isDebug() ? 'd' : '-')
+        .append(jsUri.cajoleContent() ? 'c' : '-')
+        .append(jsUri.isJsload() ? 'j' : '-')
+        .append(jsUri.isNohint() ? 'n' : '-')
+        .append('|').append(jsUri.getRefresh())
+        .append('|').append(jsUri.getRepository())
+        .append('|').append(jsUri.getGadget())
+        .append('|').append(jsUri.getOnload())
+        .append('|').append(jsUri.getLibs())
+        .append('|').append(jsUri.getLoadedLibs())
+        .append('|').append(origUri != null ? origUri.getQueryParameter(VERSION_PARAM) : null)
+        .append('|').append(jsRequest.getHost())
+        .append('|').append(configVersion.get());
+    Map<String, String> extensionParams = jsUri.getExtensionParams();
+    if (extensionParams != null) {
+      for (Map.Entry<String, String> param
+          : new TreeMap<String, String>(extensionParams).entrySet()) {
+        key.append('|').append(param.getKey()).append('=').append(param.getValue());
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Serves cached output, with its ETag, gzipped to clients that accept it.
+   */
+  protected void emitCachedResponse(CachedJsResponse cached, HttpServletRequest req,
+      HttpServletResponse resp) throws IOException {
+    cachingSetter.setCachingHeaders(
+        resp, cached.getCacheTtlSecs(), !cached.isProxyCacheable());
+    resp.setHeader("ETag", cached.getEtag());
+    if (cached.getEtag().equals(req.getHeader("If-None-Match"))) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    resp.setStatus(cached.getStatusCode());
+    resp.setContentType("text/javascript; charset=utf-8");
+    byte[] response = cached.getBody();
+    byte[] gzipped = cached.getGzippedBody();
+    if (gzipped != null) {
+      resp.addHeader("Vary", "Accept-Encoding");
+      if (GzipUtil.acceptsGzip(req.getHeader("Accept-Encoding"))) {
+        resp.setHeader("Content-Encoding", "gzip");
+        response = gzipped;
+      }
+    }
+    resp.setContentLength(response.length);
+    resp.getOutputStream().write(response);
+  }
+
   protected void emitJsResponse(JsResponse jsResponse, HttpServletRequest req,
       HttpServletResponse resp) throws IOException {
     if (jsResponse.getStatusCode() == HttpServletResponse.SC_NOT_MODIFIED) {
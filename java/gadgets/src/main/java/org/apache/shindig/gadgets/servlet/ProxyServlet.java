@@ -144,7 +144,7 @@ public class ProxyServlet extends InjectedServlet {
           HttpServletResponse.SC_BAD_REQUEST));
     }
 
-    ServletUtil.copyToServletResponseAndOverrideCacheHeaders(response, servletResponse);
+    ServletUtil.copyToServletResponseAndOverrideCacheHeaders(response, request, servletResponse);
   }
 
   private StringBuffer getPOSTContent(HttpServletRequest request) throws IOException {
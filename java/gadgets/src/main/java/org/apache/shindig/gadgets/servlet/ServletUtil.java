@@ -27,6 +27,7 @@ import org.apache.shindig.common.Pair;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.uri.UriBuilder;
+import org.apache.shindig.common.util.GzipUtil;
 import org.apache.shindig.common.util.Utf8UrlCoder;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.http.HttpRequest;
@@ -106,6 +107,17 @@ public final class ServletUtil {
     copyContentToServletResponse(response, servletResponse);
   }
 
+  /**
+   * Like {@link #copyToServletResponseAndOverrideCacheHeaders(HttpResponse, HttpServletResponse)},
+   * but sends the response's gzipped body as is when it has one and the request accepts gzip.
+   */
+  public static void copyToServletResponseAndOverrideCacheHeaders(HttpResponse response,
+      HttpServletRequest request, HttpServletResponse servletResponse) throws IOException {
+    copyHeadersAndStatusToServletResponse(response, servletResponse);
+    HttpUtil.setCachingHeaders(servletResponse, (int)(response.getCacheTtl() / 1000L));
+    copyContentToServletResponse(response, request, servletResponse);
+  }
+
   public static void copyToServletResponse(
       HttpResponse response, HttpServletResponse servletResponse) throws IOException {
     copyHeadersAndStatusToServletResponse(response, servletResponse);
@@ -118,6 +130,26 @@ public final class ServletUtil {
     IOUtils.copy(response.getResponse(), servletResponse.getOutputStream());
 
   }
+
+  /**
+   * Copies the response body, sending its gzipped form as is when the response has one and the
+   * request accepts gzip.
+   */
+  public static void copyContentToServletResponse(HttpResponse response,
+      HttpServletRequest request, HttpServletResponse servletResponse) throws IOException {
+    if (!response.hasGzippedResponse()) {
+      copyContentToServletResponse(response, servletResponse);
+      return;
+    }
+    servletResponse.addHeader("Vary", "Accept-Encoding");
+    if (GzipUtil.acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      servletResponse.setHeader("Content-Encoding", "gzip");
+      servletResponse.setContentLength(response.getGzippedContentLength());
+      IOUtils.copy(response.getGzippedResponse(), servletResponse.getOutputStream());
+    } else {
+      copyContentToServletResponse(response, servletResponse);
+    }
+  }
   public static void copyHeadersAndStatusToServletResponse(
       HttpResponse response, HttpServletResponse servletResponse) {
     servletResponse.setStatus(response.getHttpStatusCode());
@@ -63,10 +63,17 @@ public class GadgetSpec {
    * @throws SpecParserException If xml can not be processed as a valid gadget spec.
    */
   public GadgetSpec(Uri url, Element doc, String original) throws SpecParserException {
-    this.url = url;
-
     // This might not be good enough; should we take message bundle changes into account?
-    this.checksum = HashUtil.checksum(original.getBytes());
+    this(doc, url, HashUtil.checksum(original.getBytes()));
+  }
+
+  /**
+   * Creates a new Module from a pre-parsed document whose checksum is already known, as when
+   * decoded by {@link SpecCodec}.
+   */
+  GadgetSpec(Element doc, Uri url, String checksum) throws SpecParserException {
+    this.url = url;
+    this.checksum = checksum;
 
     NodeList children = doc.getChildNodes();
     //Save specification version of this Gadget
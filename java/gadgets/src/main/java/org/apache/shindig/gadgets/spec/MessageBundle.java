@@ -77,6 +77,15 @@ public class MessageBundle {
      languageDirection = locale.getLanguageDirection();
    }
 
+  /**
+   * Constructs a message bundle with the given messages and language direction, as when decoded
+   * by {@link SpecCodec}.
+   */
+  MessageBundle(Map<String, String> map, String languageDirection) {
+    messages = ImmutableMap.copyOf(map);
+    this.languageDirection = languageDirection;
+  }
+
   /**
    * Constructs a message bundle from a /ModulePrefs/Locale with nested messages.
    * @param element XML Dom element to parse
@@ -0,0 +1,333 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.spec;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.shindig.common.uri.Uri;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, versioned binary forms of parsed gadget specs and message bundles, for storing them
+ * outside of memory, such as in a cache snapshot.
+ *
+ * A gadget spec is stored as its checksum and the element tree it was built from, with Content
+ * sections that have no href reduced to their text as with {@link StreamingGadgetSpecParser}.
+ * Decoding builds the tree again without parsing XML or hashing the original spec, and constructs
+ * every part of the spec (module prefs, views, user prefs, features, locales and pipelined data)
+ * from it exactly as when the spec was first parsed. Because a GadgetSpec doesn't keep its
+ * elements, a spec has to be encoded from its Module element when it is parsed.
+ *
+ * Gadget spec layout, in network byte order:
+ *
+ * short - magic
+ * byte - format version
+ * string - checksum
+ * element - the Module element
+ *
+ * An element is a node type byte, a name, a namespace, an attribute count followed by a name,
+ * namespace and value string for each attribute, then its child elements and text nodes, and an
+ * end byte. Names and namespaces are one more than an index into a table of the names seen so far,
+ * where the next free index is followed by the name string. 0 stands for no namespace.
+ *
+ * Message bundle layout:
+ *
+ * short - magic
+ * byte - format version
+ * string - language direction
+ * varint - message count, followed by a name string and value string for each message
+ *
+ * Strings are a byte length followed by UTF-8 bytes. Counts, lengths and name indexes are varints:
+ * unsigned, 7 bits per byte from the lowest bits up, with the high bit set on all but the last byte.
+ */
+public final class SpecCodec {
+  static final short GADGET_SPEC_MAGIC = 0x4753;
+  static final short MESSAGE_BUNDLE_MAGIC = 0x4D42;
+  static final byte VERSION = 1;
+
+  private static final byte END = 0;
+  private static final byte ELEMENT = 1;
+  private static final byte TEXT = 2;
+
+  private SpecCodec() {}
+
+  /**
+   * @param module The element a spec was built from.
+   * @param checksum The checksum of the spec.
+   * @return The encoded form of the spec.
+   */
+  public static byte[] encode(Element module, String checksum) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(GADGET_SPEC_MAGIC);
+      out.writeByte(VERSION);
+      writeString(out, checksum);
+      writeElement(out, module, Maps.<String, Integer>newHashMap(), true);
+      out.flush();
+    } catch (IOException e) {
+      // Not thrown when writing to memory.
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param url The url of the spec.
+   * @return The spec encoded in the given bytes.
+   * @throws IOException If the bytes aren't an encoded spec in a supported version.
+   * @throws SpecParserException If the encoded elements aren't a valid spec.
+   */
+  public static GadgetSpec decodeGadgetSpec(Uri url, byte[] encoded)
+      throws IOException, SpecParserException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    checkHeader(in, GADGET_SPEC_MAGIC);
+    String checksum = readString(in);
+    if (in.readByte() != ELEMENT) {
+      throw new IOException("Invalid GadgetSpec encoding");
+    }
+    Document doc = StreamingGadgetSpecParser.createDocument();
+    doc.appendChild(readElement(in, doc, Lists.<String>newArrayList()));
+
+    return new GadgetSpec(doc.getDocumentElement(), url, checksum);
+  }
+
+  /**
+   * @return The encoded form of the bundle.
+   */
+  public static byte[] encode(MessageBundle bundle) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(MESSAGE_BUNDLE_MAGIC);
+      out.writeByte(VERSION);
+      writeString(out, bundle.getLanguageDirection());
+      Map<String, String> messages = bundle.getMessages();
+      writeVarInt(out, messages.size());
+      for (Map.Entry<String, String> entry : messages.entrySet()) {
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+      }
+      out.flush();
+    } catch (IOException e) {
+      // Not thrown when writing to memory.
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return The bundle encoded in the given bytes.
+   * @throws IOException If the bytes aren't an encoded bundle in a supported version.
+   */
+  public static MessageBundle decodeMessageBundle(byte[] encoded) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    checkHeader(in, MESSAGE_BUNDLE_MAGIC);
+    String languageDirection = readString(in);
+    int count = readVarInt(in);
+    // Every message takes at least two length prefixes.
+    if (count > in.available() / 2) {
+      throw new IOException("Invalid count in MessageBundle encoding: " + count);
+    }
+    Map<String, String> messages = Maps.newHashMapWithExpectedSize(count);
+    for (int i = 0; i < count; i++) {
+      messages.put(readString(in), readString(in));
+    }
+    return new MessageBundle(messages, languageDirection);
+  }
+
+  private static void writeElement(DataOutputStream out, Element element,
+      Map<String, Integer> names, boolean isModule) throws IOException {
+    out.writeByte(ELEMENT);
+    writeName(out, element.getTagName(), names);
+    writeName(out, element.getNamespaceURI(), names);
+    NamedNodeMap attributes = element.getAttributes();
+    writeVarInt(out, attributes.getLength());
+    for (int i = 0, j = attributes.getLength(); i < j; i++) {
+      Node attr = attributes.item(i);
+      writeName(out, attr.getNodeName(), names);
+      writeName(out, attr.getNamespaceURI(), names);
+      writeString(out, attr.getNodeValue());
+    }
+
+    StringBuilder text = new StringBuilder();
+    for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+      switch (child.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          Element childElement = (Element) child;
+          if (isModule && "Content".equals(childElement.getTagName())
+              && !childElement.hasAttribute("href")) {
+            writeContent(out, childElement, names);
+          } else {
+            writeText(out, text);
+            writeElement(out, childElement, names, false);
+          }
+          break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+          text.append(child.getNodeValue());
+          break;
+        default:
+          // Comments and processing instructions aren't part of the spec.
+      }
+    }
+    writeText(out, text);
+    out.writeByte(END);
+  }
+
+  /**
+   * Writes a Content section with its body reduced to text, as views only read its text.
+   */
+  private static void writeContent(DataOutputStream out, Element content,
+      Map<String, Integer> names) throws IOException {
+    Element copy = (Element) content.cloneNode(false);
+    String body = content.getTextContent();
+    if (body.length() > 0) {
+      copy.appendChild(content.getOwnerDocument().createTextNode(body));
+    }
+    writeElement(out, copy, names, false);
+  }
+
+  private static void writeText(DataOutputStream out, StringBuilder text) throws IOException {
+    if (text.length() > 0) {
+      out.writeByte(TEXT);
+      writeString(out, text.toString());
+      text.setLength(0);
+    }
+  }
+
+  private static void writeName(DataOutputStream out, String name, Map<String, Integer> names)
+      throws IOException {
+    if (name == null) {
+      out.writeByte(0);
+      return;
+    }
+    Integer index = names.get(name);
+    if (index != null) {
+      writeVarInt(out, index + 1);
+    } else {
+      writeVarInt(out, names.size() + 1);
+      writeString(out, name);
+      names.put(name, names.size());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static void checkHeader(DataInputStream in, short magic) throws IOException {
+    if (in.readShort() != magic) {
+      throw new IOException("Not an encoded spec");
+    }
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported spec encoding version " + version);
+    }
+  }
+
+  private static Element readElement(DataInputStream in, Document doc, List<String> names)
+      throws IOException {
+    String tagName = readName(in, names);
+    Element element = doc.createElementNS(readName(in, names), tagName);
+    int attributeCount = readVarInt(in);
+    // Every attribute takes at least three bytes.
+    if (attributeCount > in.available() / 3) {
+      throw new IOException("Invalid count in spec encoding: " + attributeCount);
+    }
+    for (int i = 0; i < attributeCount; i++) {
+      String name = readName(in, names);
+      element.setAttributeNS(readName(in, names), name, readString(in));
+    }
+    while (true) {
+      byte type = in.readByte();
+      if (type == END) {
+        return element;
+      } else if (type == ELEMENT) {
+        element.appendChild(readElement(in, doc, names));
+      } else if (type == TEXT) {
+        element.appendChild(doc.createTextNode(readString(in)));
+      } else {
+        throw new IOException("Invalid node type in spec encoding: " + type);
+      }
+    }
+  }
+
+  private static String readName(DataInputStream in, List<String> names) throws IOException {
+    int index = readVarInt(in) - 1;
+    if (index == -1) {
+      return null;
+    }
+    if (index == names.size()) {
+      names.add(readString(in));
+    } else if (index > names.size()) {
+      throw new IOException("Invalid name in spec encoding: " + index);
+    }
+    return names.get(index);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = readVarInt(in);
+    if (length > in.available()) {
+      throw new IOException("Invalid length in spec encoding: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.readByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          break;
+        }
+        return value;
+      }
+    }
+    throw new IOException("Invalid number in spec encoding");
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.spec;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.xml.XmlException;
+import org.apache.shindig.common.xml.XmlUtil;
+
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Parses gadget spec XML from a SAX event stream into the elements that {@link GadgetSpec} reads,
+ * as a cheaper alternative to building a full DOM with {@link XmlUtil#parse}.
+ *
+ * The body of a Content section is collected into a single string as it streams by, rather than
+ * built into nodes for any inline markup, since a view only uses its text. Content sections of
+ * proxied views keep their child elements, which the views read pipelined data requests from. As
+ * in {@link View}, a view is proxied from the first of its sections that has an href onwards.
+ * Comments and processing instructions are dropped.
+ */
+public final class StreamingGadgetSpecParser {
+  private static final String CONTENT = "Content";
+  private static final Splitter VIEW_SPLITTER = Splitter.on(',').trimResults();
+
+  private static final SAXParserFactory PARSER_FACTORY = SAXParserFactory.newInstance();
+  private static final DOMImplementation DOM_IMPLEMENTATION;
+
+  private static final ThreadLocal<SAXParser> REUSABLE_PARSER = new ThreadLocal<SAXParser>() {
+    @Override
+    protected SAXParser initialValue() {
+      try {
+        return PARSER_FACTORY.newSAXParser();
+      } catch (ParserConfigurationException e) {
+        throw new RuntimeException(e);
+      } catch (SAXException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  static {
+    // Namespace support is required for <os:> elements
+    PARSER_FACTORY.setNamespaceAware(true);
+    PARSER_FACTORY.setValidating(false);
+
+    // As with XmlUtil, doctypes are allowed but external entities and DTDs aren't loaded.
+    setFeature("http://xml.org/sax/features/external-general-entities", false);
+    setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+    setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+
+    DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+    builderFactory.setNamespaceAware(true);
+    try {
+      DOM_IMPLEMENTATION = builderFactory.newDocumentBuilder().getDOMImplementation();
+    } catch (ParserConfigurationException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void setFeature(String name, boolean value) {
+    try {
+      PARSER_FACTORY.setFeature(name, value);
+    } catch (SAXException e) {
+      // Not supported by this parser.
+    } catch (ParserConfigurationException e) {
+      // Not supported by this parser.
+    }
+  }
+
+  private StreamingGadgetSpecParser() {}
+
+  /**
+   * @return The Module element of the spec.
+   * @throws XmlException If the xml is malformed.
+   */
+  public static Element parse(String xml) throws XmlException {
+    SAXParser parser = REUSABLE_PARSER.get();
+    parser.reset();
+    Document doc = createDocument();
+    try {
+      parser.parse(new InputSource(new StringReader(xml.trim())), new SpecHandler(doc));
+    } catch (SAXParseException e) {
+      throw new XmlException(
+          e.getMessage() + " At: (" + e.getLineNumber() + ',' + e.getColumnNumber() + ')', e);
+    } catch (SAXException e) {
+      throw new XmlException(e);
+    } catch (IOException e) {
+      throw new XmlException(e);
+    }
+    return doc.getDocumentElement();
+  }
+
+  /**
+   * @return A new, empty document to build spec elements in.
+   */
+  static Document createDocument() {
+    return DOM_IMPLEMENTATION.createDocument(null, null, null);
+  }
+
+  public static Element parseSilent(String xml) {
+    try {
+      return parse(xml);
+    } catch (XmlException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return The spec parsed from the given xml.
+   */
+  public static GadgetSpec parse(Uri url, String xml) throws XmlException, SpecParserException {
+    return new GadgetSpec(url, parse(xml), xml);
+  }
+
+  private static class SpecHandler extends DefaultHandler {
+    private final Document doc;
+    private final List<String> namespaceDeclarations = Lists.newArrayList();
+    // Views that an earlier Content section gave an href.
+    private final Set<String> proxiedViews = Sets.newHashSet();
+    private Node current;
+    // Nesting depth within a Content section that is collected as text, 0 outside of one.
+    private int textDepth = 0;
+    private StringBuilder text;
+
+    SpecHandler(Document doc) {
+      this.doc = doc;
+      this.current = doc;
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+      namespaceDeclarations.add(prefix);
+      namespaceDeclarations.add(uri);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+      if (textDepth > 0) {
+        textDepth++;
+        namespaceDeclarations.clear();
+        return;
+      }
+
+      Element element = doc.createElementNS(emptyToNull(uri), qName);
+      // A DOM keeps namespace declarations as attributes, and views expose unknown attributes.
+      for (int i = 0; i < namespaceDeclarations.size(); i += 2) {
+        String prefix = namespaceDeclarations.get(i);
+        String name = prefix.length() == 0 ? XMLConstants.XMLNS_ATTRIBUTE
+            : XMLConstants.XMLNS_ATTRIBUTE + ':' + prefix;
+        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name,
+            namespaceDeclarations.get(i + 1));
+      }
+      namespaceDeclarations.clear();
+      for (int i = 0, j = attributes.getLength(); i < j; i++) {
+        element.setAttributeNS(emptyToNull(attributes.getURI(i)), attributes.getQName(i),
+            attributes.getValue(i));
+      }
+
+      boolean isContent = current == doc.getDocumentElement() && CONTENT.equals(qName)
+          && !isProxied(element);
+      current.appendChild(element);
+      current = element;
+      if (isContent) {
+        textDepth = 1;
+        text = new StringBuilder();
+      }
+    }
+
+    private boolean isProxied(Element content) {
+      String viewNames = XmlUtil.getAttribute(content, "view", GadgetSpec.DEFAULT_VIEW);
+      boolean hasHref = content.hasAttribute("href");
+      boolean proxied = hasHref;
+      for (String view : VIEW_SPLITTER.split(viewNames)) {
+        if (hasHref) {
+          proxiedViews.add(view);
+        } else if (proxiedViews.contains(view)) {
+          proxied = true;
+        }
+      }
+      return proxied;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if (textDepth > 1) {
+        textDepth--;
+        return;
+      }
+      if (textDepth == 1) {
+        if (text.length() > 0) {
+          current.appendChild(doc.createTextNode(text.toString()));
+        }
+        textDepth = 0;
+        text = null;
+      }
+      current = current.getParentNode();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (textDepth > 0) {
+        text.append(ch, start, length);
+      } else if (current != doc) {
+        current.appendChild(doc.createTextNode(new String(ch, start, length)));
+      }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+      characters(ch, start, length);
+    }
+
+    @Override
+    public void error(SAXParseException e) throws SAXException {
+      throw e;
+    }
+  }
+
+  private static String emptyToNull(String value) {
+    return value == null || value.length() == 0 ? null : value;
+  }
+}
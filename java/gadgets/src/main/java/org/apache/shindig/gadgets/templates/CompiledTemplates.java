@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.templates;
+
+import org.apache.shindig.gadgets.templates.TemplateCompiler.CompiledNode;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Templates compiled by {@link TemplateCompiler}, along with the compiled content of the custom
+ * tags they use and of the templates defining those tags. Tag handlers are resolved when
+ * compiling, so compiled templates are only valid with the registry they were compiled against.
+ *
+ * Compiled templates are immutable and may be cached, and then rendered from other copies of the
+ * same templates, such as those parsed from the same gadget content for another request: see
+ * {@link #bind(List)}. The templates are rendered by setting them on the
+ * {@link TemplateContext}.
+ */
+public final class CompiledTemplates {
+  private final List<Element> templates;
+  private final CompiledNode[][] compiledTemplates;
+  private final Map<Node, CompiledNode[]> content;
+  private final TagRegistry registry;
+
+  CompiledTemplates(List<Element> templates, CompiledNode[][] compiledTemplates,
+      Map<Node, CompiledNode[]> content, TagRegistry registry) {
+    this.templates = ImmutableList.copyOf(templates);
+    this.compiledTemplates = compiledTemplates;
+    this.content = content;
+    this.registry = registry;
+  }
+
+  /**
+   * @return The registry the templates were compiled against.
+   */
+  public TagRegistry getTagRegistry() {
+    return registry;
+  }
+
+  /**
+   * @param copies copies of the templates these were compiled from, in the same order
+   * @return These compiled templates, for rendering the copies.
+   */
+  public CompiledTemplates bind(List<Element> copies) {
+    Preconditions.checkArgument(copies.size() == compiledTemplates.length,
+        "Expected %s templates, got %s", compiledTemplates.length, copies.size());
+    return new CompiledTemplates(copies, compiledTemplates, content, registry);
+  }
+
+  /**
+   * @return The compiled content of a template or tag, or null if it wasn't compiled along with
+   *     the templates.
+   */
+  CompiledNode[] get(Node source) {
+    for (int i = 0; i < compiledTemplates.length; i++) {
+      if (templates.get(i) == source) {
+        return compiledTemplates[i];
+      }
+    }
+    return content.get(source);
+  }
+}
@@ -22,20 +22,22 @@ import org.apache.shindig.common.logging.i18n.MessageKeys;
 import org.apache.shindig.expressions.Expressions;
 import org.apache.shindig.gadgets.GadgetELResolver;
 import org.apache.shindig.gadgets.parse.HtmlSerialization;
+import org.apache.shindig.gadgets.templates.TemplateCompiler.CompiledAttribute;
+import org.apache.shindig.gadgets.templates.TemplateCompiler.CompiledElement;
+import org.apache.shindig.gadgets.templates.TemplateCompiler.CompiledExpression;
+import org.apache.shindig.gadgets.templates.TemplateCompiler.CompiledNode;
+import org.apache.shindig.gadgets.templates.TemplateCompiler.ExpressionText;
+import org.apache.shindig.gadgets.templates.TemplateCompiler.StaticText;
 import org.apache.shindig.gadgets.templates.tags.RepeatTagHandler;
 import org.apache.shindig.gadgets.templates.tags.TagHandler;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,9 +46,7 @@ import javax.el.ELException;
 import javax.el.ELResolver;
 import javax.el.ValueExpression;
 
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 
@@ -56,6 +56,8 @@ import com.google.inject.Inject;
  *   - ${...} style expressions in content and attributes
  *   - @if attribute
  *   - @repeat attribute
+ *
+ * Templates are rendered from their compiled form, see {@link TemplateCompiler}.
  * TODO:
  *   - Handle built-in/custom tags
  */
@@ -75,21 +77,14 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
   public static final String ATTRIBUTE_VAR = "var";
   public static final String ATTRIBUTE_CUR = "cur";
 
-  /**
-   * Set of attributes in HTML 4 that are boolean, and may only be set
-   * to that value, and should be omitted to indicate "false".
-   */
-  private static final Set<String> HTML4_BOOLEAN_ATTRIBUTES =
-    ImmutableSet.of("checked", "compact", "declare", "defer", "disabled", "ismap",
-        "multiple", "nohref", "noresize", "noshade", "nowrap", "readonly", "selected");
-
-  private static final Set<String> ONCREATE_ATTRIBUTES =
-    ImmutableSet.of("oncreate", "x-oncreate");
-
   private final Expressions expressions;
+  private final TemplateCompiler compiler;
   // Reused buffer for creating template output
   private final StringBuilder outputBuffer;
 
+  // Content compiled while rendering, when not compiled along with the templates
+  private final Map<Node, CompiledNode[]> compiledContent = Maps.newIdentityHashMap();
+
   private TagRegistry registry;
   private TemplateContext templateContext;
   private ELContext elContext;
@@ -97,11 +92,16 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
   private int uniqueIdCounter = 0;
 
   @Inject
-  public DefaultTemplateProcessor(Expressions expressions) {
+  public DefaultTemplateProcessor(Expressions expressions, TemplateCompiler compiler) {
     this.expressions = expressions;
+    this.compiler = compiler;
     outputBuffer = new StringBuilder();
   }
 
+  public DefaultTemplateProcessor(Expressions expressions) {
+    this(expressions, new TemplateCompiler(expressions));
+  }
+
   /**
    * Process an entire template.
    *
@@ -115,6 +115,9 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
   public DocumentFragment processTemplate(Element template,
       TemplateContext templateContext, ELResolver globals, TagRegistry registry) {
 
+    if (registry != this.registry) {
+      compiledContent.clear();
+    }
     this.registry = registry;
     this.templateContext = templateContext;
     this.elContext = expressions.newELContext(globals,
@@ -132,14 +135,20 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
 
   /** Process the children of an element or document. */
   public void processChildNodes(Node result, Node source) {
-    Node current = null;
-    synchronized (source) {
-      current = source.getFirstChild();
-      while (current != null) {
-        processNode(result, current);
-        current = current.getNextSibling();
+    processNodes(result, getCompiledNodes(source));
+  }
+
+  private CompiledNode[] getCompiledNodes(Node source) {
+    CompiledTemplates compiledTemplates = templateContext.getCompiledTemplates();
+    CompiledNode[] nodes = compiledTemplates == null ? null : compiledTemplates.get(source);
+    if (nodes == null) {
+      nodes = compiledContent.get(source);
+      if (nodes == null) {
+        nodes = compiler.compileChildNodes(source, registry);
+        compiledContent.put(source, nodes);
       }
     }
+    return nodes;
   }
 
   public TemplateContext getTemplateContext() {
@@ -147,116 +156,59 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
   }
 
   /**
-   * Process a node.
+   * Process compiled nodes.
    *
    * @param result the target node where results should be inserted
-   * @param source the source node of the template being processed
+   * @param nodes the compiled nodes of the template being processed
    */
-  private void processNode(Node result, Node source) {
-    switch (source.getNodeType()) {
-      case Node.TEXT_NODE:
-        processText(result, source.getTextContent());
-        break;
-      case Node.ELEMENT_NODE:
-        processElement(result, (Element) source);
-        break;
-      case Node.DOCUMENT_NODE:
-        processChildNodes(result, source);
-        break;
+  private void processNodes(Node result, CompiledNode[] nodes) {
+    for (CompiledNode node : nodes) {
+      if (node instanceof StaticText) {
+        result.appendChild(result.getOwnerDocument().createTextNode(((StaticText) node).text));
+      } else if (node instanceof ExpressionText) {
+        processExpression(result, ((ExpressionText) node).expression);
+      } else {
+        processElement(result, (CompiledElement) node);
+      }
     }
   }
 
   /**
-   * Process text content by including non-expression content verbatim and
-   * escaping expression content.
-
+   * Process expression content by escaping its value.
+   *
    * @param result the target node where results should be inserted
-   * @param textContent the text content being processed
+   * @param expression the expression being processed
    */
-  private void processText(Node result, String textContent) {
-    if (textContent == null) {
-      return;
-    }
-    Document ownerDocument = result.getOwnerDocument();
-
-    int start = 0;
-    int current = 0;
-    while (current < textContent.length()) {
-      current = textContent.indexOf("${", current);
-      // No expressions, we're done
-      if (current < 0) {
-        break;
-      }
-
-      // An escaped expression "\${"
-      if (current > 0 && textContent.charAt(current - 1) == '\\') {
-        // Drop the \ by outputting everything before it, and moving past
-        // the ${
-        if (current - 1 > start) {
-          String staticText = textContent.substring(start, current - 1);
-          result.appendChild(ownerDocument.createTextNode(staticText));
-        }
-        //EL syntax is supported in gadget rendering(https://reviews.apache.org/r/8184),
-        //so keep the \ into expression result, to make sure "\${" will not be evaluated in gadget rendering as expected
-        start = current -1 ;
-        current = current + 2;
-        continue;
-      }
-
-      // Not a real expression, we're done
-      int expressionEnd = textContent.indexOf('}', current + 2);
-      if (expressionEnd < 0) {
-        break;
-      }
-
-      // Append the existing static text, if any
-      if (current > start) {
-        result.appendChild(ownerDocument.createTextNode(textContent.substring(start, current)));
-      }
-
-      // Isolate the expression, parse and evaluate
-      String expression = textContent.substring(current, expressionEnd + 1);
-      String value = evaluate(expression, String.class, "");
-
-      if (!"".equals(value)) {
-        // And now escape
-        outputBuffer.setLength(0);
-        try {
-          HtmlSerialization.printEscapedText(value, outputBuffer);
-        } catch (IOException e) {
-          // Can't happen writing to StringBuilder
-          throw new RuntimeException(e);
-        }
-
-        result.appendChild(ownerDocument.createTextNode(outputBuffer.toString()));
+  private void processExpression(Node result, CompiledExpression expression) {
+    String value = evaluate(expression, String.class, "");
+
+    if (!"".equals(value)) {
+      // And now escape
+      outputBuffer.setLength(0);
+      try {
+        HtmlSerialization.printEscapedText(value, outputBuffer);
+      } catch (IOException e) {
+        // Can't happen writing to StringBuilder
+        throw new RuntimeException(e);
       }
 
-      // And continue with the next expression
-      current = start = expressionEnd + 1;
-    }
-
-    // Add any static text left over
-    if (start < textContent.length()) {
-      result.appendChild(ownerDocument.createTextNode(textContent.substring(start)));
+      result.appendChild(result.getOwnerDocument().createTextNode(outputBuffer.toString()));
     }
   }
 
   /**
    * Process repeater state, if needed, on an element.
    */
-  private void processElement(final Node result, final Element element) {
-    synchronized (element) {
-      Attr repeat = element.getAttributeNode(ATTRIBUTE_REPEAT);
-      if (repeat != null) {
-        Iterable<?> dataList = evaluate(repeat.getValue(), Iterable.class, null);
-        processRepeat(result, element, dataList, new Runnable() {
-          public void run() {
-            processElementInner(result, element);
-          }
-        });
-      } else {
-        processElementInner(result, element);
-      }
+  private void processElement(final Node result, final CompiledElement element) {
+    if (element.repeat != null) {
+      Iterable<?> dataList = evaluate(element.repeat, Iterable.class, null);
+      processRepeat(dataList, element.var, element.index, new Runnable() {
+        public void run() {
+          processElementInner(result, element);
+        }
+      });
+    } else {
+      processElementInner(result, element);
     }
   }
 
@@ -267,6 +219,14 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
    */
   public void processRepeat(Node result, Element element, Iterable<?> dataList,
       Runnable onEachLoop) {
+    Attr varAttr = element.getAttributeNode(ATTRIBUTE_VAR);
+    Attr indexVarAttr = element.getAttributeNode(ATTRIBUTE_INDEX);
+    processRepeat(dataList, varAttr == null ? null : varAttr.getValue(),
+        indexVarAttr == null ? PROPERTY_INDEX : indexVarAttr.getValue(), onEachLoop);
+  }
+
+  private void processRepeat(Iterable<?> dataList, String var, String indexVar,
+      Runnable onEachLoop) {
     if (dataList == null) {
       return;
     }
@@ -289,25 +249,19 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
       // TODO: This means that any loop with @var doesn't make the loop
       // variable available in the default expression context.
       // Update the specification to make this explicit.
-      Attr varAttr = element.getAttributeNode(ATTRIBUTE_VAR);
-      if (varAttr == null) {
-        oldCur = templateContext.getCur();
-      } else {
-        oldVarExpression = elContext.getVariableMapper().resolveVariable(varAttr.getValue());
+      if (var != null) {
+        oldVarExpression = elContext.getVariableMapper().resolveVariable(var);
       }
 
-      Attr indexVarAttr = element.getAttributeNode(ATTRIBUTE_INDEX);
-      String indexVar = indexVarAttr == null ? PROPERTY_INDEX : indexVarAttr.getValue();
-
       int index = 0;
       for (Object data : dataList) {
         loopData.put(indexVar, index++);
 
         // Set up context for rendering inner node
         templateContext.setCur(data);
-        if (varAttr != null) {
+        if (var != null) {
           ValueExpression varExpression = expressions.constant(data, Object.class);
-          elContext.getVariableMapper().setVariable(varAttr.getValue(), varExpression);
+          elContext.getVariableMapper().setVariable(var, varExpression);
         }
 
         onEachLoop.run();
@@ -315,10 +269,10 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
       }
 
       // Restore EL state
-      if (varAttr == null) {
+      if (var == null) {
         templateContext.setCur(oldCur);
       } else {
-        elContext.getVariableMapper().setVariable(varAttr.getValue(), oldVarExpression);
+        elContext.getVariableMapper().setVariable(var, oldVarExpression);
       }
 
       templateContext.setContext(oldContext);
@@ -328,30 +282,29 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
   /**
    * Process conditionals and non-repeat attributes on an element
    */
-  private void processElementInner(Node result, Element element) {
-    TagHandler handler = registry.getHandlerFor(element);
+  private void processElementInner(Node result, CompiledElement compiled) {
+    Element element = compiled.source;
+    TagHandler handler = compiled.handler;
 
     // An ugly special-case:  <os:Repeat> will re-evaluate the "if" attribute
     // (as it should) for each loop of the repeat.  Don't evaluate it here.
-    if (!(handler instanceof RepeatTagHandler)) {
-      Attr ifAttribute = element.getAttributeNode(ATTRIBUTE_IF);
-      if (ifAttribute != null) {
-        if (!evaluate(ifAttribute.getValue(), Boolean.class, false)) {
-          return;
-        }
+    if (compiled.condition != null && !(handler instanceof RepeatTagHandler)) {
+      if (!evaluate(compiled.condition, Boolean.class, false)) {
+        return;
       }
     }
 
     // TODO: the spec is silent on order of evaluation of "cur" relative
     // to "if" and "repeat"
-    Attr curAttribute = element.getAttributeNode(ATTRIBUTE_CUR);
     Object oldCur = templateContext.getCur();
-    if (curAttribute != null) {
-      templateContext.setCur(evaluate(curAttribute.getValue(), Object.class, null));
+    if (compiled.cur != null) {
+      templateContext.setCur(evaluate(compiled.cur, Object.class, null));
     }
 
     if (handler != null) {
-      handler.process(result, element, this);
+      synchronized (element) {
+        handler.process(result, element, this);
+      }
     } else {
       // Be careful cloning nodes! If a target node belongs to a different document than the
       // template node then use importNode rather than cloneNode as that avoids side-effects
@@ -366,10 +319,12 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
         resultNode = (Element)element.cloneNode(false);
       }
 
-      clearSpecialAttributes(resultNode);
-      Node additionalNode = processAttributes(resultNode);
+      if (compiled.hasSpecialAttributes) {
+        clearSpecialAttributes(resultNode);
+      }
+      Node additionalNode = processAttributes(resultNode, compiled.attributes);
 
-      processChildNodes(resultNode, element);
+      processNodes(resultNode, compiled.children);
       result.appendChild(resultNode);
 
       if (additionalNode != null) {
@@ -377,7 +332,7 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
       }
     }
 
-    if (curAttribute != null) {
+    if (compiled.cur != null) {
       templateContext.setCur(oldCur);
     }
   }
@@ -393,61 +348,38 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
   /**
    * Process expressions on attributes.
    * @param element The Element to process attributes on
+   * @param attributes The attributes of the element whose values are evaluated
    * @return Node to attach after this Element, or null
    */
-  private Node processAttributes(Element element) {
-    NamedNodeMap attributes = element.getAttributes();
+  private Node processAttributes(Element element, CompiledAttribute[] attributes) {
     Node additionalNode = null;
-
-    // Mutations to perform after iterating (if needed)
-    List<Attr> attrsToRemove = null;
     String newId = null;
 
-    for (int i = 0; i < attributes.getLength(); i++) {
-      boolean removeThisAttribute = false;
-
-      Attr attribute = (Attr) attributes.item(i);
-      // Boolean attributes: evaluate as a boolean.  If true, set the value to the
-      // name of the attribute, e.g. selected="selected".  If false, remove the attribute
-      // altogether.  The check here has some limitations for efficiency:  it assumes the
-      // attribute is lowercase, and doesn't bother to check whether the boolean attribute
-      // actually exists on the referred element (but HTML has no attrs that are sometimes
-      // boolean and sometimes not)
-      if (element.getNamespaceURI() == null &&
-          HTML4_BOOLEAN_ATTRIBUTES.contains(attribute.getName())) {
-        if (Boolean.TRUE.equals(evaluate(attribute.getValue(), Boolean.class, Boolean.FALSE))) {
-          attribute.setNodeValue(attribute.getName());
-        } else {
-          removeThisAttribute = true;
-        }
-      } else if (ONCREATE_ATTRIBUTES.contains(attribute.getName())) {
-        String id = element.getAttribute("id");
-        if (id.length() == 0) {
-          newId = id = getUniqueId();
-        }
-
-        additionalNode = buildOnCreateScript(
-            evaluate(attribute.getValue(), String.class, null), id, element.getOwnerDocument());
-        removeThisAttribute = true;
-      } else {
-        attribute.setNodeValue(evaluate(attribute.getValue(), String.class, null));
-      }
-
-      // Because NamedNodeMaps are live, removing them interferes with iteration.
-      // Remove the attributes in a later pass
-      if (removeThisAttribute) {
-        if (attrsToRemove == null) {
-          attrsToRemove = Lists.newArrayListWithCapacity(attributes.getLength());
-        }
-
-        attrsToRemove.add(attribute);
-      }
-    }
+    for (CompiledAttribute compiled : attributes) {
+      Attr attribute = element.getAttributeNode(compiled.name);
+      switch (compiled.kind) {
+        case CompiledAttribute.BOOLEAN:
+          // Boolean attributes: evaluate as a boolean.  If true, set the value to the
+          // name of the attribute, e.g. selected="selected".  If false, remove the attribute
+          // altogether.
+          if (Boolean.TRUE.equals(evaluate(compiled.value, Boolean.class, Boolean.FALSE))) {
+            attribute.setNodeValue(compiled.name);
+          } else {
+            element.removeAttributeNode(attribute);
+          }
+          break;
+        case CompiledAttribute.ONCREATE:
+          String id = element.getAttribute("id");
+          if (id.length() == 0) {
+            newId = id = getUniqueId();
+          }
 
-    // Now that iteration is complete, perform mutations
-    if (attrsToRemove != null) {
-      for (Attr attr : attrsToRemove) {
-        element.removeAttributeNode(attr);
+          additionalNode = buildOnCreateScript(
+              evaluate(compiled.value, String.class, null), id, element.getOwnerDocument());
+          element.removeAttributeNode(attribute);
+          break;
+        default:
+          attribute.setNodeValue(evaluate(compiled.value, String.class, null));
       }
     }
 
@@ -497,18 +429,37 @@ public class DefaultTemplateProcessor implements TemplateProcessor {
    */
   public <T> T evaluate(String expression, Class<T> type, T defaultValue) {
     try {
-      ValueExpression expr = expressions.parse(expression, type);
-      // Workaround for inability of Jasper-EL resolvers to access VariableMapper
-      elContext.putContext(TemplateContext.class, elContext);
-      Object result = expr.getValue(elContext);
-      return type.cast(result);
+      return getValue(expressions.parse(expression, type), type);
     } catch (ELException e) {
-      if (LOG.isLoggable(Level.WARNING)) {
-        LOG.logp(Level.WARNING, classname, "evaluate", MessageKeys.EL_FAILURE,
-        		  new Object[] {getTemplateContext().getGadget().getContext().getUrl(), e.getMessage()});
-      }
-      return defaultValue;
+      return onEvaluationFailure(e, defaultValue);
+    }
+  }
+
+  private <T> T evaluate(CompiledExpression expression, Class<T> type, T defaultValue) {
+    if (expression.parsed == null) {
+      return evaluate(expression.expression, type, defaultValue);
+    }
+
+    try {
+      return getValue(expression.parsed, type);
+    } catch (ELException e) {
+      return onEvaluationFailure(e, defaultValue);
+    }
+  }
+
+  private <T> T getValue(ValueExpression expr, Class<T> type) {
+    // Workaround for inability of Jasper-EL resolvers to access VariableMapper
+    elContext.putContext(TemplateContext.class, elContext);
+    Object result = expr.getValue(elContext);
+    return type.cast(result);
+  }
+
+  private <T> T onEvaluationFailure(ELException e, T defaultValue) {
+    if (LOG.isLoggable(Level.WARNING)) {
+      LOG.logp(Level.WARNING, classname, "evaluate", MessageKeys.EL_FAILURE,
+      		  new Object[] {getTemplateContext().getGadget().getContext().getUrl(), e.getMessage()});
     }
+    return defaultValue;
   }
 
   private String getUniqueId() {
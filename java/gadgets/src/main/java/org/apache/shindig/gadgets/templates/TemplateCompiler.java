@@ -0,0 +1,379 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.templates;
+
+import org.apache.shindig.expressions.Expressions;
+import org.apache.shindig.gadgets.templates.TagRegistry.NSName;
+import org.apache.shindig.gadgets.templates.tags.TagHandler;
+import org.apache.shindig.gadgets.templates.tags.TemplateBasedTagHandler;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.el.ELException;
+import javax.el.ValueExpression;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Compiles template markup into an immutable form that {@link DefaultTemplateProcessor} renders
+ * without inspecting the template DOM again: expressions are parsed up front, static text is
+ * split from expressions, the special attributes are picked out of each element, and the
+ * handlers of custom tags are resolved in the registry the templates are compiled against.
+ *
+ * The compiler keeps no state: compiled templates are cached by their users, see
+ * {@link CompiledTemplates}.
+ */
+@Singleton
+public class TemplateCompiler {
+  /**
+   * Set of attributes in HTML 4 that are boolean, and may only be set
+   * to that value, and should be omitted to indicate "false".
+   */
+  static final Set<String> HTML4_BOOLEAN_ATTRIBUTES =
+    ImmutableSet.of("checked", "compact", "declare", "defer", "disabled", "ismap",
+        "multiple", "nohref", "noresize", "noshade", "nowrap", "readonly", "selected");
+
+  static final Set<String> ONCREATE_ATTRIBUTES =
+    ImmutableSet.of("oncreate", "x-oncreate");
+
+  private static final Set<String> SPECIAL_ATTRIBUTES = ImmutableSet.of(
+      DefaultTemplateProcessor.ATTRIBUTE_IF, DefaultTemplateProcessor.ATTRIBUTE_REPEAT,
+      DefaultTemplateProcessor.ATTRIBUTE_INDEX, DefaultTemplateProcessor.ATTRIBUTE_VAR,
+      DefaultTemplateProcessor.ATTRIBUTE_CUR);
+
+  private static final CompiledNode[] NO_NODES = new CompiledNode[0];
+  private static final CompiledAttribute[] NO_ATTRIBUTES = new CompiledAttribute[0];
+
+  private final Expressions expressions;
+
+  @Inject
+  public TemplateCompiler(Expressions expressions) {
+    this.expressions = expressions;
+  }
+
+  /**
+   * Compiles templates along with the content of the custom tags they use, and of the templates
+   * that define those tags.
+   *
+   * @param templates the template elements, typically script elements
+   * @param registry the registry to resolve tag handlers in
+   * @return The compiled templates, valid for rendering with the registry only.
+   */
+  public CompiledTemplates compileTemplates(List<Element> templates, TagRegistry registry) {
+    Map<Node, CompiledNode[]> content = Maps.newIdentityHashMap();
+    CompiledNode[][] compiledTemplates = new CompiledNode[templates.size()][];
+    for (int i = 0; i < compiledTemplates.length; i++) {
+      compiledTemplates[i] = compileChildNodes(templates.get(i), registry);
+      compileTagContent(compiledTemplates[i], registry, content);
+    }
+    return new CompiledTemplates(templates, compiledTemplates, content, registry);
+  }
+
+  /**
+   * @return The compiled child nodes of the source node. The content of custom tags among them
+   *     is left to be compiled when their handlers process it.
+   */
+  CompiledNode[] compileChildNodes(Node source, TagRegistry registry) {
+    synchronized (source) {
+      return compile(source, registry);
+    }
+  }
+
+  /**
+   * Compiles the content of the custom tags among the nodes, and of the templates that define
+   * them, into content.
+   */
+  private void compileTagContent(CompiledNode[] nodes, TagRegistry registry,
+      Map<Node, CompiledNode[]> content) {
+    for (CompiledNode node : nodes) {
+      if (!(node instanceof CompiledElement)) {
+        continue;
+      }
+
+      CompiledElement element = (CompiledElement) node;
+      if (element.handler == null) {
+        compileTagContent(element.children, registry, content);
+      } else {
+        compileContent(element.source, registry, content);
+        if (element.handler instanceof TemplateBasedTagHandler) {
+          compileContent(((TemplateBasedTagHandler) element.handler).getTemplateDefinition(),
+              registry, content);
+        }
+      }
+    }
+  }
+
+  private void compileContent(Node source, TagRegistry registry,
+      Map<Node, CompiledNode[]> content) {
+    // Also guards against tags used within their own definition
+    if (!content.containsKey(source)) {
+      CompiledNode[] nodes = compileChildNodes(source, registry);
+      content.put(source, nodes);
+      compileTagContent(nodes, registry, content);
+    }
+  }
+
+  private CompiledNode[] compile(Node source, TagRegistry registry) {
+    List<CompiledNode> nodes = Lists.newArrayList();
+    for (Node child = source.getFirstChild(); child != null; child = child.getNextSibling()) {
+      switch (child.getNodeType()) {
+        case Node.TEXT_NODE:
+          compileText(nodes, child.getTextContent());
+          break;
+        case Node.ELEMENT_NODE:
+          nodes.add(compileElement((Element) child, registry));
+          break;
+      }
+    }
+    return nodes.isEmpty() ? NO_NODES : nodes.toArray(new CompiledNode[nodes.size()]);
+  }
+
+  /**
+   * Splits text into static runs and expressions, in the same text nodes as the text used to be
+   * rendered to.
+   */
+  private void compileText(List<CompiledNode> nodes, String textContent) {
+    if (textContent == null) {
+      return;
+    }
+
+    int start = 0;
+    int current = 0;
+    while (current < textContent.length()) {
+      current = textContent.indexOf("${", current);
+      // No expressions, we're done
+      if (current < 0) {
+        break;
+      }
+
+      // An escaped expression "\${": drop the \ by outputting everything before it, but keep
+      // it in the text that follows so that the expression isn't evaluated in gadget rendering
+      if (current > 0 && textContent.charAt(current - 1) == '\\') {
+        if (current - 1 > start) {
+          nodes.add(new StaticText(textContent.substring(start, current - 1)));
+        }
+        start = current - 1;
+        current = current + 2;
+        continue;
+      }
+
+      // Not a real expression, we're done
+      int expressionEnd = textContent.indexOf('}', current + 2);
+      if (expressionEnd < 0) {
+        break;
+      }
+
+      if (current > start) {
+        nodes.add(new StaticText(textContent.substring(start, current)));
+      }
+      nodes.add(new ExpressionText(
+          compileExpression(textContent.substring(current, expressionEnd + 1), String.class)));
+
+      // And continue with the next expression
+      current = start = expressionEnd + 1;
+    }
+
+    // Add any static text left over
+    if (start < textContent.length()) {
+      nodes.add(new StaticText(textContent.substring(start)));
+    }
+  }
+
+  private CompiledElement compileElement(Element element, TagRegistry registry) {
+    boolean html = element.getNamespaceURI() == null;
+    NamedNodeMap attributes = element.getAttributes();
+    List<CompiledAttribute> dynamicAttributes = null;
+    for (int i = 0; i < attributes.getLength(); i++) {
+      Attr attribute = (Attr) attributes.item(i);
+      String name = attribute.getName();
+      String value = attribute.getValue();
+      CompiledAttribute compiledAttribute;
+      if (SPECIAL_ATTRIBUTES.contains(name)) {
+        continue;
+      } else if (html && HTML4_BOOLEAN_ATTRIBUTES.contains(name)) {
+        compiledAttribute = new CompiledAttribute(name, CompiledAttribute.BOOLEAN,
+            compileExpression(value, Boolean.class));
+      } else if (ONCREATE_ATTRIBUTES.contains(name)) {
+        compiledAttribute = new CompiledAttribute(name, CompiledAttribute.ONCREATE,
+            compileExpression(value, String.class));
+      } else if (isLiteral(value)) {
+        // Copied as is with the element
+        continue;
+      } else {
+        compiledAttribute = new CompiledAttribute(name, CompiledAttribute.VALUE,
+            compileExpression(value, String.class));
+      }
+
+      if (dynamicAttributes == null) {
+        dynamicAttributes = Lists.newArrayListWithCapacity(attributes.getLength());
+      }
+      dynamicAttributes.add(compiledAttribute);
+    }
+
+    Attr var = element.getAttributeNode(DefaultTemplateProcessor.ATTRIBUTE_VAR);
+    Attr index = element.getAttributeNode(DefaultTemplateProcessor.ATTRIBUTE_INDEX);
+    TagHandler handler = html ? null
+        : registry.getHandlerFor(new NSName(element.getNamespaceURI(), element.getLocalName()));
+    return new CompiledElement(element, handler,
+        compileAttribute(element, DefaultTemplateProcessor.ATTRIBUTE_REPEAT, Iterable.class),
+        compileAttribute(element, DefaultTemplateProcessor.ATTRIBUTE_IF, Boolean.class),
+        compileAttribute(element, DefaultTemplateProcessor.ATTRIBUTE_CUR, Object.class),
+        var == null ? null : var.getValue(),
+        index == null ? DefaultTemplateProcessor.PROPERTY_INDEX : index.getValue(),
+        hasSpecialAttributes(element),
+        dynamicAttributes == null ? NO_ATTRIBUTES
+            : dynamicAttributes.toArray(new CompiledAttribute[dynamicAttributes.size()]),
+        // Handlers process the content of their tags themselves
+        handler == null ? compile(element, registry) : null);
+  }
+
+  private CompiledExpression compileAttribute(Element element, String name, Class<?> type) {
+    Attr attribute = element.getAttributeNode(name);
+    return attribute == null ? null : compileExpression(attribute.getValue(), type);
+  }
+
+  private CompiledExpression compileExpression(String expression, Class<?> type) {
+    try {
+      return new CompiledExpression(expression, expressions.parse(expression, type));
+    } catch (ELException e) {
+      // Reported when evaluated, as for any other failure
+      return new CompiledExpression(expression, null);
+    }
+  }
+
+  private static boolean hasSpecialAttributes(Element element) {
+    for (String name : SPECIAL_ATTRIBUTES) {
+      if (element.getAttributeNode(name) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Whether the value evaluates to itself.
+   */
+  private static boolean isLiteral(String value) {
+    return value.indexOf("${") < 0 && value.indexOf("#{") < 0 && value.indexOf('\\') < 0;
+  }
+
+  /**
+   * A compiled template node.
+   */
+  abstract static class CompiledNode {
+  }
+
+  /**
+   * Text rendered as is.
+   */
+  static final class StaticText extends CompiledNode {
+    final String text;
+
+    StaticText(String text) {
+      this.text = text;
+    }
+  }
+
+  /**
+   * Text rendered from an expression, escaped.
+   */
+  static final class ExpressionText extends CompiledNode {
+    final CompiledExpression expression;
+
+    ExpressionText(CompiledExpression expression) {
+      this.expression = expression;
+    }
+  }
+
+  /**
+   * An element, rendered either by the handler for its tag or as a copy with its attribute
+   * values evaluated.
+   */
+  static final class CompiledElement extends CompiledNode {
+    final Element source;
+    /** The handler for the element's tag, or null if the element is rendered as is. */
+    final TagHandler handler;
+    final CompiledExpression repeat;
+    final CompiledExpression condition;
+    final CompiledExpression cur;
+    final String var;
+    final String index;
+    final boolean hasSpecialAttributes;
+    final CompiledAttribute[] attributes;
+    /** The compiled content, or null if the element is processed by a handler. */
+    final CompiledNode[] children;
+
+    CompiledElement(Element source, TagHandler handler, CompiledExpression repeat,
+        CompiledExpression condition, CompiledExpression cur, String var, String index,
+        boolean hasSpecialAttributes, CompiledAttribute[] attributes, CompiledNode[] children) {
+      this.source = source;
+      this.handler = handler;
+      this.repeat = repeat;
+      this.condition = condition;
+      this.cur = cur;
+      this.var = var;
+      this.index = index;
+      this.hasSpecialAttributes = hasSpecialAttributes;
+      this.attributes = attributes;
+      this.children = children;
+    }
+  }
+
+  /**
+   * An attribute whose value is evaluated when its element is rendered.
+   */
+  static final class CompiledAttribute {
+    static final int VALUE = 0;
+    static final int BOOLEAN = 1;
+    static final int ONCREATE = 2;
+
+    final String name;
+    final int kind;
+    final CompiledExpression value;
+
+    CompiledAttribute(String name, int kind, CompiledExpression value) {
+      this.name = name;
+      this.kind = kind;
+      this.value = value;
+    }
+  }
+
+  /**
+   * An expression along with its parsed form, which is null if it failed to parse.
+   */
+  static final class CompiledExpression {
+    final String expression;
+    final ValueExpression parsed;
+
+    CompiledExpression(String expression, ValueExpression parsed) {
+      this.expression = expression;
+      this.parsed = parsed;
+    }
+  }
+}
@@ -39,6 +39,7 @@ public class TemplateContext {
   private Map<String, ? extends Object> context = ImmutableMap.of();
   private Map<String, Object> myMap = null;
   private Node templateRoot;
+  private CompiledTemplates compiledTemplates;
   private Map<Object, TemplateResource> resources = Maps.newLinkedHashMap();
 
   public TemplateContext(Gadget gadget, Map<String, ? extends Object> top) {
@@ -95,6 +96,20 @@ public class TemplateContext {
     return this.templateRoot;
   }
 
+  /**
+   * Sets the compiled form of the templates rendered in this context. Other content is compiled
+   * as it is rendered.
+   */
+  public CompiledTemplates setCompiledTemplates(CompiledTemplates compiledTemplates) {
+    CompiledTemplates oldCompiledTemplates = this.compiledTemplates;
+    this.compiledTemplates = compiledTemplates;
+    return oldCompiledTemplates;
+  }
+
+  public CompiledTemplates getCompiledTemplates() {
+    return compiledTemplates;
+  }
+
   public void addResource(Object key, TemplateResource resource) {
     if (!resources.containsKey(key)) {
       resources.put(key, resource);
@@ -31,7 +31,6 @@ import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.RequestPipeline;
-import org.w3c.dom.Element;
 
 import com.google.inject.Inject;
 
@@ -39,19 +38,20 @@ import com.google.inject.Inject;
  * Factory for template libraries.
  */
 public class TemplateLibraryFactory {
+  // Keeps the name under which deployments configure it, now that it holds built libraries
   private static final String PARSED_XML_CACHE = "parsedXml";
 
   private final RequestPipeline pipeline;
-  private final Cache<String, Element> parsedXmlCache;
+  private final Cache<String, TemplateLibrary> libraryCache;
 
   @Inject
   public TemplateLibraryFactory(RequestPipeline pipeline, CacheProvider cacheProvider) {
     this.pipeline = pipeline;
     // Support null cacheProvider only for testing
     if (cacheProvider == null) {
-      this.parsedXmlCache = null;
+      this.libraryCache = null;
     } else {
-      this.parsedXmlCache = cacheProvider.createCache(PARSED_XML_CACHE);
+      this.libraryCache = cacheProvider.createCache(PARSED_XML_CACHE);
     }
   }
 
@@ -73,23 +73,23 @@ public class TemplateLibraryFactory {
     }
 
     String content = response.getResponseAsString();
-    try {
-      String key = null;
-      Element element = null;
-      if (!context.getIgnoreCache()) {
-        key = HashUtil.checksum(CharsetUtil.getUtf8Bytes(content));
-        element = parsedXmlCache.getElement(key);
+    String key = null;
+    if (!context.getIgnoreCache() && libraryCache != null) {
+      // Libraries are the same object for as long as their content doesn't change, so that
+      // templates compiled with their tags can be reused
+      key = uri.toString() + '#' + HashUtil.checksum(CharsetUtil.getUtf8Bytes(content));
+      TemplateLibrary library = libraryCache.getElement(key);
+      if (library != null) {
+        return library;
       }
+    }
 
-      if (element == null) {
-        element = XmlUtil.parse(content);
-        if (key != null) {
-          parsedXmlCache.addElement(key, element);
-        }
-      }
-      synchronized(element){
-        return new XmlTemplateLibrary(uri, element, content);
+    try {
+      TemplateLibrary library = new XmlTemplateLibrary(uri, XmlUtil.parse(content), content);
+      if (key != null) {
+        libraryCache.addElement(key, library);
       }
+      return library;
     } catch (XmlException e) {
       throw new GadgetException(GadgetException.Code.MALFORMED_XML_DOCUMENT, e,
           HttpResponse.SC_BAD_REQUEST);
@@ -54,7 +54,7 @@ public class RenderTagHandler extends AbstractTagHandler {
       Node root = processor.getTemplateContext().getTemplateRoot();
       if (root != null) {
         for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
-          result.appendChild(child.cloneNode(true));
+          result.appendChild(copy(child, result));
         }
       }
     } else {
@@ -76,7 +76,18 @@ public class RenderTagHandler extends AbstractTagHandler {
   private void copyChildren(ElementWrapper fromWrapper, Node to) {
     Element from = fromWrapper.element;
     for (Node child = from.getFirstChild(); child != null; child = child.getNextSibling()) {
-      to.appendChild(child.cloneNode(true));
+      to.appendChild(copy(child, to));
     }
   }
+
+  /**
+   * Copies a node for the document of its new parent. Tag content is processed in the document of
+   * the tag, which may come from a template library or a cached template.
+   */
+  private static Node copy(Node node, Node parent) {
+    if (node.getOwnerDocument() != parent.getOwnerDocument()) {
+      return parent.getOwnerDocument().importNode(node, true);
+    }
+    return node.cloneNode(true);
+  }
 }
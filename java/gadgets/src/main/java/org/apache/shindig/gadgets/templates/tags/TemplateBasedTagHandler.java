@@ -44,6 +44,13 @@ public class TemplateBasedTagHandler extends AbstractTagHandler {
     this.templateDefinition = templateDefinition;
   }
 
+  /**
+   * @return The element whose content defines the tag.
+   */
+  public Element getTemplateDefinition() {
+    return templateDefinition;
+  }
+
   public void process(Node result, Element tagInstance, TemplateProcessor processor) {
     // Process the children of the tag
     DocumentFragment processedContent = processChildren(tagInstance, processor);
@@ -20,13 +20,21 @@ package org.apache.shindig.gadgets.variables;
 
 import org.apache.shindig.common.uri.Uri;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Performs string substitutions for message bundles, user prefs, and bidi
  * variables.
+ *
+ * The placeholders in a string are found once for each string instance. Strings of a cached
+ * spec are the same instances on every request, so substituting them again only looks up and
+ * concatenates values.
  */
 public class Substitutions {
   /**
@@ -69,6 +77,10 @@ public class Substitutions {
     }
   }
 
+  // Placeholders by string, compared by identity.
+  private static final ConcurrentMap<String, Placeholders> PLACEHOLDERS =
+      new MapMaker().weakKeys().makeMap();
+
   private final Map<String, String> substitutions;
 
   public Substitutions() {
@@ -84,7 +96,8 @@ public class Substitutions {
    * @param value
    */
   public void addSubstitution(Type type, String key, String value) {
-    substitutions.put(type.prefix + key, substituteString(value));
+    // Values may come with the request, so their placeholders aren't kept.
+    substitutions.put(type.prefix + key, substitute(value, Placeholders.find(value)));
   }
 
   /**
@@ -106,20 +119,18 @@ public class Substitutions {
     }
   }
 
-  private void performSubstitutions(String input, StringBuilder output, boolean isNested) {
-    int lastPosition = 0, i;
-    while ((i = input.indexOf("__", lastPosition)) != -1) {
-      int next = input.indexOf("__", i + 2);
-      if (next == -1) {
-        // No matches, we're done.
-        break;
+  private void performSubstitutions(String input, Placeholders placeholders,
+      StringBuilder output, boolean isNested) {
+    int lastPosition = 0;
+    for (int i = 0; i < placeholders.patterns.length; i++) {
+      int start = placeholders.starts[i];
+      if (start < lastPosition) {
+        // Part of a substitution already made.
+        continue;
       }
 
-      output.append(input.substring(lastPosition, i));
-
-      String pattern = input.substring(i, next);
-
-      boolean isMessage = pattern.startsWith(Type.MESSAGE.prefix);
+      String pattern = placeholders.patterns[i];
+      boolean isMessage = placeholders.messages[i];
       String replacement;
 
       if (isMessage && isNested) {
@@ -128,25 +139,21 @@ public class Substitutions {
         replacement = substitutions.get(pattern);
       }
 
-      if (replacement == null) {
-        // Just append the first underbar of the __ prefix. The substitution
-        // selection algorithm will move on to the next underbar, which itself
-        // might be a __ prefix suitable for substitution, ensuring proper
-        // accommodation of cases such as ___MODULE_ID__.
-        output.append('_');
-        lastPosition = i + 1;
-      } else {
-        lastPosition = next + 2;
+      // Without a replacement the placeholder is left as is, and the next one is tried, which
+      // may start within it, as in ___MODULE_ID__.
+      if (replacement != null) {
+        output.append(input, lastPosition, start);
+        lastPosition = start + pattern.length() + 2;
         if (isMessage && !isNested) {
           // Messages can be recursive
-          performSubstitutions(replacement, output, true);
+          performSubstitutions(replacement, getPlaceholders(replacement), output, true);
         } else {
           output.append(replacement);
         }
       }
     }
 
-    output.append(input.substring(lastPosition));
+    output.append(input, lastPosition, input.length());
   }
 
   /**
@@ -157,14 +164,27 @@ public class Substitutions {
    * @return The substituted string.
    */
   public String substituteString(String input) {
-    if (input.contains("__")) {
+    return substitute(input, getPlaceholders(input));
+  }
+
+  private String substitute(String input, Placeholders placeholders) {
+    if (placeholders.patterns.length > 0) {
       StringBuilder output = new StringBuilder(input.length() * 120 / 100);
-      performSubstitutions(input, output, false);
+      performSubstitutions(input, placeholders, output, false);
       return output.toString();
     }
     return input;
   }
 
+  private static Placeholders getPlaceholders(String input) {
+    Placeholders placeholders = PLACEHOLDERS.get(input);
+    if (placeholders == null) {
+      placeholders = Placeholders.find(input);
+      PLACEHOLDERS.put(input, placeholders);
+    }
+    return placeholders;
+  }
+
   /**
    * Substitutes a uri
    * @param uri
@@ -180,4 +200,67 @@ public class Substitutions {
       return Uri.parse("");
     }
   }
+
+  /**
+   * The placeholders of a string, in order: the "__" delimited patterns that start with the
+   * prefix of a type. Placeholders may overlap; which of them are substituted depends on the
+   * values at hand.
+   */
+  private static final class Placeholders {
+    private static final Placeholders NONE = new Placeholders(new int[0], new String[0]);
+
+    final int[] starts;
+    final String[] patterns;
+    final boolean[] messages;
+
+    private Placeholders(int[] starts, String[] patterns) {
+      this.starts = starts;
+      this.patterns = patterns;
+      messages = new boolean[patterns.length];
+      for (int i = 0; i < patterns.length; i++) {
+        messages[i] = patterns[i].startsWith(Type.MESSAGE.prefix);
+      }
+    }
+
+    static Placeholders find(String input) {
+      List<Integer> starts = null;
+      List<String> patterns = null;
+      int i = input.indexOf("__");
+      while (i != -1) {
+        int next = input.indexOf("__", i + 2);
+        if (next == -1) {
+          // No matches, we're done.
+          break;
+        }
+
+        if (hasTypePrefix(input, i, next)) {
+          if (starts == null) {
+            starts = Lists.newArrayList();
+            patterns = Lists.newArrayList();
+          }
+          starts.add(i);
+          patterns.add(input.substring(i, next));
+        }
+        i = input.indexOf("__", i + 1);
+      }
+
+      if (starts == null) {
+        return NONE;
+      }
+      int[] startArray = new int[starts.size()];
+      for (int j = 0; j < startArray.length; j++) {
+        startArray[j] = starts.get(j);
+      }
+      return new Placeholders(startArray, patterns.toArray(new String[patterns.size()]));
+    }
+
+    private static boolean hasTypePrefix(String input, int start, int end) {
+      for (Type type : Type.values()) {
+        if (end - start >= type.prefix.length() && input.startsWith(type.prefix, start)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
 }
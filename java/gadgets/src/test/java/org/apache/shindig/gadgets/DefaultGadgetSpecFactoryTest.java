@@ -21,8 +21,12 @@ package org.apache.shindig.gadgets;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.apache.shindig.auth.SecurityToken;
 import org.apache.shindig.common.cache.CacheProvider;
@@ -30,6 +34,7 @@ import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.cache.SoftExpiringCache;
 import org.apache.shindig.common.testing.ImmediateExecutorService;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.FakeTimeSource;
 import org.apache.shindig.config.ContainerConfig;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
@@ -40,6 +45,9 @@ import org.apache.shindig.gadgets.spec.SpecParserException;
 import org.easymock.EasyMock;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tests for DefaultGadgetSpecFactory
@@ -291,6 +299,145 @@ public class DefaultGadgetSpecFactoryTest {
   }
 
 
+  @Test
+  public void concurrentMissesShareFetch() throws Exception {
+    final AtomicReference<GadgetSpec> otherSpec = new AtomicReference<GadgetSpec>();
+    final AtomicInteger fetchCount = new AtomicInteger();
+    final Thread[] other = new Thread[1];
+    final GadgetSpecFactory[] factory = new GadgetSpecFactory[1];
+    factory[0] = new DefaultGadgetSpecFactory(new ImmediateExecutorService(),
+        new CapturingPipeline() {
+          @Override
+          public HttpResponse execute(HttpRequest request) {
+            if (fetchCount.incrementAndGet() == 1) {
+              // Miss the cache for the same spec while this fetch is running.
+              other[0] = new Thread() {
+                @Override
+                public void run() {
+                  try {
+                    otherSpec.set(factory[0].getGadgetSpec(createContext(SPEC_URL, false)));
+                  } catch (GadgetException e) {
+                    throw new RuntimeException(e);
+                  }
+                }
+              };
+              other[0].start();
+              try {
+                Thread.sleep(100);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+            return super.execute(request);
+          }
+        }, cacheProvider, MAX_AGE);
+
+    GadgetSpec spec = factory[0].getGadgetSpec(createContext(SPEC_URL, false));
+    other[0].join();
+
+    assertEquals(1, fetchCount.get());
+    assertSame(spec, otherSpec.get());
+  }
+
+  @Test
+  public void snapshotExpirationUsesTimeSource() throws Exception {
+    File directory = File.createTempFile("spec-snapshot", "");
+    assertTrue(directory.delete());
+    try {
+      DefaultGadgetSpecFactory factory = new DefaultGadgetSpecFactory(
+          new CountingExecutor(), new CapturingPipeline(), new LruCacheProvider(5), MAX_AGE);
+      factory.setTimeSource(new FakeTimeSource(1000000L));
+      factory.setSnapshotDirectory(directory.getPath());
+      factory.getGadgetSpec(createContext(SPEC_URL, false));
+
+      DefaultGadgetSpecFactory restarted = new DefaultGadgetSpecFactory(
+          new CountingExecutor(), new CapturingPipeline(), new LruCacheProvider(5), MAX_AGE);
+      restarted.setTimeSource(new FakeTimeSource(1000001L));
+      restarted.setSnapshotDirectory(directory.getPath());
+      assertFalse(restarted.cache.getElement(SPEC_URL.toString()).isExpired);
+
+      DefaultGadgetSpecFactory late = new DefaultGadgetSpecFactory(
+          new CountingExecutor(), new CapturingPipeline(), new LruCacheProvider(5), MAX_AGE);
+      late.setTimeSource(new FakeTimeSource(1000000L + 2 * MAX_AGE));
+      late.setSnapshotDirectory(directory.getPath());
+      assertTrue(late.cache.getElement(SPEC_URL.toString()).isExpired);
+    } finally {
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void specRestoredFromSnapshot() throws Exception {
+    File directory = File.createTempFile("spec-snapshot", "");
+    assertTrue(directory.delete());
+    try {
+      DefaultGadgetSpecFactory factory = new DefaultGadgetSpecFactory(
+          new CountingExecutor(), new CapturingPipeline(), new LruCacheProvider(5), MAX_AGE);
+      factory.setSnapshotDirectory(directory.getPath());
+      GadgetSpec spec = factory.getGadgetSpec(createContext(SPEC_URL, false));
+
+      CapturingPipeline restartedPipeline = new CapturingPipeline();
+      DefaultGadgetSpecFactory restarted = new DefaultGadgetSpecFactory(
+          new CountingExecutor(), restartedPipeline, new LruCacheProvider(5), MAX_AGE);
+      restarted.setSnapshotDirectory(directory.getPath());
+      GadgetSpec restored = restarted.getGadgetSpec(createContext(SPEC_URL, false));
+
+      assertNull(restartedPipeline.request);
+      assertEquals(spec.getChecksum(), restored.getChecksum());
+      assertEquals(spec.toString(), restored.toString());
+    } finally {
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void failedSpecDroppedFromSnapshot() throws Exception {
+    File directory = File.createTempFile("spec-snapshot", "");
+    assertTrue(directory.delete());
+    try {
+      CapturingPipeline capturingPipeline = new CapturingPipeline();
+      DefaultGadgetSpecFactory factory = new DefaultGadgetSpecFactory(
+          new CountingExecutor(), capturingPipeline, new LruCacheProvider(5), MAX_AGE);
+      factory.setSnapshotDirectory(directory.getPath());
+      factory.getGadgetSpec(createContext(SPEC_URL, false));
+      capturingPipeline.content = "<Module>malformed";
+      try {
+        factory.getGadgetSpec(createContext(SPEC_URL, true));
+        fail("Should have thrown on a malformed spec");
+      } catch (GadgetException e) {
+        // Expected condition.
+      }
+
+      CapturingPipeline restartedPipeline = new CapturingPipeline();
+      DefaultGadgetSpecFactory restarted = new DefaultGadgetSpecFactory(
+          new CountingExecutor(), restartedPipeline, new LruCacheProvider(5), MAX_AGE);
+      restarted.setSnapshotDirectory(directory.getPath());
+      restarted.getGadgetSpec(createContext(SPEC_URL, false));
+
+      assertNotNull(restartedPipeline.request);
+    } finally {
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      directory.delete();
+    }
+  }
+
   @Test(expected = GadgetException.class)
   public void badFetchThrows() throws Exception {
     HttpRequest request = createIgnoreCacheRequest();
@@ -365,10 +512,11 @@ public class DefaultGadgetSpecFactoryTest {
 
   private static class CapturingPipeline implements RequestPipeline {
     HttpRequest request;
+    String content = LOCAL_SPEC_XML;
 
     public HttpResponse execute(HttpRequest request) {
       this.request = request;
-      return new HttpResponse(LOCAL_SPEC_XML);
+      return new HttpResponse(content);
     }
   }
 }
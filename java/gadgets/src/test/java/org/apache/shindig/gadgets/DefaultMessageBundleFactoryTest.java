@@ -24,6 +24,7 @@ import static org.easymock.EasyMock.verify;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
@@ -303,6 +304,81 @@ public class DefaultMessageBundleFactoryTest {
     assertEquals(bundle0.getMessages().get(MSG_0_NAME), bundle1.getMessages().get(MSG_0_NAME));
   }
 
+  @Test
+  public void mergedBundleCached() throws Exception {
+    HttpResponse response = new HttpResponse(BASIC_BUNDLE);
+    expect(pipeline.execute(isA(HttpRequest.class))).andReturn(response).once();
+    replay(pipeline);
+
+    MessageBundle bundle0 = bundleFactory.getBundle(gadgetSpec, LOCALE, false, ContainerConfig.DEFAULT_CONTAINER, null);
+    MessageBundle bundle1 = bundleFactory.getBundle(gadgetSpec, LOCALE, false, ContainerConfig.DEFAULT_CONTAINER, null);
+    MessageBundle otherLocale = bundleFactory.getBundle(gadgetSpec, LANG_LOCALE, false, ContainerConfig.DEFAULT_CONTAINER, null);
+
+    verify(pipeline);
+
+    assertSame(bundle0, bundle1);
+    assertEquals(MSG_3_VALUE, bundle1.getMessages().get(MSG_3_NAME));
+    assertNull(otherLocale.getMessages().get(MSG_3_NAME));
+  }
+
+  @Test
+  public void mergedBundleKeyedByLocaleSections() throws Exception {
+    HttpResponse response = new HttpResponse(BASIC_BUNDLE);
+    expect(pipeline.execute(isA(HttpRequest.class))).andReturn(response).once();
+    replay(pipeline);
+
+    MessageBundle bundle = bundleFactory.getBundle(gadgetSpec, LOCALE, false, ContainerConfig.DEFAULT_CONTAINER, null);
+    long size = cache.getSize();
+    MessageBundle madeUpView = bundleFactory.getBundle(gadgetSpec, LOCALE, false, "made-up", "made-up");
+    MessageBundle unknown0 = bundleFactory.getBundle(gadgetSpec, new Locale("xx", "YY"), false, "c0", "v0");
+    MessageBundle unknown1 = bundleFactory.getBundle(gadgetSpec, new Locale("zz", "QQ"), false, "c1", "v1");
+
+    verify(pipeline);
+
+    assertSame(bundle, madeUpView);
+    assertSame(unknown0, unknown1);
+    assertEquals(MSG_0_ALL_VALUE, unknown0.getMessages().get(MSG_0_NAME));
+    assertEquals(size + 1, cache.getSize());
+  }
+
+  @Test
+  public void mergedBundleRebuiltAfterRefresh() throws Exception {
+    HttpResponse expiredResponse = new HttpResponseBuilder()
+        .setResponse(BASIC_BUNDLE.getBytes("UTF-8"))
+        .addHeader("Pragma", "no-cache")
+        .create();
+    HttpResponse refreshedResponse = new HttpResponse(
+        "<messagebundle><msg name='" + MSG_0_NAME + "'>refreshed</msg></messagebundle>");
+
+    expect(pipeline.execute(isA(HttpRequest.class)))
+        .andReturn(expiredResponse).once();
+    expect(pipeline.execute(isA(HttpRequest.class)))
+        .andReturn(refreshedResponse).once();
+    replay(pipeline);
+
+    final AtomicLong time = new AtomicLong(System.currentTimeMillis());
+    bundleFactory.cache.setTimeSource(new TimeSource() {
+      @Override
+      public long currentTimeMillis() {
+        return time.get();
+      }
+    });
+
+    MessageBundle bundle0 = bundleFactory.getBundle(gadgetSpec, LOCALE, false, ContainerConfig.DEFAULT_CONTAINER, null);
+
+    time.set(time.get() + MAX_AGE + 1);
+
+    // Served while the expired bundle is refreshed.
+    MessageBundle bundle1 = bundleFactory.getBundle(gadgetSpec, LOCALE, false, ContainerConfig.DEFAULT_CONTAINER, null);
+    MessageBundle bundle2 = bundleFactory.getBundle(gadgetSpec, LOCALE, false, ContainerConfig.DEFAULT_CONTAINER, null);
+
+    verify(pipeline);
+
+    assertEquals(MSG_0_VALUE, bundle0.getMessages().get(MSG_0_NAME));
+    assertEquals(MSG_0_VALUE, bundle1.getMessages().get(MSG_0_NAME));
+    assertEquals("refreshed", bundle2.getMessages().get(MSG_0_NAME));
+  }
+
   @Test
   public void ignoreCacheDoesNotStore() throws Exception {
     bundleFactory.getBundle(gadgetSpec, new Locale("all", "ALL"), true, ContainerConfig.DEFAULT_CONTAINER, null);
@@ -18,6 +18,7 @@
  */
 package org.apache.shindig.gadgets.features;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -401,6 +402,40 @@ public class FeatureRegistryTest {
     assertEquals("nodep", resources.get(4).getContent());
   }
 
+  @Test
+  public void transitiveDepRequestedFirst() throws Exception {
+    setupFullRegistry("gadget", null);
+    GadgetContext ctx = getCtx(RenderingContext.GADGET, null);
+    List<String> needed = Lists.newArrayList("nodep", "mid_b", "top", "bottom");
+    List<String> unsupported = Lists.newLinkedList();
+
+    // Features that others depend on come with them, not in the requested order.
+    List<FeatureResource> resources = registry.getFeatureResources(ctx, needed, unsupported).getResources();
+    assertEquals(5, resources.size());
+    assertEquals("bottom", resources.get(0).getContent());
+    assertEquals("mid_a", resources.get(1).getContent());
+    assertEquals("mid_b", resources.get(2).getContent());
+    assertEquals("top", resources.get(3).getContent());
+    assertEquals("nodep", resources.get(4).getContent());
+  }
+
+  @Test
+  public void cacheSharedByRequestsForSameFeatures() throws Exception {
+    setupFullRegistry("gadget", null);
+    GadgetContext ctx = getCtx(RenderingContext.GADGET, null);
+    List<FeatureResource> resources = registry.getFeatureResources(
+        ctx, Lists.newArrayList("top"), null).getResources();
+    List<FeatureResource> resourcesWithDeps = registry.getFeatureResources(
+        ctx, Lists.newArrayList("mid_a", "top", "bottom"), null).getResources();
+    assertSame(resources, resourcesWithDeps);
+
+    List<String> unsupported = Lists.newLinkedList();
+    List<FeatureResource> resourcesWithUnknown = registry.getFeatureResources(
+        ctx, Lists.newArrayList("top", "does-not-exist"), unsupported).getResources();
+    assertEquals(ImmutableList.of("does-not-exist"), unsupported);
+    assertEquals(resources, resourcesWithUnknown);
+  }
+
   @Test
   public void unsupportedFeaturesPopulated() throws Exception {
     // Test only for gadget case; above tests are sufficient to ensure
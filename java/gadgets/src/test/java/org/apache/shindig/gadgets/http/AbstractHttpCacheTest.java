@@ -20,6 +20,7 @@ package org.apache.shindig.gadgets.http;
 
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
@@ -29,9 +30,11 @@ import static org.junit.Assert.assertNotNull;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.shindig.auth.BasicSecurityToken;
 import org.apache.shindig.auth.SecurityToken;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.GzipUtil;
 import org.apache.shindig.gadgets.AuthType;
 import org.apache.shindig.gadgets.oauth.OAuthArguments;
 import org.apache.shindig.gadgets.spec.RequestAuthenticationInfo;
@@ -70,6 +73,51 @@ public class AbstractHttpCacheTest {
     assertEquals(key.build(), cache.createKey(request));
   }
 
+  @Test
+  public void createCacheKeyIsKeyOfCreateKey() {
+    HttpRequest request = new HttpRequest(DEFAULT_URI)
+        .setRewriteMimeType("image/png")
+        .addHeader("User-Agent", "Mozilla");
+
+    assertEquals(HttpCacheKey.of(cache.createKey(request)), cache.createCacheKey(request));
+    assertFalse(cache.createCacheKey(request).equals(
+        cache.createCacheKey(new HttpRequest(DEFAULT_URI))));
+  }
+
+  @Test
+  public void createKeyOverrideUsedForCacheKeys() {
+    LegacyHttpCache customCache = new LegacyHttpCache() {
+      @Override
+      public String createKey(HttpRequest request) {
+        return super.createKey(request) + ":custom";
+      }
+    };
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    HttpResponse response = new HttpResponse("normal");
+    HttpCacheKey key = HttpCacheKey.of(cache.createKey(request) + ":custom");
+
+    assertEquals(key, customCache.createCacheKey(request));
+    customCache.addResponse(request, response);
+    assertEquals(response, customCache.map.get(key.toString()));
+    assertEquals(response, customCache.getResponse(request));
+    assertEquals(response, customCache.removeResponse(request));
+    assertTrue(customCache.map.isEmpty());
+  }
+
+  @Test
+  public void stringKeyedCacheStoresByCacheKey() {
+    LegacyHttpCache legacyCache = new LegacyHttpCache();
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    HttpResponse response = new HttpResponse("normal");
+
+    assertEquals(cache.createCacheKey(request), legacyCache.createCacheKey(request));
+    legacyCache.addResponse(request, response);
+    assertEquals(response, legacyCache.map.get(cache.createCacheKey(request).toString()));
+    assertEquals(response, legacyCache.getResponse(request));
+    assertEquals(response, legacyCache.removeResponse(request));
+    assertTrue(legacyCache.map.isEmpty());
+  }
+
   private HttpRequest getMockImageRequest(String height, String width, String quality,
       boolean noExpand, String mimeType, String ua) {
     HttpRequest request = EasyMock.createMock(HttpRequest.class);
@@ -239,7 +287,7 @@ public class AbstractHttpCacheTest {
   @Test
   public void getResponse() {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponse("result");
     cache.map.put(key, response);
 
@@ -253,7 +301,7 @@ public class AbstractHttpCacheTest {
   public void getResponseUsingPost() {
     HttpRequest request = new HttpRequest(DEFAULT_URI)
         .setMethod("POST");
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponse("result");
     cache.map.put(key, response);
 
@@ -269,7 +317,7 @@ public class AbstractHttpCacheTest {
     HttpRequest request = new HttpRequest(DEFAULT_URI)
         .setMethod("POST")
         .addHeader("X-Method-Override", "GET");
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponse("result");
     cache.map.put(key, response);
 
@@ -282,7 +330,7 @@ public class AbstractHttpCacheTest {
   @Test
   public void getResponseIgnoreCache() {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponse("result");
     cache.map.put(key, response);
 
@@ -298,7 +346,7 @@ public class AbstractHttpCacheTest {
   @Test
   public void getResponseNotCacheable() {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponseBuilder().setStrictNoCache().create();
     cache.map.put(key, response);
 
@@ -312,7 +360,7 @@ public class AbstractHttpCacheTest {
   public void addResponse() {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
     HttpResponse response = new HttpResponse("normal");
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
 
     assertNotNull("response should have been cached", cache.addResponse(request, response));
     assertEquals(response, cache.map.get(key));
@@ -322,6 +370,87 @@ public class AbstractHttpCacheTest {
     assertEquals(response, extendedStrictNoCacheTtlCache.map.get(key));
   }
 
+  @Test
+  public void addResponseGzipsBody() throws Exception {
+    cache.setGzipBodies(true);
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    String body = StringUtils.repeat("var x = 'compressible';\n", 100);
+    HttpResponse response = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript")
+        .setResponseString(body)
+        .create();
+
+    HttpResponse cached = cache.addResponse(request, response);
+    assertTrue(cached.hasGzippedResponse());
+    assertEquals(response, cached);
+    assertTrue(cached.getGzippedContentLength() < cached.getContentLength());
+    assertArrayEquals(response.getResponseAsBytes(),
+        GzipUtil.decompress(cached.getGzippedResponseAsBytes(), -1));
+
+    HttpResponse stored = cache.map.get(cache.createCacheKey(request));
+    assertTrue(stored.hasGzippedResponse());
+    assertTrue(stored.isGzippedOnly());
+    assertEquals(body.length(), stored.getContentLength());
+    assertEquals(body, stored.getResponseAsString());
+    assertEquals(response, stored);
+  }
+
+  @Test
+  public void addResponseEncodingCacheKeepsPlainBody() {
+    TestHttpCache encodingCache = new TestHttpCache() {
+      @Override
+      protected boolean storesResponseObjects() {
+        return false;
+      }
+    };
+    encodingCache.setGzipBodies(true);
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    HttpResponse response = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript")
+        .setResponseString(StringUtils.repeat("var x = 'compressible';\n", 100))
+        .create();
+
+    assertFalse(encodingCache.addResponse(request, response).hasGzippedResponse());
+    assertFalse(encodingCache.map.get(encodingCache.createCacheKey(request)).isGzippedOnly());
+  }
+
+  @Test
+  public void addResponseGzipDisabled() {
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    HttpResponse response = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/html")
+        .setResponseString(StringUtils.repeat("<p>compressible</p>", 100))
+        .create();
+
+    assertFalse(cache.addResponse(request, response).hasGzippedResponse());
+  }
+
+  @Test
+  public void addResponseGzipSkipsSmallBinaryAndErrorBodies() {
+    cache.setGzipBodies(true);
+    cache.setGzipMinBytes(100);
+    String body = StringUtils.repeat("compressible ", 100);
+
+    HttpResponse small = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/css")
+        .setResponseString("a { }")
+        .create();
+    assertFalse(cache.addResponse(new HttpRequest(DEFAULT_URI), small).hasGzippedResponse());
+
+    HttpResponse image = new HttpResponseBuilder()
+        .setHeader("Content-Type", "image/png")
+        .setResponseString(body)
+        .create();
+    assertFalse(cache.addResponse(new HttpRequest(DEFAULT_URI), image).hasGzippedResponse());
+
+    HttpResponse error = new HttpResponseBuilder()
+        .setHttpStatusCode(HttpResponse.SC_NOT_FOUND)
+        .setHeader("Content-Type", "text/html")
+        .setResponseString(body)
+        .create();
+    assertFalse(cache.addResponse(new HttpRequest(DEFAULT_URI), error).hasGzippedResponse());
+  }
+
   @Test
   public void addResponseIgnoreCache() {
     HttpRequest request = new HttpRequest(DEFAULT_URI)
@@ -340,7 +469,7 @@ public class AbstractHttpCacheTest {
   public void addResponseNotCacheable() {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
     HttpResponse response = new HttpResponseBuilder().setStrictNoCache().create();
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
 
     assertNull(cache.addResponse(request, response));
     assertEquals(0, cache.map.size());
@@ -383,7 +512,7 @@ public class AbstractHttpCacheTest {
         .setMethod("POST")
         .addHeader("X-Method-Override", "GET");
     HttpResponse response = new HttpResponse("normal");
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
 
     assertNotNull(cache.addResponse(request, response));
     assertEquals(response, cache.map.get(key));
@@ -397,7 +526,7 @@ public class AbstractHttpCacheTest {
     HttpRequest request = new HttpRequest(DEFAULT_URI)
         .setCacheTtl(10);
 
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponse("result");
 
     assertNotNull(cache.addResponse(request, response));
@@ -414,7 +543,7 @@ public class AbstractHttpCacheTest {
     HttpRequest request = new HttpRequest(DEFAULT_URI)
         .setCacheTtl(10);
 
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponseBuilder()
         .setResponseString("result")
         .setStrictNoCache()
@@ -433,7 +562,7 @@ public class AbstractHttpCacheTest {
   public void addResponseWithForcedTtlAndErrorResponse() {
     HttpRequest request = new HttpRequest(DEFAULT_URI).setCacheTtl(10);
 
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponseBuilder()
         .setResponseString("result")
         .setHttpStatusCode(500)
@@ -451,7 +580,7 @@ public class AbstractHttpCacheTest {
   public void addResponseWithNoCachingHeaders() {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
 
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponse("no headers");
 
     assertNotNull(cache.addResponse(request, response));
@@ -500,7 +629,7 @@ public class AbstractHttpCacheTest {
   @Test
   public void removeResponse() {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponse("result");
     cache.map.put(key, response);
 
@@ -512,7 +641,7 @@ public class AbstractHttpCacheTest {
   public void removeResponseIsStaled() {
     long expiration = System.currentTimeMillis() + 1000L;
     HttpRequest request = new HttpRequest(DEFAULT_URI);
-    String key = cache.createKey(request);
+    HttpCacheKey key = cache.createCacheKey(request);
     HttpResponse response = new HttpResponseBuilder()
         .setExpirationTime(expiration)
         .create();
@@ -524,25 +653,44 @@ public class AbstractHttpCacheTest {
     assertEquals(0, cache.map.size());
   }
 
+  private static class LegacyHttpCache extends StringKeyedHttpCache {
+    protected final Map<String, HttpResponse> map = Maps.newHashMap();
+
+    @Override
+    protected void addResponseImpl(String key, HttpResponse response) {
+      map.put(key, response);
+    }
+
+    @Override
+    protected HttpResponse getResponseImpl(String key) {
+      return map.get(key);
+    }
+
+    @Override
+    protected void removeResponseImpl(String key) {
+      map.remove(key);
+    }
+  }
+
   private static class TestHttpCache extends AbstractHttpCache {
-    protected final Map<String, HttpResponse> map;
+    protected final Map<HttpCacheKey, HttpResponse> map;
 
     public TestHttpCache() {
       map = Maps.newHashMap();
     }
 
     @Override
-    public void addResponseImpl(String key, HttpResponse response) {
+    public void addResponseImpl(HttpCacheKey key, HttpResponse response) {
       map.put(key, response);
     }
 
     @Override
-    public HttpResponse getResponseImpl(String key) {
+    public HttpResponse getResponseImpl(HttpCacheKey key) {
       return map.get(key);
     }
 
     @Override
-    public void removeResponseImpl(String key) {
+    public void removeResponseImpl(HttpCacheKey key) {
       map.remove(key);
     }
   }
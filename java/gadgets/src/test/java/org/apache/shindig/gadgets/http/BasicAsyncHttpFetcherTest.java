@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import junitx.framework.ArrayAssert;
+
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the common fetcher tests against {@link BasicAsyncHttpFetcher}.
+ */
+public class BasicAsyncHttpFetcherTest extends AbstractHttpFetcherTest {
+  private BasicAsyncHttpFetcher asyncFetcher;
+
+  @Before
+  public void setUp() throws Exception {
+    asyncFetcher = new BasicAsyncHttpFetcher(null);
+    fetcher = asyncFetcher;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    asyncFetcher.cleanup();
+  }
+
+  private static byte[] makeBody(int size) {
+    byte[] body = new byte[size];
+    for (int i = 0; i < body.length; ++i) {
+      body[i] = (byte) i;
+    }
+    return body;
+  }
+
+  private static HttpRequest makeEchoRequest(byte[] body) {
+    // The echo server streams the body back without a Content-Length, so a large body is
+    // returned with chunked transfer encoding.
+    return new HttpRequest(BASE_URL)
+        .setMethod("POST")
+        .setPostBody(body)
+        .addHeader("content-type", "application/octet-stream");
+  }
+
+  @Test
+  public void testChunkedBodyOverMaxObjectSize() throws Exception {
+    asyncFetcher.setMaxObjectSizeBytes(64 * 1024);
+    HttpResponse response = asyncFetcher.fetch(makeEchoRequest(makeBody(1024 * 1024)));
+    assertEquals(400, response.getHttpStatusCode());
+    assertEquals("Exceeded maximum number of bytes - " + 64 * 1024,
+        response.getResponseAsString());
+  }
+
+  @Test
+  public void testChunkedBodyUnderMaxObjectSize() throws Exception {
+    asyncFetcher.setMaxObjectSizeBytes(2 * 1024 * 1024);
+    byte[] body = makeBody(1024 * 1024);
+    HttpResponse response = asyncFetcher.fetch(makeEchoRequest(body));
+    assertEquals(200, response.getHttpStatusCode());
+    ArrayAssert.assertEquals(body, response.getResponseAsBytes());
+  }
+}
@@ -106,4 +106,22 @@ public class CacheKeyBuilderTest extends Assert {
     builder.setParam("rw", 3);
     assertEquals("http://example.com:signed:0:0:0:0:0:0:0:rh=1:rq=2:rw=3", builder.build());
   }
+
+  @Test
+  public void testParamsSortedAndReplaced() {
+    builder.setParam("rw", 3);
+    builder.setParam("ua", "agent");
+    builder.setParam("rh", 1);
+    builder.setParam("ne", null);
+    builder.setParam("rw", 4);
+    assertEquals("http://example.com:signed:0:0:0:0:0:0:0:rh=1:rw=4:ua=agent", builder.build());
+  }
+
+  @Test
+  public void testBuildKey() {
+    builder.setLegacyParam(2, "owner");
+    builder.setParam("rh", 1);
+    builder.setParam("rw", 3);
+    assertEquals(HttpCacheKey.of(builder.build()), builder.buildKey());
+  }
 }
@@ -33,7 +33,7 @@ import org.junit.Test;
 public class DefaultHttpCacheTest {
   private static final Uri DEFAULT_URI = Uri.parse("http://example.org/file.txt");
   private final CacheProvider cacheProvider = new LruCacheProvider(10);
-  private final Cache<String, HttpResponse> cache
+  private final Cache<HttpCacheKey, HttpResponse> cache
       = cacheProvider.createCache(DefaultHttpCache.CACHE_NAME);
   private final DefaultHttpCache httpCache = new DefaultHttpCache(cacheProvider);
 
@@ -42,7 +42,7 @@ public class DefaultHttpCacheTest {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
     HttpResponse response = new HttpResponse("response");
 
-    String key = httpCache.createKey(request);
+    HttpCacheKey key = httpCache.createCacheKey(request);
 
     cache.addElement(key, response);
 
@@ -56,7 +56,7 @@ public class DefaultHttpCacheTest {
 
     httpCache.addResponse(request, response);
 
-    String key = httpCache.createKey(request);
+    HttpCacheKey key = httpCache.createCacheKey(request);
 
     assertEquals(response, cache.getElement(key));
   }
@@ -66,7 +66,7 @@ public class DefaultHttpCacheTest {
     HttpRequest request = new HttpRequest(DEFAULT_URI);
     HttpResponse response = new HttpResponse("response");
 
-    String key = httpCache.createKey(request);
+    HttpCacheKey key = httpCache.createCacheKey(request);
 
     cache.addElement(key, response);
 
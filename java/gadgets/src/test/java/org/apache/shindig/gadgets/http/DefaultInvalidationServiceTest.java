@@ -102,13 +102,13 @@ public class DefaultInvalidationServiceTest extends Assert {
         appyToken);
     assertEquals(4, cacheProvider.createCache(DefaultInvalidationService.CACHE_NAME).getSize());
     assertNotNull(cacheProvider.createCache(DefaultInvalidationService.CACHE_NAME)
-        .getElement("INV_TOK:AppX:1"));
+        .getElement(HttpCacheKey.of("INV_TOK:AppX:1")));
     assertNotNull(cacheProvider.createCache(DefaultInvalidationService.CACHE_NAME)
-        .getElement("INV_TOK:AppX:2"));
+        .getElement(HttpCacheKey.of("INV_TOK:AppX:2")));
     assertNotNull(cacheProvider.createCache(DefaultInvalidationService.CACHE_NAME)
-        .getElement("INV_TOK:AppY:1"));
+        .getElement(HttpCacheKey.of("INV_TOK:AppY:1")));
     assertNotNull(cacheProvider.createCache(DefaultInvalidationService.CACHE_NAME)
-        .getElement("INV_TOK:AppY:2"));
+        .getElement(HttpCacheKey.of("INV_TOK:AppY:2")));
   }
 
   @Test
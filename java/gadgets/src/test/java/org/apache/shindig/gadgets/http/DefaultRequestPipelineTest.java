@@ -19,10 +19,15 @@
 package org.apache.shindig.gadgets.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Provider;
 
 import org.apache.shindig.common.uri.Uri;
@@ -36,7 +41,16 @@ import org.apache.shindig.gadgets.rewrite.DefaultResponseRewriterRegistry;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DefaultRequestPipelineTest {
   private static final Uri DEFAULT_URI = Uri.parse("http://example.org/gadget.xml");
@@ -53,7 +67,7 @@ public class DefaultRequestPipelineTest {
       return resp.getResponseAsString();
     }
   };
-  private final RequestPipeline pipeline = new DefaultRequestPipeline(fetcher, cache, oauth,
+  private final AsyncRequestPipeline pipeline = new DefaultRequestPipeline(fetcher, cache, oauth,
           oauth2, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
           helper);
 
@@ -350,6 +364,269 @@ public class DefaultRequestPipelineTest {
     assertEquals(0, cache.writeCount);
   }
 
+  @Test
+  public void concurrentMissesAreCoalesced() throws Exception {
+    final Uri uri = Uri.parse("http://example.org/gadget.xml?coalesce=1");
+    final CountDownLatch release = new CountDownLatch(1);
+    BlockingHttpFetcher blockingFetcher = new BlockingHttpFetcher(release);
+    blockingFetcher.response = new HttpResponse("fetched");
+    final DefaultRequestPipeline coalescingPipeline = new DefaultRequestPipeline(blockingFetcher,
+        cache, oauth, oauth2, new DefaultResponseRewriterRegistry(null, null),
+        new NoOpInvalidationService(), helper);
+
+    int callers = 5;
+    ExecutorService executor = Executors.newFixedThreadPool(callers);
+    try {
+      List<Future<HttpResponse>> results = Lists.newArrayList();
+      for (int i = 0; i < callers; ++i) {
+        results.add(executor.submit(new Callable<HttpResponse>() {
+          public HttpResponse call() throws Exception {
+            return coalescingPipeline.execute(new HttpRequest(uri));
+          }
+        }));
+      }
+
+      // Wait until every other caller has joined the first fetch before letting it finish.
+      while (coalescingPipeline.getCoalescedRequestCount() < callers - 1) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+
+      HttpResponse first = results.get(0).get();
+      for (Future<HttpResponse> result : results) {
+        assertSame(first, result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(1, blockingFetcher.fetchCount);
+    assertEquals(callers - 1, coalescingPipeline.getCoalescedRequestCount());
+    assertEquals(0, coalescingPipeline.getCoalescingTimeoutCount());
+    assertEquals(0, coalescingPipeline.getInFlightRequestCount());
+  }
+
+  @Test
+  public void coalescedCallerFetchesAfterTimeout() throws Exception {
+    final Uri uri = Uri.parse("http://example.org/gadget.xml?coalesce=1");
+    final CountDownLatch release = new CountDownLatch(1);
+    BlockingHttpFetcher blockingFetcher = new BlockingHttpFetcher(release);
+    blockingFetcher.response = new HttpResponse("fetched");
+    final DefaultRequestPipeline coalescingPipeline = new DefaultRequestPipeline(blockingFetcher,
+        cache, oauth, oauth2, new DefaultResponseRewriterRegistry(null, null),
+        new NoOpInvalidationService(), helper);
+    coalescingPipeline.setCoalescingTimeoutMs(50);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<HttpResponse> blocked = executor.submit(new Callable<HttpResponse>() {
+        public HttpResponse call() throws Exception {
+          return coalescingPipeline.execute(new HttpRequest(uri));
+        }
+      });
+      while (coalescingPipeline.getInFlightRequestCount() == 0) {
+        Thread.sleep(10);
+      }
+
+      // Fetches on its own once the wait times out; the fetcher only blocks the first caller.
+      HttpResponse response = coalescingPipeline.execute(new HttpRequest(uri));
+      assertEquals("fetched", response.getResponseAsString());
+      assertEquals(1, coalescingPipeline.getCoalescingTimeoutCount());
+
+      release.countDown();
+      blocked.get();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(2, blockingFetcher.fetchCount);
+  }
+
+  @Test
+  public void coalescingDisabled() throws Exception {
+    DefaultRequestPipeline coalescingPipeline = new DefaultRequestPipeline(fetcher, cache, oauth,
+        oauth2, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
+        helper);
+    coalescingPipeline.setCoalescingEnabled(false);
+    HttpRequest request = new HttpRequest(Uri.parse("http://example.org/gadget.xml?coalesce=1"));
+    assertEquals(null, coalescingPipeline.getCoalescingKey(request));
+
+    coalescingPipeline.setCoalescingEnabled(true);
+    assertEquals(HttpCacheKey.of("coalesce=1"), coalescingPipeline.getCoalescingKey(request));
+    assertEquals(null, coalescingPipeline.getCoalescingKey(request.setIgnoreCache(true)));
+  }
+
+  @Test
+  public void staleWhileRevalidateServesStaleAndRefreshes() throws Exception {
+    Uri uri = Uri.parse("http://example.org/gadget.xml?swr=1");
+    HttpRequest request = new HttpRequest(uri).setAuthType(AuthType.NONE);
+
+    long now = HttpResponseTest.timeSource.currentTimeMillis();
+    HttpResponse cached = new HttpResponseBuilder()
+        .setHeader(HttpHeaders.EXPIRES, DateUtil.formatRfc1123Date(now - 5000L))
+        .setHeader(HttpHeaders.ETAG, "ETAG")
+        .setResponseString("cached")
+        .create();
+    cache.data.put(uri, cached);
+    fetcher.response = new HttpResponse("fetched");
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    DefaultRequestPipeline swrPipeline = new DefaultRequestPipeline(fetcher, cache, oauth,
+        oauth2, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
+        helper);
+    swrPipeline.setStaleWhileRevalidateMs(60000L);
+    swrPipeline.setRevalidationExecutor(executor);
+
+    HttpResponse response = swrPipeline.execute(request);
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertSame(cached, response);
+    assertEquals(null, request.getHeader(HttpHeaders.IF_NONE_MATCH));
+    assertEquals("ETAG", fetcher.request.getHeader(HttpHeaders.IF_NONE_MATCH));
+    assertEquals(1, fetcher.fetchCount);
+    assertEquals("fetched", cache.data.get(uri).getResponseAsString());
+    assertEquals(1, swrPipeline.getStaleWhileRevalidateCount());
+  }
+
+  @Test
+  public void staleWhileRevalidateOutsideWindowFetchesSynchronously() throws Exception {
+    Uri uri = Uri.parse("http://example.org/gadget.xml?swr=1");
+    HttpRequest request = new HttpRequest(uri).setAuthType(AuthType.NONE);
+
+    long now = HttpResponseTest.timeSource.currentTimeMillis();
+    HttpResponse cached = new HttpResponseBuilder()
+        .setHeader(HttpHeaders.EXPIRES, DateUtil.formatRfc1123Date(now - 120000L))
+        .setResponseString("cached")
+        .create();
+    cache.data.put(uri, cached);
+    fetcher.response = new HttpResponse("fetched");
+
+    DefaultRequestPipeline swrPipeline = new DefaultRequestPipeline(fetcher, cache, oauth,
+        oauth2, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
+        helper);
+    swrPipeline.setStaleWhileRevalidateMs(60000L);
+
+    HttpResponse response = swrPipeline.execute(request);
+
+    assertEquals("fetched", response.getResponseAsString());
+    assertEquals(1, fetcher.fetchCount);
+    assertEquals(0, swrPipeline.getStaleWhileRevalidateCount());
+  }
+
+  @Test
+  public void executeAsyncWasCached() throws Exception {
+    HttpRequest request = new HttpRequest(DEFAULT_URI).setAuthType(AuthType.NONE);
+
+    HttpResponse cached = new HttpResponse("cached");
+    cache.data.put(DEFAULT_URI, cached);
+
+    ListenableFuture<HttpResponse> response = pipeline.executeAsync(request);
+
+    assertTrue(response.isDone());
+    assertEquals(cached, response.get());
+    assertEquals(0, fetcher.fetchCount);
+  }
+
+  @Test
+  public void executeAsyncNotCached() throws Exception {
+    HttpRequest request = new HttpRequest(DEFAULT_URI).setAuthType(AuthType.NONE);
+    fetcher.response = new HttpResponse("response");
+
+    HttpResponse response = pipeline.executeAsync(request).get();
+
+    assertEquals(fetcher.response, response);
+    assertEquals(request, fetcher.request);
+    assertEquals(1, fetcher.fetchCount);
+    assertEquals(1, cache.writeCount);
+  }
+
+  @Test
+  public void executeAsyncUsesAsyncFetcher() throws Exception {
+    final SettableFuture<HttpResponse> pending = SettableFuture.create();
+    AsyncHttpFetcher asyncFetcher = new AsyncHttpFetcher() {
+      public ListenableFuture<HttpResponse> fetchAsync(HttpRequest request) {
+        return pending;
+      }
+
+      public HttpResponse fetch(HttpRequest request) {
+        throw new AssertionError("Blocking fetch should not be used");
+      }
+    };
+    AsyncRequestPipeline asyncPipeline = new DefaultRequestPipeline(asyncFetcher, cache, oauth,
+        oauth2, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
+        helper);
+    HttpRequest request = new HttpRequest(DEFAULT_URI).setAuthType(AuthType.NONE);
+
+    ListenableFuture<HttpResponse> response = asyncPipeline.executeAsync(request);
+    assertFalse(response.isDone());
+
+    pending.set(new HttpResponse("response"));
+    assertEquals("response", response.get().getResponseAsString());
+    assertEquals(1, cache.writeCount);
+  }
+
+  @Test
+  public void executeAsyncCancelDoesNotAffectCoalescedCallers() throws Exception {
+    final SettableFuture<HttpResponse> pending = SettableFuture.create();
+    AsyncHttpFetcher asyncFetcher = new AsyncHttpFetcher() {
+      public ListenableFuture<HttpResponse> fetchAsync(HttpRequest request) {
+        return pending;
+      }
+
+      public HttpResponse fetch(HttpRequest request) {
+        throw new AssertionError("Blocking fetch should not be used");
+      }
+    };
+    AsyncRequestPipeline asyncPipeline = new DefaultRequestPipeline(asyncFetcher, cache, oauth,
+        oauth2, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
+        helper);
+    HttpRequest request = new HttpRequest(DEFAULT_URI).setAuthType(AuthType.NONE);
+
+    ListenableFuture<HttpResponse> leader = asyncPipeline.executeAsync(request);
+    ListenableFuture<HttpResponse> follower = asyncPipeline.executeAsync(request);
+    ListenableFuture<HttpResponse> cancelled = asyncPipeline.executeAsync(request);
+    assertTrue(cancelled.cancel(true));
+
+    pending.set(new HttpResponse("response"));
+    assertEquals("response", leader.get().getResponseAsString());
+    assertEquals("response", follower.get().getResponseAsString());
+    assertTrue(cancelled.isCancelled());
+  }
+
+  @Test
+  public void executeAsyncCancelledByAllCallersCancelsFetch() throws Exception {
+    final SettableFuture<HttpResponse> pending = SettableFuture.create();
+    AsyncHttpFetcher asyncFetcher = new AsyncHttpFetcher() {
+      public ListenableFuture<HttpResponse> fetchAsync(HttpRequest request) {
+        return pending;
+      }
+
+      public HttpResponse fetch(HttpRequest request) {
+        throw new AssertionError("Blocking fetch should not be used");
+      }
+    };
+    DefaultRequestPipeline asyncPipeline = new DefaultRequestPipeline(asyncFetcher, cache, oauth,
+        oauth2, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
+        helper);
+    HttpRequest request = new HttpRequest(DEFAULT_URI).setAuthType(AuthType.NONE);
+
+    ListenableFuture<HttpResponse> leader = asyncPipeline.executeAsync(request);
+    ListenableFuture<HttpResponse> follower = asyncPipeline.executeAsync(request);
+    assertTrue(leader.cancel(true));
+    assertFalse(pending.isCancelled());
+
+    assertTrue(follower.cancel(true));
+    assertTrue(pending.isCancelled());
+    assertEquals(0, asyncPipeline.getInFlightRequestCount());
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void executeAsyncFetchFailure() throws Exception {
+    HttpRequest request = new HttpRequest(DEFAULT_URI).setAuthType(AuthType.NONE);
+    pipeline.executeAsync(request).get();
+  }
+
   private static int roundToSeconds(long ts) {
     return (int) (ts / 1000);
   }
@@ -419,6 +696,32 @@ public class DefaultRequestPipelineTest {
     }
   }
 
+  /**
+   * Fetcher that holds the first fetch until released, so that other callers pile up behind it.
+   */
+  private static class BlockingHttpFetcher extends FakeHttpFetcher {
+    private final CountDownLatch release;
+    private final AtomicBoolean held = new AtomicBoolean();
+
+    BlockingHttpFetcher(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public HttpResponse fetch(HttpRequest request) throws GadgetException {
+      if (held.compareAndSet(false, true)) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new GadgetException(GadgetException.Code.FAILED_TO_RETRIEVE_CONTENT, e);
+        }
+      }
+      synchronized (this) {
+        return super.fetch(request);
+      }
+    }
+  }
+
   public static class FakeHttpCache implements HttpCache {
     protected final Map<Uri, HttpResponse> data = Maps.newHashMap();
     protected int writeCount = 0;
@@ -444,6 +747,11 @@ public class DefaultRequestPipelineTest {
     public String createKey(HttpRequest request) {
       return request.getUri().getQuery();
     }
+
+    public HttpCacheKey createCacheKey(HttpRequest request) {
+      String key = createKey(request);
+      return key == null ? null : HttpCacheKey.of(key);
+    }
   }
 
   public static class FakeOAuthRequestProvider implements Provider<OAuthRequest> {
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.shindig.common.cache.Cache;
+import org.apache.shindig.common.cache.LruCache;
+import org.junit.Test;
+
+public class EncodedHttpResponseCacheTest {
+  private final Cache<String, byte[]> bytes = new LruCache<String, byte[]>(10);
+  private final EncodedHttpResponseCache<String> cache =
+      new EncodedHttpResponseCache<String>(bytes);
+
+  @Test
+  public void storesEncodedResponses() {
+    HttpResponse response = new HttpResponseBuilder()
+        .setResponseString("response")
+        .setMetadata("key", "value")
+        .create();
+
+    cache.addElement("key", response);
+
+    assertTrue(bytes.getElement("key").length > 0);
+    assertEquals(response, cache.getElement("key"));
+    assertEquals("value", cache.getElement("key").getMetadata().get("key"));
+    assertEquals(1, cache.getSize());
+    assertEquals(10, cache.getCapacity());
+  }
+
+  @Test
+  public void removeElement() {
+    HttpResponse response = new HttpResponse("response");
+    cache.addElement("key", response);
+
+    assertEquals(response, cache.removeElement("key"));
+    assertNull(cache.getElement("key"));
+  }
+
+  @Test
+  public void undecodableEntryIsMiss() {
+    bytes.addElement("key", new byte[] { 1, 2, 3 });
+
+    assertNull(cache.getElement("key"));
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+public class HttpCacheKeyTest {
+  @Test
+  public void sameTextSameKey() {
+    assertEquals(HttpCacheKey.of("http://example.org/"), HttpCacheKey.of("http://example.org/"));
+    assertEquals(HttpCacheKey.of("http://example.org/").hashCode(),
+        HttpCacheKey.of("http://example.org/").hashCode());
+  }
+
+  @Test
+  public void differentTextDifferentKey() {
+    assertFalse(HttpCacheKey.of("http://example.org/a").equals(
+        HttpCacheKey.of("http://example.org/b")));
+    assertFalse(HttpCacheKey.of("").equals(HttpCacheKey.of(":")));
+  }
+
+  @Test
+  public void appendedInPieces() {
+    HttpCacheKey key = new HttpCacheKey.Builder()
+        .append("http://example.org/")
+        .append(':')
+        .append("signed")
+        .append("xx0yy", 2, 3)
+        .build();
+
+    assertEquals(HttpCacheKey.of("http://example.org/:signed0"), key);
+  }
+
+  @Test
+  public void binaryForm() {
+    HttpCacheKey key = HttpCacheKey.of("http://example.org/");
+    byte[] bytes = new byte[HttpCacheKey.SIZE + 4];
+    System.arraycopy(key.toBytes(), 0, bytes, 4, HttpCacheKey.SIZE);
+
+    assertEquals(HttpCacheKey.SIZE, key.toBytes().length);
+    assertEquals(key, HttpCacheKey.fromBytes(bytes, 4));
+    assertArrayEquals(key.toBytes(), HttpCacheKey.fromBytes(bytes, 4).toBytes());
+  }
+
+  @Test
+  public void serializable() throws Exception {
+    HttpCacheKey key = HttpCacheKey.of("http://example.org/");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(key);
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(key, in.readObject());
+  }
+}
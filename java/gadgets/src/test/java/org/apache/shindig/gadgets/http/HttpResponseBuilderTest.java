@@ -284,4 +284,24 @@ public class HttpResponseBuilderTest {
     assertNotSame(response, newResponse);
     assertSame(newResponse, builder.create());
   }
+
+  @Test
+  public void gzippedResponseKeptWhileBodyUnchanged() {
+    byte[] gzipped = {1, 2, 3};
+    HttpResponse response = new HttpResponseBuilder()
+        .setResponseString("foo")
+        .setGzippedResponse(gzipped)
+        .create();
+    assertTrue(response.hasGzippedResponse());
+
+    HttpResponseBuilder builder = new HttpResponseBuilder(response)
+        .setHeader("Cache-Control", "public,max-age=10")
+        .setResponse("foo".getBytes(Charsets.UTF_8));
+    HttpResponse rebuilt = builder.create();
+    assertNotSame(response, rebuilt);
+    assertSame(gzipped, rebuilt.getGzippedResponseAsBytes());
+
+    builder.setResponseString("bar");
+    assertFalse(builder.create().hasGzippedResponse());
+  }
 }
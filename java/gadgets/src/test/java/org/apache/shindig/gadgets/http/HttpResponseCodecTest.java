@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.shindig.common.util.GzipUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class HttpResponseCodecTest {
+  private HttpResponse response;
+
+  @Before
+  public void setUp() {
+    HttpResponseTest.setHttpTimeSource();
+    response = new HttpResponseBuilder()
+        .setHttpStatusCode(HttpResponse.SC_NOT_FOUND)
+        .addHeader("Content-Type", "text/html; charset=ISO-8859-1")
+        .addHeader("X-Multi", "one")
+        .addHeader("X-Multi", "two")
+        .setCacheTtl(1000)
+        .setMetadata(ImmutableMap.of("hash", "abc", "unicode", "\u00e9\u4e2d"))
+        .setResponseString("not found \u00e9")
+        .setRefetchStrictNoCacheAfterMs(5000L)
+        .create();
+  }
+
+  private static void assertResponsesEqual(HttpResponse expected, HttpResponse actual) {
+    assertEquals(expected, actual);
+    assertEquals(expected.getHttpStatusCode(), actual.getHttpStatusCode());
+    assertEquals(expected.getHeaders(), actual.getHeaders());
+    assertEquals(expected.getMetadata(), actual.getMetadata());
+    assertEquals(expected.getEncoding(), actual.getEncoding());
+    assertEquals(expected.getDate(), actual.getDate());
+    assertEquals(expected.getCacheExpiration(), actual.getCacheExpiration());
+    assertEquals(expected.getRefetchStrictNoCacheAfterMs(),
+        actual.getRefetchStrictNoCacheAfterMs());
+    assertEquals(expected.getResponseAsString(), actual.getResponseAsString());
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    assertResponsesEqual(response, HttpResponseCodec.decode(HttpResponseCodec.encode(response)));
+  }
+
+  @Test
+  public void roundTripEmpty() throws Exception {
+    HttpResponse empty = new HttpResponseBuilder().create();
+    assertResponsesEqual(empty, HttpResponseCodec.decode(HttpResponseCodec.encode(empty)));
+  }
+
+  @Test
+  public void decodeFromDirectBuffer() throws Exception {
+    byte[] encoded = HttpResponseCodec.encode(response);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length + 10);
+    buffer.put(new byte[5]).put(encoded).put(new byte[5]);
+    buffer.position(5);
+    buffer.limit(5 + encoded.length);
+
+    assertResponsesEqual(response, HttpResponseCodec.decode(buffer));
+    assertEquals(5 + encoded.length, buffer.position());
+  }
+
+  @Test
+  public void decodeFromSlice() throws Exception {
+    byte[] encoded = HttpResponseCodec.encode(response);
+    byte[] padded = new byte[encoded.length + 3];
+    System.arraycopy(encoded, 0, padded, 3, encoded.length);
+    ByteBuffer buffer = ByteBuffer.wrap(padded);
+    buffer.position(3);
+
+    assertResponsesEqual(response, HttpResponseCodec.decode(buffer.slice()));
+  }
+
+  @Test
+  public void gzippedFormNotStored() throws Exception {
+    HttpResponse plain = new HttpResponseBuilder()
+        .addHeader("Content-Type", "text/javascript")
+        .setResponseString("var compressible = 'compressible compressible compressible';")
+        .create();
+    HttpResponse gzipped = new HttpResponseBuilder(plain)
+        .setGzippedResponse(GzipUtil.compress(plain.getResponseAsBytes()))
+        .create();
+
+    byte[] encoded = HttpResponseCodec.encode(gzipped);
+    assertArrayEquals(HttpResponseCodec.encode(plain), encoded);
+    HttpResponse decoded = HttpResponseCodec.decode(encoded);
+    assertResponsesEqual(plain, decoded);
+    assertFalse(decoded.hasGzippedResponse());
+  }
+
+  @Test(expected = IOException.class)
+  public void truncated() throws Exception {
+    byte[] encoded = HttpResponseCodec.encode(response);
+    HttpResponseCodec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+  }
+
+  @Test(expected = IOException.class)
+  public void badMagic() throws Exception {
+    byte[] encoded = HttpResponseCodec.encode(response);
+    encoded[0] = 0;
+    HttpResponseCodec.decode(encoded);
+  }
+
+  @Test(expected = IOException.class)
+  public void unsupportedVersion() throws Exception {
+    byte[] encoded = HttpResponseCodec.encode(response);
+    encoded[2] = HttpResponseCodec.VERSION + 1;
+    HttpResponseCodec.decode(encoded);
+  }
+}
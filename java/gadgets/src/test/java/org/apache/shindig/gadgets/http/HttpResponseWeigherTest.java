@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.shindig.common.util.GzipUtil;
+import org.junit.Test;
+
+public class HttpResponseWeigherTest {
+  private final HttpResponseWeigher weigher = new HttpResponseWeigher();
+
+  @Test
+  public void weightGrowsWithBody() {
+    HttpResponse small = new HttpResponseBuilder().setResponseString("small").create();
+    HttpResponse large = new HttpResponseBuilder()
+        .setResponse(new byte[100000])
+        .create();
+    int smallWeight = weigher.weigh("key", small);
+    int largeWeight = weigher.weigh("key", large);
+    assertTrue(smallWeight >= HttpResponseWeigher.RESPONSE_OVERHEAD);
+    assertEquals(100000 - "small".length(), largeWeight - smallWeight);
+  }
+
+  @Test
+  public void headersAreWeighed() {
+    HttpResponse plain = new HttpResponseBuilder().setResponseString("body").create();
+    HttpResponse withHeader = new HttpResponseBuilder()
+        .setResponseString("body")
+        .addHeader("X-Header", "value")
+        .create();
+    assertEquals(HttpResponseWeigher.HEADER_OVERHEAD + 2 * ("X-Header".length() + 5),
+        weigher.weigh("key", withHeader) - weigher.weigh("key", plain));
+  }
+
+  @Test
+  public void gzippedOnlyResponsesWeighedByGzippedLength() {
+    byte[] body = new byte[100000];
+    byte[] gzipped = GzipUtil.compress(body);
+    HttpResponse response = new HttpResponseBuilder()
+        .setResponse(body)
+        .setGzippedResponse(gzipped)
+        .create();
+    assertEquals(body.length,
+        weigher.weigh("key", response) - weigher.weigh("key", response.withGzippedBodyOnly()));
+  }
+
+  @Test
+  public void encodedResponsesWeighedByLength() {
+    assertEquals(HttpResponseWeigher.ARRAY_OVERHEAD + 2 * "key".length() + 1000,
+        weigher.weigh("key", new byte[1000]));
+  }
+
+  @Test
+  public void cacheKeysHaveFixedWeight() {
+    HttpResponse response = new HttpResponseBuilder().setResponseString("body").create();
+    assertEquals(weigher.weigh(HttpCacheKey.of("key"), response),
+        weigher.weigh(HttpCacheKey.of("a much longer key"), response));
+  }
+}
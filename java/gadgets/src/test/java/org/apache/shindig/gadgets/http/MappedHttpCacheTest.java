@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.shindig.common.uri.Uri;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for MappedHttpCache
+ */
+public class MappedHttpCacheTest {
+  private static final Uri DEFAULT_URI = Uri.parse("http://example.org/file.txt");
+  private static final int SEGMENT_SIZE = 16 * 1024;
+
+  private File directory;
+  private MappedHttpCache httpCache;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("mapped-http-cache", "");
+    assertTrue(directory.delete());
+    httpCache = new MappedHttpCache(directory.getPath(), 2, SEGMENT_SIZE);
+  }
+
+  @After
+  public void tearDown() {
+    httpCache.cleanup();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private MappedHttpCache reopen() throws IOException {
+    httpCache.cleanup();
+    return new MappedHttpCache(directory.getPath(), 2, SEGMENT_SIZE);
+  }
+
+  @Test(expected = IOException.class)
+  public void directoryInUseRejected() throws Exception {
+    new MappedHttpCache(directory.getPath(), 2, SEGMENT_SIZE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void directoryRequired() throws Exception {
+    new MappedHttpCache("", 2, SEGMENT_SIZE);
+  }
+
+  @Test
+  public void addAndGetResponse() {
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    HttpResponse response = new HttpResponseBuilder()
+        .setResponseString("response")
+        .addHeader("X-Header", "value")
+        .create();
+
+    httpCache.addResponse(request, response);
+
+    assertEquals(response, httpCache.getResponse(request));
+    assertEquals(1, httpCache.getEntryCount());
+  }
+
+  @Test
+  public void removeResponse() {
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    HttpResponse response = new HttpResponse("response");
+
+    httpCache.addResponse(request, response);
+
+    assertEquals(response, httpCache.removeResponse(request));
+    assertNull(httpCache.getResponse(request));
+    assertEquals(0, httpCache.getEntryCount());
+  }
+
+  @Test
+  public void replaceResponse() {
+    HttpCacheKey key = key("key");
+    httpCache.addResponseImpl(key, new HttpResponse("first"));
+    httpCache.addResponseImpl(key, new HttpResponse("second"));
+
+    assertEquals("second", httpCache.getResponseImpl(key).getResponseAsString());
+    assertEquals(1, httpCache.getEntryCount());
+  }
+
+  @Test
+  public void responsesSurviveReopen() throws Exception {
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    HttpResponse response = new HttpResponse("response");
+    httpCache.addResponse(request, response);
+    httpCache.addResponseImpl(key("replaced"), new HttpResponse("first"));
+    httpCache.addResponseImpl(key("replaced"), new HttpResponse("second"));
+
+    MappedHttpCache reopened = reopen();
+
+    assertEquals(response, reopened.getResponse(request));
+    assertEquals("second", reopened.getResponseImpl(key("replaced")).getResponseAsString());
+    assertEquals(2, reopened.getEntryCount());
+  }
+
+  @Test
+  public void removedResponsesNotRecovered() throws Exception {
+    httpCache.addResponseImpl(key("key"), new HttpResponse("first"));
+    httpCache.addResponseImpl(key("key"), new HttpResponse("second"));
+    httpCache.removeResponseImpl(key("key"));
+
+    MappedHttpCache reopened = reopen();
+
+    assertNull(reopened.getResponseImpl(key("key")));
+    assertEquals(0, reopened.getEntryCount());
+  }
+
+  @Test
+  public void corruptRecordsIgnored() throws Exception {
+    httpCache.addResponseImpl(key("key"), new HttpResponse("response"));
+    httpCache.cleanup();
+
+    for (File file : directory.listFiles()) {
+      if (file.getName().equals(MappedHttpCache.LOCK_FILE)) {
+        continue;
+      }
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.seek(MappedHttpCache.HEADER_SIZE + 4);
+        raf.write(new byte[] { 'X', 'Y', 'Z' });
+      } finally {
+        raf.close();
+      }
+    }
+    MappedHttpCache reopened = new MappedHttpCache(directory.getPath(), 2, SEGMENT_SIZE);
+
+    assertNull(reopened.getResponseImpl(key("key")));
+    assertEquals(0, reopened.getEntryCount());
+  }
+
+  @Test
+  public void oldResponsesEvicted() {
+    byte[] body = new byte[1000];
+    for (int i = 0; i < 100; i++) {
+      httpCache.addResponseImpl(key("key" + i),
+          new HttpResponseBuilder().setResponse(body).create());
+    }
+
+    assertTrue(httpCache.getEntryCount() < 100);
+    assertNull(httpCache.getResponseImpl(key("key0")));
+    assertEquals(1000, httpCache.getResponseImpl(key("key99")).getContentLength());
+  }
+
+  @Test
+  public void referencedResponsesGetSecondChance() {
+    MappedHttpCache cache = httpCache;
+    byte[] body = new byte[1000];
+    cache.addResponseImpl(key("hot"), new HttpResponseBuilder().setResponse(body).create());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(1000, cache.getResponseImpl(key("hot")).getContentLength());
+      cache.addResponseImpl(key("key" + i), new HttpResponseBuilder().setResponse(body).create());
+    }
+
+    assertEquals(1000, cache.getResponseImpl(key("hot")).getContentLength());
+  }
+
+  @Test
+  public void oversizedResponsesNotCached() {
+    httpCache.addResponseImpl(key("key"), new HttpResponseBuilder()
+        .setResponse(new byte[SEGMENT_SIZE]).create());
+
+    assertNull(httpCache.getResponseImpl(key("key")));
+  }
+
+  private static HttpCacheKey key(String key) {
+    return HttpCacheKey.of(key);
+  }
+}
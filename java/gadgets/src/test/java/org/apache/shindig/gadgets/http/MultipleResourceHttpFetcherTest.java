@@ -19,6 +19,7 @@
 package org.apache.shindig.gadgets.http;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.eq;
@@ -39,7 +40,7 @@ import java.io.*;
  * Tests for {@code MultipleResourceHttpFetcher}.
  */
 public class MultipleResourceHttpFetcherTest extends EasyMockTestCase {
-  private RequestPipeline requestPipeline;
+  private AsyncRequestPipeline requestPipeline;
   private transient ExecutorService executor = Executors.newSingleThreadExecutor();
   private MultipleResourceHttpFetcher fetcher;
 
@@ -54,7 +55,7 @@ public class MultipleResourceHttpFetcherTest extends EasyMockTestCase {
 
   @Before
   public void setUp() throws Exception {
-    requestPipeline = mock(RequestPipeline.class);
+    requestPipeline = mock(AsyncRequestPipeline.class);
     fetcher = new MultipleResourceHttpFetcher(requestPipeline, executor);
 
     reqCxt1 = createRequestContext(IMG_URI, "jpeg image", "image/jpeg");
@@ -66,12 +67,15 @@ public class MultipleResourceHttpFetcherTest extends EasyMockTestCase {
   public void testFetchAll() throws Exception {
     List<HttpRequest> requests = createRequestArray();
 
-    expect(requestPipeline.execute(eq(reqCxt1.getHttpReq()))).andReturn(reqCxt1.getHttpResp());
-    expect(requestPipeline.execute(eq(reqCxt2.getHttpReq()))).andReturn(reqCxt2.getHttpResp());
-    expect(requestPipeline.execute(eq(reqCxt3.getHttpReq()))).andReturn(reqCxt3.getHttpResp());
+    expect(requestPipeline.executeAsync(eq(reqCxt1.getHttpReq())))
+        .andReturn(Futures.immediateFuture(reqCxt1.getHttpResp()));
+    expect(requestPipeline.executeAsync(eq(reqCxt2.getHttpReq())))
+        .andReturn(Futures.immediateFuture(reqCxt2.getHttpResp()));
+    expect(requestPipeline.executeAsync(eq(reqCxt3.getHttpReq())))
+        .andReturn(Futures.immediateFuture(reqCxt3.getHttpResp()));
 
     replay();
-    List<Pair<Uri, FutureTask<RequestContext>>> futureTasks = fetcher.fetchAll(requests);
+    List<Pair<Uri, Future<RequestContext>>> futureTasks = fetcher.fetchAll(requests);
     assertEquals(3, futureTasks.size());
     assertEquals(IMG_URI, futureTasks.get(0).one);
     assertEquals(reqCxt1, futureTasks.get(0).two.get());
@@ -86,11 +90,13 @@ public class MultipleResourceHttpFetcherTest extends EasyMockTestCase {
   public void testFetchUnique() throws Exception {
     List<HttpRequest> requests = createRequestArray();
 
-    expect(requestPipeline.execute(eq(reqCxt1.getHttpReq()))).andReturn(reqCxt1.getHttpResp());
-    expect(requestPipeline.execute(eq(reqCxt2.getHttpReq()))).andReturn(reqCxt2.getHttpResp());
+    expect(requestPipeline.executeAsync(eq(reqCxt1.getHttpReq())))
+        .andReturn(Futures.immediateFuture(reqCxt1.getHttpResp()));
+    expect(requestPipeline.executeAsync(eq(reqCxt2.getHttpReq())))
+        .andReturn(Futures.immediateFuture(reqCxt2.getHttpResp()));
 
     replay();
-    Map<Uri, FutureTask<RequestContext>> futureTasks = fetcher.fetchUnique(requests);
+    Map<Uri, Future<RequestContext>> futureTasks = fetcher.fetchUnique(requests);
     assertEquals(2, futureTasks.size());
     assertTrue(futureTasks.containsKey(IMG_URI));
     assertEquals(reqCxt1, futureTasks.get(IMG_URI).get());
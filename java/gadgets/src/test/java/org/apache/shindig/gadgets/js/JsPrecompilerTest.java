@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.js;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.apache.shindig.config.BasicContainerConfig;
+import org.apache.shindig.config.ContainerConfig;
+import org.apache.shindig.gadgets.RenderingContext;
+import org.apache.shindig.gadgets.uri.JsUriManager.JsUri;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for {@link JsPrecompiler}.
+ */
+public class JsPrecompilerTest {
+  private final List<JsRequest> requests = Lists.newArrayList();
+  private ContainerConfig config;
+  private JsServingPipeline pipeline;
+
+  @Before
+  public void setUp() throws Exception {
+    config = new BasicContainerConfig();
+    config.newTransaction()
+        .addContainer(ImmutableMap.<String, Object>of(
+            ContainerConfig.CONTAINER_KEY, ContainerConfig.DEFAULT_CONTAINER))
+        .addContainer(ImmutableMap.<String, Object>of(ContainerConfig.CONTAINER_KEY, "other"))
+        .commit();
+    pipeline = new JsServingPipeline() {
+      public JsResponse execute(JsRequest jsRequest) throws JsException {
+        requests.add(jsRequest);
+        if (jsRequest.getJsUri().getLibs().contains("broken")) {
+          throw new JsException(HttpServletResponse.SC_NOT_FOUND, "broken");
+        }
+        return new JsResponseBuilder().appendJs("code", "code").build();
+      }
+    };
+  }
+
+  private JsPrecompiler newPrecompiler(String featureSets) {
+    return new JsPrecompiler(pipeline, new JsRequestBuilder(null, null), config, featureSets,
+        MoreExecutors.sameThreadExecutor());
+  }
+
+  @Test
+  public void precompilesAtStartup() {
+    JsPrecompiler precompiler = newPrecompiler(" core:rpc , container ");
+    assertEquals(ImmutableList.of(ImmutableList.of("core", "rpc"), ImmutableList.of("container")),
+        precompiler.getFeatureSets());
+
+    // Every set for every container, in both contexts.
+    assertEquals(8, requests.size());
+    JsUri jsUri = requests.get(0).getJsUri();
+    assertEquals(ImmutableList.of("core", "rpc"), ImmutableList.copyOf(jsUri.getLibs()));
+    assertEquals(RenderingContext.GADGET, jsUri.getContext());
+    assertEquals(RenderingContext.CONTAINER, requests.get(1).getJsUri().getContext());
+    assertTrue(jsUri.getLoadedLibs().isEmpty());
+  }
+
+  @Test
+  public void nothingToPrecompile() {
+    JsPrecompiler precompiler = newPrecompiler("");
+    assertTrue(precompiler.getFeatureSets().isEmpty());
+    assertTrue(requests.isEmpty());
+    assertEquals(0, precompiler.precompile());
+  }
+
+  @Test
+  public void failuresSkipped() {
+    JsPrecompiler precompiler = newPrecompiler("broken,core");
+    requests.clear();
+    assertEquals(4, precompiler.precompile());
+    assertEquals(8, requests.size());
+  }
+}
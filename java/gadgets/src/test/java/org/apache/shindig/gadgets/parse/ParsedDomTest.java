@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.parse;
+
+import org.apache.shindig.common.cache.LruCacheProvider;
+import org.apache.shindig.gadgets.parse.nekohtml.NekoSimplifiedHtmlParser;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class ParsedDomTest extends Assert {
+  private static final String MARKUP = "<!DOCTYPE html>\n"
+      + "<html><head><title>Apache Shindig!</title><style>a { color: red; }</style></head>"
+      + "<body><!-- comment --><div id=\"main\" class=\"a b\">text &amp; more"
+      + "<img src=\"foo.png\"><p>para</p></div></body></html>";
+
+  private DOMImplementation documentFactory;
+  private GadgetHtmlParser parser;
+
+  @Before
+  public void setUp() {
+    documentFactory = new ParseModule.DOMImplementationProvider().get();
+    parser = new NekoSimplifiedHtmlParser(documentFactory);
+    parser.setCacheProvider(new LruCacheProvider(10));
+  }
+
+  @Test
+  public void cachedDocumentMatchesParsedDocument() throws Exception {
+    Document parsed = parser.parseDom(MARKUP);
+    String expected = HtmlSerialization.serialize(parsed);
+
+    Document cached = parser.parseDom(MARKUP);
+    assertNotSame(parsed, cached);
+    assertEquals(expected, HtmlSerialization.serialize(cached));
+    assertEquals("html", cached.getDoctype().getName());
+    assertEquals(MARKUP.length(), HtmlSerialization.getOriginalLength(cached));
+  }
+
+  @Test
+  public void cachedDocumentsAreIndependent() throws Exception {
+    String expected = HtmlSerialization.serialize(parser.parseDom(MARKUP));
+
+    Document first = parser.parseDom(MARKUP);
+    Element div = (Element) first.getElementsByTagName("div").item(0);
+    div.setAttribute("id", "changed");
+    div.getParentNode().removeChild(div);
+
+    assertEquals(expected, HtmlSerialization.serialize(parser.parseDom(MARKUP)));
+  }
+
+  @Test
+  public void cachedFragmentMatchesParsedFragment() throws Exception {
+    String markup = "<b>bold</b> text<!-- comment --><i class=\"x\">italic</i>";
+    Document document = documentFactory.createDocument(null, null, null);
+
+    Element parsed = document.createElement("div");
+    parser.parseFragment(markup, parsed);
+    Element cached = document.createElement("div");
+    parser.parseFragment(markup, cached);
+
+    assertTrue(parsed.isEqualNode(cached));
+    assertEquals(4, cached.getChildNodes().getLength());
+  }
+
+  @Test
+  public void namespacesArePreserved() {
+    Document document = documentFactory.createDocument(null, null, null);
+    Element html = document.createElement("html");
+    Element template = document.createElementNS("http://ns.opensocial.org/2008/markup",
+        "os:Name");
+    template.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:os",
+        "http://ns.opensocial.org/2008/markup");
+    template.setAttribute("person", "${Viewer}");
+    template.appendChild(document.createCDATASection("<raw>"));
+    html.appendChild(template);
+    document.appendChild(html);
+
+    Document copy = ParsedDom.of(document).toDocument(new DefaultHtmlSerializer());
+    assertTrue(document.isEqualNode(copy));
+
+    Element copied = (Element) copy.getDocumentElement().getFirstChild();
+    assertEquals("http://ns.opensocial.org/2008/markup", copied.getNamespaceURI());
+    assertEquals("Name", copied.getLocalName());
+    assertEquals("${Viewer}", copied.getAttribute("person"));
+    assertNull(copied.getAttributeNode("person").getLocalName());
+    assertEquals(Node.CDATA_SECTION_NODE, copied.getFirstChild().getNodeType());
+  }
+
+  @Test
+  public void fragmentAppendsToNodeInAnotherDocument() {
+    Document source = documentFactory.createDocument(null, null, null);
+    DocumentFragment fragment = source.createDocumentFragment();
+    Element outer = source.createElement("div");
+    Element inner = source.createElement("span");
+    inner.appendChild(source.createTextNode("deep"));
+    outer.appendChild(inner);
+    fragment.appendChild(outer);
+    fragment.appendChild(source.createTextNode("after"));
+
+    Document target = documentFactory.createDocument(null, null, null);
+    Element parent = target.createElement("body");
+    ParsedDom.of(fragment).appendTo(parent);
+
+    assertEquals(2, parent.getChildNodes().getLength());
+    assertSame(target, parent.getFirstChild().getOwnerDocument());
+    assertEquals("span", parent.getFirstChild().getFirstChild().getNodeName());
+    assertEquals("deep", parent.getFirstChild().getTextContent());
+    assertEquals("after", parent.getLastChild().getNodeValue());
+  }
+
+  @Test
+  public void unsupportedNodesAreNotCopied() {
+    Document document = documentFactory.createDocument(null, null, null);
+    Element html = document.createElement("html");
+    html.appendChild(document.createProcessingInstruction("target", "data"));
+    document.appendChild(html);
+
+    assertNull(ParsedDom.of(document));
+  }
+
+  @Test
+  public void weightGrowsWithContent() {
+    Document small = documentFactory.createDocument(null, null, null);
+    small.appendChild(small.createElement("html"));
+    Document large = documentFactory.createDocument(null, null, null);
+    Element html = large.createElement("html");
+    html.appendChild(large.createTextNode(MARKUP));
+    large.appendChild(html);
+
+    assertTrue(ParsedDom.of(large).getWeight() > ParsedDom.of(small).getWeight());
+    assertTrue(ParsedDom.of(large).getWeight() > MARKUP.length() * 2);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.preload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.shindig.common.testing.FakeGadgetToken;
+import org.apache.shindig.protocol.DefaultHandlerRegistry;
+import org.apache.shindig.protocol.HandlerExecutionListener;
+import org.apache.shindig.protocol.TestHandler;
+import org.apache.shindig.protocol.conversion.BeanJsonConverter;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Guice;
+
+/**
+ * Tests for InProcessSocialDispatcher.
+ */
+public class InProcessSocialDispatcherTest {
+  private InProcessSocialDispatcher dispatcher;
+
+  @Before
+  public void setUp() throws Exception {
+    DefaultHandlerRegistry registry =
+        new DefaultHandlerRegistry(null, null, new HandlerExecutionListener.NoOpHandler());
+    registry.addHandlers(ImmutableSet.<Object>of(new TestHandler()));
+    dispatcher = new InProcessSocialDispatcher(
+        registry, new BeanJsonConverter(Guice.createInjector()));
+  }
+
+  @Test
+  public void canDispatchHandledMethods() throws Exception {
+    assertTrue(dispatcher.canDispatch(ImmutableList.of(
+        new JSONObject("{id: 'a', method: 'test.get'}"),
+        new JSONObject("{id: 'b', method: 'test.create'}"))));
+  }
+
+  @Test
+  public void cannotDispatchUnhandledMethod() throws Exception {
+    assertFalse(dispatcher.canDispatch(ImmutableList.of(
+        new JSONObject("{id: 'a', method: 'test.get'}"),
+        new JSONObject("{id: 'b', method: 'people.get'}"))));
+  }
+
+  @Test
+  public void cannotDispatchWithoutMethod() throws Exception {
+    assertFalse(dispatcher.canDispatch(ImmutableList.of(new JSONObject("{id: 'a'}"))));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void dispatch() throws Exception {
+    List<Object> responses = dispatcher.dispatch(ImmutableList.of(
+        new JSONObject("{id: 'a', method: 'test.get'}"),
+        new JSONObject("{id: 'b', method: 'test.futureException'}")),
+        new FakeGadgetToken());
+
+    assertEquals(2, responses.size());
+    assertEquals(ImmutableMap.of("id", "a", "result", TestHandler.GET_RESPONSE),
+        responses.get(0));
+
+    Map<String, Object> failure = (Map<String, Object>) responses.get(1);
+    assertEquals("b", failure.get("id"));
+    assertFalse(failure.containsKey("result"));
+    Map<String, Object> error = (Map<String, Object>) failure.get("error");
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, error.get("code"));
+    assertTrue(error.get("message").toString().contains(TestHandler.FAILURE_MESSAGE));
+  }
+}
@@ -49,7 +49,9 @@ import org.w3c.dom.Element;
 
 import java.util.Collection;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -83,6 +85,14 @@ public class PipelineExecutorTest {
     + "  <os:PeopleRequest key=\"me\" userId=\"${json.user}\"/>"
     + "</Content>";
 
+  // A slow request, and a chain of two requests unrelated to it
+  private static final String SLOW_AND_CHAINED_CONTENT =
+    "<Content xmlns:os=\"http://ns.opensocial.org/2008/markup\">"
+    + "  <os:HttpRequest key=\"slow\" href=\"slow.json\"/>"
+    + "  <os:PeopleRequest key=\"me\" userId=\"${json.user}\"/>"
+    + "  <os:HttpRequest key=\"json\" href=\"test.json\"/>"
+    + "</Content>";
+
   @Before
   public void setUp() throws Exception {
     control = EasyMock.createStrictControl();
@@ -283,6 +293,122 @@ public class PipelineExecutorTest {
     control.verify();
   }
 
+  @Test
+  public void executeStartsDependentBeforeUnrelatedRequestCompletes() throws Exception {
+    PipelinedData pipeline = getPipelinedData(SLOW_AND_CHAINED_CONTENT);
+    executor = new PipelineExecutor(preloader,
+        new ConcurrentPreloaderService(Executors.newCachedThreadPool(), null),
+        Expressions.forTesting());
+
+    // The slow request only completes once the dependent request has run.
+    final CountDownLatch dependentRan = new CountDownLatch(1);
+    final Callable<PreloadedData> slowResult = createPreloadTask("slow", "{result: {}}");
+    Callable<PreloadedData> slowTask = new Callable<PreloadedData>() {
+      public PreloadedData call() throws Exception {
+        dependentRan.await(10, TimeUnit.SECONDS);
+        return slowResult.call();
+      }
+    };
+    final Callable<PreloadedData> meResult = createPreloadTask("me", "{result: {id: 'canonical'}}");
+    Callable<PreloadedData> meTask = new Callable<PreloadedData>() {
+      public PreloadedData call() throws Exception {
+        dependentRan.countDown();
+        return meResult.call();
+      }
+    };
+
+    expect(preloader.createPreloadTasks(same(context), eqBatch(0, 2)))
+        .andReturn(ImmutableList.of(slowTask,
+            createPreloadTask("json", "{result: {user: 'canonical'}}")));
+    expect(preloader.createPreloadTasks(same(context), eqBatch(1, 0)))
+        .andReturn(ImmutableList.of(meTask));
+
+    control.replay();
+
+    PipelineExecutor.Results results = executor.execute(context,
+        ImmutableList.of(pipeline));
+
+    assertEquals(3, results.results.size());
+    assertEquals(ImmutableSet.of("json", "me", "slow"), results.keyedResults.keySet());
+    assertTrue(results.remainingPipelines.isEmpty());
+
+    control.verify();
+  }
+
+  @Test
+  public void executeStopsAtDeadline() throws Exception {
+    PipelinedData pipeline = getPipelinedData(SLOW_AND_CHAINED_CONTENT);
+    executor = new PipelineExecutor(preloader,
+        new ConcurrentPreloaderService(Executors.newCachedThreadPool(), null),
+        Expressions.forTesting());
+    executor.setDeadlineMs(100);
+
+    final CountDownLatch never = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    Callable<PreloadedData> slowTask = new Callable<PreloadedData>() {
+      public PreloadedData call() throws Exception {
+        try {
+          never.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw e;
+        }
+        return null;
+      }
+    };
+
+    expect(preloader.createPreloadTasks(same(context), eqBatch(0, 2)))
+        .andReturn(ImmutableList.of(slowTask,
+            createPreloadTask("json", "{result: {user: 'canonical'}}")));
+    expect(preloader.createPreloadTasks(same(context), eqBatch(1, 0)))
+        .andReturn(ImmutableList.of(createPreloadTask("me", "{result: {id: 'canonical'}}")));
+
+    control.replay();
+
+    PipelineExecutor.Results results = executor.execute(context,
+        ImmutableList.of(pipeline));
+
+    // The slow request is cancelled once the deadline passes.
+    assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    never.countDown();
+
+    assertEquals(ImmutableSet.of("json", "me"), results.keyedResults.keySet());
+    assertSame(pipeline, results.remainingPipelines.iterator().next());
+
+    control.verify();
+  }
+
+  @Test
+  public void executeStopsAtMaxDepth() throws Exception {
+    PipelinedData pipeline = getPipelinedData(TWO_BATCH_CONTENT);
+    executor.setMaxDepth(1);
+
+    context = new GadgetContext() {
+      @Override
+      public String getParameter(String property) {
+        if ("view-params".equals(property)) {
+          return "{'file': 'test.json'}";
+        }
+        return null;
+      }
+    };
+
+    // Only the HTTP fetch is one request deep; the dependent user fetch isn't started.
+    expect(preloader.createPreloadTasks(same(context), eqBatch(0, 1)))
+        .andReturn(ImmutableList.of(createPreloadTask("json", "{result: {user: 'canonical'}}")));
+
+    control.replay();
+
+    PipelineExecutor.Results results = executor.execute(context,
+        ImmutableList.of(pipeline));
+
+    assertEquals(ImmutableSet.of("json"), results.keyedResults.keySet());
+    assertEquals(1, results.remainingPipelines.size());
+    assertSame(pipeline, results.remainingPipelines.iterator().next());
+
+    control.verify();
+  }
+
   /** Match a batch with the specified count of social and HTTP data items */
   private PipelinedData.Batch eqBatch(int socialCount, int httpCount) {
     reportMatcher(new BatchMatcher(socialCount, httpCount));
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import org.apache.shindig.auth.SecurityToken;
 import org.apache.shindig.common.JsonAssert;
 import org.apache.shindig.common.JsonSerializer;
 import org.apache.shindig.common.JsonUtil;
@@ -46,8 +47,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.inject.util.Providers;
 
 /**
  * Test for PipelinedDataPreloader.
@@ -491,6 +495,72 @@ public class PipelinedDataPreloaderTest extends PreloaderTestFixture {
     JsonAssert.assertObjectEquals("{id: 'p', result: 2}", result.iterator().next());
   }
 
+  @Test
+  public void testSocialPreloadInProcess() throws Exception {
+    RecordingRequestPipeline pipeline = new RecordingRequestPipeline("");
+    PipelinedDataPreloader preloader = new PipelinedDataPreloader(pipeline, containerConfig);
+    preloader.setInProcessSocialDispatch(true, Providers.of(new FakeSocialDispatcher()));
+
+    Collection<Object> result = callSocialPreload(preloader);
+
+    assertEquals(0, pipeline.requests.size());
+    assertEquals(FakeSocialDispatcher.RESPONSES, result);
+  }
+
+  @Test
+  public void testSocialPreloadToOtherServerNotInProcess() throws Exception {
+    containerConfig = EasyMock.createMock(ContainerConfig.class);
+    EasyMock.expect(containerConfig.getString(CONTAINER, "gadgets.osDataUri")).andStubReturn(
+        "http://social.example.com/rpc");
+    EasyMock.replay(containerConfig);
+    RecordingRequestPipeline pipeline =
+        new RecordingRequestPipeline("[{id:'p', result:1}, {id:'a', result:2}]");
+    PipelinedDataPreloader preloader = new PipelinedDataPreloader(pipeline, containerConfig);
+    preloader.setInProcessSocialDispatch(true, Providers.of(new FakeSocialDispatcher()));
+
+    Collection<Object> result = callSocialPreload(preloader);
+
+    assertEquals(1, pipeline.requests.size());
+    assertEquals("http://social.example.com/rpc?st=token",
+        pipeline.requests.get(0).getUri().toString());
+    assertEquals(2, result.size());
+  }
+
+  private Collection<Object> callSocialPreload(PipelinedDataPreloader preloader)
+      throws Exception {
+    GadgetSpec spec = new GadgetSpec(GADGET_URL, XML);
+    view = "profile";
+    contextParams.put("st", "token");
+    Gadget gadget = new Gadget()
+        .setContext(context)
+        .setSpec(spec)
+        .setCurrentView(spec.getView("profile"));
+
+    Collection<Callable<PreloadedData>> tasks =
+        preloader.createPreloadTasks(context, getBatch(gadget));
+    assertEquals(1, tasks.size());
+    return tasks.iterator().next().call().toJson();
+  }
+
+  private static class FakeSocialDispatcher extends InProcessSocialDispatcher {
+    public static final List<Object> RESPONSES =
+        ImmutableList.<Object>of(ImmutableMap.of("id", "p", "result", 1));
+
+    public FakeSocialDispatcher() {
+      super(null, null);
+    }
+
+    @Override
+    public boolean canDispatch(Collection<? extends Object> requests) {
+      return true;
+    }
+
+    @Override
+    public List<Object> dispatch(Collection<? extends Object> requests, SecurityToken token) {
+      return RESPONSES;
+    }
+  }
+
   private static class RecordingRequestPipeline implements RequestPipeline {
     public final List<HttpRequest> requests = Lists.newArrayList();
     private final HttpResponse response;
@@ -32,6 +32,7 @@ import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.http.AbstractHttpCache;
+import org.apache.shindig.gadgets.http.HttpCacheKey;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.RequestPipeline;
@@ -240,23 +241,23 @@ public class ProxyRendererTest {
   }
 
   private static class FakeHttpCache extends AbstractHttpCache {
-    private final Map<String, HttpResponse> map = Maps.newHashMap();
+    private final Map<HttpCacheKey, HttpResponse> map = Maps.newHashMap();
 
     protected FakeHttpCache() {
     }
 
     @Override
-    protected void addResponseImpl(String key, HttpResponse response) {
+    protected void addResponseImpl(HttpCacheKey key, HttpResponse response) {
       map.put(key, response);
     }
 
     @Override
-    protected HttpResponse getResponseImpl(String key) {
+    protected HttpResponse getResponseImpl(HttpCacheKey key) {
       return map.get(key);
     }
 
     @Override
-    protected void removeResponseImpl(String key) {
+    protected void removeResponseImpl(HttpCacheKey key) {
       map.remove(key);
     }
   }
@@ -19,21 +19,31 @@
 package org.apache.shindig.gadgets.render;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import org.apache.shindig.auth.AnonymousSecurityToken;
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.cache.LruCacheProvider;
+import org.apache.shindig.common.testing.FakeGadgetToken;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.FakeTimeSource;
 import org.apache.shindig.config.BasicContainerConfig;
 import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.LockedDomainService;
+import org.apache.shindig.gadgets.UserPrefs;
 import org.apache.shindig.gadgets.process.ProcessingException;
 import org.apache.shindig.gadgets.process.Processor;
+import org.apache.shindig.gadgets.rewrite.ContentRewriterFeature;
 import org.apache.shindig.gadgets.spec.GadgetSpec;
 import org.apache.shindig.gadgets.spec.View;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.inject.util.Providers;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -63,10 +73,27 @@ public class RendererTest {
     " <Content view='html' type='html'>" + BASIC_HTML_CONTENT + "</Content>" +
     " <Content view='url' type='url' href='" + TYPE_URL_HREF + "'/>" +
     "</Module>";
+  protected static final String GADGET_SIGNED_PRELOAD =
+      "<Module>" +
+      " <ModulePrefs title='foo'>" +
+      "   <Preload href='http://example.org/data' authz='signed'/>" +
+      " </ModulePrefs>" +
+      " <Content view='html' type='html'>" + BASIC_HTML_CONTENT + "</Content>" +
+      "</Module>";
+  protected static final String GADGET_OS_DATA =
+      "<Module>" +
+      " <ModulePrefs title='foo'>" +
+      "   <Require feature='opensocial-data'/>" +
+      " </ModulePrefs>" +
+      " <Content view='html' type='html'><![CDATA[" +
+      "   <script type='text/os-data'></script>" + BASIC_HTML_CONTENT +
+      " ]]></Content>" +
+      "</Module>";
 
   private final FakeHtmlRenderer htmlRenderer = new FakeHtmlRenderer();
   private final FakeProcessor processor = new FakeProcessor();
   private final FakeLockedDomainService lockedDomainService =  new FakeLockedDomainService();
+  private final FakeTimeSource timeSource = new FakeTimeSource();
   private FakeContainerConfig containerConfig;
   private Renderer renderer;
 
@@ -80,6 +107,39 @@ public class RendererTest {
     return makeContext(view, null, null);
   }
 
+  private GadgetContext makeContext(final String view, final Map<String, String> prefs,
+      final boolean ignoreCache) {
+    return new GadgetContext(makeContext(view)) {
+      @Override
+      public UserPrefs getUserPrefs() {
+        return new UserPrefs(prefs);
+      }
+
+      @Override
+      public boolean getIgnoreCache() {
+        return ignoreCache;
+      }
+    };
+  }
+
+  private void enableRenderedCache() {
+    renderer.setRenderedCache(new LruCacheProvider(10),
+        new ContentRewriterFeature.Factory(null, Providers.of(
+            new ContentRewriterFeature.DefaultConfig(".*", "", "86400", "embed,img,script,link",
+                false, false, false))));
+    renderer.setRenderedTtl(60 * 1000);
+    renderer.setTimeSource(timeSource);
+  }
+
+  private GadgetContext makeContext(final String view, final SecurityToken token) {
+    return new GadgetContext(makeContext(view)) {
+      @Override
+      public SecurityToken getToken() {
+        return token;
+      }
+    };
+  }
+
   private GadgetContext makeContext(final String view, final String sanitize, final String caja) {
     return new GadgetContext() {
       @Override
@@ -208,6 +268,110 @@ public class RendererTest {
     assertEquals(RenderingResults.Status.ERROR, results.getStatus());
   }
 
+  @Test
+  public void renderedOutputNotCachedByDefault() {
+    renderer.render(makeContext("html"));
+    renderer.render(makeContext("html"));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void renderedOutputCached() {
+    enableRenderedCache();
+    RenderingResults first = renderer.render(makeContext("html"));
+    RenderingResults second = renderer.render(makeContext("html"));
+    assertEquals(1, htmlRenderer.renderCount);
+    assertEquals(RenderingResults.Status.OK, second.getStatus());
+    assertEquals(first.getContent(), second.getContent());
+  }
+
+  @Test
+  public void renderedOutputKeyedByUserPrefs() {
+    enableRenderedCache();
+    renderer.render(makeContext("html", ImmutableMap.of("color", "red"), false));
+    renderer.render(makeContext("html", ImmutableMap.of("color", "blue"), false));
+    renderer.render(makeContext("html", ImmutableMap.of("color", "red"), false));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void renderedOutputBypassedWhenIgnoringCache() {
+    enableRenderedCache();
+    Map<String, String> prefs = ImmutableMap.of();
+    renderer.render(makeContext("html", prefs, false));
+    renderer.render(makeContext("html", prefs, true));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void renderedOutputNotCachedWithTtlZero() {
+    enableRenderedCache();
+    renderer.setRenderedTtl(0);
+    renderer.render(makeContext("html"));
+    renderer.render(makeContext("html"));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void signedPreloadNotCached() {
+    enableRenderedCache();
+    processor.setGadgetData(GADGET_SIGNED_PRELOAD);
+    renderer.render(makeContext("html"));
+    renderer.render(makeContext("html"));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void pipelinedDataNotCached() {
+    enableRenderedCache();
+    processor.setGadgetData(GADGET_OS_DATA);
+    renderer.render(makeContext("html"));
+    renderer.render(makeContext("html"));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void osScriptTypeWithoutDataFeaturesCached() {
+    enableRenderedCache();
+    processor.setGadgetData(GADGET_OS_DATA.replace("<Require feature='opensocial-data'/>", ""));
+    renderer.render(makeContext("html"));
+    renderer.render(makeContext("html"));
+    assertEquals(1, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void renderedOutputExpires() {
+    enableRenderedCache();
+    renderer.render(makeContext("html"));
+    timeSource.incrementSeconds(59);
+    renderer.render(makeContext("html"));
+    assertEquals(1, htmlRenderer.renderCount);
+    timeSource.incrementSeconds(1);
+    renderer.render(makeContext("html"));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void renderedOutputNotSharedBetweenTokens() {
+    enableRenderedCache();
+    RenderingResults first = renderer.render(
+        makeContext("html", new FakeGadgetToken().setViewerId("a").setUpdatedToken("token-a")));
+    RenderingResults second = renderer.render(
+        makeContext("html", new FakeGadgetToken().setViewerId("b").setUpdatedToken("token-b")));
+    assertTrue(first.getContent().contains("token-a"));
+    assertTrue(second.getContent().contains("token-b"));
+    assertFalse(first.getContent().equals(second.getContent()));
+    assertEquals(2, htmlRenderer.renderCount);
+  }
+
+  @Test
+  public void renderedOutputCachedForAnonymousToken() {
+    enableRenderedCache();
+    renderer.render(makeContext("html", new AnonymousSecurityToken()));
+    renderer.render(makeContext("html", new AnonymousSecurityToken()));
+    assertEquals(1, htmlRenderer.renderCount);
+  }
+
   private static class FakeContainerConfig extends BasicContainerConfig {
     protected final Map<String, Object> data = Maps.newHashMap();
 
@@ -220,6 +384,7 @@ public class RendererTest {
   private static class FakeHtmlRenderer extends HtmlRenderer {
     protected RenderingException exception;
     protected RuntimeException runtimeException;
+    protected int renderCount;
 
     public FakeHtmlRenderer() {
       super(null, null, null, null);
@@ -227,13 +392,17 @@ public class RendererTest {
 
     @Override
     public String render(Gadget gadget) throws RenderingException {
+      renderCount++;
       if (exception != null) {
         throw exception;
       }
       if (runtimeException != null) {
         throw runtimeException;
       }
-      return gadget.getCurrentView().getContent();
+      // Like the shindig.auth config, the output carries the request's token.
+      SecurityToken token = gadget.getContext().getToken();
+      return gadget.getCurrentView().getContent()
+          + (token == null ? "" : token.getUpdatedToken());
     }
   }
 
@@ -472,6 +472,50 @@ public class RenderingGadgetRewriterTest extends EasyMockTestCase{
     assertTrue("Requested scripts not inlined.", rewritten.contains("foo_content();"));
   }
 
+  @Test
+  public void flushedHeadLeftOutOfRest() throws Exception {
+    String gadgetXml =
+      "<Module><ModulePrefs title='flushed'>" +
+      "  <Require feature='foo'/>" +
+      "</ModulePrefs>" +
+      "<Content type='html'/>" +
+      "</Module>";
+
+    Gadget gadget = makeGadgetWithSpec(gadgetXml);
+
+    expectFeatureCalls(gadget,
+        ImmutableList.of(inline("foo_content();", "foo_content_debug();")),
+        ImmutableSet.<String>of(),
+        ImmutableList.<FeatureResource>of());
+
+    assertTrue(rewriter.canFlushHead(gadget));
+    MutableContent head = new MutableContent(parser, "");
+    rewriter.rewriteFlushableHead(gadget, head);
+    gadget.setHeadFlushed(true);
+    String flushed = head.getContent();
+    String rest = rewrite(gadget, BODY_CONTENT);
+
+    assertEquals(ImmutableSet.of("foo"), getInjectedScript(flushed));
+    assertTrue("Title not flushed.", flushed.contains("<title>flushed</title>"));
+    assertTrue("Default CSS not flushed.", flushed.contains(DEFAULT_CSS));
+    assertTrue("Beacon not flushed.", flushed.contains(IS_GADGET_BEACON));
+
+    assertFalse("Title repeated.", rest.contains("<title>"));
+    assertFalse("Beacon repeated.", rest.contains(IS_GADGET_BEACON));
+    assertFalse("Flushed scripts repeated.", rest.contains("<script src="));
+    assertFalse("Flushed scripts inlined.", rest.contains("foo_content();"));
+    assertTrue("Original document not preserved.", rest.contains(BODY_CONTENT));
+  }
+
+  @Test
+  public void headNotFlushedWithOwnDoctype() throws Exception {
+    Gadget gadget = makeGadgetWithSpec("<Module><ModulePrefs title=''/>" +
+        "<Content type='html'><![CDATA[<!DOCTYPE html><html><body>hi</body></html>]]></Content>" +
+        "</Module>");
+    assertFalse(rewriter.canFlushHead(gadget));
+    assertTrue(rewriter.canFlushHead(makeDefaultGadget()));
+  }
+
   @Test
   public void featuresNotInjectedWhenRemoved() throws Exception {
     String gadgetXml =
@@ -33,6 +33,7 @@ import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.http.AbstractHttpCache;
+import org.apache.shindig.gadgets.http.HttpCacheKey;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
@@ -240,21 +241,21 @@ public class CacheEnforcementVisitorTest extends DomWalkerTestBase {
   }
 
   private static class TestHttpCache extends AbstractHttpCache {
-    protected final Map<String, HttpResponse> map;
+    protected final Map<HttpCacheKey, HttpResponse> map;
 
     public TestHttpCache() {
       map = Maps.newHashMap();
     }
 
-    public void addResponseImpl(String key, HttpResponse response) {
+    public void addResponseImpl(HttpCacheKey key, HttpResponse response) {
       map.put(key, response);
     }
 
-    public HttpResponse getResponseImpl(String key) {
+    public HttpResponse getResponseImpl(HttpCacheKey key) {
       return map.get(key);
     }
 
-    public void removeResponseImpl(String key) {
+    public void removeResponseImpl(HttpCacheKey key) {
       map.remove(key);
     }
   }
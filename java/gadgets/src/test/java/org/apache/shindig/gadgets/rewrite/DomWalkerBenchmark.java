@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.gadgets.Gadget;
+import org.apache.shindig.gadgets.GadgetContext;
+import org.apache.shindig.gadgets.parse.GadgetHtmlParser;
+import org.apache.shindig.gadgets.parse.ParseModule;
+import org.apache.shindig.gadgets.parse.nekohtml.NekoSimplifiedHtmlParser;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Benchmarks walking a gadget's DOM with a chain of rewriters, one after the
+ * other versus fused with {@link DomWalker#rewrite(List, Gadget, MutableContent)}.
+ */
+public class DomWalkerBenchmark {
+  private static final Uri GADGET_URI = Uri.parse("http://example.org/gadget.xml");
+
+  private final GadgetHtmlParser parser = new NekoSimplifiedHtmlParser(
+      new ParseModule.DOMImplementationProvider().get());
+
+  private final Gadget gadget = DomWalker.makeGadget(new GadgetContext() {
+    @Override
+    public Uri getUrl() {
+      return GADGET_URI;
+    }
+  });
+
+  private int numRuns;
+  private String content;
+  private boolean warmup;
+
+  private DomWalkerBenchmark(String file, int numRuns) throws Exception {
+    File inputFile = new File(file);
+    if (!inputFile.exists() || !inputFile.canRead()) {
+      System.err.println("Input file: " + file + " not found or can't be read.");
+      System.exit(1);
+    }
+    content = new String(IOUtils.toByteArray(new FileInputStream(file)), "UTF-8");
+
+    this.numRuns = 10;
+    warmup = true;
+    runSequential();
+    runFused();
+
+    //Sleep to let JIT kick in
+    Thread.sleep(10000L);
+    this.numRuns = numRuns;
+    warmup = false;
+    runSequential();
+    runFused();
+  }
+
+  /**
+   * @return Rewriters walking the DOM much like the default gadget rewriter chain does.
+   */
+  private List<GadgetRewriter> makeRewriters() {
+    return ImmutableList.<GadgetRewriter>of(
+        new DomWalker.Rewriter(new AbsolutePathReferenceVisitor(
+            AbsolutePathReferenceVisitor.Tags.RESOURCES,
+            AbsolutePathReferenceVisitor.Tags.HYPERLINKS)),
+        new DomWalker.Rewriter(new NameVisitor("style")),
+        new DomWalker.Rewriter(new StyleAdjacencyVisitor()),
+        new DomWalker.Rewriter(new NameVisitor("script"), new NameVisitor("link"),
+            new NameVisitor("body", "img", "input", "link", "script")),
+        new DomWalker.Rewriter(new NameVisitor("img")),
+        new DomWalker.Rewriter(new NameVisitor("meta")));
+  }
+
+  private void runSequential() throws Exception {
+    List<GadgetRewriter> rewriters = makeRewriters();
+    MutableContent mc = new MutableContent(parser, content);
+    mc.getDocument();
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numRuns; ++i) {
+      for (GadgetRewriter rewriter : rewriters) {
+        rewriter.rewrite(gadget, mc);
+      }
+    }
+    long millis = System.currentTimeMillis() - start;
+
+    output("Sequential walks [" + millis + " ms total: " +
+          ((double) millis) / numRuns + "ms/run]");
+  }
+
+  private void runFused() throws Exception {
+    List<GadgetRewriter> rewriters = makeRewriters();
+    MutableContent mc = new MutableContent(parser, content);
+    mc.getDocument();
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numRuns; ++i) {
+      DomWalker.rewrite(rewriters, gadget, mc);
+    }
+    long millis = System.currentTimeMillis() - start;
+
+    output("Fused walk [" + millis + " ms total: " +
+          ((double) millis) / numRuns + "ms/run]");
+  }
+
+  private void output(String string) {
+    if (!warmup) {
+      System.out.println(string);
+    }
+  }
+
+  /**
+   * Looks at the attributes of named elements, like the proxying and concat visitors do.
+   */
+  private static class NameVisitor implements DomWalker.ElementVisitor {
+    private final Set<String> names;
+
+    NameVisitor(String... names) {
+      this.names = ImmutableSet.copyOf(names);
+    }
+
+    public Set<String> getElementNames() {
+      return names;
+    }
+
+    public VisitStatus visit(Gadget gadget, Node node) {
+      if (node.getNodeType() == Node.ELEMENT_NODE &&
+          names.contains(node.getNodeName().toLowerCase())) {
+        ((Element) node).getAttribute("src");
+      }
+      return VisitStatus.BYPASS;
+    }
+
+    public boolean revisit(Gadget gadget, List<Node> nodes) {
+      return false;
+    }
+  }
+
+  public static void main(String[] args) {
+    // Can be run as a standalone program against a large real-world gadget's HTML.
+    if (args.length != 2) {
+      System.err.println("Args: <input-file> <num-runs>");
+      System.exit(1);
+    }
+
+    String fileArg = args[0];
+    String runsArg = args[1];
+    int numRuns = -1;
+    try {
+      numRuns = Integer.parseInt(runsArg);
+    } catch (Exception e) {
+      System.err.println("Invalid num-runs argument: " + runsArg + ", reason: " + e);
+    }
+    try {
+      new DomWalkerBenchmark(fileArg, numRuns);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -18,6 +18,8 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 import org.apache.shindig.gadgets.Gadget;
@@ -27,6 +29,7 @@ import org.w3c.dom.Node;
 
 import javax.servlet.http.HttpServletResponse;
 import java.util.List;
+import java.util.Set;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.assertEquals;
@@ -266,6 +269,147 @@ public class DomWalkerTest extends DomWalkerTestBase {
     assertTrue(exceptionCaught);
   }
 
+  @Test
+  public void fusedRewriteVisitsOnlyNamedElements() throws Exception {
+    Gadget gadget = gadget();
+
+    // Plain visitor, visits every node.
+    DomWalker.Visitor visitor1 = createMock(DomWalker.Visitor.class);
+    for (Node node : ImmutableList.of(root, child1, text1, child2, subchild1, text2)) {
+      expect(visitor1.visit(gadget, node))
+          .andReturn(DomWalker.Visitor.VisitStatus.BYPASS).once();
+    }
+
+    // Element visitor, only sees the elements it names.
+    DomWalker.ElementVisitor visitor2 = createMock(DomWalker.ElementVisitor.class);
+    expect(visitor2.getElementNames())
+        .andReturn(ImmutableSet.of("child1", "subchild1")).anyTimes();
+    expect(visitor2.visit(gadget, child1))
+        .andReturn(DomWalker.Visitor.VisitStatus.MODIFY).once();
+    expect(visitor2.visit(gadget, subchild1))
+        .andReturn(DomWalker.Visitor.VisitStatus.RESERVE_NODE).once();
+    List<Node> reserved2 = Lists.newArrayList(subchild1);
+    expect(visitor2.revisit(gadget, reserved2))
+        .andReturn(false).once();
+
+    replay(visitor1, visitor2);
+
+    MutableContent mc = getFusedContent(1);  // Once v2.visit()
+    List<GadgetRewriter> rewriters = Lists.<GadgetRewriter>newArrayList(
+        getRewriter(visitor1), getRewriter(visitor2));
+    DomWalker.rewrite(rewriters, gadget, mc);
+
+    verify(mc, visitor1, visitor2);
+  }
+
+  @Test
+  public void fusedRewriteSkipsReservedTree() throws Exception {
+    Gadget gadget = gadget();
+
+    DomWalker.ElementVisitor visitor1 = createMock(DomWalker.ElementVisitor.class);
+    expect(visitor1.getElementNames())
+        .andReturn(ImmutableSet.of("child2", "subchild1")).anyTimes();
+    expect(visitor1.visit(gadget, child2))
+        .andReturn(DomWalker.Visitor.VisitStatus.RESERVE_TREE).once();
+    // No visitation of subchild1, which is in the reserved tree.
+    List<Node> reserved1 = Lists.newArrayList(child2);
+    expect(visitor1.revisit(gadget, reserved1))
+        .andReturn(false).once();
+
+    // Same names, but comes after visitor1 in the same rewriter.
+    DomWalker.ElementVisitor visitor2 = createMock(DomWalker.ElementVisitor.class);
+    expect(visitor2.getElementNames())
+        .andReturn(ImmutableSet.of("child2", "subchild1")).anyTimes();
+
+    replay(visitor1, visitor2);
+
+    MutableContent mc = getFusedContent(0);
+    List<GadgetRewriter> rewriters = Lists.<GadgetRewriter>newArrayList(
+        getRewriter(visitor1, visitor2));
+    DomWalker.rewrite(rewriters, gadget, mc);
+
+    verify(mc, visitor1, visitor2);
+  }
+
+  @Test
+  public void fusedRewriteSeesNodesAddedByEarlierRevisit() throws Exception {
+    Gadget gadget = gadget();
+
+    // Appends a new element to the root when revisiting child1.
+    DomWalker.Visitor adder = new NamedVisitor("child1") {
+      @Override
+      public boolean revisit(Gadget gadget, List<Node> nodes) {
+        root.appendChild(doc.createElement("added"));
+        return true;
+      }
+    };
+    NamedVisitor finder = new NamedVisitor("added");
+
+    MutableContent mc = getFusedContent(1);  // Once adder.revisit()
+    List<GadgetRewriter> rewriters = Lists.<GadgetRewriter>newArrayList(
+        getRewriter(adder), getRewriter(finder));
+    DomWalker.rewrite(rewriters, gadget, mc);
+
+    verify(mc);
+    assertEquals(1, finder.visited.size());
+    assertEquals("added", finder.visited.get(0).getNodeName());
+  }
+
+  @Test
+  public void fusedRewriteRunsOtherRewritersInOrder() throws Exception {
+    Gadget gadget = gadget();
+    MutableContent mc = getFusedContent(0);
+
+    final List<String> order = Lists.newArrayList();
+    GadgetRewriter plain = new GadgetRewriter() {
+      public void rewrite(Gadget gadget, MutableContent content) {
+        order.add("plain");
+      }
+    };
+    // Overrides rewrite(...), so it has to be run as is.
+    DomWalker.Rewriter custom = new DomWalker.Rewriter() {
+      @Override
+      public void rewrite(Gadget gadget, MutableContent content) {
+        order.add("custom");
+      }
+    };
+    DomWalker.Visitor visitor = new NamedVisitor("root") {
+      @Override
+      public VisitStatus visit(Gadget gadget, Node node) {
+        order.add("walker");
+        return VisitStatus.BYPASS;
+      }
+    };
+
+    List<GadgetRewriter> rewriters = Lists.<GadgetRewriter>newArrayList(
+        plain, getRewriter(visitor), custom, getRewriter(visitor));
+    DomWalker.rewrite(rewriters, gadget, mc);
+
+    assertEquals(ImmutableList.of("plain", "walker", "custom", "walker"), order);
+  }
+
+  private static class NamedVisitor implements DomWalker.ElementVisitor {
+    private final Set<String> names;
+    private final List<Node> visited = Lists.newArrayList();
+
+    NamedVisitor(String... names) {
+      this.names = ImmutableSet.copyOf(names);
+    }
+
+    public Set<String> getElementNames() {
+      return names;
+    }
+
+    public VisitStatus visit(Gadget gadget, Node node) {
+      visited.add(node);
+      return VisitStatus.RESERVE_NODE;
+    }
+
+    public boolean revisit(Gadget gadget, List<Node> nodes) {
+      return false;
+    }
+  }
+
   private DomWalker.Rewriter getRewriter(DomWalker.Visitor... visitors) {
     return new DomWalker.Rewriter(Lists.newArrayList(visitors));
   }
@@ -280,4 +424,16 @@ public class DomWalkerTest extends DomWalkerTestBase {
     replay(mc);
     return mc;
   }
+
+  private MutableContent getFusedContent(int docChangedTimes) {
+    // Each walking rewriter checks for the current document.
+    MutableContent mc = createMock(MutableContent.class);
+    expect(mc.getDocument()).andReturn(doc).anyTimes();
+    if (docChangedTimes > 0) {
+      mc.documentChanged();
+      expectLastCall().times(docChangedTimes);
+    }
+    replay(mc);
+    return mc;
+  }
 }
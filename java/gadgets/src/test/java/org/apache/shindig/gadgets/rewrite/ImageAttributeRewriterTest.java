@@ -19,6 +19,7 @@
 package org.apache.shindig.gadgets.rewrite;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.eq;
@@ -26,7 +27,7 @@ import static org.junit.Assert.assertEquals;
 
 import org.apache.shindig.gadgets.rewrite.DomWalker.Visitor.VisitStatus;
 import org.apache.shindig.gadgets.rewrite.ImageAttributeRewriter.ImageAttributeVisitor;
-import org.apache.shindig.gadgets.http.RequestPipeline;
+import org.apache.shindig.gadgets.http.AsyncRequestPipeline;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
 import org.apache.shindig.gadgets.http.HttpRequest;
@@ -46,7 +47,7 @@ import java.util.concurrent.*;
  * Tests for {@code ImageAttributeRewriter}
  */
 public class ImageAttributeRewriterTest extends DomWalkerTestBase {
-  private RequestPipeline requestPipeline;
+  private AsyncRequestPipeline requestPipeline;
   private IMocksControl control;
   private transient ExecutorService executor = Executors.newSingleThreadExecutor();
   private static final String IMG_JPG_SMALL_URL =
@@ -59,7 +60,7 @@ public class ImageAttributeRewriterTest extends DomWalkerTestBase {
     super.setUp();
 
     control = EasyMock.createControl();
-    requestPipeline = control.createMock(RequestPipeline.class);
+    requestPipeline = control.createMock(AsyncRequestPipeline.class);
   }
 
   @Test
@@ -112,10 +113,10 @@ public class ImageAttributeRewriterTest extends DomWalkerTestBase {
     RequestContext reqCxtImg1 = createRequestContext(IMG_JPG_SMALL_URL, "image/jpeg");
     RequestContext reqCxtImg2 = createRequestContext(IMG_JPG_LARGE_URL, "image/jpeg");
 
-    expect(requestPipeline.execute(eq(reqCxtImg1.getHttpReq())))
-        .andReturn(reqCxtImg1.getHttpResp());
-    expect(requestPipeline.execute(eq(reqCxtImg2.getHttpReq())))
-        .andReturn(reqCxtImg2.getHttpResp());
+    expect(requestPipeline.executeAsync(eq(reqCxtImg1.getHttpReq())))
+        .andReturn(Futures.immediateFuture(reqCxtImg1.getHttpResp()));
+    expect(requestPipeline.executeAsync(eq(reqCxtImg2.getHttpReq())))
+        .andReturn(Futures.immediateFuture(reqCxtImg2.getHttpResp()));
 
     Node html = htmlDoc(new Node[] {}, img1, img2);
 
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.apache.shindig.gadgets.Gadget;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingHtmlRewriterTest extends DomWalkerTestBase {
+  @Test
+  public void markupWithoutNamedElementsCopied() throws Exception {
+    String html = "<!DOCTYPE html><html><head><title>a < b</title></head>"
+        + "<body><p class=x>text<br/></p><!-- <img src=\"a.png\"> --></body></html>";
+    assertEquals(html, rewrite(html, new PrefixVisitor("img")));
+  }
+
+  @Test
+  public void unchangedElementsKeepMarkup() throws Exception {
+    String html = "<body><IMG ALT='a' >\n<img alt=b></body>";
+    assertEquals(html, rewrite(html, new PrefixVisitor("img")));
+  }
+
+  @Test
+  public void attributesRewritten() throws Exception {
+    String html = "<body background=bg.png><div><img src=\"a.png?x=1&amp;y=2\"></div>"
+        + "<a href=x>link</a></body>";
+    assertEquals("<body background=\"/p/bg.png\"><div><img src=\"/p/a.png?x=1&amp;y=2\"></div>"
+        + "<a href=\"/p/x\">link</a></body>",
+        rewrite(html, new PrefixVisitor("body", "img", "a")));
+  }
+
+  @Test
+  public void unchangedAttributesKeepSource() throws Exception {
+    String html = "<img alt='&copy; 2010&nbsp;&amp; more' src=\"a.png?x=1&amp;y=2\" ismap>";
+    assertEquals("<img alt='&copy; 2010&nbsp;&amp; more' src=\"/p/a.png?x=1&amp;y=2\" ismap>",
+        rewrite(html, new PrefixVisitor("img")));
+  }
+
+  @Test
+  public void rawTextNotLexed() throws Exception {
+    String html = "<script>document.write('<img src=\"a.png\">');</script>"
+        + "<style>a { color: red }</style><img src=b.png>";
+    assertEquals("<script>document.write('<img src=\"a.png\">');</script>"
+        + "<style>a { color: red }</style><img src=\"/p/b.png\">",
+        rewrite(html, new PrefixVisitor("img")));
+  }
+
+  @Test
+  public void adjacentElementsVisitedTogether() throws Exception {
+    String html = "<head><script src=a.js></script>\n<!-- x --> <script src=b.js></script>"
+        + "<link rel=stylesheet href=c.css></head>"
+        + "<body><script src=d.js></script><p></p><script src=e.js></script></body>";
+    assertEquals("<head><script src=\"a.js,b.js\"></script><link rel=stylesheet href=c.css></head>"
+        + "<body><script src=d.js></script><p></p><script src=e.js></script></body>",
+        rewrite(html, new JoinVisitor()));
+  }
+
+  @Test
+  public void visitorListsRunInOrder() throws Exception {
+    String html = "<script src=a.js></script><script src=b.js></script>";
+    List<List<DomWalker.Visitor>> visitorLists = ImmutableList.<List<DomWalker.Visitor>>of(
+        ImmutableList.<DomWalker.Visitor>of(new JoinVisitor()),
+        ImmutableList.<DomWalker.Visitor>of(new PrefixVisitor("script")));
+    assertEquals("<script src=\"/p/a.js,b.js\"></script>",
+        StreamingHtmlRewriter.rewrite(html, visitorLists, gadget()));
+  }
+
+  @Test
+  public void baseTagNotStreamed() throws Exception {
+    assertNull(rewrite("<head><base href=\"http://example.org/\"></head><img src=a.png>",
+        new PrefixVisitor("img")));
+  }
+
+  @Test
+  public void onlyLocalVisitorsStream() throws Exception {
+    DomWalker.Visitor plain = new DomWalker.Visitor() {
+      public VisitStatus visit(Gadget gadget, Node node) {
+        return VisitStatus.BYPASS;
+      }
+
+      public boolean revisit(Gadget gadget, List<Node> nodes) {
+        return false;
+      }
+    };
+    assertTrue(StreamingHtmlRewriter.canStream(
+        ImmutableList.<DomWalker.Visitor>of(new PrefixVisitor("img"))));
+    assertFalse(StreamingHtmlRewriter.canStream(
+        ImmutableList.<DomWalker.Visitor>of(new PrefixVisitor("img"), plain)));
+  }
+
+  @Test
+  public void attributeReferencesDecoded() {
+    assertEquals("a&b<c>\"d'AB&foo;&", StreamingHtmlRewriter.decode(
+        "a&amp;b&lt;c&gt;&quot;d&#39;&#x41;&#66;&foo;&"));
+  }
+
+  private String rewrite(String html, DomWalker.Visitor visitor) throws Exception {
+    return StreamingHtmlRewriter.rewrite(html,
+        ImmutableList.<List<DomWalker.Visitor>>of(ImmutableList.of(visitor)), gadget());
+  }
+
+  private static String getUriAttribute(Element element) {
+    String name = element.getNodeName();
+    return "body".equals(name) ? "background" : "a".equals(name) ? "href" : "src";
+  }
+
+  /**
+   * Prefixes the url of each named element.
+   */
+  private static class PrefixVisitor implements StreamingHtmlRewriter.LocalVisitor {
+    private final Set<String> names;
+
+    PrefixVisitor(String... names) {
+      this.names = ImmutableSet.copyOf(names);
+    }
+
+    public Set<String> getElementNames() {
+      return names;
+    }
+
+    public boolean isLocal() {
+      return true;
+    }
+
+    public VisitStatus visit(Gadget gadget, Node node) {
+      Element element = (Element) node;
+      return element.hasAttribute(getUriAttribute(element))
+          ? VisitStatus.RESERVE_NODE : VisitStatus.BYPASS;
+    }
+
+    public boolean revisit(Gadget gadget, List<Node> nodes) {
+      for (Node node : nodes) {
+        Element element = (Element) node;
+        String attribute = getUriAttribute(element);
+        element.setAttribute(attribute, "/p/" + element.getAttribute(attribute));
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Joins scripts with adjacent scripts into one, much like concat does.
+   */
+  private static class JoinVisitor implements StreamingHtmlRewriter.LocalVisitor {
+    public Set<String> getElementNames() {
+      return ImmutableSet.of("script");
+    }
+
+    public boolean isLocal() {
+      return true;
+    }
+
+    public VisitStatus visit(Gadget gadget, Node node) {
+      return VisitStatus.RESERVE_NODE;
+    }
+
+    public boolean revisit(Gadget gadget, List<Node> nodes) {
+      List<Node> joined = null;
+      for (Node node : nodes) {
+        if (joined != null && getPreviousElement(node) == joined.get(joined.size() - 1)) {
+          joined.add(node);
+          continue;
+        }
+        join(joined);
+        joined = Lists.newArrayList(node);
+      }
+      join(joined);
+      return true;
+    }
+
+    private static void join(List<Node> nodes) {
+      if (nodes == null || nodes.size() < 2) {
+        return;
+      }
+      StringBuilder src = new StringBuilder();
+      for (Node node : nodes) {
+        src.append(src.length() > 0 ? "," : "").append(((Element) node).getAttribute("src"));
+      }
+      Element first = (Element) nodes.get(0);
+      Element script = (Element) first.cloneNode(false);
+      script.setAttribute("src", src.toString());
+      first.getParentNode().insertBefore(script, first);
+      for (Node node : nodes) {
+        // Drop the whitespace and comments in between too.
+        Node previous = node.getPreviousSibling();
+        while (previous != null && previous != script &&
+               previous.getNodeType() != Node.ELEMENT_NODE) {
+          Node remove = previous;
+          previous = previous.getPreviousSibling();
+          remove.getParentNode().removeChild(remove);
+        }
+        node.getParentNode().removeChild(node);
+      }
+    }
+
+    private static Node getPreviousElement(Node node) {
+      Node previous = node.getPreviousSibling();
+      while (previous != null && previous.getNodeType() != Node.ELEMENT_NODE) {
+        previous = previous.getPreviousSibling();
+      }
+      return previous;
+    }
+  }
+}
@@ -18,6 +18,7 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.xml.XmlUtil;
 import org.apache.shindig.config.BasicContainerConfig;
@@ -30,8 +31,11 @@ import org.apache.shindig.gadgets.parse.nekohtml.NekoSimplifiedHtmlParser;
 import org.apache.shindig.gadgets.render.FakeMessageBundleFactory;
 import org.apache.shindig.gadgets.spec.GadgetSpec;
 import org.apache.shindig.gadgets.spec.SpecParserException;
+import org.apache.shindig.gadgets.templates.CompiledTemplates;
 import org.apache.shindig.gadgets.templates.ContainerTagLibraryFactory;
 import org.apache.shindig.gadgets.templates.DefaultTemplateProcessor;
+import org.apache.shindig.gadgets.templates.TagRegistry;
+import org.apache.shindig.gadgets.templates.TemplateCompiler;
 import org.apache.shindig.gadgets.templates.TemplateLibrary;
 import org.apache.shindig.gadgets.templates.TemplateLibraryFactory;
 import org.apache.shindig.gadgets.templates.TemplateProcessor;
@@ -53,8 +57,10 @@ import org.junit.Test;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for TemplateRewriter
@@ -110,8 +116,12 @@ public class TemplateRewriterTest {
 
   @Before
   public void setUp() {
+    rewriter = createRewriter(new TemplateCompiler(Expressions.forTesting()));
+  }
+
+  private TemplateRewriter createRewriter(TemplateCompiler compiler) {
     Set<TagHandler> handlers = ImmutableSet.of(testTagHandler("Tag1", "default1"));
-    rewriter = new TemplateRewriter(
+    return new TemplateRewriter(
         new Provider<TemplateProcessor>() {
           public TemplateProcessor get() {
             return new DefaultTemplateProcessor(Expressions.forTesting());
@@ -121,7 +131,8 @@ public class TemplateRewriterTest {
         Expressions.forTesting(),
         new DefaultTagRegistry(handlers),
         new FakeTemplateLibraryFactory(),
-        new ContainerTagLibraryFactory(new FakeContainerConfig()));
+        new ContainerTagLibraryFactory(new FakeContainerConfig()),
+        compiler);
   }
 
  private static TagHandler testTagHandler(String name, final String content) {
@@ -267,6 +278,43 @@ public class TemplateRewriterTest {
     testFeatureRemoved();
   }
 
+  @Test
+  public void compiledTemplatesCached() throws Exception {
+    final AtomicInteger compiled = new AtomicInteger();
+    rewriter = createRewriter(new TemplateCompiler(Expressions.forTesting()) {
+      @Override
+      public CompiledTemplates compileTemplates(List<Element> templates, TagRegistry registry) {
+        compiled.incrementAndGet();
+        return super.compileTemplates(templates, registry);
+      }
+    });
+    rewriter.setCompiledTemplatesCache(new LruCacheProvider(10));
+    data.put("${Cur['gadgets.features'].osml.library}", "");
+
+    // Rendered from the templates compiled for the first document, inline tags included
+    String inlineTags = CONTENT_TESTING_PRECEDENCE_RULES.replace("<my:Tag4/>", "");
+    for (int i = 0; i < 2; i++) {
+      setupGadget(getGadgetXml(inlineTags));
+      rewriter.rewrite(gadget, content);
+      assertTrue("Precedence rules violated",
+          content.getContent().indexOf("default1inline2inline3") > 0);
+    }
+    assertEquals(1, compiled.get());
+
+    // Other markup is compiled again
+    testExpectingTransform(getGadgetXml(CONTENT_PLAIN), "other markup");
+    assertEquals(2, compiled.get());
+
+    // So are templates using another copy of a library
+    for (int i = 0; i < 2; i++) {
+      setupGadget(getGadgetXmlWithLibrary(CONTENT_TESTING_PRECEDENCE_RULES));
+      rewriter.rewrite(gadget, content);
+      assertTrue("Precedence rules violated",
+          content.getContent().indexOf("default1inline2inline3external4") > 0);
+    }
+    assertEquals(4, compiled.get());
+  }
+
   @Test
   public void testClientOverride() throws Exception {
     // Should normally remove feature
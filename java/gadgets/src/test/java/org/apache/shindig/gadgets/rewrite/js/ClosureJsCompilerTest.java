@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -52,12 +53,14 @@ import org.junit.Test;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.javascript.jscomp.Compiler;
 import com.google.javascript.jscomp.CompilerOptions;
 import com.google.javascript.jscomp.DiagnosticType;
 import com.google.javascript.jscomp.JSError;
 import com.google.javascript.jscomp.JSSourceFile;
 import com.google.javascript.jscomp.Result;
+import com.google.javascript.jscomp.SourceFile;
 import com.google.javascript.jscomp.SourceMap;
 import com.google.javascript.jscomp.SourceMap.Format;
 
@@ -197,6 +200,50 @@ public class ClosureJsCompilerTest {
     assertEquals(1, actual.getErrors().size());
   }
 
+  @Test
+  public void testCompileResultKeptInStore() throws Exception {
+    File directory = File.createTempFile("compiled-js", "");
+    assertTrue(directory.delete());
+    try {
+      jsUriMock = mockJsUri(false); // opt
+      compiler = newStoringClosureJsCompiler(directory, ACTUAL_COMPILER_OUTPUT);
+      JsResponse actual = compiler.compile(jsUriMock, EXPORT_COMPILER_CONTENTS, EXTERN);
+      assertEquals(ACTUAL_COMPILER_OUTPUT, actual.toJsString());
+
+      // A compiler with an empty cache, as after a restart, reads the result from the store.
+      compiler = newStoringClosureJsCompiler(directory, null);
+      actual = compiler.compile(jsUriMock, EXPORT_COMPILER_CONTENTS, EXTERN);
+      assertEquals(ACTUAL_COMPILER_OUTPUT, actual.toJsString());
+      assertTrue(actual.getErrors().isEmpty());
+    } finally {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  private ClosureJsCompiler newStoringClosureJsCompiler(File directory, final String output) {
+    ClosureJsCompiler compiler = new ClosureJsCompiler(compilerMock, cacheMock, "simple",
+        MoreExecutors.sameThreadExecutor()) {
+      @Override
+      protected CompilerOptions getCompilerOptions(JsUri uri) {
+        return new CompilerOptions();
+      }
+
+      @Override
+      protected CompileResult doCompileContent(JsContent content, CompilerOptions options,
+          List<SourceFile> externs) {
+        if (output == null) {
+          throw new IllegalStateException("Compiled again");
+        }
+        return new CompileResult(output);
+      }
+    };
+    compiler.setStoreDirectory(directory.getPath());
+    return compiler;
+  }
+
   private ClosureJsCompiler newClosureJsCompiler(final Compiler realComp,
       CompilerOptions realOptions, DefaultJsCompiler defaultComp, CacheProvider cache) throws InterruptedException, ExecutionException {
     Future<CompileResult> mockFuture = EasyMock.createMock(Future.class);
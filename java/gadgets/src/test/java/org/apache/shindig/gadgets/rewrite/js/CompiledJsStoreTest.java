@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite.js;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompiledJsStoreTest {
+  private File directory;
+  private CompiledJsStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("compiled-js", "");
+    assertTrue(directory.delete());
+    store = new CompiledJsStore(directory);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void putAndGet() throws Exception {
+    store.put("key", new CompileResult("var a=1;", "var b;"));
+    store.put("other", new CompileResult("var c=2;"));
+
+    CompileResult result = new CompiledJsStore(directory).get("key");
+    assertEquals("var a=1;", result.getContent());
+    assertEquals("var b;", result.getExternExport());
+    result = store.get("other");
+    assertEquals("var c=2;", result.getContent());
+    assertNull(result.getExternExport());
+    assertEquals(2, directory.listFiles().length);
+  }
+
+  @Test
+  public void putReplaces() throws Exception {
+    store.put("key", new CompileResult("var a=1;"));
+    store.put("key", new CompileResult("var a=2;"));
+    assertEquals("var a=2;", store.get("key").getContent());
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @Test
+  public void missingKey() {
+    assertNull(store.get("key"));
+  }
+
+  @Test
+  public void corruptFileIgnored() throws Exception {
+    store.put("key", new CompileResult("var a=1;"));
+    File file = directory.listFiles()[0];
+    overwrite(file, new byte[] { 0x53, 0x4A, 0x53, 0x43, 0, 0, 0, 1, 0x7F, 0, 0, 0 });
+    assertNull(store.get("key"));
+
+    store.put("key", new CompileResult("var a=1;"));
+    assertEquals("var a=1;", store.get("key").getContent());
+  }
+
+  private static void overwrite(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -22,10 +22,15 @@ import static org.easymock.EasyMock.expect;
 
 import java.util.List;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.servlet.HttpServletResponseRecorder;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.uri.UriBuilder;
+import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.GzipUtil;
 import org.apache.shindig.gadgets.GadgetException;
+import org.apache.shindig.gadgets.http.DefaultHttpCache;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
@@ -36,6 +41,7 @@ import org.junit.Test;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -81,7 +87,7 @@ public class ConcatProxyServletTest extends ServletTestFixture {
   private void expectGetAndReturnData(Uri url, String data) throws Exception {
     HttpRequest req = new HttpRequest(url);
     HttpResponse resp = new HttpResponseBuilder().setResponse(data.getBytes()).create();
-    expect(pipeline.execute(req)).andReturn(resp).anyTimes();
+    expect(pipeline.executeAsync(req)).andReturn(Futures.immediateFuture(resp)).anyTimes();
   }
 
   /**
@@ -141,6 +147,29 @@ public class ConcatProxyServletTest extends ServletTestFixture {
     runConcat(sequentialExecutor, results, null, URL1, URL2);
   }
 
+  @Test
+  public void testConcatSendsGzippedBody() throws Exception {
+    final Uri URL4 = Uri.parse("http://example.org/4.js");
+    String script = StringUtils.repeat("var v4 = 'compressible';", 50);
+    DefaultHttpCache cache = new DefaultHttpCache(new LruCacheProvider(10));
+    cache.setGzipBodies(true);
+    HttpRequest req = new HttpRequest(URL4);
+    HttpResponse resp = cache.addResponse(req, new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript").setResponseString(script).create());
+    expect(pipeline.executeAsync(req)).andReturn(Futures.immediateFuture(resp)).anyTimes();
+    expect(request.getHeader("Accept-Encoding")).andReturn("gzip").anyTimes();
+    expectRequestWithUris(Lists.newArrayList(URL1, URL4));
+
+    servlet.setExecutor(sequentialExecutor);
+    servlet.doGet(request, recorder);
+    verify();
+
+    assertEquals(200, recorder.getHttpStatusCode());
+    assertEquals("gzip", recorder.getHeader("Content-Encoding"));
+    assertEquals(addComment(SCRT1, URL1.toString()) + addComment(script, URL4.toString()),
+        CharsetUtil.newUtf8String(GzipUtil.decompress(recorder.getResponseAsBytes(), -1)));
+  }
+
   @Test
   public void testSimpleConcatThreaded() throws Exception {
     String results = addComment(SCRT1, URL1.toString()) + addComment(SCRT2,URL2.toString());
@@ -166,8 +195,9 @@ public class ConcatProxyServletTest extends ServletTestFixture {
     final Uri URL4 = Uri.parse("http://example.org/4.js");
 
     HttpRequest req = new HttpRequest(URL4);
-    expect(pipeline.execute(req)).andThrow(
-        new GadgetException(GadgetException.Code.HTML_PARSE_ERROR)).anyTimes();
+    expect(pipeline.executeAsync(req)).andReturn(
+        Futures.<HttpResponse>immediateFailedFuture(
+            new GadgetException(GadgetException.Code.HTML_PARSE_ERROR))).anyTimes();
 
     expectRequestWithUris(Lists.newArrayList(URL1, URL4));
 
@@ -187,7 +217,7 @@ public class ConcatProxyServletTest extends ServletTestFixture {
     String url = "http://nobodyhome.com/";
     HttpRequest req = new HttpRequest(Uri.parse(url));
     HttpResponse resp = new HttpResponseBuilder().setHttpStatusCode(404).create();
-    expect(pipeline.execute(req)).andReturn(resp).anyTimes();
+    expect(pipeline.executeAsync(req)).andReturn(Futures.immediateFuture(resp)).anyTimes();
 
     expectRequestWithUris(Lists.newArrayList(URL1, Uri.parse(url)));
 
@@ -234,7 +264,7 @@ public class ConcatProxyServletTest extends ServletTestFixture {
 
     HttpRequest req = new HttpRequest(URL4);
     HttpResponse resp = new HttpResponseBuilder().setHttpStatusCode(404).create();
-    expect(pipeline.execute(req)).andReturn(resp).anyTimes();
+    expect(pipeline.executeAsync(req)).andReturn(Futures.immediateFuture(resp)).anyTimes();
 
     String results = "_js={\r\n"
         + addLastVar(URL1.toString(), SCRT1_ESCAPED)
@@ -248,8 +278,9 @@ public class ConcatProxyServletTest extends ServletTestFixture {
     final Uri URL4 = Uri.parse("http://example.org/4.js");
 
     HttpRequest req = new HttpRequest(URL4);
-    expect(pipeline.execute(req)).andThrow(
-        new GadgetException(GadgetException.Code.FAILED_TO_RETRIEVE_CONTENT)).anyTimes();
+    expect(pipeline.executeAsync(req)).andReturn(
+        Futures.<HttpResponse>immediateFailedFuture(
+            new GadgetException(GadgetException.Code.FAILED_TO_RETRIEVE_CONTENT))).anyTimes();
 
     expectRequestWithUris(Lists.newArrayList(URL1, URL4), "_js");
     servlet.doGet(request, recorder);
@@ -266,8 +297,9 @@ public class ConcatProxyServletTest extends ServletTestFixture {
     final Uri URL4 = Uri.parse("http://example.org/4.js");
 
     HttpRequest req = new HttpRequest(URL4);
-    expect(pipeline.execute(req)).andThrow(
-        new GadgetException(GadgetException.Code.HTML_PARSE_ERROR)).anyTimes();
+    expect(pipeline.executeAsync(req)).andReturn(
+        Futures.<HttpResponse>immediateFailedFuture(
+            new GadgetException(GadgetException.Code.HTML_PARSE_ERROR))).anyTimes();
 
     String results = "_js={\r\n"
         + addLastVar(URL1.toString(), SCRT1_ESCAPED)
@@ -324,7 +356,7 @@ public class ConcatProxyServletTest extends ServletTestFixture {
   private void expectGetAndSetCacheTtl(Uri url, Integer cacheTtl) throws Exception {
     HttpRequest req = new HttpRequest(url);
     HttpResponse resp = new HttpResponseBuilder().setCacheTtl(cacheTtl).create();
-    expect(pipeline.execute(req)).andReturn(resp);
+    expect(pipeline.executeAsync(req)).andReturn(Futures.immediateFuture(resp));
   }
 
   /**
@@ -27,12 +27,14 @@ import org.apache.shindig.common.servlet.HttpServletResponseRecorder;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.http.HttpRequest;
+import org.apache.shindig.gadgets.render.HtmlRenderer;
 import org.apache.shindig.gadgets.render.Renderer;
 import org.apache.shindig.gadgets.render.RenderingResults;
 import org.apache.shindig.gadgets.uri.IframeUriManager;
 import org.apache.shindig.gadgets.uri.UriStatus;
 import org.apache.shindig.gadgets.uri.UriCommon.Param;
 
+import org.easymock.IAnswer;
 import org.easymock.IMocksControl;
 import org.easymock.EasyMock;
 import org.junit.Before;
@@ -175,6 +177,82 @@ public class GadgetRenderingServletTest {
     assertEquals("private,max-age=300", recorder.getHeader("Cache-Control"));
   }
 
+  private void expectStreamingRender(final String head, final RenderingResults results) {
+    expect(renderer.render(isA(GadgetContext.class), isA(HtmlRenderer.HeadFlusher.class)))
+        .andAnswer(new IAnswer<RenderingResults>() {
+          public RenderingResults answer() throws Throwable {
+            if (head != null) {
+              ((HtmlRenderer.HeadFlusher) EasyMock.getCurrentArguments()[1]).flush(head);
+            }
+            return results;
+          }
+        });
+  }
+
+  @Test
+  public void streamingResponse() throws Exception {
+    servlet.setRenderer(renderer);
+    servlet.setStreaming(true);
+    expectStreamingRender("<html><head><script src=\"/js/foo\"></script>",
+        RenderingResults.ok("</head><body>working</body></html>"));
+    control.replay();
+
+    servlet.doGet(request, recorder);
+
+    assertEquals(HttpServletResponse.SC_OK, recorder.getHttpStatusCode());
+    assertEquals("no-cache", recorder.getHeader("Cache-Control"));
+    assertEquals("<html><head><script src=\"/js/foo\"></script></head><body>working</body></html>",
+        recorder.getResponseAsString());
+  }
+
+  @Test
+  public void streamingVersionedNotFlushedEarly() throws Exception {
+    IframeUriManager versionedUriManager = control.createMock(IframeUriManager.class);
+    expect(versionedUriManager.validateRenderingUri(isA(Uri.class)))
+        .andReturn(UriStatus.VALID_VERSIONED);
+    servlet.setIframeUriManager(versionedUriManager);
+    servlet.setRenderer(renderer);
+    servlet.setStreaming(true);
+    expect(renderer.render(isA(GadgetContext.class)))
+        .andReturn(RenderingResults.error("busted", HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+    control.replay();
+
+    servlet.doGet(request, recorder);
+
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, recorder.getHttpStatusCode());
+    assertNull(recorder.getHeader("Cache-Control"));
+    assertEquals("busted", recorder.getResponseAsString());
+  }
+
+  @Test
+  public void streamingErrorBeforeFlush() throws Exception {
+    servlet.setRenderer(renderer);
+    servlet.setStreaming(true);
+    expectStreamingRender(null,
+        RenderingResults.error("busted", HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+    control.replay();
+
+    servlet.doGet(request, recorder);
+
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, recorder.getHttpStatusCode());
+    assertEquals("busted", recorder.getResponseAsString());
+  }
+
+  @Test
+  public void streamingErrorAfterFlush() throws Exception {
+    servlet.setRenderer(renderer);
+    servlet.setStreaming(true);
+    expectStreamingRender("<html><head>",
+        RenderingResults.error("busted<b>", HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+    control.replay();
+
+    servlet.doGet(request, recorder);
+
+    assertEquals(HttpServletResponse.SC_OK, recorder.getHttpStatusCode());
+    assertEquals("no-cache", recorder.getHeader("Cache-Control"));
+    assertEquals("<html><head>busted&lt;b&gt;", recorder.getResponseAsString());
+  }
+
   private static HttpServletRequest makeRequestMock(GadgetRenderingServletTest testcase) {
     HttpServletRequest req = testcase.control.createMock(HttpServletRequest.class);
     expect(req.getScheme()).andReturn("http").anyTimes();
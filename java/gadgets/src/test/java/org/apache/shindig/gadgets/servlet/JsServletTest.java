@@ -23,9 +23,15 @@ import static org.easymock.EasyMock.getCurrentArguments;
 import static org.easymock.EasyMock.isA;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
+import org.apache.shindig.common.cache.LruCacheProvider;
+import org.apache.shindig.common.servlet.HttpServletResponseRecorder;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.GzipUtil;
+import org.apache.shindig.config.BasicContainerConfig;
+import org.apache.shindig.config.ContainerConfig;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.RenderingContext;
 import org.apache.shindig.gadgets.js.AddOnloadFunctionProcessor;
@@ -261,4 +267,91 @@ public class JsServletTest extends ServletTestFixture {
     assertEquals("Something bad happened", recorder.getResponseAsString());
     verify();
   }
+
+  @Test
+  public void testVersionedResponseServedFromCache() throws Exception {
+    setUp(0);
+    ContainerConfig config = new BasicContainerConfig();
+    servlet.setResponseCache(new LruCacheProvider(10), config);
+
+    StringBuilder code = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      code.append(EXAMPLE_JS_CODE).append(";\n");
+    }
+    final String js = code.toString();
+    JsUri jsUri = mockJsUri(CONTAINER_PARAM, RenderingContext.CONTAINER, false, false, false,
+        null, REFRESH_INTERVAL_SEC, UriStatus.VALID_VERSIONED);
+    expect(jsUriManagerMock.processExternJsUri(isA(Uri.class))).andReturn(jsUri).anyTimes();
+    expect(request.getScheme()).andReturn("http").anyTimes();
+    expect(request.getServerPort()).andReturn(8080).anyTimes();
+    expect(request.getServerName()).andReturn("localhost").anyTimes();
+    expect(request.getRequestURI()).andReturn("/gadgets/js").anyTimes();
+    expect(request.getHeader("Accept-Encoding")).andReturn("gzip");
+    expect(getJsProcessorMock.process(isA(JsRequest.class), isA(JsResponseBuilder.class)))
+        .andAnswer(new IAnswer<Boolean>() {
+          public Boolean answer() throws Throwable {
+            ((JsResponseBuilder) getCurrentArguments()[1]).appendJs(js, "js");
+            return true;
+          }
+        }).times(2);
+    replay();
+
+    servlet.doGet(request, recorder);
+    assertEquals(HttpServletResponse.SC_OK, recorder.getHttpStatusCode());
+    assertEquals("gzip", recorder.getHeader("Content-Encoding"));
+    byte[] gzipped = recorder.getResponseAsBytes();
+    assertEquals(js, new String(GzipUtil.decompress(gzipped, js.length()), "UTF-8"));
+    String etag = recorder.getHeader("ETag");
+    assertNotNull(etag);
+
+    // Served from the cache, without gzip since the client doesn't accept it.
+    HttpServletResponseRecorder cachedRecorder = new HttpServletResponseRecorder(response);
+    servlet.doGet(request, cachedRecorder);
+    assertEquals(HttpServletResponse.SC_OK, cachedRecorder.getHttpStatusCode());
+    assertNull(cachedRecorder.getHeader("Content-Encoding"));
+    assertEquals(js, cachedRecorder.getResponseAsString());
+    assertEquals(etag, cachedRecorder.getHeader("ETag"));
+
+    // Changing the container config runs the pipeline again.
+    config.newTransaction().addContainer(ImmutableMap.<String, Object>of(
+        ContainerConfig.CONTAINER_KEY, ContainerConfig.DEFAULT_CONTAINER)).commit();
+    HttpServletResponseRecorder rebuiltRecorder = new HttpServletResponseRecorder(response);
+    servlet.doGet(request, rebuiltRecorder);
+    assertEquals(js, rebuiltRecorder.getResponseAsString());
+    verify();
+  }
+
+  @Test
+  public void testResponsesOfOtherVersionsNotShared() throws Exception {
+    setUp(0);
+    servlet.setResponseCache(new LruCacheProvider(10), new BasicContainerConfig());
+
+    JsUri jsUri = mockJsUri(CONTAINER_PARAM, RenderingContext.CONTAINER, false, false, false,
+        null, REFRESH_INTERVAL_SEC, UriStatus.VALID_VERSIONED);
+    expect(jsUri.getOrigUri()).andReturn(Uri.parse("http://localhost/gadgets/js?v=1"));
+    JsUri otherJsUri = mockJsUri(CONTAINER_PARAM, RenderingContext.CONTAINER, false, false,
+        false, null, REFRESH_INTERVAL_SEC, UriStatus.VALID_VERSIONED);
+    expect(otherJsUri.getOrigUri()).andReturn(Uri.parse("http://localhost/gadgets/js?v=2"));
+    expect(jsUriManagerMock.processExternJsUri(isA(Uri.class)))
+        .andReturn(jsUri).andReturn(otherJsUri);
+    expect(request.getScheme()).andReturn("http").anyTimes();
+    expect(request.getServerPort()).andReturn(8080).anyTimes();
+    expect(request.getServerName()).andReturn("localhost").anyTimes();
+    expect(request.getRequestURI()).andReturn("/gadgets/js").anyTimes();
+    expect(getJsProcessorMock.process(isA(JsRequest.class), isA(JsResponseBuilder.class)))
+        .andAnswer(new IAnswer<Boolean>() {
+          public Boolean answer() throws Throwable {
+            ((JsResponseBuilder) getCurrentArguments()[1]).appendJs(EXAMPLE_JS_CODE, "js");
+            return true;
+          }
+        }).times(2);
+    replay();
+
+    servlet.doGet(request, recorder);
+    assertEquals(EXAMPLE_JS_CODE, recorder.getResponseAsString());
+    HttpServletResponseRecorder otherRecorder = new HttpServletResponseRecorder(response);
+    servlet.doGet(request, otherRecorder);
+    assertEquals(EXAMPLE_JS_CODE, otherRecorder.getResponseAsString());
+    verify();
+  }
 }
@@ -28,7 +28,7 @@ import org.apache.shindig.common.servlet.HttpServletResponseRecorder;
 import org.apache.shindig.gadgets.FeedProcessor;
 import org.apache.shindig.gadgets.FeedProcessorImpl;
 import org.apache.shindig.gadgets.LockedDomainService;
-import org.apache.shindig.gadgets.http.RequestPipeline;
+import org.apache.shindig.gadgets.http.AsyncRequestPipeline;
 import org.apache.shindig.gadgets.process.Processor;
 import org.apache.shindig.gadgets.rewrite.CaptureRewriter;
 import org.apache.shindig.gadgets.rewrite.DefaultResponseRewriterRegistry;
@@ -44,7 +44,7 @@ import com.google.inject.Provider;
  * TODO: Get rid of 'stuff that shouldn't be here'.
  */
 public abstract class ServletTestFixture extends EasyMockTestCase {
-  public final RequestPipeline pipeline = mock(RequestPipeline.class);
+  public final AsyncRequestPipeline pipeline = mock(AsyncRequestPipeline.class);
   public CaptureRewriter rewriter = new CaptureRewriter();
   public ResponseRewriterRegistry rewriterRegistry
       = new DefaultResponseRewriterRegistry(Arrays.<ResponseRewriter>asList(rewriter), null);
@@ -19,12 +19,17 @@
 package org.apache.shindig.gadgets.servlet;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.servlet.HttpServletResponseRecorder;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.CharsetUtil;
 import org.apache.shindig.common.util.DateUtil;
 import org.apache.shindig.common.util.FakeTimeSource;
+import org.apache.shindig.common.util.GzipUtil;
 import org.apache.shindig.gadgets.GadgetException;
+import org.apache.shindig.gadgets.http.DefaultHttpCache;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
@@ -46,6 +51,7 @@ import static junitx.framework.ComparableAssert.assertLesser;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class ServletUtilTest {
   @Test
@@ -233,6 +239,53 @@ public class ServletUtilTest {
     assertEquals("public,max-age=1000", recorder.getHeader("Cache-Control"));
   }
 
+  private static HttpResponse gzippedResponse(String body) {
+    DefaultHttpCache cache = new DefaultHttpCache(new LruCacheProvider(10));
+    cache.setGzipBodies(true);
+    cache.setGzipMinBytes(0);
+    HttpResponse response = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript").setResponseString(body).create();
+    return cache.addResponse(new HttpRequest(Uri.parse("http://example.org/file.js")), response);
+  }
+
+  @Test
+  public void testCopyToServletResponseSendsGzippedBody() throws Exception {
+    String body = StringUtils.repeat("var compressible;", 50);
+    HttpResponse response = gzippedResponse(body);
+    assertTrue(response.hasGzippedResponse());
+
+    HttpServletRequest request = EasyMock.createMock(HttpServletRequest.class);
+    EasyMock.expect(request.getHeader("Accept-Encoding")).andReturn("gzip, deflate");
+    EasyMock.replay(request);
+    HttpServletResponseRecorder recorder =
+        new HttpServletResponseRecorder(EasyMock.createMock(HttpServletResponse.class));
+
+    ServletUtil.copyToServletResponseAndOverrideCacheHeaders(response, request, recorder);
+
+    assertEquals("gzip", recorder.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", recorder.getHeader("Vary"));
+    assertEquals(body, CharsetUtil.newUtf8String(
+        GzipUtil.decompress(recorder.getResponseAsBytes(), -1)));
+  }
+
+  @Test
+  public void testCopyToServletResponseSendsPlainBodyWithoutAcceptEncoding() throws Exception {
+    String body = StringUtils.repeat("var compressible;", 50);
+    HttpResponse response = gzippedResponse(body);
+
+    HttpServletRequest request = EasyMock.createMock(HttpServletRequest.class);
+    EasyMock.expect(request.getHeader("Accept-Encoding")).andReturn(null);
+    EasyMock.replay(request);
+    HttpServletResponseRecorder recorder =
+        new HttpServletResponseRecorder(EasyMock.createMock(HttpServletResponse.class));
+
+    ServletUtil.copyToServletResponseAndOverrideCacheHeaders(response, request, recorder);
+
+    assertNull(recorder.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", recorder.getHeader("Vary"));
+    assertEquals(body, recorder.getResponseAsString());
+  }
+
   @Test
   public void testCopyToServletResponse() throws Exception {
     HttpResponse response = new HttpResponseBuilder()
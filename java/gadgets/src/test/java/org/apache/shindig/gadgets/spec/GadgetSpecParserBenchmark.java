@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.spec;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.xml.XmlUtil;
+import org.w3c.dom.Element;
+
+import java.io.FileInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares spec parsing through a full DOM with the {@link StreamingGadgetSpecParser} and with
+ * decoding a {@link SpecCodec} snapshot, for generated specs of typical shapes or for the spec files
+ * given as arguments.
+ */
+public class GadgetSpecParserBenchmark {
+  private static final Uri SPEC_URL = Uri.parse("http://example.org/g.xml");
+
+  private final int numRuns;
+  private boolean warmup;
+
+  private GadgetSpecParserBenchmark(Map<String, String> specs, int numRuns) throws Exception {
+    this.numRuns = 10;
+    warmup = true;
+    run(specs);
+
+    //Sleep to let JIT kick in
+    Thread.sleep(10000L);
+    this.numRuns = numRuns;
+    warmup = false;
+    run(specs);
+  }
+
+  private void run(Map<String, String> specs) throws Exception {
+    for (Map.Entry<String, String> spec : specs.entrySet()) {
+      output(spec.getKey() + " (" + spec.getValue().length() + " chars)-----------------");
+      timeDom(spec.getValue());
+      timeStreaming(spec.getValue());
+      timeDecoding(spec.getValue());
+    }
+  }
+
+  private void output(String string) {
+    if (!warmup) {
+      System.out.println(string);
+    }
+  }
+
+  private void timeDom(String xml) throws Exception {
+    long parseStart = System.currentTimeMillis();
+    for (int i = 0; i < numRuns; ++i) {
+      new GadgetSpec(SPEC_URL, XmlUtil.parse(xml), xml);
+    }
+    long parseMillis = System.currentTimeMillis() - parseStart;
+
+    output("DOM [" + parseMillis + " ms total: " + ((double) parseMillis) / numRuns + "ms/run]");
+  }
+
+  private void timeStreaming(String xml) throws Exception {
+    long parseStart = System.currentTimeMillis();
+    for (int i = 0; i < numRuns; ++i) {
+      StreamingGadgetSpecParser.parse(SPEC_URL, xml);
+    }
+    long parseMillis = System.currentTimeMillis() - parseStart;
+
+    output("Streaming [" + parseMillis + " ms total: " +
+          ((double) parseMillis) / numRuns + "ms/run]");
+  }
+
+  private void timeDecoding(String xml) throws Exception {
+    Element element = StreamingGadgetSpecParser.parse(xml);
+    GadgetSpec spec = new GadgetSpec(SPEC_URL, element, xml);
+    byte[] encoded = SpecCodec.encode(element, spec.getChecksum());
+
+    long parseStart = System.currentTimeMillis();
+    for (int i = 0; i < numRuns; ++i) {
+      SpecCodec.decodeGadgetSpec(SPEC_URL, encoded);
+    }
+    long parseMillis = System.currentTimeMillis() - parseStart;
+
+    output("Decoding " + encoded.length + " bytes [" + parseMillis + " ms total: " +
+          ((double) parseMillis) / numRuns + "ms/run]");
+  }
+
+  private static String spec(String content) {
+    StringBuilder buf = new StringBuilder();
+    buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+       .append("<Module>\n")
+       .append("<ModulePrefs title=\"Benchmark\" description=\"A gadget\" height=\"200\">\n")
+       .append("<Require feature=\"opensocial-0.9\"/>\n")
+       .append("<Require feature=\"dynamic-height\"/>\n")
+       .append("<Optional feature=\"views\"><Param name=\"p\">v</Param></Optional>\n")
+       .append("<Locale messages=\"http://example.org/messages.xml\"/>\n")
+       .append("<Link rel=\"icon\" href=\"http://example.org/icon.png\"/>\n")
+       .append("</ModulePrefs>\n");
+    for (int i = 0; i < 5; ++i) {
+      buf.append("<UserPref name=\"pref").append(i)
+         .append("\" display_name=\"Pref\" datatype=\"enum\" default_value=\"a\">")
+         .append("<EnumValue value=\"a\"/><EnumValue value=\"b\"/></UserPref>\n");
+    }
+    return buf.append(content).append("</Module>").toString();
+  }
+
+  private static String rows(int count) {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      buf.append("<div class=\"row\"><span>Row ").append(i).append("</span>")
+         .append("<a href=\"http://example.org/").append(i).append("\">link</a></div>\n");
+    }
+    return buf.toString();
+  }
+
+  private static Map<String, String> generatedSpecs() {
+    Map<String, String> specs = new LinkedHashMap<String, String>();
+    specs.put("Small spec", spec(
+        "<Content type=\"html\" view=\"home,profile\"><![CDATA[<div>Hello</div>]]></Content>\n" +
+        "<Content type=\"url\" view=\"canvas\" href=\"http://example.org/canvas\"/>\n"));
+    specs.put("Large CDATA view", spec(
+        "<Content type=\"html\"><![CDATA[" + rows(5000) + "]]></Content>\n"));
+    specs.put("Large inline markup view", spec(
+        "<Content type=\"html\">" + rows(5000) + "</Content>\n"));
+    specs.put("Many views", spec(
+        "<Content type=\"html\" view=\"home\"><![CDATA[" + rows(200) + "]]></Content>\n" +
+        "<Content type=\"html\" view=\"profile\"><![CDATA[" + rows(200) + "]]></Content>\n" +
+        "<Content type=\"html\" view=\"canvas\"><![CDATA[" + rows(1000) + "]]></Content>\n"));
+    return specs;
+  }
+
+  public static void main(String[] args) {
+    // Run as a standalone program to compare parsing times, on generated specs or on the
+    // given spec files.
+    if (args.length < 1) {
+      System.err.println("Args: <num-runs> [<spec-file> ...]");
+      System.exit(1);
+    }
+
+    int numRuns = -1;
+    try {
+      numRuns = Integer.parseInt(args[0]);
+    } catch (Exception e) {
+      System.err.println("Invalid num-runs argument: " + args[0] + ", reason: " + e);
+      System.exit(1);
+    }
+    try {
+      Map<String, String> specs;
+      if (args.length == 1) {
+        specs = generatedSpecs();
+      } else {
+        specs = new LinkedHashMap<String, String>();
+        for (int i = 1; i < args.length; ++i) {
+          specs.put(args[i], IOUtils.toString(new FileInputStream(args[i]), "UTF-8"));
+        }
+      }
+      new GadgetSpecParserBenchmark(specs, numRuns);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.spec;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.xml.XmlUtil;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+public class SpecCodecTest extends Assert {
+  private static final Uri SPEC_URL = Uri.parse("http://example.org/g.xml");
+
+  private static final String SPEC_XML =
+      "<Module xmlns:os='http://ns.opensocial.org/2008/markup'>" +
+      "<ModulePrefs title='Codec' author_email='a@example.org'>" +
+      "<Require feature='opensocial-0.9'/>" +
+      "<Optional feature='views'><Param name='p'>value</Param></Optional>" +
+      "<Locale lang='en' language_direction='rtl'><msg name='hello'>Hello</msg></Locale>" +
+      "<Locale lang='de' messages='http://example.org/de.xml'/>" +
+      "<Link rel='icon' href='http://example.org/icon.png'/>" +
+      "</ModulePrefs>" +
+      "<UserPref name='color' datatype='enum' default_value='red'>" +
+      "<EnumValue value='red'/><EnumValue value='blue' display_value='Blue'/>" +
+      "</UserPref>" +
+      "<Content type='html' view='home,profile'><![CDATA[<b>Hi</b> ]]>and <i>more</i></Content>" +
+      "<Content type='html' view='canvas' href='http://example.org/canvas'>" +
+      "<os:PeopleRequest key='friends' userId='@viewer' groupId='@friends'/>" +
+      "</Content>" +
+      "</Module>";
+
+  @Test
+  public void gadgetSpecRoundTrip() throws Exception {
+    Element element = XmlUtil.parse(SPEC_XML);
+    GadgetSpec spec = new GadgetSpec(SPEC_URL, element, SPEC_XML);
+
+    GadgetSpec decoded = SpecCodec.decodeGadgetSpec(SPEC_URL,
+        SpecCodec.encode(element, spec.getChecksum()));
+
+    assertEquals(SPEC_URL, decoded.getUrl());
+    assertEquals(spec.getChecksum(), decoded.getChecksum());
+    assertEquals(spec.toString(), decoded.toString());
+    assertEquals("<b>Hi</b> and more", decoded.getView("home").getContent());
+    assertTrue(decoded.getView("canvas").getPipelinedData().needsViewer());
+    assertEquals(spec.getModulePrefs().getFeatures().keySet(),
+        decoded.getModulePrefs().getFeatures().keySet());
+    assertEquals("rtl", decoded.getModulePrefs().getLocale(new Locale("en"), "home")
+        .getLanguageDirection());
+    assertEquals(Arrays.asList("red", "blue"), Arrays.asList(decoded.getUserPrefs().get("color")
+        .getEnumValues().keySet().toArray()));
+  }
+
+  @Test
+  public void sameEncodingFromStreamingParser() throws Exception {
+    Element dom = XmlUtil.parse(SPEC_XML);
+    Element streamed = StreamingGadgetSpecParser.parse(SPEC_XML);
+    assertTrue(Arrays.equals(SpecCodec.encode(dom, "checksum"),
+        SpecCodec.encode(streamed, "checksum")));
+  }
+
+  @Test
+  public void messageBundleRoundTrip() throws Exception {
+    MessageBundle bundle = new MessageBundle(
+        ImmutableMap.of("hello", "Hello, <b>world</b>", "bye", "\u00e0 bient\u00f4t"), "rtl");
+
+    MessageBundle decoded = SpecCodec.decodeMessageBundle(SpecCodec.encode(bundle));
+
+    assertEquals(bundle.getMessages(), decoded.getMessages());
+    assertEquals("rtl", decoded.getLanguageDirection());
+  }
+
+  @Test(expected = IOException.class)
+  public void notAnEncodedSpec() throws Exception {
+    SpecCodec.decodeGadgetSpec(SPEC_URL, "<Module/>".getBytes("UTF-8"));
+  }
+
+  @Test(expected = IOException.class)
+  public void bundleIsNotASpec() throws Exception {
+    SpecCodec.decodeGadgetSpec(SPEC_URL,
+        SpecCodec.encode(new MessageBundle(ImmutableMap.of("a", "b"), "ltr")));
+  }
+
+  @Test(expected = IOException.class)
+  public void unsupportedVersion() throws Exception {
+    byte[] encoded = SpecCodec.encode(XmlUtil.parse(SPEC_XML), "checksum");
+    encoded[2] = SpecCodec.VERSION + 1;
+    SpecCodec.decodeGadgetSpec(SPEC_URL, encoded);
+  }
+
+  @Test(expected = IOException.class)
+  public void truncated() throws Exception {
+    byte[] encoded = SpecCodec.encode(XmlUtil.parse(SPEC_XML), "checksum");
+    SpecCodec.decodeGadgetSpec(SPEC_URL, Arrays.copyOf(encoded, encoded.length - 10));
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.spec;
+
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.xml.XmlException;
+import org.apache.shindig.common.xml.XmlUtil;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class StreamingGadgetSpecParserTest extends Assert {
+  private static final Uri SPEC_URL = Uri.parse("http://example.org/g.xml");
+
+  private static final String[] SPECS = {
+    "<Module>" +
+    "<ModulePrefs title='t &amp; x'>" +
+    "<Require feature='a'><Param name='p'>v<!-- comment --></Param></Require>" +
+    "</ModulePrefs>" +
+    "<Content type='html'><![CDATA[<b>hi</b> & ]]>more<i>x</i><!-- comment --></Content>" +
+    "</Module>",
+
+    "<?xml version='1.0'?>\n" +
+    "<!DOCTYPE Module [<!ENTITY foo 'bar'>]>\n" +
+    "<Module specificationVersion='2.0' xmlns:os='http://ns.opensocial.org/2008/markup'>" +
+    "<ModulePrefs title='&foo;'/>" +
+    "<Content view='a,b' href='http://example.org/proxied' " +
+    "xmlns:os='http://ns.opensocial.org/2008/markup'>" +
+    "<os:PeopleRequest key='k' userId='@viewer'/> text </Content>" +
+    "<Content view='c' xmlns='urn:x' foo='bar'/>" +
+    "<UserPref name='u' os:x='1'/>" +
+    "</Module>",
+
+    "  <Module><ModulePrefs/><Content><![CDATA[a]]><![CDATA[b]]>&#x41;</Content></Module>  ",
+
+    "<!DOCTYPE Module SYSTEM 'http://example.org/nonexistent.dtd'>" +
+    "<Module><ModulePrefs/><Content/></Module>",
+
+    "<Module xmlns:os='http://ns.opensocial.org/2008/markup'><ModulePrefs/>" +
+    "<Content view='a, b' href='http://example.org/proxied'/>" +
+    "<Content view='b'><os:PeopleRequest key='k' userId='@owner'/><b>x</b></Content>" +
+    "<Content view='c'><os:PeopleRequest key='k' userId='@owner'/><b>y</b></Content>" +
+    "<Content view='a'>z</Content>" +
+    "</Module>",
+
+    "<Module><ModulePrefs title='__MSG_t__'>" +
+    "<Locale lang='en'><messagebundle><msg name='t'>T</msg></messagebundle></Locale>" +
+    "</ModulePrefs>" +
+    "<UserPref name='p' datatype='enum'><EnumValue value='1'/></UserPref>" +
+    "<Content type='html' view='home,canvas' preferred_height='100'>a<div>__UP_p__</div>" +
+    "</Content>" +
+    "<Content type='html' view='canvas'>b</Content>" +
+    "</Module>"
+  };
+
+  @Test
+  public void matchesDomParsing() throws Exception {
+    for (String xml : SPECS) {
+      assertEquals(xml, dump(XmlUtil.parse(xml), new HashSet<String>()),
+          dump(StreamingGadgetSpecParser.parse(xml), new HashSet<String>()));
+    }
+  }
+
+  @Test
+  public void sameSpecAsDomParsing() throws Exception {
+    for (String xml : SPECS) {
+      GadgetSpec dom = new GadgetSpec(SPEC_URL, XmlUtil.parse(xml), xml);
+      GadgetSpec streamed = StreamingGadgetSpecParser.parse(SPEC_URL, xml);
+      assertEquals(xml, dom.toString(), streamed.toString());
+      assertEquals(dom.getChecksum(), streamed.getChecksum());
+    }
+  }
+
+  @Test
+  public void contentBodyIsSingleText() throws Exception {
+    Element module = StreamingGadgetSpecParser.parse(
+        "<Module><Content type='html'>a<b>bold</b><![CDATA[<i>c</i>]]></Content></Module>");
+    Node content = module.getFirstChild();
+    assertEquals("Content", content.getNodeName());
+    Node text = content.getFirstChild();
+    assertEquals(Node.TEXT_NODE, text.getNodeType());
+    assertEquals("abold<i>c</i>", text.getNodeValue());
+    assertNull(text.getNextSibling());
+  }
+
+  @Test
+  public void proxiedContentKeepsElements() throws Exception {
+    GadgetSpec spec = StreamingGadgetSpecParser.parse(SPEC_URL,
+        "<Module xmlns:os='http://ns.opensocial.org/2008/markup'>" +
+        "<Content href='http://example.org/proxied'>" +
+        "<os:PeopleRequest key='key' userId='@viewer'/>" +
+        "</Content></Module>");
+    PipelinedData data = spec.getView(GadgetSpec.DEFAULT_VIEW).getPipelinedData();
+    assertNotNull(data);
+    assertTrue(data.needsViewer());
+  }
+
+  @Test
+  public void laterContentOfProxiedViewKeepsElements() throws Exception {
+    String xml = "<Module xmlns:os='http://ns.opensocial.org/2008/markup'>" +
+        "<Content href='http://example.org/proxied'/>" +
+        "<Content><os:PeopleRequest key='key' userId='@viewer'/></Content>" +
+        "</Module>";
+    for (GadgetSpec spec : new GadgetSpec[] {
+        new GadgetSpec(SPEC_URL, xml), StreamingGadgetSpecParser.parse(SPEC_URL, xml) }) {
+      View view = spec.getView(GadgetSpec.DEFAULT_VIEW);
+      assertEquals(Uri.parse("http://example.org/proxied"), view.getHref());
+      assertTrue(view.getPipelinedData().needsViewer());
+    }
+  }
+
+  @Test(expected = XmlException.class)
+  public void malformed() throws Exception {
+    StreamingGadgetSpecParser.parse("<Module><Content></Module>");
+  }
+
+  @Test(expected = XmlException.class)
+  public void unboundPrefix() throws Exception {
+    StreamingGadgetSpecParser.parse("<Module><os:Foo/></Module>");
+  }
+
+  @Test(expected = XmlException.class)
+  public void empty() throws Exception {
+    StreamingGadgetSpecParser.parse("");
+  }
+
+  @Test
+  public void externalEntityNotLoaded() throws Exception {
+    Element module = StreamingGadgetSpecParser.parse(
+        "<!DOCTYPE Module [<!ENTITY x SYSTEM 'file:///etc/passwd'>]>" +
+        "<Module><Content>&x;</Content></Module>");
+    assertEquals("", module.getTextContent());
+  }
+
+  /**
+   * Dumps elements, attributes and text, with the text of Content sections of views that aren't
+   * proxied combined, since that is all a view reads of them.
+   */
+  private static String dump(Element element, Set<String> proxiedViews) {
+    StringBuilder buf = new StringBuilder();
+    buf.append('<').append(element.getTagName())
+       .append('{').append(element.getNamespaceURI()).append('}');
+    NamedNodeMap attributes = element.getAttributes();
+    Map<String, String> sorted = new TreeMap<String, String>();
+    for (int i = 0; i < attributes.getLength(); i++) {
+      Node attr = attributes.item(i);
+      sorted.put(attr.getNodeName() + '{' + attr.getNamespaceURI() + '}', attr.getNodeValue());
+    }
+    buf.append(sorted).append('>');
+    if ("Content".equals(element.getTagName())
+        && element.getParentNode().getParentNode() instanceof Document
+        && !isProxied(element, proxiedViews)) {
+      buf.append(element.getTextContent());
+    } else {
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+        if (child instanceof Element) {
+          buf.append(dump((Element) child, proxiedViews));
+        } else if (child.getNodeType() == Node.TEXT_NODE
+            || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+          buf.append(child.getNodeValue());
+        }
+      }
+    }
+    return buf.append("</>").toString();
+  }
+
+  private static boolean isProxied(Element content, Set<String> proxiedViews) {
+    boolean proxied = content.hasAttribute("href");
+    for (String view : XmlUtil.getAttribute(content, "view", "default").split(",")) {
+      if (content.hasAttribute("href")) {
+        proxiedViews.add(view.trim());
+      } else {
+        proxied |= proxiedViews.contains(view.trim());
+      }
+    }
+    return proxied;
+  }
+}
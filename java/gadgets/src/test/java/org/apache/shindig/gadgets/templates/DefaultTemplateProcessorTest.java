@@ -20,8 +20,11 @@ package org.apache.shindig.gadgets.templates;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
@@ -38,6 +41,7 @@ import org.apache.shindig.gadgets.render.SanitizingGadgetRewriter;
 import org.apache.shindig.gadgets.templates.tags.AbstractTagHandler;
 import org.apache.shindig.gadgets.templates.tags.DefaultTagRegistry;
 import org.apache.shindig.gadgets.templates.tags.TagHandler;
+import org.apache.shindig.gadgets.templates.tags.TemplateBasedTagHandler;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
@@ -67,6 +71,7 @@ public class DefaultTemplateProcessorTest {
   private Expressions expressions;
 
   private TemplateContext context;
+  private TemplateCompiler compiler;
   private DefaultTemplateProcessor processor;
   private Map<String, Object> variables;
   private ELResolver resolver;
@@ -87,7 +92,8 @@ public class DefaultTemplateProcessorTest {
         singletonElementHandler);
     registry = new DefaultTagRegistry(handlers);
 
-    processor = new DefaultTemplateProcessor(expressions);
+    compiler = new TemplateCompiler(expressions);
+    processor = new DefaultTemplateProcessor(expressions, compiler);
     resolver = new RootELResolver();
     parser = new NekoSimplifiedHtmlParser(new ParseModule.DOMImplementationProvider().get());
     context = new TemplateContext(new Gadget(), variables);
@@ -230,6 +236,44 @@ public class DefaultTemplateProcessorTest {
 
   }
 
+  @Test
+  public void testCompiledTemplatesRenderCopies() throws Exception {
+    String markup = "<span repeat=\"${countries}\" title=\"${Cur}\">"
+        + "${Context.Index}<test:Foo text='${foo.title}' data='${user}'/></span>";
+    Element template = prepareTemplate(markup, "xmlns:test='" + TEST_NS + '\'');
+    CompiledTemplates compiled = compiler.compileTemplates(ImmutableList.of(template), registry);
+    assertSame(registry, compiled.getTagRegistry());
+
+    context.setCompiledTemplates(compiled);
+    String output = serialize(processor.processTemplate(template, context, resolver, registry));
+    assertEquals("<span title=\"Ireland\">0<b>BAR</b></span>"
+        + "<span title=\"France\">1<b>BAR</b></span>", output);
+
+    // Another parse of the template renders from the compiled form, with the handlers resolved
+    // when compiling
+    Element copy = prepareTemplate(markup, "xmlns:test='" + TEST_NS + '\'');
+    variables.put("countries", new JSONArray("['Spain']"));
+    context.setCompiledTemplates(compiled.bind(ImmutableList.of(copy)));
+    output = serialize(new DefaultTemplateProcessor(expressions, compiler).processTemplate(
+        copy, context, resolver, new DefaultTagRegistry(ImmutableSet.<TagHandler>of())));
+    assertEquals("<span title=\"Spain\">0<b>BAR</b></span>", output);
+  }
+
+  @Test
+  public void testTagContentCompiledWithTemplates() throws Exception {
+    Element definition = XmlUtil.parseSilent("<template>[${My.text}]</template>");
+    registry = new DefaultTagRegistry(ImmutableSet.<TagHandler>of(
+        new TemplateBasedTagHandler(definition, TEST_NS, "Def")));
+    Element template = prepareTemplate("<test:Def text='${foo.title}'/>",
+        "xmlns:test='" + TEST_NS + '\'');
+    CompiledTemplates compiled = compiler.compileTemplates(ImmutableList.of(template), registry);
+    assertNotNull(compiled.get(definition));
+
+    context.setCompiledTemplates(compiled);
+    String output = serialize(processor.processTemplate(template, context, resolver, registry));
+    assertEquals("[bar]", output);
+  }
+
   /**
    * Ensure that the element cloning handling of processChildren correctly
    * copies and element to the target element, including making sure that
@@ -20,9 +20,12 @@ package org.apache.shindig.gadgets.templates;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.GadgetException;
@@ -83,6 +86,28 @@ public class TemplateLibraryFactoryTest {
     assertTrue(pipeline.request.getIgnoreCache());
   }
 
+  @Test
+  public void testLibrariesCached() throws GadgetException {
+    TemplateLibraryFactory factory = new TemplateLibraryFactory(new CapturingPipeline(),
+        new LruCacheProvider(10));
+    GadgetContext context = new GadgetContext() {
+      @Override
+      public Uri getUrl() {
+        return SPEC_URL;
+      }
+    };
+
+    TemplateLibrary library = factory.loadTemplateLibrary(context, TEMPLATE_URL);
+    assertSame(library, factory.loadTemplateLibrary(context, TEMPLATE_URL));
+    assertEquals(TEMPLATE_URL, library.getLibraryUri());
+
+    // The same content from elsewhere is another library
+    Uri otherUrl = Uri.parse("http://www.example.org/other/template.xml");
+    TemplateLibrary other = factory.loadTemplateLibrary(context, otherUrl);
+    assertNotSame(library, other);
+    assertEquals(otherUrl, other.getLibraryUri());
+  }
+
   private static class CapturingPipeline implements RequestPipeline {
     HttpRequest request;
 
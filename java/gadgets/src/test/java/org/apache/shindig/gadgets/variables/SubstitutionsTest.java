@@ -120,6 +120,19 @@ public class SubstitutionsTest extends Assert {
     assertEquals("<div id='div___HI_THERE123_'/>", subst.substituteString(msg));
   }
 
+  @Test
+  public void testSameStringWithOtherValues() throws Exception {
+    String msg = "<div id='div___MODULE_ID__'>__UP_hello__, __MSG_world__</div>";
+    subst.addSubstitution(Type.MODULE, "ID", "123");
+    subst.addSubstitution(Type.MESSAGE, "world", "planet");
+    assertEquals("<div id='div_123'>__UP_hello__, planet</div>", subst.substituteString(msg));
+
+    Substitutions other = new Substitutions();
+    other.addSubstitution(Type.MODULE, "ID", "456");
+    other.addSubstitution(Type.USER_PREF, "hello", "Greetings");
+    assertEquals("<div id='div_456'>Greetings, __MSG_world__</div>", other.substituteString(msg));
+  }
+
   @Test
   @Ignore("off by default, TODO add test logic")
   public void loadTest() throws Exception {